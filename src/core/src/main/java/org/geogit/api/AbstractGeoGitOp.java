@@ -45,6 +45,20 @@ public abstract class AbstractGeoGitOp<T> implements Callable<T> {
         return new SubProgressListener(getProgressListener(), amount);
     }
 
+    /**
+     * Runs the operation through {@link #call()}, recording how long it took in the
+     * {@code ops.<operation class name>} timer of the repository {@link Repository#getMetrics()
+     * metrics}. Operations called directly are not timed.
+     */
+    public T timedCall() throws Exception {
+        final long start = System.nanoTime();
+        try {
+            return call();
+        } finally {
+            repository.getMetrics().timer("ops." + getClass().getSimpleName()).stop(start);
+        }
+    }
+
     /**
      * @see java.util.concurrent.Callable#call()
      */
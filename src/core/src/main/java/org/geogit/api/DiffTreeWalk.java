@@ -347,8 +347,7 @@ public class DiffTreeWalk {
                 // not the same object (blob or tree), find out whether it's an addition or a
                 // deletion. Uses the same ordering than RevTree's iteration order to perform the
                 // comparison
-                final int comparison = ObjectId.forString(oldEntryName).compareTo(
-                        ObjectId.forString(newEntryName));
+                final int comparison = nextOld.getNameHash().compareTo(nextNew.getNameHash());
                 Preconditions.checkState(comparison != 0,
                         "Comparison can't be 0 if reached this point!");
 
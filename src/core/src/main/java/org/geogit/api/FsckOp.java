@@ -0,0 +1,67 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.api;
+
+import org.geogit.repository.Repository;
+import org.geogit.storage.IntegrityChecker;
+
+/**
+ * Checks the integrity of the objects reachable from the refs of the repository: that they hash
+ * to their ids, that the objects they point to exist and are of the right type, and that trees
+ * place their entries in the right buckets and know their size.
+ * <p>
+ * Objects are checked concurrently on all the available processors by default.
+ * </p>
+ * 
+ * @see IntegrityChecker
+ */
+public class FsckOp extends AbstractGeoGitOp<FsckResult> {
+
+    private int maxErrors = 100;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    public FsckOp(final Repository repository) {
+        super(repository);
+    }
+
+    /**
+     * @param maxErrors
+     *            the number of errors to stop checking at, defaults to 100
+     */
+    public FsckOp setMaxErrors(final int maxErrors) {
+        this.maxErrors = maxErrors;
+        return this;
+    }
+
+    /**
+     * @param threads
+     *            the number of threads to check objects with, defaults to the number of processors
+     */
+    public FsckOp setThreads(final int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @return the errors found and how fast the objects were checked
+     * @see java.util.concurrent.Callable#call()
+     */
+    @Override
+    public FsckResult call() throws Exception {
+        getProgressListener().started();
+        IntegrityChecker checker = IntegrityChecker.forRepository(
+                getRepository().getObjectDatabase()).setMaxErrors(maxErrors).setThreads(threads);
+        checker.check();
+        FsckResult result = new FsckResult(checker.getCheckedObjects(),
+                checker.getCheckedBytes(), checker.getObjectsPerSecond(), checker.getErrors());
+        LOGGER.fine("Checked repository: " + result);
+        for (String error : result.getErrors()) {
+            LOGGER.warning(error);
+        }
+        getProgressListener().complete();
+        return result;
+    }
+}
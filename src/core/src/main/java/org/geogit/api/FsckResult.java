@@ -0,0 +1,72 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.api;
+
+import java.util.List;
+
+/**
+ * What a {@link FsckOp repository check} found
+ */
+public class FsckResult {
+
+    private final long checkedObjects;
+
+    private final long checkedBytes;
+
+    private final double objectsPerSecond;
+
+    private final List<String> errors;
+
+    public FsckResult(final long checkedObjects, final long checkedBytes,
+            final double objectsPerSecond, final List<String> errors) {
+        this.checkedObjects = checkedObjects;
+        this.checkedBytes = checkedBytes;
+        this.objectsPerSecond = objectsPerSecond;
+        this.errors = errors;
+    }
+
+    /**
+     * @return {@code true} if no error was found
+     */
+    public boolean isValid() {
+        return errors.isEmpty();
+    }
+
+    /**
+     * @return the errors found, the check stops once there are as many as it was asked for
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return the number of objects checked
+     */
+    public long getCheckedObjects() {
+        return checkedObjects;
+    }
+
+    /**
+     * @return the size in bytes of the stored records of the checked objects
+     */
+    public long getCheckedBytes() {
+        return checkedBytes;
+    }
+
+    /**
+     * @return the number of objects checked per second
+     */
+    public double getObjectsPerSecond() {
+        return objectsPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("FsckResult[checked: ").append(checkedObjects)
+                .append(", bytes: ").append(checkedBytes).append(", objects/s: ")
+                .append((long) objectsPerSecond).append(", errors: ").append(errors.size())
+                .append(']').toString();
+    }
+}
@@ -0,0 +1,66 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.api;
+
+import org.geogit.repository.Repository;
+import org.geogit.storage.GarbageCollector;
+import org.geogit.storage.StagingDatabase;
+
+/**
+ * Deletes the objects that can't be reached from any ref from the repository object database,
+ * and the ones that can't be reached from any staged or unstaged change from the staging area
+ * object database.
+ * <p>
+ * Rolled back changes, blobs replaced in the index and intermediate trees are otherwise never
+ * deleted. Objects stored as deltas keep their bases alive.
+ * </p>
+ * 
+ * @see GarbageCollector
+ */
+public class GcOp extends AbstractGeoGitOp<GcResult> {
+
+    private boolean pruneStagingArea = true;
+
+    public GcOp(final Repository repository) {
+        super(repository);
+    }
+
+    /**
+     * @param pruneStagingArea
+     *            whether to collect the staging area object database too, defaults to
+     *            {@code true}
+     */
+    public GcOp setPruneStagingArea(final boolean pruneStagingArea) {
+        this.pruneStagingArea = pruneStagingArea;
+        return this;
+    }
+
+    /**
+     * @return what was reclaimed from both object databases
+     * @see java.util.concurrent.Callable#call()
+     */
+    @Override
+    public GcResult call() throws Exception {
+        final Repository repository = getRepository();
+        final GcResult result = new GcResult();
+        getProgressListener().started();
+
+        GarbageCollector gc = GarbageCollector.forRepository(repository.getObjectDatabase(),
+                repository.getRefDatabase());
+        gc.collect();
+        result.add(gc.getReachableObjects(), gc.getPrunedObjects(), gc.getPrunedBytes());
+        getProgressListener().progress(50f);
+
+        if (pruneStagingArea && !getProgressListener().isCanceled()) {
+            StagingDatabase index = repository.getIndex().getDatabase();
+            gc = GarbageCollector.forStagingArea(index);
+            gc.collect();
+            result.add(gc.getReachableObjects(), gc.getPrunedObjects(), gc.getPrunedBytes());
+        }
+        LOGGER.fine("Garbage collected: " + result);
+        getProgressListener().complete();
+        return result;
+    }
+}
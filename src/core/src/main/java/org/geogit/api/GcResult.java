@@ -0,0 +1,51 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.api;
+
+/**
+ * What a {@link GcOp garbage collection} reclaimed
+ */
+public class GcResult {
+
+    private int reachableObjects;
+
+    private int prunedObjects;
+
+    private long prunedBytes;
+
+    public void add(final int reachableObjects, final int prunedObjects, final long prunedBytes) {
+        this.reachableObjects += reachableObjects;
+        this.prunedObjects += prunedObjects;
+        this.prunedBytes += prunedBytes;
+    }
+
+    /**
+     * @return the number of objects kept because they're reachable
+     */
+    public int getReachableObjects() {
+        return reachableObjects;
+    }
+
+    /**
+     * @return the number of unreachable objects deleted
+     */
+    public int getPrunedObjects() {
+        return prunedObjects;
+    }
+
+    /**
+     * @return the size in bytes of the deleted objects
+     */
+    public long getPrunedBytes() {
+        return prunedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("GcResult[reachable: ").append(reachableObjects)
+                .append(", pruned: ").append(prunedObjects).append(", bytes: ")
+                .append(prunedBytes).append(']').toString();
+    }
+}
@@ -157,6 +157,20 @@ public class GeoGIT {
         return new FetchOp(repository, config.getRemotes());
     }
 
+    /**
+     * Verifies the connectivity and validity of the objects in the repository
+     */
+    public FsckOp fsck() {
+        return new FsckOp(repository);
+    }
+
+    /**
+     * Cleanup unnecessary files and optimize the local repository
+     */
+    public GcOp gc() {
+        return new GcOp(repository);
+    }
+
     /**
      * Create an empty working tree or reinitialize an existing one
      */
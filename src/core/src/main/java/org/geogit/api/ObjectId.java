@@ -1,197 +1,366 @@
-/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
- * This code is licensed under the LGPL 2.1 license, available at the root
- * application directory.
- */
-package org.geogit.api;
-
-import java.security.MessageDigest;
-import java.util.Arrays;
-
-import com.google.common.base.Preconditions;
-import com.sleepycat.persist.model.Persistent;
-
-/**
- * A semi-mutable SHA-1 abstraction.
- * <p>
- * An ObjectId is mutable as long as it has not been assigned a raw value already
- * </p>
- */
-@Persistent
-public class ObjectId implements Comparable<ObjectId> {
-    public static final ObjectId NULL = new ObjectId(new byte[20]);
-
-    private byte[] raw;
-
-    public ObjectId() {
-        this(NULL.raw);
-    }
-
-    public ObjectId(byte[] raw) {
-        Preconditions.checkNotNull(raw);
-        Preconditions.checkArgument(raw.length == 20);
-        this.raw = raw;
-    }
-
-    public boolean isNull() {
-        return NULL.equals(this);
-    }
-
-    @Override
-    public boolean equals(Object o) {
-        if (!(o instanceof ObjectId)) {
-            return false;
-        }
-        return Arrays.equals(raw, ((ObjectId) o).raw);
-    }
-
-    @Override
-    public int hashCode() {
-        final int hashCode = readInt(raw, 4);
-        return hashCode;
-    }
-
-    /**
-     * @return a human friendly representation of this SHA1
-     * @see java.lang.Object#toString()
-     */
-    @Override
-    public String toString() {
-        final byte[] hash = this.raw;
-        return toString(hash);
-    }
-
-    /**
-     * Returns the objectid represented by its string form, this method is the inverse of
-     * {@link #toString()}
-     * 
-     * @return
-     */
-    public static ObjectId valueOf(final String hash) {
-        Preconditions.checkNotNull(hash);
-        Preconditions.checkArgument(hash.length() == 40);
-
-        // this is perhaps the worse way of doing this...
-
-        final byte[] raw = new byte[20];
-        final int radix = 16;
-        for (int i = 0; i < 20; i++) {
-            raw[i] = (byte) Integer.parseInt(hash.substring(2 * i, 2 * i + 2), radix);
-        }
-        return new ObjectId(raw);
-    }
-
-    public static byte[] toRaw(final String hash) {
-        Preconditions.checkNotNull(hash);
-        for (int i = 0; i < hash.length(); i++) {
-            char c = hash.charAt(i);
-            if (-1 == Character.digit(c, 16)) {
-                throw new IllegalArgumentException("At index " + i
-                        + ": partialId is not a valid hash subsequence '" + hash + "'");
-            }
-        }
-
-        final byte[] raw = new byte[hash.length() / 2];
-        final int radix = 16;
-        for (int i = 0; i < raw.length; i++) {
-            raw[i] = (byte) Integer.parseInt(hash.substring(2 * i, 2 * i + 2), radix);
-        }
-        return raw;
-    }
-
-    public static String toString(final byte[] hash) {
-        // not sure if there's an utility someplace to convert the hash to an hex string, took this
-        // from the web
-        StringBuilder buf = new StringBuilder();
-        for (int i = 0; i < hash.length; i++) {
-            int halfbyte = (hash[i] >>> 4) & 0x0F;
-            int two_halfs = 0;
-            do {
-                if ((0 <= halfbyte) && (halfbyte <= 9))
-                    buf.append((char) ('0' + halfbyte));
-                else
-                    buf.append((char) ('a' + (halfbyte - 10)));
-                halfbyte = hash[i] & 0x0F;
-            } while (two_halfs++ < 1);
-        }
-        return buf.toString();
-    }
-
-    /**
-     * @see java.lang.Comparable#compareTo(java.lang.Object)
-     */
-    public int compareTo(final ObjectId o) {
-        int c;
-        for (int i = 0; i < raw.length; i++) {
-            c = raw[i] - o.raw[i];
-            if (c != 0) {
-                return c;
-            }
-        }
-        return 0;
-        // int i1 = readInt(raw, 0);
-        // int i2 = readInt(o.raw, 0);
-        // if (i1 != i2) {
-        // return i2 - i1;
-        // }
-        //
-        // i1 = readInt(raw, 4);
-        // i2 = readInt(o.raw, 4);
-        // if (i1 != i2) {
-        // return i2 - i1;
-        // }
-        //
-        // i1 = readInt(raw, 8);
-        // i2 = readInt(o.raw, 8);
-        // if (i1 != i2) {
-        // return i2 - i1;
-        // }
-        //
-        // i1 = readInt(raw, 16);
-        // i2 = readInt(o.raw, 16);
-        //
-        // return i2 - i1;
-    }
-
-    private static final int readInt(final byte[] raw, final int from) {
-        int ch1 = raw[from] << 24;
-        int ch2 = raw[from + 1] << 16;
-        int ch3 = raw[from + 2] << 8;
-        int ch4 = raw[from + 3] << 0;
-
-        return ch1 + ch2 + ch3 + ch4;
-    }
-
-    public byte[] getRawValue() {
-        return raw.clone();
-    }
-
-    /**
-     * Creates a new SHA-1 ObjectId for the byte[] contents of the given string.
-     * <p>
-     * Note this method is to hash a string, not to convert the string representation of an ObjectId
-     * </p>
-     * 
-     * @param strToHash
-     * @return
-     */
-    public static ObjectId forString(final String strToHash) {
-        Preconditions.checkNotNull(strToHash);
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA1");
-            byte[] raw = md.digest(strToHash.getBytes("UTF-8"));
-            return new ObjectId(raw);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-    
-    /**
-     * Prints the object ID just like the git command "0000000..0000000"
-     * @return
-     */
-    public String printSmallId(){
-        String out = toString();
-        return out.substring(0, 7)+".."+out.substring(out.length()-7, out.length());
-    }
-
-}
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.api;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.sleepycat.persist.model.Persistent;
+
+/**
+ * A SHA-1 abstraction.
+ * <p>
+ * The 20 bytes of the hash are held in primitive fields instead of an array, so comparing and
+ * hashing ids doesn't chase a pointer, and {@link #writeTo(byte[], int)} and
+ * {@link #writeTo(ByteBuffer)} write them out without allocating. The byte layout of
+ * {@link #getRawValue()} is the same it always was.
+ * </p>
+ */
+@Persistent
+public class ObjectId implements Comparable<ObjectId> {
+    public static final ObjectId NULL = new ObjectId(new byte[20]);
+
+    /**
+     * A digest per thread, so hashing strings needs neither a lock nor a new digest per call
+     */
+    private static final ThreadLocal<MessageDigest> SHA1 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Value of each hex digit indexed by its char, {@code -1} for the chars that aren't one
+     */
+    private static final byte[] HEX_VALUES = new byte['f' + 1];
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[Character.forDigit(i, 16)] = (byte) i;
+            HEX_VALUES[Character.toUpperCase(Character.forDigit(i, 16))] = (byte) i;
+        }
+    }
+
+    // the words are package visible for ObjectIdTable to store ids inline
+
+    /**
+     * Bytes 0 to 7, big endian
+     */
+    final long h1;
+
+    /**
+     * Bytes 8 to 15, big endian
+     */
+    final long h2;
+
+    /**
+     * Bytes 16 to 19, big endian
+     */
+    final int h3;
+
+    public ObjectId() {
+        this(0L, 0L, 0);
+    }
+
+    public ObjectId(byte[] raw) {
+        this(checkRaw(raw), 0);
+    }
+
+    /**
+     * Creates an id out of the 20 bytes of {@code raw} starting at {@code offset}
+     */
+    public ObjectId(final byte[] raw, final int offset) {
+        this(readLong(raw, offset), readLong(raw, offset + 8), readInt(raw, offset + 16));
+    }
+
+    /**
+     * Creates an id out of the 20 bytes of {@code buffer} starting at the absolute position
+     * {@code offset}, the buffer's position is left untouched
+     */
+    public ObjectId(final ByteBuffer buffer, final int offset) {
+        this(buffer.getLong(offset), buffer.getLong(offset + 8), buffer.getInt(offset + 16));
+        Preconditions.checkArgument(buffer.order() == ByteOrder.BIG_ENDIAN,
+                "buffer must be big endian");
+    }
+
+    /**
+     * Creates an id out of its raw value split in big endian words, the ones returned by
+     * {@link #getLong(int) getLong(0)}, {@link #getLong(int) getLong(1)} and
+     * {@link #getInt(int) getInt(4)}
+     */
+    public ObjectId(final long h1, final long h2, final int h3) {
+        this.h1 = h1;
+        this.h2 = h2;
+        this.h3 = h3;
+    }
+
+    private static byte[] checkRaw(final byte[] raw) {
+        Preconditions.checkNotNull(raw);
+        Preconditions.checkArgument(raw.length == 20);
+        return raw;
+    }
+
+    public boolean isNull() {
+        return h1 == 0L && h2 == 0L && h3 == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ObjectId)) {
+            return false;
+        }
+        final ObjectId id = (ObjectId) o;
+        return h1 == id.h1 && h2 == id.h2 && h3 == id.h3;
+    }
+
+    /**
+     * @return bytes 4 to 7 of the hash, which are as evenly distributed as any others
+     */
+    @Override
+    public int hashCode() {
+        return (int) h1;
+    }
+
+    /**
+     * @return a human friendly representation of this SHA1
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        final char[] hex = new char[40];
+        appendHex(h1, hex, 0, 16);
+        appendHex(h2, hex, 16, 16);
+        appendHex(h3, hex, 32, 8);
+        return new String(hex);
+    }
+
+    private static void appendHex(long value, final char[] hex, final int offset,
+            final int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            hex[i] = HEX_DIGITS[(int) value & 0x0F];
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * Returns the objectid represented by its string form, this method is the inverse of
+     * {@link #toString()}
+     * 
+     * @return
+     */
+    public static ObjectId valueOf(final String hash) {
+        Preconditions.checkNotNull(hash);
+        Preconditions.checkArgument(hash.length() == 40);
+        return new ObjectId(parseHex(hash, 0, 16), parseHex(hash, 16, 16), (int) parseHex(hash,
+                32, 8));
+    }
+
+    private static long parseHex(final String hash, final int offset, final int digits) {
+        long value = 0;
+        for (int i = offset; i < offset + digits; i++) {
+            value = (value << 4) | hexValue(hash, i);
+        }
+        return value;
+    }
+
+    private static int hexValue(final String hash, final int index) {
+        final char c = hash.charAt(index);
+        final int value = c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+        if (value == -1) {
+            throw new IllegalArgumentException("At index " + index + ": '" + hash
+                    + "' is not a valid hash");
+        }
+        return value;
+    }
+
+    public static byte[] toRaw(final String hash) {
+        Preconditions.checkNotNull(hash);
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if (-1 == Character.digit(c, 16)) {
+                throw new IllegalArgumentException("At index " + i
+                        + ": partialId is not a valid hash subsequence '" + hash + "'");
+            }
+        }
+
+        final byte[] raw = new byte[hash.length() / 2];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = (byte) (hexValue(hash, 2 * i) << 4 | hexValue(hash, 2 * i + 1));
+        }
+        return raw;
+    }
+
+    public static String toString(final byte[] hash) {
+        final char[] hex = new char[2 * hash.length];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(hash[i] >>> 4) & 0x0F];
+            hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Orders ids by their raw bytes compared as signed values.
+     * <p>
+     * Flipping the top bit of every byte but the first one of each big endian word turns that into
+     * a signed comparison of the words.
+     * </p>
+     * 
+     * @see java.lang.Comparable#compareTo(java.lang.Object)
+     */
+    public int compareTo(final ObjectId o) {
+        int c = compare(h1 ^ 0x0080808080808080L, o.h1 ^ 0x0080808080808080L);
+        if (c == 0) {
+            c = compare(h2 ^ 0x0080808080808080L, o.h2 ^ 0x0080808080808080L);
+            if (c == 0) {
+                c = compare(h3 ^ 0x00808080, o.h3 ^ 0x00808080);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Orders ids by their raw bytes compared as unsigned values, the order of
+     * {@link #toString() their hex representations}
+     */
+    public int compareRawTo(final ObjectId o) {
+        int c = compare(h1 ^ Long.MIN_VALUE, o.h1 ^ Long.MIN_VALUE);
+        if (c == 0) {
+            c = compare(h2 ^ Long.MIN_VALUE, o.h2 ^ Long.MIN_VALUE);
+            if (c == 0) {
+                c = compare(h3 ^ Integer.MIN_VALUE, o.h3 ^ Integer.MIN_VALUE);
+            }
+        }
+        return c;
+    }
+
+    private static int compare(final long l1, final long l2) {
+        return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+    }
+
+    /**
+     * @param index
+     *            the index of a byte of the raw value, from 0 to 19
+     * @return the unsigned value of the byte
+     */
+    public int getByte(final int index) {
+        Preconditions.checkElementIndex(index, 20);
+        final long word = index < 8 ? h1 : (index < 16 ? h2 : (long) h3 << 32);
+        return (int) (word >>> (56 - 8 * (index % 8))) & 0xFF;
+    }
+
+    /**
+     * @param index
+     *            {@code 0} for the first eight bytes of the raw value, {@code 1} for the next eight
+     * @return the requested bytes as a big endian long
+     */
+    public long getLong(final int index) {
+        Preconditions.checkElementIndex(index, 2);
+        return index == 0 ? h1 : h2;
+    }
+
+    /**
+     * @param index
+     *            the index of a group of four bytes of the raw value, from 0 to 4
+     * @return the requested bytes as a big endian int
+     */
+    public int getInt(final int index) {
+        Preconditions.checkElementIndex(index, 5);
+        if (index == 4) {
+            return h3;
+        }
+        final long word = index < 2 ? h1 : h2;
+        return (int) (index % 2 == 0 ? word >>> 32 : word);
+    }
+
+    private static final long readLong(final byte[] raw, final int from) {
+        return (long) readInt(raw, from) << 32 | (readInt(raw, from + 4) & 0xFFFFFFFFL);
+    }
+
+    private static final int readInt(final byte[] raw, final int from) {
+        return raw[from] << 24 | (raw[from + 1] & 0xFF) << 16 | (raw[from + 2] & 0xFF) << 8
+                | (raw[from + 3] & 0xFF);
+    }
+
+    private static void writeLong(final long value, final byte[] target, final int offset) {
+        writeInt((int) (value >>> 32), target, offset);
+        writeInt((int) value, target, offset + 4);
+    }
+
+    private static void writeInt(final int value, final byte[] target, final int offset) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+
+    /**
+     * @return a new array with the 20 bytes of this id
+     */
+    public byte[] getRawValue() {
+        final byte[] raw = new byte[20];
+        writeTo(raw, 0);
+        return raw;
+    }
+
+    /**
+     * Writes the 20 bytes of this id to {@code target} starting at {@code offset}
+     */
+    public void writeTo(final byte[] target, final int offset) {
+        writeLong(h1, target, offset);
+        writeLong(h2, target, offset + 8);
+        writeInt(h3, target, offset + 16);
+    }
+
+    /**
+     * Writes the 20 bytes of this id at the current position of {@code target}, advancing it
+     */
+    public void writeTo(final ByteBuffer target) {
+        Preconditions.checkArgument(target.order() == ByteOrder.BIG_ENDIAN,
+                "buffer must be big endian");
+        target.putLong(h1).putLong(h2).putInt(h3);
+    }
+
+    /**
+     * Creates a new SHA-1 ObjectId for the byte[] contents of the given string.
+     * <p>
+     * Note this method is to hash a string, not to convert the string representation of an ObjectId
+     * </p>
+     * 
+     * @param strToHash
+     * @return
+     */
+    public static ObjectId forString(final String strToHash) {
+        Preconditions.checkNotNull(strToHash);
+        final MessageDigest md = SHA1.get();
+        md.reset();
+        return new ObjectId(md.digest(strToHash.getBytes(Charsets.UTF_8)));
+    }
+    
+    /**
+     * Prints the object ID just like the git command "0000000..0000000"
+     * @return
+     */
+    public String printSmallId(){
+        String out = toString();
+        return out.substring(0, 7)+".."+out.substring(out.length()-7, out.length());
+    }
+
+}
@@ -0,0 +1,75 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.api;
+
+import java.io.File;
+import java.util.Iterator;
+
+/**
+ * A map of {@link ObjectId}s to {@code long} values, both stored inline in {@code long[]} slabs,
+ * for indexing objects by id without boxing either.
+ * <p>
+ * Entries can't be removed. A map created with a spill directory moves to a memory mapped
+ * temporary file once it outgrows its heap limit, and must be {@link #close() closed} to delete
+ * it.
+ * </p>
+ * 
+ * @see ObjectIdSet
+ */
+public class ObjectIdMap extends ObjectIdTable {
+
+    public ObjectIdMap() {
+        this(0);
+    }
+
+    /**
+     * @param expectedSize
+     *            the number of ids the map is sized for, it grows as needed past it
+     */
+    public ObjectIdMap(final long expectedSize) {
+        super(4, expectedSize, null, 0);
+    }
+
+    /**
+     * @param expectedSize
+     *            the number of ids the map is sized for, it grows as needed past it
+     * @param spillDirectory
+     *            where to create the file the map is memory mapped to once it takes more than
+     *            {@code heapLimit} bytes
+     * @param heapLimit
+     *            the number of bytes the map can take on the heap, each entry takes 32 bytes plus
+     *            the free slots
+     */
+    public ObjectIdMap(final long expectedSize, final File spillDirectory, final long heapLimit) {
+        super(4, expectedSize, spillDirectory, heapLimit);
+    }
+
+    /**
+     * Maps {@code id} to {@code value}, replacing the value it had if any
+     */
+    public void put(final ObjectId id, final long value) {
+        final long slot = insert(id);
+        set((slot < 0 ? ~slot : slot) + 3, value);
+    }
+
+    /**
+     * @return the value of {@code id}, or {@code defaultValue} if it's not in the map
+     */
+    public long get(final ObjectId id, final long defaultValue) {
+        final long slot = find(id);
+        return slot == -1 ? defaultValue : get(slot + 3);
+    }
+
+    public boolean containsKey(final ObjectId id) {
+        return find(id) != -1;
+    }
+
+    /**
+     * Iterates over the ids in no particular order, the map must not be modified meanwhile
+     */
+    public Iterator<ObjectId> keyIterator() {
+        return ids();
+    }
+}
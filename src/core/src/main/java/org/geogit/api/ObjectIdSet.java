@@ -0,0 +1,66 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.api;
+
+import java.io.File;
+import java.util.Iterator;
+
+/**
+ * A set of {@link ObjectId}s stored inline in {@code long[]} slabs, for the visited and excluded
+ * sets of walks over object graphs.
+ * <p>
+ * Ids can't be removed. A set created with a spill directory moves to a memory mapped temporary
+ * file once it outgrows its heap limit, and must be {@link #close() closed} to delete it.
+ * </p>
+ * 
+ * @see ObjectIdMap
+ */
+public class ObjectIdSet extends ObjectIdTable implements Iterable<ObjectId> {
+
+    public ObjectIdSet() {
+        this(0);
+    }
+
+    /**
+     * @param expectedSize
+     *            the number of ids the set is sized for, it grows as needed past it
+     */
+    public ObjectIdSet(final long expectedSize) {
+        super(3, expectedSize, null, 0);
+    }
+
+    /**
+     * @param expectedSize
+     *            the number of ids the set is sized for, it grows as needed past it
+     * @param spillDirectory
+     *            where to create the file the set is memory mapped to once it takes more than
+     *            {@code heapLimit} bytes
+     * @param heapLimit
+     *            the number of bytes the set can take on the heap, each id takes 24 bytes plus
+     *            the free slots
+     */
+    public ObjectIdSet(final long expectedSize, final File spillDirectory, final long heapLimit) {
+        super(3, expectedSize, spillDirectory, heapLimit);
+    }
+
+    /**
+     * @return {@code true} if the id wasn't in the set already
+     */
+    public boolean add(final ObjectId id) {
+        return insert(id) < 0;
+    }
+
+    public boolean contains(final ObjectId id) {
+        return find(id) != -1;
+    }
+
+    /**
+     * Iterates over the ids in no particular order, the set must not be modified meanwhile
+     */
+    @Override
+    public Iterator<ObjectId> iterator() {
+        return ids();
+    }
+}
@@ -0,0 +1,378 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.api;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Open addressing hash table of {@link ObjectId}s, the base of {@link ObjectIdSet} and
+ * {@link ObjectIdMap}.
+ * <p>
+ * Each slot is {@code stride} consecutive longs: the three words of the id followed by the
+ * payload of the subclass, so ids are never boxed. Slots live in fixed size {@code long[]} slabs
+ * that grow past the two billion elements of a single array, and a table created with a spill
+ * directory moves its slabs to a memory mapped temporary file once they would take more than the
+ * given amount of heap, for object graphs that don't fit the heap.
+ * </p>
+ * <p>
+ * The all zeros slot marks an empty slot, {@link ObjectId#NULL} is kept in a reserved slot past
+ * the end of the table instead. Ids are SHA-1 hashes, so their first word is used as the hash
+ * code as is and probing is linear. Tables are not thread safe.
+ * </p>
+ */
+abstract class ObjectIdTable implements Closeable {
+
+    private static final int SLAB_BITS = 20;
+
+    private static final int SLAB_SIZE = 1 << SLAB_BITS;
+
+    private static final int SLAB_MASK = SLAB_SIZE - 1;
+
+    private static final long MIN_CAPACITY = 16;
+
+    private final int stride;
+
+    private final File spillDirectory;
+
+    private final long heapLimit;
+
+    private Slabs slabs;
+
+    /**
+     * Number of slots, a power of two, not counting the reserved slot of {@link ObjectId#NULL}
+     */
+    private long capacity;
+
+    private long size;
+
+    private boolean containsNull;
+
+    /**
+     * @param stride
+     *            the number of longs per slot, at least the three of the id
+     * @param expectedSize
+     *            the number of ids to size the table for
+     * @param spillDirectory
+     *            where to create the file the slabs are mapped to once they outgrow
+     *            {@code heapLimit}, {@code null} to always keep them on the heap
+     * @param heapLimit
+     *            the size in bytes the slabs can take on the heap
+     */
+    ObjectIdTable(final int stride, final long expectedSize, final File spillDirectory,
+            final long heapLimit) {
+        Preconditions.checkArgument(stride >= 3);
+        Preconditions.checkArgument(expectedSize >= 0, "expectedSize < 0: %s", expectedSize);
+        Preconditions.checkArgument(heapLimit >= 0, "heapLimit < 0: %s", heapLimit);
+        this.stride = stride;
+        this.spillDirectory = spillDirectory;
+        this.heapLimit = heapLimit;
+        long capacity = MIN_CAPACITY;
+        while (maxFill(capacity) < expectedSize) {
+            capacity <<= 1;
+        }
+        this.capacity = capacity;
+        this.slabs = allocate(capacity);
+    }
+
+    private static long maxFill(final long capacity) {
+        return capacity - (capacity >>> 2);
+    }
+
+    /**
+     * @return the number of ids in the table
+     */
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return whether the slabs are mapped to a file instead of held on the heap
+     */
+    public boolean isSpilled() {
+        return slabs instanceof MappedSlabs;
+    }
+
+    /**
+     * Releases the slabs, and deletes the file they are mapped to if the table spilled
+     */
+    @Override
+    public void close() {
+        if (slabs != null) {
+            slabs.release();
+            slabs = null;
+        }
+    }
+
+    /**
+     * @return the index of the first long of the slot holding {@code id}, or {@code -1} if it's
+     *         not in the table
+     */
+    final long find(final ObjectId id) {
+        if (id.isNull()) {
+            return containsNull ? capacity * stride : -1;
+        }
+        final Slabs slabs = slabs();
+        final long mask = capacity - 1;
+        for (long slot = id.h1 & mask;; slot = (slot + 1) & mask) {
+            final long base = slot * stride;
+            final long h1 = slabs.get(base);
+            final long h2 = slabs.get(base + 1);
+            final long h3 = slabs.get(base + 2);
+            if (h1 == id.h1 && h2 == id.h2 && h3 == id.h3) {
+                return base;
+            }
+            if (h1 == 0L && h2 == 0L && h3 == 0L) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Adds {@code id} to the table if it's not there already
+     *
+     * @return the index of the first long of the slot of {@code id}, bitwise negated if the id
+     *         was just added
+     */
+    final long insert(final ObjectId id) {
+        slabs();
+        if (id.isNull()) {
+            if (containsNull) {
+                return capacity * stride;
+            }
+            containsNull = true;
+            size++;
+            return ~(capacity * stride);
+        }
+        if (size + 1 > maxFill(capacity)) {
+            resize(capacity << 1);
+        }
+        final long base = probe(slabs, capacity, id.h1, id.h2, id.h3);
+        if (slabs.get(base) != 0L || slabs.get(base + 1) != 0L || slabs.get(base + 2) != 0L) {
+            return base;
+        }
+        slabs.set(base, id.h1);
+        slabs.set(base + 1, id.h2);
+        slabs.set(base + 2, id.h3);
+        size++;
+        return ~base;
+    }
+
+    /**
+     * @return the index of the slot holding the id, or of the empty slot it goes to
+     */
+    private long probe(final Slabs slabs, final long capacity, final long h1, final long h2,
+            final long h3) {
+        final long mask = capacity - 1;
+        for (long slot = h1 & mask;; slot = (slot + 1) & mask) {
+            final long base = slot * stride;
+            final long s1 = slabs.get(base);
+            final long s2 = slabs.get(base + 1);
+            final long s3 = slabs.get(base + 2);
+            if ((s1 == h1 && s2 == h2 && s3 == h3) || (s1 == 0L && s2 == 0L && s3 == 0L)) {
+                return base;
+            }
+        }
+    }
+
+    private void resize(final long newCapacity) {
+        final Slabs old = slabs();
+        final Slabs resized = allocate(newCapacity);
+        for (long slot = 0; slot < capacity; slot++) {
+            final long base = slot * stride;
+            final long h1 = old.get(base);
+            final long h2 = old.get(base + 1);
+            final long h3 = old.get(base + 2);
+            if (h1 != 0L || h2 != 0L || h3 != 0L) {
+                final long target = probe(resized, newCapacity, h1, h2, h3);
+                for (int i = 0; i < stride; i++) {
+                    resized.set(target + i, old.get(base + i));
+                }
+            }
+        }
+        for (int i = 0; i < stride; i++) {
+            resized.set(newCapacity * stride + i, old.get(capacity * stride + i));
+        }
+        old.release();
+        this.slabs = resized;
+        this.capacity = newCapacity;
+    }
+
+    private Slabs allocate(final long capacity) {
+        // one more slot for ObjectId.NULL
+        final long longs = (capacity + 1) * stride;
+        if (spillDirectory != null && longs * 8 > heapLimit) {
+            return new MappedSlabs(spillDirectory, longs);
+        }
+        return new HeapSlabs(longs);
+    }
+
+    private Slabs slabs() {
+        Preconditions.checkState(slabs != null, "table is closed");
+        return slabs;
+    }
+
+    final long get(final long index) {
+        return slabs.get(index);
+    }
+
+    final void set(final long index, final long value) {
+        slabs.set(index, value);
+    }
+
+    /**
+     * Iterates over the ids in slot order, the table must not be modified meanwhile
+     */
+    final Iterator<ObjectId> ids() {
+        final Slabs slabs = slabs();
+        return new Iterator<ObjectId>() {
+
+            private long slot = -1;
+
+            private ObjectId next = advance();
+
+            private ObjectId advance() {
+                while (++slot < capacity) {
+                    final long base = slot * stride;
+                    final long h1 = slabs.get(base);
+                    final long h2 = slabs.get(base + 1);
+                    final long h3 = slabs.get(base + 2);
+                    if (h1 != 0L || h2 != 0L || h3 != 0L) {
+                        return new ObjectId(h1, h2, (int) h3);
+                    }
+                }
+                return slot == capacity && containsNull ? ObjectId.NULL : null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public ObjectId next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final ObjectId current = next;
+                next = advance();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static abstract class Slabs {
+
+        abstract long get(long index);
+
+        abstract void set(long index, long value);
+
+        abstract void release();
+    }
+
+    private static final class HeapSlabs extends Slabs {
+
+        private final long[][] slabs;
+
+        HeapSlabs(final long longs) {
+            final int count = (int) ((longs + SLAB_SIZE - 1) >>> SLAB_BITS);
+            slabs = new long[count][];
+            for (int i = 0; i < count; i++) {
+                final long remaining = longs - ((long) i << SLAB_BITS);
+                slabs[i] = new long[(int) Math.min(SLAB_SIZE, remaining)];
+            }
+        }
+
+        @Override
+        long get(final long index) {
+            return slabs[(int) (index >>> SLAB_BITS)][(int) index & SLAB_MASK];
+        }
+
+        @Override
+        void set(final long index, final long value) {
+            slabs[(int) (index >>> SLAB_BITS)][(int) index & SLAB_MASK] = value;
+        }
+
+        @Override
+        void release() {
+            // garbage collected
+        }
+    }
+
+    /**
+     * Slabs mapped to a temporary file, the pages are written back by the OS as it sees fit
+     */
+    private static final class MappedSlabs extends Slabs {
+
+        private final File file;
+
+        private final RandomAccessFile raf;
+
+        private final LongBuffer[] slabs;
+
+        MappedSlabs(final File directory, final long longs) {
+            final int count = (int) ((longs + SLAB_SIZE - 1) >>> SLAB_BITS);
+            slabs = new LongBuffer[count];
+            try {
+                directory.mkdirs();
+                file = File.createTempFile("objectids", ".slabs", directory);
+                raf = new RandomAccessFile(file, "rw");
+                // a sparse file, it reads as zeros until written
+                raf.setLength(longs * 8);
+                final FileChannel channel = raf.getChannel();
+                for (int i = 0; i < count; i++) {
+                    final long offset = (long) i << SLAB_BITS;
+                    final long length = Math.min(SLAB_SIZE, longs - offset);
+                    slabs[i] = channel.map(MapMode.READ_WRITE, offset * 8, length * 8)
+                            .asLongBuffer();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        long get(final long index) {
+            return slabs[(int) (index >>> SLAB_BITS)].get((int) index & SLAB_MASK);
+        }
+
+        @Override
+        void set(final long index, final long value) {
+            slabs[(int) (index >>> SLAB_BITS)].put((int) index & SLAB_MASK, value);
+        }
+
+        @Override
+        void release() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            // the mappings stay until they're garbage collected, which keeps some platforms from
+            // deleting the file right away
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
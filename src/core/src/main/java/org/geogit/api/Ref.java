@@ -44,6 +44,11 @@ public class Ref {
 
     private ObjectId objectId;
 
+    /**
+     * SHA-1 of the name, computed on first use. Racy but idempotent, like {@link String#hashCode()}
+     */
+    private ObjectId nameHash;
+
     public Ref(final String name, final ObjectId oid, final RevObject.TYPE type) {
         Preconditions.checkNotNull(name);
         Preconditions.checkNotNull(oid);
@@ -53,6 +58,20 @@ public class Ref {
         this.type = type;
     }
 
+    /**
+     * Creates a ref whose name hash is already known, for tree nodes that keep the hashes of their
+     * entries rather than the refs themselves
+     * 
+     * @param nameHash
+     *            {@link ObjectId#forString(String) the hash} of {@code name}
+     */
+    public Ref(final String name, final ObjectId oid, final RevObject.TYPE type,
+            final ObjectId nameHash) {
+        this(name, oid, type);
+        Preconditions.checkNotNull(nameHash);
+        this.nameHash = nameHash;
+    }
+
     /**
      * @see org.geogit.api.Ref#getName()
      */
@@ -71,6 +90,19 @@ public class Ref {
         return type;
     }
 
+    /**
+     * @return the {@link ObjectId#forString(String) SHA-1 hash} of the name, which places the ref
+     *         in the buckets of a tree and orders it among the other entries of a tree node
+     */
+    public ObjectId getNameHash() {
+        ObjectId hash = nameHash;
+        if (hash == null) {
+            hash = ObjectId.forString(name);
+            nameHash = hash;
+        }
+        return hash;
+    }
+
     /**
      * @see org.geogit.api.Ref#equals(java.lang.Object)
      */
@@ -16,6 +16,14 @@ public class SpatialRef extends Ref {
         this.bounds = bounds;
     }
 
+    /**
+     * @see Ref#Ref(String, ObjectId, TYPE, ObjectId)
+     */
+    public SpatialRef(String name, ObjectId oid, TYPE type, BoundingBox bounds, ObjectId nameHash) {
+        super(name, oid, type, nameHash);
+        this.bounds = bounds;
+    }
+
     public BoundingBox getBounds() {
         return bounds;
     }
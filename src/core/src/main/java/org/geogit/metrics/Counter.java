@@ -0,0 +1,40 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A value that goes up and down
+ */
+public class Counter {
+
+    private final AtomicLong count = new AtomicLong();
+
+    public void inc() {
+        count.incrementAndGet();
+    }
+
+    public void inc(final long n) {
+        count.addAndGet(n);
+    }
+
+    public void dec() {
+        count.decrementAndGet();
+    }
+
+    public void dec(final long n) {
+        count.addAndGet(-n);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(getCount());
+    }
+}
@@ -0,0 +1,15 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.metrics;
+
+/**
+ * A value computed when it's read, such as the size of a database or a cache hit ratio. Gauges
+ * are only evaluated when the metrics are looked at, so they may be more expensive than updating
+ * the other metrics.
+ */
+public interface Gauge<T> {
+
+    public T getValue();
+}
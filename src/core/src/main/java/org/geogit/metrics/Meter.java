@@ -0,0 +1,110 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events and measures their rate, both since the meter was created and as a moving average
+ * over the last minute.
+ * <p>
+ * The moving average is the exponentially weighted one of the UNIX load average, updated every
+ * five seconds. There's no background thread: whoever marks or reads the meter first after a
+ * five second interval elapsed catches the average up.
+ * </p>
+ */
+public class Meter {
+
+    private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    private static final double ONE_MINUTE_ALPHA = 1 - Math.exp(-5 / 60D);
+
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Events marked since the last tick
+     */
+    private final AtomicLong uncounted = new AtomicLong();
+
+    private final long startTime;
+
+    private final AtomicLong lastTick;
+
+    /**
+     * Events per nanosecond, guarded by {@link #lastTick} updates
+     */
+    private volatile double oneMinuteRate;
+
+    private volatile boolean initialized;
+
+    public Meter() {
+        this.startTime = System.nanoTime();
+        this.lastTick = new AtomicLong(startTime);
+    }
+
+    public void mark() {
+        mark(1);
+    }
+
+    public void mark(final long n) {
+        tickIfNecessary();
+        count.addAndGet(n);
+        uncounted.addAndGet(n);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the events per second since the meter was created
+     */
+    public double getMeanRate() {
+        final long elapsed = System.nanoTime() - startTime;
+        if (elapsed <= 0) {
+            return 0D;
+        }
+        return getCount() / (elapsed / 1E9);
+    }
+
+    /**
+     * @return the moving average of the events per second over the last minute
+     */
+    public double getOneMinuteRate() {
+        tickIfNecessary();
+        return oneMinuteRate * 1E9;
+    }
+
+    private void tickIfNecessary() {
+        final long oldTick = lastTick.get();
+        final long age = System.nanoTime() - oldTick;
+        if (age < TICK_INTERVAL) {
+            return;
+        }
+        final long newTick = oldTick + age - age % TICK_INTERVAL;
+        if (!lastTick.compareAndSet(oldTick, newTick)) {
+            // someone else is ticking
+            return;
+        }
+        final long ticks = age / TICK_INTERVAL;
+        for (long i = 0; i < ticks; i++) {
+            final double instantRate = uncounted.getAndSet(0) / (double) TICK_INTERVAL;
+            if (initialized) {
+                oneMinuteRate += ONE_MINUTE_ALPHA * (instantRate - oneMinuteRate);
+            } else {
+                oneMinuteRate = instantRate;
+                initialized = true;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("Meter[count: ").append(getCount()).append(", mean rate: ")
+                .append((long) getMeanRate()).append("/s, 1 minute rate: ")
+                .append((long) getOneMinuteRate()).append("/s]").toString();
+    }
+}
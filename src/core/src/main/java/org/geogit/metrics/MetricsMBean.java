@@ -0,0 +1,179 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes the metrics of a registry as read only attributes, flattening the metrics that have
+ * several values into {@code <name>.<value>} attributes. Metrics registered after the MBean show
+ * up the next time its info is read.
+ */
+class MetricsMBean implements DynamicMBean {
+
+    private static final String[] METER_VALUES = { "count", "meanRate", "oneMinuteRate" };
+
+    private static final String[] HISTOGRAM_VALUES = { "count", "mean", "p50", "p99", "max" };
+
+    private static final String[] TIMER_VALUES = { "count", "oneMinuteRate", "meanMillis",
+            "p50Millis", "p99Millis", "maxMillis" };
+
+    private final MetricsRegistry registry;
+
+    MetricsMBean(final MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+        Object metric = registry.get(attribute);
+        if (metric instanceof Counter) {
+            return Long.valueOf(((Counter) metric).getCount());
+        }
+        if (metric instanceof Gauge) {
+            return ((Gauge<?>) metric).getValue();
+        }
+        final int dot = attribute.lastIndexOf('.');
+        if (dot > 0) {
+            metric = registry.get(attribute.substring(0, dot));
+            final String value = attribute.substring(dot + 1);
+            if (metric instanceof Meter) {
+                return meterValue((Meter) metric, value);
+            }
+            if (metric instanceof Histogram) {
+                return histogramValue((Histogram) metric, value);
+            }
+            if (metric instanceof Timer) {
+                return timerValue((Timer) metric, value);
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    private static Object meterValue(final Meter meter, final String value)
+            throws AttributeNotFoundException {
+        if ("count".equals(value)) {
+            return Long.valueOf(meter.getCount());
+        } else if ("meanRate".equals(value)) {
+            return Double.valueOf(meter.getMeanRate());
+        } else if ("oneMinuteRate".equals(value)) {
+            return Double.valueOf(meter.getOneMinuteRate());
+        }
+        throw new AttributeNotFoundException(value);
+    }
+
+    private static Object histogramValue(final Histogram histogram, final String value)
+            throws AttributeNotFoundException {
+        if ("count".equals(value)) {
+            return Long.valueOf(histogram.getCount());
+        } else if ("mean".equals(value)) {
+            return Double.valueOf(histogram.getMean());
+        } else if ("p50".equals(value)) {
+            return Long.valueOf(histogram.getPercentile(0.5));
+        } else if ("p99".equals(value)) {
+            return Long.valueOf(histogram.getPercentile(0.99));
+        } else if ("max".equals(value)) {
+            return Long.valueOf(histogram.getMax());
+        }
+        throw new AttributeNotFoundException(value);
+    }
+
+    private static Object timerValue(final Timer timer, final String value)
+            throws AttributeNotFoundException {
+        if ("count".equals(value)) {
+            return Long.valueOf(timer.getCount());
+        } else if ("oneMinuteRate".equals(value)) {
+            return Double.valueOf(timer.getOneMinuteRate());
+        } else if ("meanMillis".equals(value)) {
+            return Double.valueOf(timer.getMeanMillis());
+        } else if ("p50Millis".equals(value)) {
+            return Double.valueOf(timer.getPercentileMillis(0.5));
+        } else if ("p99Millis".equals(value)) {
+            return Double.valueOf(timer.getPercentileMillis(0.99));
+        } else if ("maxMillis".equals(value)) {
+            return Double.valueOf(timer.getMaxMillis());
+        }
+        throw new AttributeNotFoundException(value);
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String name : attributes) {
+            try {
+                list.add(new Attribute(name, getAttribute(name)));
+            } catch (AttributeNotFoundException e) {
+                continue;
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Object> e : registry.getMetrics().entrySet()) {
+            final String name = e.getKey();
+            final Object metric = e.getValue();
+            if (metric instanceof Counter) {
+                attributes.add(attribute(name, Long.class));
+            } else if (metric instanceof Gauge) {
+                attributes.add(attribute(name, Object.class));
+            } else if (metric instanceof Meter) {
+                addAttributes(attributes, name, METER_VALUES);
+            } else if (metric instanceof Histogram) {
+                addAttributes(attributes, name, HISTOGRAM_VALUES);
+            } else if (metric instanceof Timer) {
+                addAttributes(attributes, name, TIMER_VALUES);
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "GeoGit repository metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                new MBeanConstructorInfo[0], new MBeanOperationInfo[0],
+                new MBeanNotificationInfo[0]);
+    }
+
+    private static void addAttributes(final List<MBeanAttributeInfo> attributes,
+            final String name, final String[] values) {
+        for (String value : values) {
+            final boolean integral = "count".equals(value) || "p50".equals(value)
+                    || "p99".equals(value) || "max".equals(value);
+            attributes.add(attribute(name + "." + value, integral ? Long.class : Double.class));
+        }
+    }
+
+    private static MBeanAttributeInfo attribute(final String name, final Class<?> type) {
+        return new MBeanAttributeInfo(name, type.getName(), name, true, false, false);
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params, final String[] signature)
+            throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+}
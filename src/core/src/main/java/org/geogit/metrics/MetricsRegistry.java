@@ -0,0 +1,148 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A named set of {@link Counter counters}, {@link Meter meters}, {@link Histogram histograms},
+ * {@link Timer timers} and {@link Gauge gauges}.
+ * <p>
+ * Components get their metrics once, typically when they're handed the registry, and update them
+ * on their hot paths without going through the registry again. {@link #scope(String) Scopes} hand
+ * out a view of the registry that prefixes the names of its metrics, so that the same component
+ * can be instantiated several times in a repository, and the whole registry can be
+ * {@link #registerMBean(String) exposed over JMX} as a single MBean.
+ * </p>
+ */
+public class MetricsRegistry {
+
+    public static final String JMX_DOMAIN = "org.geogit";
+
+    private final ConcurrentMap<String, Object> metrics;
+
+    private final String prefix;
+
+    public MetricsRegistry() {
+        this(new ConcurrentHashMap<String, Object>(), "");
+    }
+
+    private MetricsRegistry(final ConcurrentMap<String, Object> metrics, final String prefix) {
+        this.metrics = metrics;
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return a view of this registry whose metric names are prefixed by {@code name} and a dot
+     */
+    public MetricsRegistry scope(final String name) {
+        Preconditions.checkNotNull(name);
+        return new MetricsRegistry(metrics, prefix + name + ".");
+    }
+
+    public Counter counter(final String name) {
+        return getOrAdd(name, Counter.class);
+    }
+
+    public Meter meter(final String name) {
+        return getOrAdd(name, Meter.class);
+    }
+
+    public Histogram histogram(final String name) {
+        return getOrAdd(name, Histogram.class);
+    }
+
+    public Timer timer(final String name) {
+        return getOrAdd(name, Timer.class);
+    }
+
+    /**
+     * Registers a gauge, replacing the one registered under the same name if any
+     */
+    public <T> Gauge<T> register(final String name, final Gauge<T> gauge) {
+        Preconditions.checkNotNull(name);
+        Preconditions.checkNotNull(gauge);
+        final Object previous = metrics.put(prefix + name, gauge);
+        Preconditions.checkArgument(previous == null || previous instanceof Gauge,
+                "%s is already registered as a %s", name, previous);
+        return gauge;
+    }
+
+    public void remove(final String name) {
+        metrics.remove(prefix + name);
+    }
+
+    /**
+     * @return the metrics in this registry's scope keyed by their full name
+     */
+    public SortedMap<String, Object> getMetrics() {
+        SortedMap<String, Object> scoped = new TreeMap<String, Object>();
+        for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+            if (metric.getKey().startsWith(prefix)) {
+                scoped.put(metric.getKey(), metric.getValue());
+            }
+        }
+        return scoped;
+    }
+
+    /**
+     * @return the metric registered under the given full name, or {@code null}
+     */
+    Object get(final String fullName) {
+        return metrics.get(fullName);
+    }
+
+    private <T> T getOrAdd(final String name, final Class<T> type) {
+        Preconditions.checkNotNull(name);
+        final String fullName = prefix + name;
+        Object metric = metrics.get(fullName);
+        if (metric == null) {
+            Object created;
+            try {
+                created = type.newInstance();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            metric = metrics.putIfAbsent(fullName, created);
+            if (metric == null) {
+                metric = created;
+            }
+        }
+        Preconditions.checkArgument(type.isInstance(metric), "%s is already registered as a %s",
+                fullName, metric);
+        return type.cast(metric);
+    }
+
+    /**
+     * Exposes the metrics of this registry as the attributes of an MBean in the platform MBean
+     * server
+     * 
+     * @param name
+     *            the name of the MBean, unique among the registries of the process
+     * @return the name the MBean was registered with
+     */
+    public ObjectName registerMBean(final String name) throws JMException {
+        final ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=Metrics,name="
+                + ObjectName.quote(name));
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new MetricsMBean(this), objectName);
+        return objectName;
+    }
+
+    public static void unregisterMBean(final ObjectName name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+}
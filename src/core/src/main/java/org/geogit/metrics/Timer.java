@@ -0,0 +1,97 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how often something happens and how long it takes.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * <code>
+ * final long start = timer.start();
+ * try {
+ *     ...
+ * } finally {
+ *     timer.stop(start);
+ * }
+ * </code>
+ * </pre>
+ * 
+ * </p>
+ */
+public class Timer {
+
+    private final Meter meter = new Meter();
+
+    /**
+     * Durations in nanoseconds
+     */
+    private final Histogram histogram = new Histogram();
+
+    /**
+     * @return the start time to hand over to {@link #stop(long)}
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since {@code start}
+     * 
+     * @param start
+     *            the value returned by {@link #start()}
+     */
+    public void stop(final long start) {
+        update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    public void update(final long duration, final TimeUnit unit) {
+        histogram.update(unit.toNanos(duration));
+        meter.mark();
+    }
+
+    public long getCount() {
+        return meter.getCount();
+    }
+
+    /**
+     * @return the number of timed events per second since the timer was created
+     */
+    public double getMeanRate() {
+        return meter.getMeanRate();
+    }
+
+    /**
+     * @return the moving average of the timed events per second over the last minute
+     */
+    public double getOneMinuteRate() {
+        return meter.getOneMinuteRate();
+    }
+
+    public double getMeanMillis() {
+        return histogram.getMean() / 1E6;
+    }
+
+    public double getMaxMillis() {
+        return histogram.getMax() / 1E6;
+    }
+
+    /**
+     * @see Histogram#getPercentile(double)
+     */
+    public double getPercentileMillis(final double quantile) {
+        return histogram.getPercentile(quantile) / 1E6;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("Timer[count: ").append(getCount()).append(", mean: ")
+                .append(getMeanMillis()).append("ms, p99: ").append(getPercentileMillis(0.99))
+                .append("ms, max: ").append(getMaxMillis()).append("ms]").toString();
+    }
+}
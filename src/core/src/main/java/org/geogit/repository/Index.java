@@ -5,6 +5,7 @@
 package org.geogit.repository;
 
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -12,6 +13,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import org.geogit.api.DiffEntry;
 import org.geogit.api.DiffEntry.ChangeType;
@@ -23,8 +25,10 @@ import org.geogit.api.RevObject.TYPE;
 import org.geogit.api.RevTree;
 import org.geogit.api.SpatialRef;
 import org.geogit.api.TreeVisitor;
+import org.geogit.storage.AbstractObjectDatabase;
 import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.ObjectWriter;
+import org.geogit.storage.PipelinedObjectInserter;
 import org.geogit.storage.RawObjectWriter;
 import org.geogit.storage.StagingDatabase;
 import org.geogit.storage.WrappedSerialisingFactory;
@@ -35,6 +39,7 @@ import org.opengis.util.ProgressListener;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * The Index keeps track of the changes not yet committed to the repository.
@@ -203,37 +208,81 @@ public class Index implements StagingArea {
         Triplet<ObjectWriter<?>, BoundingBox, List<String>> triplet;
         int count = 0;
 
-        while (objects.hasNext()) {
-            count++;
-            if (progress.isCanceled()) {
-                return Collections.emptyList();
-            }
-            if (size != null) {
-                progress.progress((float) (count * 100) / size.intValue());
-            }
+        // objects are encoded concurrently, their refs are created in input order as soon as
+        // their ids are available
+        final LinkedList<Triplet<ListenableFuture<ObjectId>, BoundingBox, List<String>>> pending;
+        pending = new LinkedList<Triplet<ListenableFuture<ObjectId>, BoundingBox, List<String>>>();
+        // only added to the unstaged changes once all the objects are written
+        final List<DiffEntry> unstaged = new LinkedList<DiffEntry>();
 
-            triplet = objects.next();
-            ObjectWriter<?> object = triplet.getFirst();
-            BoundingBox bounds = triplet.getMiddle();
-            List<String> path = triplet.getLast();
+        final PipelinedObjectInserter objectInserter = indexDatabase.getObjectDatabase()
+                .newPipelinedObjectInserter();
+        boolean flushed = false;
+        try {
+            while (objects.hasNext()) {
+                count++;
+                if (progress.isCanceled()) {
+                    return Collections.emptyList();
+                }
+                if (size != null) {
+                    progress.progress((float) (count * 100) / size.intValue());
+                }
 
-            final String nodeId = path.get(path.size() - 1);
+                triplet = objects.next();
+                ListenableFuture<ObjectId> objectId = objectInserter.submit(triplet.getFirst());
+                pending.add(new Triplet<ListenableFuture<ObjectId>, BoundingBox, List<String>>(
+                        objectId, triplet.getMiddle(), triplet.getLast()));
 
-            ObjectId objectId = indexDatabase.getObjectDatabase().put(object);
-            Ref objectRef;
-            if (bounds == null) {
-                objectRef = new Ref(nodeId, objectId, TYPE.BLOB);
-            } else {
-                objectRef = new SpatialRef(nodeId, objectId, TYPE.BLOB, bounds);
+                while (!pending.isEmpty() && pending.getFirst().getFirst().isDone()) {
+                    unstaged.add(newEntry(pending.removeFirst()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                unstaged.add(newEntry(pending.removeFirst()));
+            }
+            objectInserter.flush();
+            flushed = true;
+        } finally {
+            if (!flushed) {
+                // canceled or failed, don't write the buffered objects
+                objectInserter.discard();
             }
-            inserted.add(objectRef);
-            DiffEntry diffEntry = DiffEntry.newInstance(null, null, null, objectRef, path);
+        }
+        for (DiffEntry diffEntry : unstaged) {
             indexDatabase.putUnstaged(diffEntry);
+            inserted.add(diffEntry.getNewObject());
         }
         progress.complete();
         return inserted;
     }
 
+    /**
+     * Creates the unstaged change for an object being inserted, waiting for its id
+     */
+    private DiffEntry newEntry(
+            final Triplet<ListenableFuture<ObjectId>, BoundingBox, List<String>> insertedObject)
+            throws Exception {
+
+        final ObjectId objectId;
+        try {
+            objectId = insertedObject.getFirst().get();
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw new RuntimeException(e.getCause());
+        }
+        final BoundingBox bounds = insertedObject.getMiddle();
+        final List<String> path = insertedObject.getLast();
+        final String nodeId = path.get(path.size() - 1);
+
+        Ref objectRef;
+        if (bounds == null) {
+            objectRef = new Ref(nodeId, objectId, TYPE.BLOB);
+        } else {
+            objectRef = new SpatialRef(nodeId, objectId, TYPE.BLOB, bounds);
+        }
+        return DiffEntry.newInstance(null, null, null, objectRef, path);
+    }
+
     @Override
     public void stage(final ProgressListener progress, final String... path) throws Exception {
         List<String> path2 = path == null ? null : Arrays.asList(path);
@@ -333,9 +382,13 @@ public class Index implements StagingArea {
             final ChangeType type = diffEntry.getType();
             switch (type) {
             case ADD:
+                parentTree.put(newObject);
+                deepMove(newObject, null, indexDatabase, repositoryDatabase);
+                break;
             case MODIFY:
                 parentTree.put(newObject);
-                deepMove(newObject, indexDatabase, repositoryDatabase);
+                // the previous version is the best candidate to store the new one as a delta of
+                deepMove(newObject, oldObject, indexDatabase, repositoryDatabase);
                 break;
             case DELETE:
                 parentTree.remove(oldObject.getName());
@@ -370,47 +423,94 @@ public class Index implements StagingArea {
      * given objectInserter as well as any child object if {@code objectRef} references a tree.
      * 
      * @param newObject
+     * @param deltaBase
+     *            the previous version of the object, if any, the object may be stored as a delta
+     *            against it if both are blobs
      * @param repositoryObjectInserter
      * @throws Exception
      */
-    private void deepMove(final Ref objectRef, final ObjectDatabase from, final ObjectDatabase to)
-            throws Exception {
+    private void deepMove(final Ref objectRef, final Ref deltaBase, final ObjectDatabase from,
+            final ObjectDatabase to) throws Exception {
 
         final InputStream raw = from.getRaw(objectRef.getObjectId());
-        final ObjectId insertedId;
         try {
-            insertedId = to.put(new RawObjectWriter(raw));
-            from.delete(objectRef.getObjectId());
-
-            Preconditions.checkState(objectRef.getObjectId().equals(insertedId));
-            Preconditions.checkState(to.exists(insertedId));
-
+            move(objectRef, deltaBase, raw, from, to);
         } finally {
             raw.close();
         }
 
         if (TYPE.TREE.equals(objectRef.getType())) {
-            RevTree tree = from.getTree(objectRef.getObjectId());
-            tree.accept(new TreeVisitor() {
-
-                @Override
-                public boolean visitEntry(final Ref ref) {
-                    try {
-                        deepMove(ref, from, to);
-                    } catch (Exception e) {
-                        Throwables.propagate(e);
-                    }
-                    return true;
+            moveEntries(objectRef.getObjectId(), from, to);
+        }
+    }
+
+    /**
+     * Transfers the objects referenced by the entries of a tree, and recursively the ones of its
+     * sub trees, fetching them from {@code from} in batches
+     */
+    private void moveEntries(final ObjectId treeId, final ObjectDatabase from,
+            final ObjectDatabase to) throws Exception {
+        final List<Ref> batch = new ArrayList<Ref>();
+        RevTree tree = from.getTree(treeId);
+        tree.accept(new TreeVisitor() {
+
+            @Override
+            public boolean visitEntry(final Ref ref) {
+                batch.add(ref);
+                if (batch.size() == AbstractObjectDatabase.GET_ALL_BATCH_SIZE) {
+                    moveAll(batch, from, to);
+                    batch.clear();
                 }
+                return true;
+            }
 
-                @Override
-                public boolean visitSubTree(int bucket, ObjectId treeId) {
-                    return true;
+            @Override
+            public boolean visitSubTree(int bucket, ObjectId treeId) {
+                return true;
+            }
+        });
+        moveAll(batch, from, to);
+    }
+
+    private void moveAll(final List<Ref> refs, final ObjectDatabase from, final ObjectDatabase to) {
+        final List<ObjectId> ids = new ArrayList<ObjectId>(refs.size());
+        for (Ref ref : refs) {
+            ids.add(ref.getObjectId());
+        }
+        try {
+            Iterator<InputStream> raws = from.getAllRaw(ids);
+            for (Ref ref : refs) {
+                InputStream raw = raws.next();
+                try {
+                    move(ref, null, raw, from, to);
+                } finally {
+                    raw.close();
+                }
+                if (TYPE.TREE.equals(ref.getType())) {
+                    moveEntries(ref.getObjectId(), from, to);
                 }
-            });
+            }
+        } catch (Exception e) {
+            throw Throwables.propagate(e);
         }
     }
 
+    private void move(final Ref objectRef, final Ref deltaBase, final InputStream raw,
+            final ObjectDatabase from, final ObjectDatabase to) throws Exception {
+        final RawObjectWriter writer = new RawObjectWriter(raw, objectRef.getType());
+        final ObjectId insertedId;
+        if (deltaBase != null && TYPE.BLOB.equals(objectRef.getType())
+                && TYPE.BLOB.equals(deltaBase.getType())) {
+            insertedId = to.putDelta(deltaBase.getObjectId(), writer);
+        } else {
+            insertedId = to.put(writer);
+        }
+        from.delete(objectRef.getObjectId());
+
+        Preconditions.checkState(objectRef.getObjectId().equals(insertedId));
+        Preconditions.checkState(to.exists(insertedId));
+    }
+
     private void checkValidPath(List<String> path) {
         if (path == null || path.size() == 0) {
             throw new IllegalArgumentException("null path");
@@ -9,15 +9,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevBlob;
 import org.geogit.api.RevCommit;
 import org.geogit.api.RevObject;
+import org.geogit.api.RevObject.TYPE;
 import org.geogit.api.RevTag;
 import org.geogit.api.RevTree;
+import org.geogit.metrics.MetricsRegistry;
 import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.ObjectInserter;
 import org.geogit.storage.ObjectReader;
@@ -29,7 +35,6 @@ import org.opengis.feature.Feature;
 import org.opengis.feature.type.FeatureType;
 
 import com.google.common.base.Preconditions;
-import com.google.common.base.Throwables;
 
 /**
  * A repository is a collection of commits, each of which is an archive of what the project's
@@ -57,7 +62,9 @@ public class Repository {
      * This is stored here for the convenience of knowing where to load the configuration file from
      */
     private final File repositoryHome;
-    
+
+    private ObjectName mbeanName;
+
     public Repository(final RepositoryDatabase repoDb, File envHome) {
         Preconditions.checkNotNull(repoDb);
         this.repoDb = repoDb;
@@ -69,6 +76,22 @@ public class Repository {
 
     public void create() {
         repoDb.create();
+        final String name = repositoryHome == null ? "repository@"
+                + Integer.toHexString(System.identityHashCode(this)) : repositoryHome
+                .getAbsolutePath();
+        try {
+            mbeanName = getMetrics().registerMBean(name);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Unable to register the metrics of " + name + " over JMX", e);
+        }
+    }
+
+    /**
+     * @return the metrics of the repository databases and the operations run against it, also
+     *         published over JMX once the repository is {@link #create() created}
+     */
+    public MetricsRegistry getMetrics() {
+        return repoDb.getMetrics();
     }
 
     public RefDatabase getRefDatabase() {
@@ -84,6 +107,14 @@ public class Repository {
     }
 
     public void close() {
+        if (mbeanName != null) {
+            try {
+                MetricsRegistry.unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                LOGGER.log(Level.FINE, "Unable to unregister " + mbeanName, e);
+            }
+            mbeanName = null;
+        }
         repoDb.close();
     }
 
@@ -106,19 +137,21 @@ public class Repository {
         }
 
         // not a ref name, may be a partial object id?
-        List<ObjectId> lookUp = getObjectDatabase().lookUp(revstr);
-        if (!lookUp.isEmpty()) {
-            for (ObjectId oid : lookUp) {
-                try {
-                    if (RevCommit.class.equals(type) || RevTag.class.equals(type)) {
-                        return (T) getCommit(oid);
-                    } else if (RevTree.class.equals(type)) {
-                        return (T) getTree(oid);
-                    } else if (RevBlob.class.equals(type)) {
-                        return (T) getBlob(oid);
-                    }
-                } catch (Exception wrongType) {
-                    // ignore
+        final ObjectDatabase objectDatabase = getObjectDatabase();
+        List<ObjectId> lookUp = objectDatabase.lookUp(revstr);
+        for (ObjectId oid : lookUp) {
+            final TYPE objectType = objectDatabase.getType(oid);
+            if (RevCommit.class.equals(type) || RevTag.class.equals(type)) {
+                if (TYPE.COMMIT.equals(objectType) || TYPE.TAG.equals(objectType)) {
+                    return (T) getCommit(oid);
+                }
+            } else if (RevTree.class.equals(type)) {
+                if (TYPE.TREE.equals(objectType)) {
+                    return (T) getTree(oid);
+                }
+            } else if (RevBlob.class.equals(type)) {
+                if (TYPE.BLOB.equals(objectType)) {
+                    return (T) getBlob(oid);
                 }
             }
         }
@@ -144,14 +177,9 @@ public class Repository {
         List<ObjectId> lookUp = getObjectDatabase().lookUp(revstr);
         if (lookUp.size() == 1) {
             final ObjectId objectId = lookUp.get(0);
-            try {
-                return getCommit(objectId);
-            } catch (Exception e) {
-                try {
-                    return getTree(objectId);
-                } catch (Exception e2) {
-                    return getBlob(objectId);
-                }
+            final TYPE type = getObjectDatabase().getType(objectId);
+            if (type != null) {
+                return parse(new Ref(revstr, objectId, type));
             }
         }
         if (lookUp.size() > 1) {
@@ -171,12 +199,7 @@ public class Repository {
      * @return true if the blob exists with the parameter ID, false otherwise
      */
     public boolean blobExists(final ObjectId id) {
-    	try {
-    		getObjectDatabase().getBlob(id);
-        } catch (IllegalArgumentException e) {
-            return false;
-        }
-        return true;
+        return getObjectDatabase().exists(id, TYPE.BLOB);
     }
 
     private RevObject parse(final Ref ref) {
@@ -211,15 +234,7 @@ public class Repository {
     }
 
     public boolean commitExists(final ObjectId id) {
-        try {
-            getObjectDatabase().getCached(id, WrappedSerialisingFactory.getInstance().createCommitReader());
-//            getObjectDatabase().getCached(id, new BxmlCommitReader());
-        } catch (IllegalArgumentException e) {
-            return false;
-        } catch (IOException e) {
-            Throwables.propagate(e);
-        }
-        return true;
+        return getObjectDatabase().exists(id, TYPE.COMMIT);
     }
     
     public RevCommit getCommit(final ObjectId commitId) {
@@ -247,14 +262,7 @@ public class Repository {
      * @return true if the tree exists with the parameter ID, false otherwise
      */
     public boolean treeExists(final ObjectId id) {
-        try {
-            getObjectDatabase().getCached(id, WrappedSerialisingFactory.getInstance().createRevTreeReader(getObjectDatabase()));
-        } catch (IllegalArgumentException e) {
-            return false;
-        } catch (IOException e) {
-            Throwables.propagate(e);
-        }
-        return true;
+        return getObjectDatabase().exists(id, TYPE.TREE);
     }
 
     public ObjectId getRootTreeId() {
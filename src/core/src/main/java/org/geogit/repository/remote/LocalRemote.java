@@ -5,13 +5,16 @@
 package org.geogit.repository.remote;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
 import org.geogit.api.GeoGIT;
 import org.geogit.api.LogOp;
 import org.geogit.api.ObjectId;
+import org.geogit.api.ObjectIdSet;
 import org.geogit.api.Ref;
 import org.geogit.api.RevBlob;
 import org.geogit.api.RevCommit;
@@ -23,6 +26,8 @@ import org.geogit.api.config.Config;
 import org.geogit.repository.Repository;
 import org.geogit.repository.remote.payload.IPayload;
 import org.geogit.repository.remote.payload.Payload;
+import org.geogit.storage.AbstractObjectDatabase;
+import org.geogit.storage.BlobReader;
 import org.geogit.storage.RepositoryDatabase;
 import org.geogit.storage.bdbje.EntityStoreConfig;
 import org.geogit.storage.bdbje.EnvironmentBuilder;
@@ -59,10 +64,9 @@ public class LocalRemote extends AbstractRemote {
     @Override
     public IPayload requestFetchPayload(Map<String, String> branchHeads) {
         /**
-         * not happy about this but need something to hold commit/blob/tree entries from the since
-         * commit which can be used to exclude them from the payload
-         * */
-        final Payload excludedPayload = new Payload();
+         * The trees and blobs reachable from the since commit, the client has them already
+         */
+        final ObjectIdSet excluded = new ObjectIdSet();
         final Payload payload = new Payload();
 
         // for each branch
@@ -94,18 +98,22 @@ public class LocalRemote extends AbstractRemote {
                     logOp.setSince(branchId);
                     
                     RevCommit commit = getRepository().getCommit(branchId);
-                    ObjectId treeId = commit.getTreeId();
-                    RevTree tree = getRepository().getTree(treeId);
 
                     /**
-                     * Add Trees to payload
+                     * Collect the ids of the trees and blobs, the blobs themselves aren't needed
                      */
-                    excludedPayload.addTrees(tree);
-                    tree.accept(new CommitTreeVisitor(excludedPayload, new Payload()));
+                    CommitTreeVisitor visitor = new CommitTreeVisitor(null, new ObjectIdSet(),
+                            excluded);
+                    visitor.visitTree(commit.getTreeId());
+                    visitor.flush();
                 }
             }
 
             try {
+                /**
+                 * Trees and blobs shared by several commits are sent once
+                 */
+                final ObjectIdSet added = new ObjectIdSet();
                 Iterator<RevCommit> logs = logOp.call();
                 while (logs.hasNext()) {
                     RevCommit commit = logs.next();
@@ -113,20 +121,11 @@ public class LocalRemote extends AbstractRemote {
 
                     /**
                      * ok we have the commit, this should be a reference to the tree,blob,tag
-                     * objects
+                     * objects. Add the trees and blobs the client doesn't have to the payload
                      */
-                    ObjectId treeId = commit.getTreeId();
-                    RevTree tree = getRepository().getTree(treeId);
-
-                    /**
-                     * Add Trees to payload
-                     */
-                    payload.addTrees(tree);
-
-                    /**
-                     * Add the trees payload to the response
-                     */
-                    tree.accept(new CommitTreeVisitor(payload, excludedPayload));
+                    CommitTreeVisitor visitor = new CommitTreeVisitor(payload, excluded, added);
+                    visitor.visitTree(commit.getTreeId());
+                    visitor.flush();
 
                     /**
                      * Add Tags to payload, there are none for now...
@@ -219,54 +218,91 @@ public class LocalRemote extends AbstractRemote {
     	if (repository!= null) repository.close();
     }
 
+    /**
+     * Adds the trees and blobs of a commit tree to a payload, skipping the subtrees that were
+     * excluded or already added, as everything they reach was too
+     */
     private class CommitTreeVisitor implements TreeVisitor {
 
-        private Payload payload;
-        private Payload excludedPayload;
+        private final Payload payload;
+
+        private final ObjectIdSet excluded;
+
+        private final ObjectIdSet added;
 
-        public CommitTreeVisitor(final Payload payload, final Payload excludedPayload) {
+        private final List<ObjectId> pendingBlobs = new ArrayList<ObjectId>();
+
+        /**
+         * @param payload
+         *            the payload to add the objects to, or {@code null} to only collect their ids
+         *            in {@code added}
+         * @param excluded
+         *            the ids of the objects not to add
+         * @param added
+         *            the ids of the objects added so far, updated as the tree is visited
+         */
+        public CommitTreeVisitor(final Payload payload, final ObjectIdSet excluded,
+                final ObjectIdSet added) {
             super();
             this.payload = payload;
-            this.excludedPayload = excludedPayload;
+            this.excluded = excluded;
+            this.added = added;
         }
 
-        @Override
-        public boolean visitSubTree(int bucket, ObjectId treeId) {
-            /**
-             * add any subtrees
-             */
-            RevTree tree = getRepository().getTree(treeId);
+        private boolean add(final ObjectId id) {
+            return !excluded.contains(id) && added.add(id);
+        }
 
-            /**
-             * add the subtree to our tree store, then see if there are any blobs
-             */
-            if (!excludedPayload.getTreeUpdates().contains(tree)) {
-                payload.addTrees(tree);
+        /**
+         * Adds the tree and everything it reaches, unless it was excluded or added already
+         */
+        public void visitTree(final ObjectId treeId) {
+            if (add(treeId)) {
+                RevTree tree = getRepository().getTree(treeId);
+                if (payload != null) {
+                    payload.addTrees(tree);
+                }
+                tree.accept(this);
             }
-            
-            tree.accept(this);
-            return true;
+        }
+
+        @Override
+        public boolean visitSubTree(int bucket, ObjectId treeId) {
+            visitTree(treeId);
+            // walked above already
+            return false;
         }
 
         @Override
         public boolean visitEntry(Ref ref) {
             if (ref.getType().equals(RevObject.TYPE.TREE)) {
-                RevTree tree = getRepository().getTree(ref.getObjectId());
-                if (!excludedPayload.getTreeUpdates().contains(tree)) {
-                    payload.addTrees(tree);
-                }
-                tree.accept(this);
-            } else {
+                visitTree(ref.getObjectId());
+            } else if (add(ref.getObjectId())) {
                 /**
-                 * Add BLOB to store
+                 * Add BLOB to store, blobs are fetched in batches
                  */
-                RevBlob blob = getRepository().getObjectDatabase().getBlob(ref.getObjectId());
-                if (!excludedPayload.getBlobUpdates().contains(blob)) {
-                    payload.addBlobs(getRepository().getObjectDatabase().getBlob(ref.getObjectId()));
+                pendingBlobs.add(ref.getObjectId());
+                if (pendingBlobs.size() == AbstractObjectDatabase.GET_ALL_BATCH_SIZE) {
+                    flush();
                 }
             }
             return true;
 
         }
+
+        /**
+         * Adds the blobs visited since the last call to the payload, must be called once the
+         * tree was visited
+         */
+        public void flush() {
+            if (payload != null) {
+                Iterator<RevBlob> blobs = getRepository().getObjectDatabase().getAll(
+                        pendingBlobs, new BlobReader());
+                while (blobs.hasNext()) {
+                    payload.addBlobs(blobs.next());
+                }
+            }
+            pendingBlobs.clear();
+        }
     }
 }
\ No newline at end of file
@@ -4,16 +4,30 @@
  */
 package org.geogit.storage;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestOutputStream;
-import java.security.MessageDigest;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.collections.map.LRUMap;
 import org.geogit.api.MutableTree;
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
@@ -21,31 +35,232 @@ import org.geogit.api.RevBlob;
 import org.geogit.api.RevCommit;
 import org.geogit.api.RevObject.TYPE;
 import org.geogit.api.RevTree;
+import org.geogit.metrics.Gauge;
+import org.geogit.metrics.Meter;
+import org.geogit.metrics.MetricsRegistry;
+import org.geogit.metrics.Timer;
 import org.geogit.repository.DepthSearch;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
-import com.ning.compress.lzf.LZFInputStream;
-import com.ning.compress.lzf.LZFOutputStream;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public abstract class AbstractObjectDatabase implements ObjectDatabase {
 
-    protected Map<ObjectId, Object> cache;
+    /**
+     * Default maximum number of deltas to apply to rebuild an object stored as a delta
+     */
+    public static final int DEFAULT_MAX_DELTA_DEPTH = 10;
+
+    /**
+     * Number of objects {@link #getAll(Iterable, ObjectReader)} and {@link #getAllRaw(Iterable)}
+     * fetch at once
+     */
+    public static final int GET_ALL_BATCH_SIZE = 1000;
+
+    /**
+     * Orders ids by their raw bytes compared as unsigned values, the order of the keys of sorted
+     * stores and of the hex names of loose object files, unlike {@link ObjectId#compareTo}
+     */
+    protected static final Comparator<ObjectId> RAW_ORDER = new Comparator<ObjectId>() {
+        @Override
+        public int compare(final ObjectId o1, final ObjectId o2) {
+            return o1.compareRawTo(o2);
+        }
+    };
+
+    /**
+     * Maximum number of asynchronous reads waiting for a thread of the default read executor
+     */
+    private static final int MAX_QUEUED_READS = 1000;
+
+    private static ListeningExecutorService defaultReadExecutor;
+
+    private static final long DELTA_BASE_CACHE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Length of the header of delta records: the record flag, the object type, the base id and
+     * the chain depth
+     */
+    private static final int DELTA_HEADER_SIZE = ObjectCodec.HEADER_SIZE + 20 + 1;
+
+    protected final ObjectCache cache;
+
+    private volatile ObjectCodecPolicy codecPolicy = ObjectCodecPolicy.defaultPolicy();
+
+    private volatile int maxDeltaDepth = DEFAULT_MAX_DELTA_DEPTH;
+
+    private volatile OffHeapRecordCache recordCache;
+
+    /**
+     * Number of records overwritten or deleted so far, records read before a concurrent write
+     * finished are not cached, see {@link #cacheRecord}
+     */
+    private final AtomicLong recordWrites = new AtomicLong();
+
+    private volatile ListeningExecutorService readExecutor;
+
+    /**
+     * Uncompressed contents of the objects deltas were recently computed against or rebuilt from
+     */
+    private final Cache<ObjectId, byte[]> deltaBases;
+
+    private volatile Metrics metrics = new Metrics(new MetricsRegistry());
 
-    @SuppressWarnings("unchecked")
     public AbstractObjectDatabase() {
-        // TODO: use an external cache
-        final long maxMemMegs = Runtime.getRuntime().maxMemory() / 1024 / 1024;
-        final int maxSize;
-        if (maxMemMegs <= 64) {
-            maxSize = 16;
-        } else if (maxMemMegs <= 100) {
-            maxSize = 64;
-        } else if (maxMemMegs <= 200) {
-            maxSize = 128;
-        } else {
-            maxSize = 256;
+        this(new WeightedObjectCache());
+    }
+
+    /**
+     * @param cache
+     *            the cache of decoded objects used by {@link #getCached(ObjectId, ObjectReader)}
+     */
+    public AbstractObjectDatabase(final ObjectCache cache) {
+        Preconditions.checkNotNull(cache, "cache");
+        this.cache = cache;
+        this.deltaBases = CacheBuilder.newBuilder().maximumWeight(DELTA_BASE_CACHE_SIZE)
+                .weigher(new Weigher<ObjectId, byte[]>() {
+                    @Override
+                    public int weigh(final ObjectId id, final byte[] contents) {
+                        return contents.length;
+                    }
+                }).build();
+    }
+
+    /**
+     * @return the cache of decoded objects used by {@link #getCached(ObjectId, ObjectReader)}
+     */
+    public ObjectCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return the cache of stored records used by {@link #getRaw(ObjectId)}, or {@code null} if
+     *         records are not cached
+     */
+    public OffHeapRecordCache getRecordCache() {
+        return recordCache;
+    }
+
+    /**
+     * Sets the cache of stored records checked by {@link #getRaw(ObjectId)} before fetching the
+     * record from the underlying storage, {@code null} disables it.
+     */
+    public void setRecordCache(final OffHeapRecordCache recordCache) {
+        this.recordCache = recordCache;
+    }
+
+    /**
+     * Sets the registry to record the reads and writes of this database in, typically a
+     * {@link MetricsRegistry#scope(String) scope} of the repository registry. Until then they're
+     * recorded in a registry of its own.
+     * <p>
+     * The metrics are {@code reads}, {@code readBytes}, {@code writes}, {@code writtenBytes} and
+     * {@code deletes} meters counting the records read from and written to the underlying
+     * storage, the {@code fetches} and {@code stores} timers of the calls to the underlying
+     * storage, and hit ratio gauges of the object and record caches.
+     * </p>
+     */
+    public void setMetrics(final MetricsRegistry registry) {
+        Preconditions.checkNotNull(registry);
+        this.metrics = new Metrics(registry);
+        registry.register("cache.size", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return Long.valueOf(cache.size());
+            }
+        });
+        registry.register("cache.hitRatio", new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return Double.valueOf(cache.stats().hitRate());
+            }
+        });
+        registry.register("recordCache.hitRatio", new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                final OffHeapRecordCache recordCache = AbstractObjectDatabase.this.recordCache;
+                return recordCache == null ? null : Double.valueOf(recordCache.stats().hitRate());
+            }
+        });
+    }
+
+    /**
+     * @return a shared pool of daemon threads, two per available processor since reads mostly
+     *         wait for I/O. Once {@link #MAX_QUEUED_READS} reads are queued, further reads run in
+     *         the calling thread instead, which bounds the memory held by pending reads
+     */
+    static synchronized ListeningExecutorService defaultReadExecutor() {
+        if (defaultReadExecutor == null) {
+            final int nThreads = 2 * Runtime.getRuntime().availableProcessors();
+            defaultReadExecutor = MoreExecutors.listeningDecorator(new ThreadPoolExecutor(
+                    nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(MAX_QUEUED_READS), new ThreadFactoryBuilder()
+                            .setDaemon(true).setNameFormat("geogit-reader-%d").build(),
+                    new ThreadPoolExecutor.CallerRunsPolicy()));
         }
-        cache = new LRUMap(maxSize);
+        return defaultReadExecutor;
+    }
+
+    /**
+     * @return the executor the asynchronous reads run on, a pool shared by all the databases
+     *         unless {@link #setReadExecutor(ExecutorService) set}
+     */
+    public ListeningExecutorService getReadExecutor() {
+        final ListeningExecutorService executor = readExecutor;
+        return executor == null ? defaultReadExecutor() : executor;
+    }
+
+    /**
+     * Sets the executor to run the asynchronous reads on, {@code null} resets it to the shared
+     * default one
+     */
+    public void setReadExecutor(final ExecutorService readExecutor) {
+        this.readExecutor = readExecutor == null ? null : MoreExecutors
+                .listeningDecorator(readExecutor);
+    }
+
+    /**
+     * @return the policy that decides the codec objects are stored with
+     */
+    public ObjectCodecPolicy getCodecPolicy() {
+        return codecPolicy;
+    }
+
+    /**
+     * Sets the policy that decides the codec new objects are stored with. Objects already stored
+     * are still readable whatever codec they were stored with.
+     */
+    public void setCodecPolicy(final ObjectCodecPolicy codecPolicy) {
+        Preconditions.checkNotNull(codecPolicy);
+        this.codecPolicy = codecPolicy;
+    }
+
+    /**
+     * @return the maximum length of the delta chains created by
+     *         {@link #putDelta(ObjectId, ObjectWriter)}
+     */
+    public int getMaxDeltaDepth() {
+        return maxDeltaDepth;
+    }
+
+    /**
+     * Sets the maximum number of deltas to apply to rebuild an object, longer chains cost more
+     * reads and delta applications per object read. Zero disables delta storage.
+     */
+    public void setMaxDeltaDepth(final int maxDeltaDepth) {
+        Preconditions.checkArgument(maxDeltaDepth >= 0 && maxDeltaDepth <= 255,
+                "maxDeltaDepth must be between 0 and 255");
+        this.maxDeltaDepth = maxDeltaDepth;
     }
 
     /**
@@ -62,6 +277,17 @@ public abstract class AbstractObjectDatabase implements ObjectDatabase {
 
     protected abstract List<ObjectId> lookUpInternal(byte[] raw);
 
+    /**
+     * Lists the ids of all the stored objects, as needed to find the unreachable ones.
+     * <p>
+     * This default implementation looks up an empty partial id, subclasses may override it if
+     * they can list their contents more efficiently.
+     * </p>
+     */
+    protected List<ObjectId> listInternal() {
+        return lookUpInternal(new byte[0]);
+    }
+
     /**
      * @see org.geogit.storage.ObjectDatabase#get(org.geogit.api.ObjectId,
      *      org.geogit.storage.ObjectReader)
@@ -81,6 +307,155 @@ public abstract class AbstractObjectDatabase implements ObjectDatabase {
         return object;
     }
 
+    /**
+     * @see org.geogit.storage.ObjectDatabase#getAsync(org.geogit.api.ObjectId,
+     *      org.geogit.storage.ObjectReader)
+     */
+    @Override
+    public <T> ListenableFuture<T> getAsync(final ObjectId id, final ObjectReader<T> reader) {
+        Preconditions.checkNotNull(id, "id");
+        Preconditions.checkNotNull(reader, "reader");
+        return getReadExecutor().submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return get(id, reader);
+            }
+        });
+    }
+
+    /**
+     * @see org.geogit.storage.ObjectDatabase#getRawAsync(org.geogit.api.ObjectId)
+     */
+    @Override
+    public ListenableFuture<InputStream> getRawAsync(final ObjectId id) {
+        Preconditions.checkNotNull(id, "id");
+        return getReadExecutor().submit(new Callable<InputStream>() {
+            @Override
+            public InputStream call() throws Exception {
+                return getRaw(id);
+            }
+        });
+    }
+
+    /**
+     * @see org.geogit.storage.ObjectDatabase#getTreeAsync(org.geogit.api.ObjectId)
+     */
+    @Override
+    public ListenableFuture<RevTree> getTreeAsync(final ObjectId treeId) {
+        Preconditions.checkNotNull(treeId, "treeId");
+        return getReadExecutor().submit(new Callable<RevTree>() {
+            @Override
+            public RevTree call() throws Exception {
+                return getTree(treeId);
+            }
+        });
+    }
+
+    /**
+     * @see org.geogit.storage.ObjectDatabase#getAll(java.lang.Iterable,
+     *      org.geogit.storage.ObjectReader)
+     */
+    @Override
+    public <T> Iterator<T> getAll(final Iterable<ObjectId> ids, final ObjectReader<T> reader) {
+        Preconditions.checkNotNull(ids, "ids");
+        Preconditions.checkNotNull(reader, "reader");
+        Iterator<List<ObjectId>> batches = Iterables.partition(ids, GET_ALL_BATCH_SIZE)
+                .iterator();
+        return Iterators.concat(Iterators.transform(batches,
+                new Function<List<ObjectId>, Iterator<T>>() {
+                    @Override
+                    public Iterator<T> apply(final List<ObjectId> batch) {
+                        try {
+                            final List<InputStream> raws = openAll(batch);
+                            final List<T> objects = new ArrayList<T>(batch.size());
+                            for (int i = 0; i < batch.size(); i++) {
+                                InputStream raw = raws.get(i);
+                                try {
+                                    objects.add(reader.read(batch.get(i), raw));
+                                } finally {
+                                    raw.close();
+                                }
+                            }
+                            return objects.iterator();
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }));
+    }
+
+    /**
+     * @see org.geogit.storage.ObjectDatabase#getAllRaw(java.lang.Iterable)
+     */
+    @Override
+    public Iterator<InputStream> getAllRaw(final Iterable<ObjectId> ids) {
+        Preconditions.checkNotNull(ids, "ids");
+        Iterator<List<ObjectId>> batches = Iterables.partition(ids, GET_ALL_BATCH_SIZE)
+                .iterator();
+        return Iterators.concat(Iterators.transform(batches,
+                new Function<List<ObjectId>, Iterator<InputStream>>() {
+                    @Override
+                    public Iterator<InputStream> apply(final List<ObjectId> batch) {
+                        try {
+                            return openAll(batch).iterator();
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }));
+    }
+
+    /**
+     * Fetches the records of a batch of objects at once, from the record cache first and then
+     * through {@link #getAllRawInternal(Collection)}
+     * 
+     * @return the uncompressed contents of each object, in the order of {@code ids}
+     * @throws IllegalArgumentException
+     *             if any of the objects does not exist
+     */
+    private List<InputStream> openAll(final List<ObjectId> ids) throws IOException {
+        final OffHeapRecordCache recordCache = this.recordCache;
+        final Map<ObjectId, byte[]> records = new HashMap<ObjectId, byte[]>();
+        final Set<ObjectId> missing = new HashSet<ObjectId>();
+        for (ObjectId id : ids) {
+            Preconditions.checkNotNull(id, "id");
+            final byte[] record = recordCache == null ? null : recordCache.get(id);
+            if (record == null) {
+                missing.add(id);
+            } else {
+                records.put(id, record);
+            }
+        }
+        if (!missing.isEmpty()) {
+            final long writes = recordWrites.get();
+            final Metrics metrics = this.metrics;
+            final long start = metrics.fetches.start();
+            final Map<ObjectId, byte[]> fetched = getAllRawInternal(missing);
+            metrics.fetches.stop(start);
+            metrics.reads.mark(fetched.size());
+            long bytes = 0;
+            for (byte[] record : fetched.values()) {
+                bytes += record.length;
+            }
+            metrics.readBytes.mark(bytes);
+            if (recordCache != null) {
+                for (Map.Entry<ObjectId, byte[]> e : fetched.entrySet()) {
+                    cacheRecord(recordCache, e.getKey(), e.getValue(), writes);
+                }
+            }
+            records.putAll(fetched);
+        }
+        final List<InputStream> raws = new ArrayList<InputStream>(ids.size());
+        for (ObjectId id : ids) {
+            final byte[] record = records.get(id);
+            if (record == null) {
+                throw new IllegalArgumentException("Object does not exist: " + id.toString());
+            }
+            raws.add(open(new ByteArrayInputStream(record)));
+        }
+        return raws;
+    }
+
     /**
      * @see org.geogit.storage.ObjectDatabase#getCached(org.geogit.api.ObjectId,
      *      org.geogit.storage.ObjectReader)
@@ -91,7 +466,7 @@ public abstract class AbstractObjectDatabase implements ObjectDatabase {
         Preconditions.checkNotNull(id, "id");
         Preconditions.checkNotNull(reader, "reader");
 
-        T object = (T) cache.get(id);
+        T object = (T) cache.getIfPresent(id);
         if (object == null) {
             object = get(id, reader);
             if (object != null) {
@@ -107,43 +482,304 @@ public abstract class AbstractObjectDatabase implements ObjectDatabase {
      */
     @Override
     public final InputStream getRaw(final ObjectId id) throws IOException {
-        InputStream in = getRawInternal(id);
-        return new LZFInputStream(in);
+        return open(getRecord(id));
+    }
+
+    /**
+     * @return the uncompressed contents of the object stored in {@code rawRecord}, rebuilding it
+     *         if it's stored as a delta
+     */
+    private InputStream open(final InputStream rawRecord) throws IOException {
+        PushbackInputStream record = new PushbackInputStream(rawRecord, 1);
+        final int first = record.read();
+        if (first == ObjectCodec.DELTA_RECORD) {
+            try {
+                return new ByteArrayInputStream(readDelta(record));
+            } finally {
+                record.close();
+            }
+        }
+        if (first != -1) {
+            record.unread(first);
+        }
+        return ObjectCodec.open(record);
+    }
+
+    /**
+     * @return the stored record of an object, from the record cache if there's one
+     */
+    private InputStream getRecord(final ObjectId id) throws IOException {
+        final Metrics metrics = this.metrics;
+        final OffHeapRecordCache recordCache = this.recordCache;
+        if (recordCache == null) {
+            final long start = metrics.fetches.start();
+            final InputStream in = getRawInternal(id);
+            metrics.fetches.stop(start);
+            metrics.reads.mark();
+            return metrics.meteredRead(in);
+        }
+        byte[] record = recordCache.get(id);
+        if (record == null) {
+            final long writes = recordWrites.get();
+            final long start = metrics.fetches.start();
+            InputStream in = getRawInternal(id);
+            try {
+                record = ByteStreams.toByteArray(in);
+            } finally {
+                in.close();
+            }
+            metrics.fetches.stop(start);
+            metrics.reads.mark();
+            metrics.readBytes.mark(record.length);
+            cacheRecord(recordCache, id, record, writes);
+        }
+        return new ByteArrayInputStream(record);
+    }
+
+    /**
+     * Caches a record read from the underlying storage, unless a record was overwritten or
+     * deleted since {@code writesBefore} was taken, right before reading it. Otherwise a reader
+     * could cache the previous contents of a record after the writer invalidated them, and they'd
+     * be served until evicted.
+     */
+    private void cacheRecord(final OffHeapRecordCache recordCache, final ObjectId id,
+            final byte[] record, final long writesBefore) {
+        synchronized (recordWrites) {
+            if (recordWrites.get() == writesBefore) {
+                recordCache.put(id, record, record.length);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds an object stored as a delta, the record flag was already consumed from
+     * {@code record}
+     */
+    private byte[] readDelta(final InputStream record) throws IOException {
+        DataInputStream in = new DataInputStream(record);
+        in.readUnsignedByte();// object type
+        byte[] baseId = new byte[20];
+        in.readFully(baseId);
+        in.readUnsignedByte();// chain depth, only used when writing
+        byte[] delta = ByteStreams.toByteArray(in);
+        return ObjectDelta.apply(getDeltaBase(new ObjectId(baseId)), delta);
+    }
+
+    /**
+     * @return the uncompressed contents of an object deltas are computed against
+     */
+    private byte[] getDeltaBase(final ObjectId baseId) throws IOException {
+        byte[] base = deltaBases.getIfPresent(baseId);
+        if (base == null) {
+            InputStream in = getRaw(baseId);
+            try {
+                base = ByteStreams.toByteArray(in);
+            } finally {
+                in.close();
+            }
+            deltaBases.put(baseId, base);
+        }
+        return base;
+    }
+
+    /**
+     * @return the number of deltas applied to rebuild the given object, zero if it's not stored
+     *         as a delta
+     */
+    private int getDeltaDepth(final ObjectId id) throws IOException {
+        final byte[] header = new byte[DELTA_HEADER_SIZE];
+        final int length = readHeader(id, header);
+        if (length < DELTA_HEADER_SIZE || header[0] != ObjectCodec.DELTA_RECORD) {
+            return 0;
+        }
+        return header[DELTA_HEADER_SIZE - 1] & 0xFF;
+    }
+
+    /**
+     * @return the id of the object the given one is stored as a delta against,
+     *         {@link ObjectId#NULL} if it's stored in full, or {@code null} if it doesn't exist
+     */
+    ObjectId getDeltaBaseId(final ObjectId id) throws IOException {
+        final byte[] header = new byte[DELTA_HEADER_SIZE];
+        final int length = readHeader(id, header);
+        if (length == -1) {
+            return null;
+        }
+        if (length < DELTA_HEADER_SIZE || header[0] != ObjectCodec.DELTA_RECORD) {
+            return ObjectId.NULL;
+        }
+        return new ObjectId(header, ObjectCodec.HEADER_SIZE);
+    }
+
+    /**
+     * Opens the uncompressed contents of a record the caller read from storage, rebuilding it if
+     * it's stored as a delta from base records also read from storage, without going through the
+     * record or delta base caches
+     */
+    InputStream openUncached(final byte[] record) throws IOException {
+        if (record.length == 0 || record[0] != ObjectCodec.DELTA_RECORD) {
+            return ObjectCodec.open(new ByteArrayInputStream(record));
+        }
+        if (record.length < DELTA_HEADER_SIZE) {
+            throw new IOException("Truncated delta record");
+        }
+        final ObjectId baseId = new ObjectId(record, ObjectCodec.HEADER_SIZE);
+        final byte[] baseRecord = getAllRawInternal(Collections.singleton(baseId)).get(baseId);
+        if (baseRecord == null) {
+            throw new IOException("Missing delta base " + baseId);
+        }
+        final byte[] base;
+        InputStream in = openUncached(baseRecord);
+        try {
+            base = ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+        final byte[] delta = Arrays.copyOfRange(record, DELTA_HEADER_SIZE, record.length);
+        return new ByteArrayInputStream(ObjectDelta.apply(base, delta));
     }
 
     protected abstract InputStream getRawInternal(ObjectId id) throws IOException;
 
     /**
-     * @see org.geogit.storage.ObjectDatabase#put(org.geogit.storage.ObjectWriter)
+     * Fetches the stored records of a batch of objects.
+     * <p>
+     * This default implementation calls {@link #getRawInternal(ObjectId)} for each existing
+     * object, subclasses are encouraged to override it to fetch them in storage order, see
+     * {@link #RAW_ORDER}.
+     * </p>
+     * 
+     * @param ids
+     *            the ids of the objects to fetch, in no particular order
+     * @return the records keyed by object id, objects that do not exist are left out
+     */
+    protected Map<ObjectId, byte[]> getAllRawInternal(final Collection<ObjectId> ids)
+            throws IOException {
+        Map<ObjectId, byte[]> records = new HashMap<ObjectId, byte[]>();
+        for (ObjectId id : ids) {
+            if (!exists(id)) {
+                continue;
+            }
+            InputStream in = getRawInternal(id);
+            try {
+                records.put(id, ByteStreams.toByteArray(in));
+            } finally {
+                in.close();
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return the size in bytes of the stored record of an object
+     * @throws IllegalArgumentException
+     *             if the object doesn't exist
+     */
+    protected long sizeInternal(final ObjectId id) throws IOException {
+        InputStream record = getRawInternal(id);
+        try {
+            final byte[] buff = new byte[8192];
+            long size = 0;
+            for (int n; (n = record.read(buff)) != -1;) {
+                size += n;
+            }
+            return size;
+        } finally {
+            record.close();
+        }
+    }
+
+    /**
+     * Reads the first bytes of the stored record of an object.
+     * <p>
+     * This default implementation reads them from {@link #getRawInternal(ObjectId)}, subclasses
+     * are encouraged to override it to avoid fetching the whole record.
+     * </p>
+     *
+     * @param header
+     *            the buffer to read the bytes to, up to its length
+     * @return the number of bytes read, less than the buffer length only if the record is
+     *         shorter, or {@code -1} if the object doesn't exist
+     */
+    protected int readHeader(final ObjectId id, final byte[] header) throws IOException {
+        if (!exists(id)) {
+            return -1;
+        }
+        InputStream record = getRawInternal(id);
+        try {
+            return Math.max(0, ByteStreams.read(record, header, 0, header.length));
+        } finally {
+            record.close();
+        }
+    }
+
+    /**
+     * Reads the type of the object from its record header, which doesn't require decoding it.
+     * Objects whose records have no type recorded, such as the ones stored before the type was
+     * recorded, are decoded to figure it out.
+     *
+     * @see org.geogit.storage.ObjectDatabase#getType(org.geogit.api.ObjectId)
      */
     @Override
-    public final <T> ObjectId put(final ObjectWriter<T> writer) throws Exception {
-        MessageDigest sha1;
-        sha1 = MessageDigest.getInstance("SHA1");
+    public TYPE getType(final ObjectId id) {
+        Preconditions.checkNotNull(id, "id");
+        final byte[] header = new byte[ObjectCodec.HEADER_SIZE];
+        final int length;
+        try {
+            length = readHeader(id, header);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (length == -1) {
+            return null;
+        }
+        TYPE type = ObjectCodec.type(header, length);
+        if (type == null) {
+            type = decodeType(id);
+        }
+        return type;
+    }
 
-        ByteArrayOutputStream rawOut = new ByteArrayOutputStream();
+    /**
+     * Figures out the type of an object by trying to decode it as each type
+     */
+    private TYPE decodeType(final ObjectId id) {
+        try {
+            getCommit(id);
+            return TYPE.COMMIT;
+        } catch (RuntimeException notACommit) {
+            try {
+                getTree(id);
+                return TYPE.TREE;
+            } catch (RuntimeException notATree) {
+                return TYPE.BLOB;
+            }
+        }
+    }
 
-        DigestOutputStream keyGenOut = new DigestOutputStream(rawOut, sha1);
-        // GZIPOutputStream cOut = new GZIPOutputStream(keyGenOut);
-        LZFOutputStream cOut = new LZFOutputStream(keyGenOut);
+    /**
+     * @see org.geogit.storage.ObjectDatabase#exists(org.geogit.api.ObjectId,
+     *      org.geogit.api.RevObject.TYPE)
+     */
+    @Override
+    public boolean exists(final ObjectId id, final TYPE type) {
+        Preconditions.checkNotNull(type, "type");
+        return type.equals(getType(id));
+    }
 
+    /**
+     * @see org.geogit.storage.ObjectDatabase#put(org.geogit.storage.ObjectWriter)
+     */
+    @Override
+    public final <T> ObjectId put(final ObjectWriter<T> writer) throws Exception {
+        final ObjectEncoder encoder = ObjectEncoder.acquire();
         try {
-            writer.write(cOut);
+            final ObjectId id = encoder.encode(writer, codecPolicy);
+            store(id, encoder.buffer(), encoder.length(), false);
+            return id;
         } finally {
-            // cOut.finish();
-            cOut.flush();
-            cOut.close();
-            keyGenOut.flush();
-            keyGenOut.close();
-            rawOut.flush();
-            rawOut.close();
+            encoder.release();
         }
-
-        final byte[] rawData = rawOut.toByteArray();
-        final byte[] rawKey = keyGenOut.getMessageDigest().digest();
-        final ObjectId id = new ObjectId(rawKey);
-        putInternal(id, rawData, false);
-        return id;
     }
 
     /**
@@ -152,26 +788,92 @@ public abstract class AbstractObjectDatabase implements ObjectDatabase {
      */
     @Override
     public final boolean put(final ObjectId id, final ObjectWriter<?> writer) throws Exception {
-        ByteArrayOutputStream rawOut = new ByteArrayOutputStream();
-        // GZIPOutputStream cOut = new GZIPOutputStream(rawOut);
-        LZFOutputStream cOut = new LZFOutputStream(rawOut);
+        final ObjectEncoder encoder = ObjectEncoder.acquire();
+        try {
+            encoder.compress(writer, codecPolicy);
+            cache.invalidate(id);
+            deltaBases.invalidate(id);
+            final boolean inserted = store(id, encoder.buffer(), encoder.length(), true);
+            invalidateRecord(id);
+            return inserted;
+        } finally {
+            encoder.release();
+        }
+    }
+
+    /**
+     * Stores the object as a binary delta against the object {@code baseId}, typically a previous
+     * version of the same feature, if the delta is much smaller than the object itself and the
+     * delta chain of {@code baseId} is shorter than {@link #getMaxDeltaDepth()}. Otherwise the
+     * object is stored as {@link #put(ObjectWriter)} would.
+     * <p>
+     * The base object must not be deleted while objects are stored as deltas against it.
+     * </p>
+     *
+     * @see org.geogit.storage.ObjectDatabase#putDelta(ObjectId, ObjectWriter)
+     */
+    @Override
+    public final ObjectId putDelta(final ObjectId baseId, final ObjectWriter<?> writer)
+            throws Exception {
+        Preconditions.checkNotNull(baseId, "baseId");
+        final ObjectEncoder encoder = ObjectEncoder.acquire();
         try {
-            // writer.write(cOut);
-            writer.write(cOut);
+            final ObjectId id = encoder.encode(writer, codecPolicy);
+            byte[] record = null;
+            if (maxDeltaDepth > 0 && !baseId.isNull() && !baseId.equals(id) && !exists(id)
+                    && exists(baseId)) {
+                record = deltaRecord(baseId, encoder, writer.getType());
+            }
+            if (record == null) {
+                store(id, encoder.buffer(), encoder.length(), false);
+            } else {
+                store(id, record, record.length, false);
+            }
+            return id;
         } finally {
-            // cOut.finish();
-            cOut.flush();
-            cOut.close();
-            rawOut.flush();
-            rawOut.close();
+            encoder.release();
+        }
+    }
+
+    /**
+     * @return the delta record for the object encoded by {@code encoder} against {@code baseId},
+     *         or {@code null} if it wouldn't be worth it
+     */
+    private byte[] deltaRecord(final ObjectId baseId, final ObjectEncoder encoder,
+            final TYPE type) throws IOException {
+        final int depth = getDeltaDepth(baseId) + 1;
+        if (depth > maxDeltaDepth) {
+            return null;
+        }
+        // the record must be at most half the size of the full record for the extra reads and
+        // delta application to pay off
+        final int maxDeltaLength = encoder.length() / 2 - DELTA_HEADER_SIZE;
+        if (maxDeltaLength <= 0) {
+            return null;
         }
-        final byte[] rawData = rawOut.toByteArray();
-        return putInternal(id, rawData, true);
+        final byte[] base = getDeltaBase(baseId);
+        final byte[] delta = ObjectDelta.create(base, encoder.contents(),
+                encoder.contentsLength(), maxDeltaLength);
+        if (delta == null) {
+            return null;
+        }
+        byte[] record = new byte[DELTA_HEADER_SIZE + delta.length];
+        record[0] = (byte) ObjectCodec.DELTA_RECORD;
+        record[1] = (byte) ObjectCodec.typeTag(type);
+        baseId.writeTo(record, ObjectCodec.HEADER_SIZE);
+        record[DELTA_HEADER_SIZE - 1] = (byte) depth;
+        System.arraycopy(delta, 0, record, DELTA_HEADER_SIZE, delta.length);
+        return record;
     }
 
     /**
      * @param id
      * @param rawData
+     *            the buffer holding the stored record, as described in {@link ObjectCodec}. It may
+     *            be reused once this method returns, so implementations must not keep a reference
+     *            to it.
+     * @param length
+     *            the number of bytes of {@code rawData} to store, starting at offset zero
      * @param override
      *            if {@code true} an a record with the given id already exists, it shall be
      *            overriden. If {@code false} and a record with the given id already exists, it
@@ -179,8 +881,91 @@ public abstract class AbstractObjectDatabase implements ObjectDatabase {
      * @return
      * @throws IOException
      */
-    protected abstract boolean putInternal(ObjectId id, byte[] rawData, final boolean override)
-            throws IOException;
+    protected abstract boolean putInternal(ObjectId id, byte[] rawData, int length,
+            final boolean override) throws IOException;
+
+    /**
+     * Calls {@link #putInternal(ObjectId, byte[], int, boolean)} recording the write in the
+     * metrics
+     */
+    private boolean store(final ObjectId id, final byte[] rawData, final int length,
+            final boolean override) throws IOException {
+        final Metrics metrics = this.metrics;
+        final long start = metrics.stores.start();
+        final boolean stored = putInternal(id, rawData, length, override);
+        metrics.stores.stop(start);
+        if (stored || override) {
+            metrics.writes.mark();
+            metrics.writtenBytes.mark(length);
+        }
+        return stored;
+    }
+
+    /**
+     * Calls {@link #putAllInternal(Map)} recording the writes in the metrics, for the batching
+     * object inserters
+     */
+    void storeAll(final Map<ObjectId, byte[]> records) throws IOException {
+        final Metrics metrics = this.metrics;
+        final long start = metrics.stores.start();
+        putAllInternal(records);
+        metrics.stores.stop(start);
+        long bytes = 0;
+        for (byte[] record : records.values()) {
+            bytes += record.length;
+        }
+        metrics.writes.mark(records.size());
+        metrics.writtenBytes.mark(bytes);
+    }
+
+    /**
+     * Stores a batch of already encoded objects, not overriding the ones that already exist.
+     * <p>
+     * This default implementation calls {@link #putInternal(ObjectId, byte[], int, boolean)} for
+     * each record, subclasses are encouraged to override it to write the whole batch at once.
+     * </p>
+     * 
+     * @param records
+     *            the compressed object contents keyed by object id
+     * @throws IOException
+     */
+    protected void putAllInternal(final Map<ObjectId, byte[]> records) throws IOException {
+        for (Map.Entry<ObjectId, byte[]> record : records.entrySet()) {
+            final byte[] rawData = record.getValue();
+            putInternal(record.getKey(), rawData, rawData.length, false);
+        }
+    }
+
+    /**
+     * @see org.geogit.storage.ObjectDatabase#delete(org.geogit.api.ObjectId)
+     */
+    @Override
+    public final boolean delete(final ObjectId objectId) {
+        Preconditions.checkNotNull(objectId, "id");
+        cache.invalidate(objectId);
+        deltaBases.invalidate(objectId);
+        final boolean deleted = deleteInternal(objectId);
+        invalidateRecord(objectId);
+        if (deleted) {
+            metrics.deletes.mark();
+        }
+        return deleted;
+    }
+
+    /**
+     * Drops the cached record of an object once it was overwritten or deleted
+     */
+    private void invalidateRecord(final ObjectId id) {
+        final OffHeapRecordCache recordCache = this.recordCache;
+        if (recordCache != null) {
+            synchronized (recordWrites) {
+                recordWrites.incrementAndGet();
+                recordCache.invalidate(id);
+            }
+        }
+    }
+
+    protected abstract boolean deleteInternal(ObjectId objectId);
 
     /**
      * @see org.geogit.storage.ObjectDatabase#newObjectInserter()
@@ -190,6 +975,22 @@ public abstract class AbstractObjectDatabase implements ObjectDatabase {
         return new ObjectInserter(this);
     }
 
+    /**
+     * @see org.geogit.storage.ObjectDatabase#newBatchObjectInserter()
+     */
+    @Override
+    public ObjectInserter newBatchObjectInserter() {
+        return new BatchObjectInserter(this);
+    }
+
+    /**
+     * @see org.geogit.storage.ObjectDatabase#newPipelinedObjectInserter()
+     */
+    @Override
+    public PipelinedObjectInserter newPipelinedObjectInserter() {
+        return new PipelinedObjectInserter(this);
+    }
+
     @Override
     public RevBlob getBlob(ObjectId objectId) {
         try {
@@ -308,4 +1109,77 @@ public abstract class AbstractObjectDatabase implements ObjectDatabase {
         Ref treeRef = new DepthSearch(this).find(root, path);
         return treeRef;
     }
+
+    /**
+     * The metrics updated on the read and write paths, resolved once per
+     * {@link AbstractObjectDatabase#setMetrics(MetricsRegistry) registry}
+     */
+    private static final class Metrics {
+
+        final Meter reads;
+
+        final Meter readBytes;
+
+        final Meter writes;
+
+        final Meter writtenBytes;
+
+        final Meter deletes;
+
+        final Timer fetches;
+
+        final Timer stores;
+
+        Metrics(final MetricsRegistry registry) {
+            reads = registry.meter("reads");
+            readBytes = registry.meter("readBytes");
+            writes = registry.meter("writes");
+            writtenBytes = registry.meter("writtenBytes");
+            deletes = registry.meter("deletes");
+            fetches = registry.timer("fetches");
+            stores = registry.timer("stores");
+        }
+
+        /**
+         * @return a stream that adds the bytes read from {@code record} to {@link #readBytes}
+         *         once it's closed
+         */
+        InputStream meteredRead(final InputStream record) {
+            return new FilterInputStream(record) {
+                private long count;
+
+                @Override
+                public int read() throws IOException {
+                    final int b = super.read();
+                    if (b != -1) {
+                        count++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException {
+                    final int n = super.read(b, off, len);
+                    if (n > 0) {
+                        count += n;
+                    }
+                    return n;
+                }
+
+                @Override
+                public long skip(final long n) throws IOException {
+                    final long skipped = super.skip(n);
+                    count += skipped;
+                    return skipped;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    readBytes.mark(count);
+                    count = 0;
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,157 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geogit.api.ObjectId;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An {@link ObjectInserter} for bulk loads that encodes objects as they're inserted but buffers
+ * them and writes them to the object database in batches of a bounded number of objects and bytes,
+ * letting the backend group each batch in a single write operation.
+ * <p>
+ * Inserted objects are not guaranteed to exist in the object database until {@link #flush()} is
+ * called, which shall be done before the inserter is discarded.
+ * </p>
+ */
+public class BatchObjectInserter extends ObjectInserter {
+
+    private static final Logger LOGGER = Logging.getLogger(BatchObjectInserter.class);
+
+    public static final int DEFAULT_MAX_OBJECTS = 1000;
+
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    private final AbstractObjectDatabase db;
+
+    private final int maxObjects;
+
+    private final long maxBytes;
+
+    private final Map<ObjectId, byte[]> buffer;
+
+    private long bufferedBytes;
+
+    private long insertedCount;
+
+    private long insertedBytes;
+
+    private long elapsedNanos;
+
+    public BatchObjectInserter(final AbstractObjectDatabase db) {
+        this(db, DEFAULT_MAX_OBJECTS, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param db
+     *            the object database to insert objects to
+     * @param maxObjects
+     *            the maximum number of objects to buffer before writing them to the database
+     * @param maxBytes
+     *            the maximum number of compressed bytes to buffer before writing them to the
+     *            database
+     */
+    public BatchObjectInserter(final AbstractObjectDatabase db, final int maxObjects,
+            final long maxBytes) {
+        super(db);
+        Preconditions.checkNotNull(db);
+        Preconditions.checkArgument(maxObjects > 0);
+        Preconditions.checkArgument(maxBytes > 0);
+        this.db = db;
+        this.maxObjects = maxObjects;
+        this.maxBytes = maxBytes;
+        this.buffer = new LinkedHashMap<ObjectId, byte[]>();
+    }
+
+    /**
+     * Encodes the object and buffers it to be written on the next {@link #flush()}, which happens
+     * automatically when the buffer limits are reached.
+     * 
+     * @return the id of the inserted object
+     */
+    @Override
+    public ObjectId insert(final ObjectWriter<?> writer) throws Exception {
+        final long start = System.nanoTime();
+        final ObjectEncoder encoder = ObjectEncoder.acquire();
+        final ObjectId id;
+        try {
+            id = encoder.encode(writer, db.getCodecPolicy());
+            if (!buffer.containsKey(id)) {
+                // the encoder's buffer is reused, keep a copy of the bytes until flush
+                buffer.put(id, encoder.toByteArray());
+                bufferedBytes += encoder.length();
+            }
+        } finally {
+            encoder.release();
+        }
+        elapsedNanos += System.nanoTime() - start;
+
+        if (buffer.size() >= maxObjects || bufferedBytes >= maxBytes) {
+            flush();
+        }
+        return id;
+    }
+
+    /**
+     * Writes all the buffered objects to the object database
+     */
+    @Override
+    public void flush() throws Exception {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        final long start = System.nanoTime();
+        db.storeAll(buffer);
+        elapsedNanos += System.nanoTime() - start;
+
+        insertedCount += buffer.size();
+        insertedBytes += bufferedBytes;
+        buffer.clear();
+        bufferedBytes = 0;
+
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(toString());
+        }
+    }
+
+    /**
+     * @return the number of objects written to the database so far
+     */
+    public long getInsertedCount() {
+        return insertedCount;
+    }
+
+    /**
+     * @return the number of compressed bytes written to the database so far
+     */
+    public long getInsertedBytes() {
+        return insertedBytes;
+    }
+
+    /**
+     * @return the number of objects encoded and written per second so far
+     */
+    public double getObjectsPerSecond() {
+        if (elapsedNanos == 0) {
+            return 0D;
+        }
+        return insertedCount / (elapsedNanos / 1E9);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(getClass().getSimpleName()).append("[inserted: ")
+                .append(insertedCount).append(" objects, ").append(insertedBytes)
+                .append(" bytes, ").append((long) getObjectsPerSecond()).append(" objects/s]")
+                .toString();
+    }
+}
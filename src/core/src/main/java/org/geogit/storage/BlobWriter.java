@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 import org.geogit.api.RevBlob;
+import org.geogit.api.RevObject.TYPE;
 
 public class BlobWriter implements ObjectWriter<RevBlob> {
 
@@ -22,4 +23,9 @@ public class BlobWriter implements ObjectWriter<RevBlob> {
         out.write(blob);
     }
 
+    @Override
+    public TYPE getType() {
+        return TYPE.BLOB;
+    }
+
 }
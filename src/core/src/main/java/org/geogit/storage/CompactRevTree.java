@@ -0,0 +1,502 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.geogit.api.AbstractRevObject;
+import org.geogit.api.MutableTree;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevTree;
+import org.geogit.api.SpatialRef;
+import org.geogit.api.TreeVisitor;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.geometry.BoundingBox;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Immutable tree node laid out in a handful of flat arrays instead of a map of {@link Ref}s, the
+ * form trees take once read from the object database and while they sit in its cache.
+ * <p>
+ * Entries are kept in the order of their {@link Ref#getNameHash() name hashes}, the order
+ * {@link #iterator(Predicate)} returns them in: the three words of each name hash in a
+ * {@code long[]}, the object ids in one {@code byte[]}, the bounds of spatial entries in a
+ * {@code double[]} and the names packed in a single {@code char[]}. {@link #get(String)} binary
+ * searches the name hashes, and refs are only created as they're asked for. The name order the
+ * entries are stored in is kept aside so the node writes back to the same bytes.
+ * </p>
+ * <p>
+ * Changes go through the {@link MutableTree} returned by {@link #mutable()}.
+ * </p>
+ */
+public final class CompactRevTree extends AbstractRevObject implements RevTree {
+
+    private static final int ID_LENGTH = 20;
+
+    private static final long FLIP_LONG = 0x0080808080808080L;
+
+    private static final int FLIP_INT = 0x00808080;
+
+    final ObjectDatabase db;
+
+    final int depth;
+
+    private final long size;
+
+    private final int count;
+
+    /**
+     * The words of the name hash of each entry, three per entry, the last one holding an int
+     */
+    private final long[] nameHashes;
+
+    private final char[] names;
+
+    /**
+     * Offset in {@link #names} past the end of the name of each entry
+     */
+    private final int[] nameEnds;
+
+    private final byte[] ids;
+
+    private final byte[] types;
+
+    /**
+     * minx, maxx, miny and maxy of each entry, minx is NaN for entries without bounds. {@code null}
+     * if no entry has bounds.
+     */
+    private final double[] bounds;
+
+    private final CoordinateReferenceSystem[] crs;
+
+    /**
+     * The index of each entry in name order, the order the entries are stored in
+     */
+    private final int[] storageOrder;
+
+    private final int[] buckets;
+
+    private final byte[] subtreeIds;
+
+    private CompactRevTree(final ObjectId id, final ObjectDatabase db, final int depth,
+            final long size, final List<Ref> refs, final TreeMap<Integer, ObjectId> subtrees) {
+        super(id, TYPE.TREE);
+        this.db = db;
+        this.depth = depth;
+        this.size = size;
+        this.count = refs.size();
+
+        final Ref[] entries = refs.toArray(new Ref[count]);
+        final Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = Integer.valueOf(i);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer i1, final Integer i2) {
+                final Ref r1 = entries[i1.intValue()];
+                final Ref r2 = entries[i2.intValue()];
+                final int c = r1.getNameHash().compareTo(r2.getNameHash());
+                return c == 0 ? r1.getName().compareTo(r2.getName()) : c;
+            }
+        });
+
+        this.nameHashes = new long[3 * count];
+        this.nameEnds = new int[count];
+        this.ids = new byte[ID_LENGTH * count];
+        this.types = new byte[count];
+        int namesLength = 0;
+        boolean spatial = false;
+        for (Ref ref : entries) {
+            namesLength += ref.getName().length();
+            spatial |= ref instanceof SpatialRef && ((SpatialRef) ref).getBounds() != null;
+        }
+        this.names = new char[namesLength];
+        this.bounds = spatial ? new double[4 * count] : null;
+        this.crs = spatial ? new CoordinateReferenceSystem[count] : null;
+
+        final int[] rank = new int[count];
+        int nameEnd = 0;
+        for (int i = 0; i < count; i++) {
+            rank[order[i].intValue()] = i;
+            final Ref ref = entries[order[i].intValue()];
+            final ObjectId nameHash = ref.getNameHash();
+            nameHashes[3 * i] = nameHash.getLong(0);
+            nameHashes[3 * i + 1] = nameHash.getLong(1);
+            nameHashes[3 * i + 2] = nameHash.getInt(4);
+            final String name = ref.getName();
+            name.getChars(0, name.length(), names, nameEnd);
+            nameEnd += name.length();
+            nameEnds[i] = nameEnd;
+            ref.getObjectId().writeTo(ids, ID_LENGTH * i);
+            types[i] = (byte) ref.getType().value();
+            if (spatial) {
+                final BoundingBox bbox = ref instanceof SpatialRef ? ((SpatialRef) ref)
+                        .getBounds() : null;
+                if (bbox == null) {
+                    bounds[4 * i] = Double.NaN;
+                } else {
+                    bounds[4 * i] = bbox.getMinX();
+                    bounds[4 * i + 1] = bbox.getMaxX();
+                    bounds[4 * i + 2] = bbox.getMinY();
+                    bounds[4 * i + 3] = bbox.getMaxY();
+                    crs[i] = bbox.getCoordinateReferenceSystem();
+                }
+            }
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer i1, final Integer i2) {
+                return entries[i1.intValue()].getName().compareTo(
+                        entries[i2.intValue()].getName());
+            }
+        });
+        this.storageOrder = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (i > 0
+                    && entries[order[i].intValue()].getName().equals(
+                            entries[order[i - 1].intValue()].getName())) {
+                throw new IllegalArgumentException("Duplicate tree entry "
+                        + entries[order[i].intValue()].getName());
+            }
+            storageOrder[i] = rank[order[i].intValue()];
+        }
+
+        this.buckets = new int[subtrees.size()];
+        this.subtreeIds = new byte[ID_LENGTH * subtrees.size()];
+        int b = 0;
+        for (Map.Entry<Integer, ObjectId> e : subtrees.entrySet()) {
+            buckets[b] = e.getKey().intValue();
+            e.getValue().writeTo(subtreeIds, ID_LENGTH * b);
+            b++;
+        }
+    }
+
+    @Override
+    public MutableTree mutable() {
+        return new MutableRevSHA1Tree(this);
+    }
+
+    /**
+     * Adds the entries and subtrees of this node to the maps of a {@link RevSHA1Tree}
+     */
+    void copyTo(final Map<String, Ref> entries, final Map<Integer, Ref> subtrees) {
+        for (int i = 0; i < count; i++) {
+            Ref ref = entry(i);
+            entries.put(ref.getName(), ref);
+        }
+        for (int b = 0; b < buckets.length; b++) {
+            subtrees.put(Integer.valueOf(buckets[b]), new Ref("", subtreeId(b), TYPE.TREE));
+        }
+    }
+
+    /**
+     * @return the number of elements in the tree
+     */
+    @Override
+    public BigInteger size() {
+        return BigInteger.valueOf(size);
+    }
+
+    @Override
+    public boolean isNormalized() {
+        return (count <= RevSHA1Tree.NORMALIZED_SIZE_LIMIT && buckets.length == 0)
+                || count == 0;
+    }
+
+    @Override
+    public Ref get(final String key) {
+        return get(key, null);
+    }
+
+    /**
+     * @param keyHash
+     *            the name hash of {@code key}, or {@code null} to compute it if needed
+     * @see RevSHA1Tree#get(String, ObjectId)
+     */
+    Ref get(final String key, ObjectId keyHash) {
+        if (count == 0 && buckets.length == 0) {
+            return null;
+        }
+        if (keyHash == null) {
+            keyHash = ObjectId.forString(key);
+        }
+        final int index = indexOf(key, keyHash);
+        if (index >= 0) {
+            return entry(index);
+        }
+        final int b = Arrays.binarySearch(buckets, RevSHA1Tree.computeBucket(keyHash, depth));
+        if (b < 0) {
+            return null;
+        }
+        RevTree subtree;
+        try {
+            subtree = db.getCached(subtreeId(b), WrappedSerialisingFactory.getInstance()
+                    .createRevTreeReader(db, depth + 1));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return RevSHA1Tree.get(subtree, key, keyHash);
+    }
+
+    /**
+     * @return the index of the entry named {@code key}, or {@code -1}
+     */
+    private int indexOf(final String key, final ObjectId keyHash) {
+        final long h1 = keyHash.getLong(0);
+        final long h2 = keyHash.getLong(1);
+        final int h3 = keyHash.getInt(4);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int c = compareHash(mid, h1, h2, h3);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                // names sharing a hash, if there ever are any, sit next to each other
+                for (int i = mid; i >= 0 && compareHash(i, h1, h2, h3) == 0; i--) {
+                    if (nameEquals(i, key)) {
+                        return i;
+                    }
+                }
+                for (int i = mid + 1; i < count && compareHash(i, h1, h2, h3) == 0; i++) {
+                    if (nameEquals(i, key)) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the name hash of an entry to the given one the way {@link ObjectId#compareTo}
+     * does
+     */
+    private int compareHash(final int index, final long h1, final long h2, final int h3) {
+        int c = compare(nameHashes[3 * index] ^ FLIP_LONG, h1 ^ FLIP_LONG);
+        if (c == 0) {
+            c = compare(nameHashes[3 * index + 1] ^ FLIP_LONG, h2 ^ FLIP_LONG);
+            if (c == 0) {
+                c = compare(((int) nameHashes[3 * index + 2]) ^ FLIP_INT, h3 ^ FLIP_INT);
+            }
+        }
+        return c;
+    }
+
+    private static int compare(final long l1, final long l2) {
+        return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+    }
+
+    private boolean nameEquals(final int index, final String name) {
+        final int start = index == 0 ? 0 : nameEnds[index - 1];
+        if (nameEnds[index] - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (names[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String name(final int index) {
+        final int start = index == 0 ? 0 : nameEnds[index - 1];
+        return new String(names, start, nameEnds[index] - start);
+    }
+
+    private ObjectId subtreeId(final int b) {
+        return new ObjectId(subtreeIds, ID_LENGTH * b);
+    }
+
+    private Ref entry(final int index) {
+        final String name = name(index);
+        final ObjectId objectId = new ObjectId(ids, ID_LENGTH * index);
+        final TYPE type = TYPE.valueOf(types[index]);
+        final ObjectId nameHash = new ObjectId(nameHashes[3 * index],
+                nameHashes[3 * index + 1], (int) nameHashes[3 * index + 2]);
+        if (bounds == null || Double.isNaN(bounds[4 * index])) {
+            return new Ref(name, objectId, type, nameHash);
+        }
+        final int b = 4 * index;
+        BoundingBox bbox = new ReferencedEnvelope(bounds[b], bounds[b + 1], bounds[b + 2],
+                bounds[b + 3], crs[index]);
+        return new SpatialRef(name, objectId, type, bbox, nameHash);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void accept(final TreeVisitor visitor) {
+        accept(visitor, Collections.EMPTY_MAP);
+
+        if (buckets.length > 0) {
+            // stored nodes hold either entries or subtrees, only a node with both needs the map
+            Map<String, Ref> ignore = Collections.EMPTY_MAP;
+            if (count > 0) {
+                ignore = new TreeMap<String, Ref>();
+                copyTo(ignore, new TreeMap<Integer, Ref>());
+            }
+            try {
+                for (int b = 0; b < buckets.length; b++) {
+                    final ObjectId subtreeId = subtreeId(b);
+                    if (visitor.visitSubTree(buckets[b], subtreeId)) {
+                        RevTree subtree = db.get(subtreeId, WrappedSerialisingFactory
+                                .getInstance().createRevTreeReader(db, depth + 1));
+                        RevSHA1Tree.acceptEntries(subtree, visitor, ignore);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Visits the entries of this node in the order they are stored in
+     */
+    void accept(final TreeVisitor visitor, final Map<String, Ref> ignore) {
+        for (int i = 0; i < count; i++) {
+            final int index = storageOrder[i];
+            if (!ignore.isEmpty() && ignore.containsKey(name(index))) {
+                continue;
+            }
+            if (!visitor.visitEntry(entry(index))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns an iterator over this tree children, in name hash order
+     *
+     * @see org.geogit.api.RevTree#iterator(com.google.common.base.Predicate)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public Iterator<Ref> iterator(Predicate<Ref> filter) {
+        Preconditions
+                .checkState(isNormalized(),
+                        "iterator() should only be called on a normalized tree to account for element deletions");
+        if (filter == null) {
+            filter = Predicates.alwaysTrue();
+        }
+        if (count == 0 && buckets.length == 0) {
+            return Collections.EMPTY_SET.iterator();
+        }
+        if (buckets.length > 0) {
+            final ObjectId[] ids = new ObjectId[buckets.length];
+            for (int b = 0; b < buckets.length; b++) {
+                ids[b] = subtreeId(b);
+            }
+            return RevSHA1Tree.subtreesIterator(db, ids, depth + 1, filter);
+        }
+        final Predicate<Ref> entryFilter = filter;
+        return new AbstractIterator<Ref>() {
+            private int next;
+
+            @Override
+            protected Ref computeNext() {
+                while (next < count) {
+                    Ref ref = entry(next++);
+                    if (entryFilter.apply(ref)) {
+                        return ref;
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * @return a rough estimate of the heap this node takes, in bytes
+     */
+    long weight() {
+        long weight = 64 + 12 * 16;
+        weight += 8L * nameHashes.length + 2L * names.length + 4L * nameEnds.length;
+        weight += ids.length + types.length + 4L * storageOrder.length;
+        weight += 4L * buckets.length + subtreeIds.length;
+        if (bounds != null) {
+            weight += 8L * bounds.length + 4L * crs.length;
+        }
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(getClass().getSimpleName()).append("[size: ").append(count)
+                .append(", order: ").append(depth).append(", subtrees: ")
+                .append(buckets.length).append(']').toString();
+    }
+
+    /**
+     * Collects the entries and subtrees of a node as they're read, in any order
+     */
+    public static final class Builder {
+
+        private final ObjectDatabase db;
+
+        private final int depth;
+
+        private final List<Ref> entries = new ArrayList<Ref>();
+
+        private final TreeMap<Integer, ObjectId> subtrees = new TreeMap<Integer, ObjectId>();
+
+        /**
+         * @param depth
+         *            the depth of the node in its tree, which determines the buckets of its
+         *            entries
+         */
+        public Builder(final ObjectDatabase db, final int depth) {
+            this.db = db;
+            this.depth = depth;
+        }
+
+        public Builder put(final Ref entry) {
+            Preconditions.checkNotNull(entry);
+            entries.add(entry);
+            return this;
+        }
+
+        public Builder put(final int bucket, final ObjectId subtreeId) {
+            Preconditions.checkNotNull(subtreeId);
+            subtrees.put(Integer.valueOf(bucket), subtreeId);
+            return this;
+        }
+
+        /**
+         * @param size
+         *            the number of entries of the whole tree under the node
+         * @throws IllegalArgumentException
+         *             if two entries have the same name
+         */
+        public CompactRevTree build(final ObjectId id, final BigInteger size) {
+            Preconditions.checkNotNull(size);
+            Preconditions.checkArgument(size.signum() >= 0 && size.bitLength() < Long.SIZE,
+                    "tree size out of range: %s", size);
+            return new CompactRevTree(id, db, depth, size.longValue(), entries, subtrees);
+        }
+    }
+}
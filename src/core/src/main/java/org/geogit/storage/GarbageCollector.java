@@ -0,0 +1,337 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import org.geogit.api.DiffEntry;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.RevTree;
+import org.geogit.api.TreeVisitor;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Deletes the objects of an object database that can't be reached from a set of root objects.
+ * <p>
+ * The ids of all the stored objects are listed first, then every object reachable from the roots
+ * is marked, following commit parents, commit trees, tree entries, tree buckets and the bases of
+ * objects stored as deltas. Trees are walked concurrently, one task per tree node, so the mark
+ * phase never holds a lock or reads more than one node per thread at a time. Finally, the listed
+ * objects that were not marked are deleted one by one.
+ * </p>
+ * <p>
+ * Objects written after the collection started are not listed and hence never deleted. Still,
+ * the collection should not run while objects that were already unreachable are being referenced
+ * again, for example by a commit in progress reusing them.
+ * </p>
+ *
+ * @see #forRepository(ObjectDatabase, RefDatabase)
+ * @see #forStagingArea(StagingDatabase)
+ */
+public class GarbageCollector {
+
+    private static final Logger LOGGER = Logging.getLogger(GarbageCollector.class);
+
+    private final AbstractObjectDatabase db;
+
+    private final ObjectDatabase source;
+
+    private final List<Ref> roots = new ArrayList<Ref>();
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private int reachableObjects;
+
+    private int prunedObjects;
+
+    private long prunedBytes;
+
+    /**
+     * @param db
+     *            the database to delete unreachable objects from
+     * @param source
+     *            the database to read objects through while walking, which may hold more objects
+     *            than {@code db}. Objects not stored in {@code db} are not walked, since they
+     *            can't reference objects that are
+     */
+    public GarbageCollector(final ObjectDatabase db, final ObjectDatabase source) {
+        Preconditions.checkNotNull(db);
+        Preconditions.checkNotNull(source);
+        Preconditions.checkArgument(db instanceof AbstractObjectDatabase,
+                "Unsupported object database: %s", db);
+        this.db = (AbstractObjectDatabase) db;
+        this.source = source;
+    }
+
+    /**
+     * @return a collector for the repository object database, rooted at all the refs
+     */
+    public static GarbageCollector forRepository(final ObjectDatabase db, final RefDatabase refs) {
+        GarbageCollector gc = new GarbageCollector(db, db);
+        // walking the refs tree itself marks it and everything its refs point to
+        gc.addRoot(new Ref("", RefDatabase.REFS_TREE_ID, TYPE.TREE));
+        return gc;
+    }
+
+    /**
+     * @return a collector for the objects the staging area holds, rooted at the staged and
+     *         unstaged changes
+     */
+    public static GarbageCollector forStagingArea(final StagingDatabase index) {
+        GarbageCollector gc = new GarbageCollector(index.getObjectDatabase(), index);
+        for (Iterator<DiffEntry> it = index.getStaged(null); it.hasNext();) {
+            gc.addRoots(it.next());
+        }
+        for (Iterator<DiffEntry> it = index.getUnstaged(null); it.hasNext();) {
+            gc.addRoots(it.next());
+        }
+        return gc;
+    }
+
+    private void addRoots(final DiffEntry entry) {
+        if (entry.getOldObject() != null) {
+            addRoot(entry.getOldObject());
+        }
+        if (entry.getNewObject() != null) {
+            addRoot(entry.getNewObject());
+        }
+    }
+
+    /**
+     * Adds an object to start marking reachable objects from
+     */
+    public GarbageCollector addRoot(final Ref root) {
+        Preconditions.checkNotNull(root);
+        roots.add(root);
+        return this;
+    }
+
+    /**
+     * @param threads
+     *            the number of threads to walk trees with, defaults to the number of processors
+     */
+    public GarbageCollector setThreads(final int threads) {
+        Preconditions.checkArgument(threads > 0, "threads must be positive");
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Deletes the objects that can't be reached from the roots
+     *
+     * @return the number of bytes reclaimed
+     */
+    public long collect() throws IOException {
+        // objects written from now on are out of reach of the collection
+        final List<ObjectId> candidates = db.listInternal();
+        final Set<ObjectId> marked = mark();
+        reachableObjects = marked.size();
+        prunedObjects = 0;
+        prunedBytes = 0;
+        for (ObjectId id : candidates) {
+            if (marked.contains(id)) {
+                continue;
+            }
+            final long size;
+            try {
+                size = db.sizeInternal(id);
+            } catch (IllegalArgumentException deletedMeanwhile) {
+                continue;
+            }
+            if (db.delete(id)) {
+                prunedObjects++;
+                prunedBytes += size;
+            }
+        }
+        LOGGER.fine("Pruned " + prunedObjects + " objects (" + prunedBytes + " bytes) out of "
+                + candidates.size() + " from " + db);
+        return prunedBytes;
+    }
+
+    /**
+     * @return the number of objects marked as reachable by the last collection
+     */
+    public int getReachableObjects() {
+        return reachableObjects;
+    }
+
+    /**
+     * @return the number of objects deleted by the last collection
+     */
+    public int getPrunedObjects() {
+        return prunedObjects;
+    }
+
+    /**
+     * @return the number of bytes reclaimed by the last collection
+     */
+    public long getPrunedBytes() {
+        return prunedBytes;
+    }
+
+    private Set<ObjectId> mark() throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("geogit-gc-%d").build());
+        try {
+            Marker marker = new Marker(executor);
+            for (Ref root : roots) {
+                marker.submit(root.getObjectId(), root.getType(), 0);
+            }
+            return marker.await();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Marks the objects reachable from the submitted ones, visiting each object in its own task
+     */
+    private class Marker {
+
+        private final ExecutorService executor;
+
+        private final Set<ObjectId> marked = Sets
+                .newSetFromMap(new ConcurrentHashMap<ObjectId, Boolean>());
+
+        /**
+         * Number of submitted tasks not finished yet, plus one until {@link #await()} is called
+         */
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Marker(final ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        void submit(final ObjectId id, final TYPE type, final int depth) {
+            if (id.isNull() || marked.contains(id) || failure.get() != null) {
+                return;
+            }
+            pending.incrementAndGet();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        visit(id, type, depth);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        finished();
+                    }
+                }
+            });
+        }
+
+        private void finished() {
+            if (pending.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+
+        Set<ObjectId> await() throws IOException {
+            finished();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            final Throwable e = failure.get();
+            if (e != null) {
+                Throwables.propagateIfInstanceOf(e, IOException.class);
+                throw Throwables.propagate(e);
+            }
+            return marked;
+        }
+
+        private void visit(final ObjectId id, TYPE type, final int depth) throws IOException {
+            if (!mark(id)) {
+                return;
+            }
+            if (!TYPE.COMMIT.equals(type) && !TYPE.TREE.equals(type) && !TYPE.BLOB.equals(type)) {
+                // tags and remote refs, find out what they point to
+                type = source.getType(id);
+            }
+            if (TYPE.COMMIT.equals(type)) {
+                RevCommit commit = source.getCommit(id);
+                submit(commit.getTreeId(), TYPE.TREE, 0);
+                for (ObjectId parentId : commit.getParentIds()) {
+                    submit(parentId, TYPE.COMMIT, 0);
+                }
+            } else if (TYPE.TREE.equals(type)) {
+                RevTree tree = source.get(id, WrappedSerialisingFactory.getInstance()
+                        .createRevTreeReader(source, depth));
+                tree.accept(new TreeVisitor() {
+                    @Override
+                    public boolean visitEntry(final Ref ref) {
+                        if (TYPE.BLOB.equals(ref.getType())) {
+                            // nothing to walk, not worth a task
+                            try {
+                                mark(ref.getObjectId());
+                            } catch (IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                        } else {
+                            submit(ref.getObjectId(), ref.getType(), 0);
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public boolean visitSubTree(final int bucket, final ObjectId treeId) {
+                        submit(treeId, TYPE.TREE, depth + 1);
+                        return false;
+                    }
+                });
+            }
+        }
+
+        /**
+         * Marks an object and the chain of objects it's stored as a delta against
+         *
+         * @return {@code true} if the object is stored in the collected database and was not
+         *         marked yet
+         */
+        private boolean mark(final ObjectId id) throws IOException {
+            if (id.isNull() || marked.contains(id)) {
+                return false;
+            }
+            ObjectId base = db.getDeltaBaseId(id);
+            if (base == null || !marked.add(id)) {
+                return false;
+            }
+            while (!base.isNull() && marked.add(base)) {
+                base = db.getDeltaBaseId(base);
+                if (base == null) {
+                    LOGGER.warning("Missing delta base of " + id);
+                    break;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,507 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.RevTree;
+import org.geogit.api.TreeVisitor;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Checks the objects of an object database reachable from a set of root objects are intact and
+ * consistent with each other.
+ * <p>
+ * Every reachable object is read from the database bypassing the caches, and checked to hash to
+ * its id and to be of the type the reference to it says. Commits must point to a tree and to
+ * commit parents, tree entries to existing objects, and trees split in buckets must hold each
+ * entry in the bucket {@link RevSHA1Tree} would place it in and have a {@link RevTree#size()
+ * size} that adds up to the number of entries in their buckets.
+ * </p>
+ * <p>
+ * As the {@link GarbageCollector} does, trees are walked concurrently, one task per tree node and
+ * one per batch of blobs. The check stops early once {@link #setMaxErrors(int) enough} errors were
+ * found.
+ * </p>
+ *
+ * @see #forRepository(ObjectDatabase)
+ */
+public class IntegrityChecker {
+
+    private static final Logger LOGGER = Logging.getLogger(IntegrityChecker.class);
+
+    private static final int BLOB_BATCH_SIZE = 256;
+
+    private final AbstractObjectDatabase db;
+
+    private final List<Ref> roots = new ArrayList<Ref>();
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private int maxErrors = 100;
+
+    private List<String> errors = Collections.emptyList();
+
+    private long checkedObjects;
+
+    private long checkedBytes;
+
+    private long elapsedNanos;
+
+    public IntegrityChecker(final ObjectDatabase db) {
+        Preconditions.checkNotNull(db);
+        Preconditions.checkArgument(db instanceof AbstractObjectDatabase,
+                "Unsupported object database: %s", db);
+        this.db = (AbstractObjectDatabase) db;
+    }
+
+    /**
+     * @return a checker for the repository object database, rooted at all the refs
+     */
+    public static IntegrityChecker forRepository(final ObjectDatabase db) {
+        IntegrityChecker checker = new IntegrityChecker(db);
+        checker.addRoot(new Ref("", RefDatabase.REFS_TREE_ID, TYPE.TREE));
+        return checker;
+    }
+
+    /**
+     * Adds an object to start checking reachable objects from
+     */
+    public IntegrityChecker addRoot(final Ref root) {
+        Preconditions.checkNotNull(root);
+        roots.add(root);
+        return this;
+    }
+
+    /**
+     * @param threads
+     *            the number of threads to check objects with, defaults to the number of processors
+     */
+    public IntegrityChecker setThreads(final int threads) {
+        Preconditions.checkArgument(threads > 0, "threads must be positive");
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param maxErrors
+     *            the number of errors to stop checking at, defaults to 100
+     */
+    public IntegrityChecker setMaxErrors(final int maxErrors) {
+        Preconditions.checkArgument(maxErrors > 0, "maxErrors must be positive");
+        this.maxErrors = maxErrors;
+        return this;
+    }
+
+    /**
+     * Checks the objects reachable from the roots
+     *
+     * @return {@code true} if no error was found
+     */
+    public boolean check() throws IOException {
+        final long start = System.nanoTime();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("geogit-fsck-%d")
+                        .build());
+        try {
+            Checker checker = new Checker(executor);
+            for (Ref root : roots) {
+                checker.submit(root.getObjectId(), root.getType(), new byte[0], null);
+            }
+            checker.await();
+            errors = new ArrayList<String>(checker.errors);
+            checkedObjects = checker.checkedObjects.get();
+            checkedBytes = checker.checkedBytes.get();
+        } finally {
+            executor.shutdownNow();
+            elapsedNanos = System.nanoTime() - start;
+        }
+        LOGGER.fine("Checked " + checkedObjects + " objects (" + checkedBytes + " bytes) of "
+                + db + " at " + (long) getObjectsPerSecond() + " objects/s, " + errors.size()
+                + " errors");
+        return errors.isEmpty();
+    }
+
+    /**
+     * @return the errors found by the last check, at most {@link #setMaxErrors(int) maxErrors}
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return the number of objects read by the last check
+     */
+    public long getCheckedObjects() {
+        return checkedObjects;
+    }
+
+    /**
+     * @return the number of stored bytes read by the last check
+     */
+    public long getCheckedBytes() {
+        return checkedBytes;
+    }
+
+    /**
+     * @return the number of objects checked per second by the last check
+     */
+    public double getObjectsPerSecond() {
+        if (elapsedNanos == 0) {
+            return 0D;
+        }
+        return checkedObjects / (elapsedNanos / 1E9);
+    }
+
+    /**
+     * @return the number of stored bytes checked per second by the last check
+     */
+    public double getBytesPerSecond() {
+        if (elapsedNanos == 0) {
+            return 0D;
+        }
+        return checkedBytes / (elapsedNanos / 1E9);
+    }
+
+    /**
+     * Checks the objects reachable from the submitted ones, each tree and commit in its own task
+     * and blobs in batches
+     */
+    private class Checker {
+
+        private final ExecutorService executor;
+
+        private final Set<ObjectId> checked = Sets
+                .newSetFromMap(new ConcurrentHashMap<ObjectId, Boolean>());
+
+        private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<String>();
+
+        private final AtomicInteger errorCount = new AtomicInteger();
+
+        private final AtomicLong checkedObjects = new AtomicLong();
+
+        private final AtomicLong checkedBytes = new AtomicLong();
+
+        /**
+         * Number of submitted tasks not finished yet, plus one until {@link #await()} is called
+         */
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Checker(final ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        private boolean stopped() {
+            return errorCount.get() >= maxErrors || failure.get() != null;
+        }
+
+        private void error(final String message) {
+            if (errorCount.incrementAndGet() <= maxErrors) {
+                errors.add(message);
+            }
+        }
+
+        /**
+         * @param bucketPath
+         *            the buckets the parent trees placed this object in, if it's a tree node
+         * @param tree
+         *            the tree already read by the parent tree, or {@code null}
+         */
+        void submit(final ObjectId id, final TYPE type, final byte[] bucketPath,
+                final RevTree tree) {
+            if (id.isNull() || stopped() || !checked.add(id)) {
+                return;
+            }
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    checkObject(id, type, bucketPath, tree);
+                }
+            });
+        }
+
+        void submitBlobs(final List<Ref> blobs) {
+            final List<Ref> unchecked = new ArrayList<Ref>(blobs.size());
+            for (Ref ref : blobs) {
+                if (!ref.getObjectId().isNull() && checked.add(ref.getObjectId())) {
+                    unchecked.add(ref);
+                }
+            }
+            if (unchecked.isEmpty() || stopped()) {
+                return;
+            }
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    checkBlobs(unchecked);
+                }
+            });
+        }
+
+        private void execute(final Runnable task) {
+            pending.incrementAndGet();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!stopped()) {
+                            task.run();
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        finished();
+                    }
+                }
+            });
+        }
+
+        private void finished() {
+            if (pending.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+
+        void await() throws IOException {
+            finished();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            final Throwable e = failure.get();
+            if (e != null) {
+                Throwables.propagateIfInstanceOf(e, IOException.class);
+                throw Throwables.propagate(e);
+            }
+        }
+
+        private void checkBlobs(final List<Ref> blobs) {
+            final List<ObjectId> ids = new ArrayList<ObjectId>(blobs.size());
+            for (Ref ref : blobs) {
+                ids.add(ref.getObjectId());
+            }
+            final Map<ObjectId, byte[]> records;
+            try {
+                records = db.getAllRawInternal(ids);
+            } catch (IOException e) {
+                error("Can't read blobs " + ids.get(0) + "..." + ids.get(ids.size() - 1) + ": "
+                        + e.getMessage());
+                return;
+            }
+            for (Ref ref : blobs) {
+                final byte[] record = records.get(ref.getObjectId());
+                if (record == null) {
+                    error("Missing " + ref.getType() + " " + ref.getObjectId() + " of " + ref);
+                    continue;
+                }
+                try {
+                    checkRecord(ref.getObjectId(), ref.getType(), record);
+                } catch (Exception e) {
+                    error("Can't read " + ref.getObjectId() + ": " + e.getMessage());
+                }
+            }
+        }
+
+        private void checkObject(final ObjectId id, final TYPE expectedType,
+                final byte[] bucketPath, final RevTree parsed) {
+            final byte[] record;
+            try {
+                record = db.getAllRawInternal(Collections.singleton(id)).get(id);
+            } catch (IOException e) {
+                error("Can't read " + id + ": " + e.getMessage());
+                return;
+            }
+            if (record == null) {
+                error("Missing " + expectedType + " " + id);
+                return;
+            }
+            try {
+                final TYPE type = checkRecord(id, expectedType, record);
+                if (TYPE.COMMIT.equals(type)) {
+                    RevCommit commit = WrappedSerialisingFactory.getInstance()
+                            .createCommitReader().read(id, db.openUncached(record));
+                    submit(commit.getTreeId(), TYPE.TREE, new byte[0], null);
+                    for (ObjectId parentId : commit.getParentIds()) {
+                        submit(parentId, TYPE.COMMIT, new byte[0], null);
+                    }
+                } else if (TYPE.TREE.equals(type)) {
+                    RevTree tree = parsed;
+                    if (tree == null) {
+                        tree = WrappedSerialisingFactory.getInstance()
+                                .createRevTreeReader(db, bucketPath.length)
+                                .read(id, db.openUncached(record));
+                    }
+                    checkTree(id, tree, bucketPath);
+                }
+            } catch (Exception e) {
+                error("Can't read " + id + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Checks a stored record hashes to its id and is of the expected type
+         *
+         * @return the type of the object, {@code null} if it can't be figured out
+         */
+        private TYPE checkRecord(final ObjectId id, final TYPE expectedType, final byte[] record)
+                throws IOException {
+            checkedObjects.incrementAndGet();
+            checkedBytes.addAndGet(record.length);
+
+            TYPE type = ObjectCodec.type(record, record.length);
+            final boolean concreteType = TYPE.COMMIT.equals(expectedType)
+                    || TYPE.TREE.equals(expectedType) || TYPE.BLOB.equals(expectedType);
+            if (type == null) {
+                // record without a type header, blobs are never walked so don't bother decoding
+                type = concreteType ? expectedType : db.getType(id);
+            } else if (concreteType && !expectedType.equals(type)) {
+                error(id + " is a " + type + " but is referenced as a " + expectedType);
+            }
+
+            // the refs tree is stored under a fixed id
+            if (!RefDatabase.REFS_TREE_ID.equals(id)) {
+                final ObjectEncoder encoder = ObjectEncoder.acquire();
+                try {
+                    final ObjectId actual;
+                    if (record.length > 0 && record[0] == ObjectCodec.DELTA_RECORD) {
+                        InputStream contents = db.openUncached(record);
+                        try {
+                            actual = encoder.hash(contents);
+                        } finally {
+                            contents.close();
+                        }
+                    } else {
+                        actual = encoder.hash(record);
+                    }
+                    if (!id.equals(actual)) {
+                        error("Object " + id + " hashes to " + actual);
+                    }
+                } finally {
+                    encoder.release();
+                }
+            }
+            return type;
+        }
+
+        private void checkTree(final ObjectId id, final RevTree tree, final byte[] bucketPath)
+                throws IOException {
+            final List<Ref> entries = new ArrayList<Ref>();
+            final Map<Integer, ObjectId> buckets = new TreeMap<Integer, ObjectId>();
+            tree.accept(new TreeVisitor() {
+                @Override
+                public boolean visitEntry(final Ref ref) {
+                    entries.add(ref);
+                    return true;
+                }
+
+                @Override
+                public boolean visitSubTree(final int bucket, final ObjectId treeId) {
+                    buckets.put(Integer.valueOf(bucket), treeId);
+                    return false;
+                }
+            });
+
+            final int depth = bucketPath.length;
+            BigInteger size = BigInteger.valueOf(entries.size());
+            boolean sizeKnown = true;
+            for (Map.Entry<Integer, ObjectId> bucket : buckets.entrySet()) {
+                final int index = bucket.getKey().intValue();
+                final ObjectId subtreeId = bucket.getValue();
+                if (index < 0 || index > 255 || depth >= 20) {
+                    error("Tree " + id + " has an invalid bucket " + index + " at depth " + depth);
+                    sizeKnown = false;
+                    continue;
+                }
+                if (!db.exists(subtreeId)) {
+                    error("Missing bucket " + index + " tree " + subtreeId + " of tree " + id);
+                    sizeKnown = false;
+                    continue;
+                }
+                // the subtree size is needed here, so read it for its task to check
+                final RevTree subtree;
+                try {
+                    byte[] record = db.getAllRawInternal(Collections.singleton(subtreeId))
+                            .get(subtreeId);
+                    if (record == null) {
+                        throw new IOException("not found");
+                    }
+                    subtree = WrappedSerialisingFactory.getInstance()
+                            .createRevTreeReader(db, depth + 1)
+                            .read(subtreeId, db.openUncached(record));
+                } catch (Exception e) {
+                    error("Can't read bucket " + index + " tree " + subtreeId + " of tree " + id
+                            + ": " + e.getMessage());
+                    sizeKnown = false;
+                    continue;
+                }
+                size = size.add(subtree.size());
+                byte[] subtreePath = Arrays.copyOf(bucketPath, depth + 1);
+                subtreePath[depth] = (byte) index;
+                submit(subtreeId, TYPE.TREE, subtreePath, subtree);
+            }
+            if (sizeKnown && !size.equals(tree.size())) {
+                error("Tree " + id + " has size " + tree.size() + " but holds " + size
+                        + " entries");
+            }
+
+            final List<Ref> blobs = new ArrayList<Ref>();
+            for (Ref ref : entries) {
+                if (depth > 0) {
+                    final ObjectId nameHash = ref.getNameHash();
+                    for (int i = 0; i < depth; i++) {
+                        if (RevSHA1Tree.computeBucket(nameHash, i) != (bucketPath[i] & 0xFF)) {
+                            error("Entry " + ref.getName() + " of tree " + id
+                                    + " is not in its bucket at depth " + i);
+                            break;
+                        }
+                    }
+                }
+                if (TYPE.BLOB.equals(ref.getType())) {
+                    blobs.add(ref);
+                } else {
+                    submit(ref.getObjectId(), ref.getType(), new byte[0], null);
+                }
+            }
+            for (List<Ref> batch : Iterables.partition(blobs, BLOB_BATCH_SIZE)) {
+                submitBlobs(batch);
+            }
+        }
+    }
+
+}
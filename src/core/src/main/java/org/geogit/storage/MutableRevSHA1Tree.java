@@ -6,13 +6,19 @@ package org.geogit.storage;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.geogit.api.MutableTree;
 import org.geogit.api.ObjectId;
@@ -20,9 +26,19 @@ import org.geogit.api.Ref;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 class MutableRevSHA1Tree extends RevSHA1Tree implements MutableTree {
 
+    /**
+     * Whether the current thread is writing a bucket, subtrees it normalizes write their buckets
+     * themselves rather than waiting for other tasks of the pool
+     */
+    private static final ThreadLocal<Boolean> WRITING_BUCKET = new ThreadLocal<Boolean>();
+
+    private static ExecutorService normalizeExecutor;
+
     private BigInteger mutableSize;
 
     /**
@@ -35,6 +51,15 @@ class MutableRevSHA1Tree extends RevSHA1Tree implements MutableTree {
         super.mySubTrees.putAll(copy.mySubTrees);
     }
 
+    /**
+     * Copy constructor
+     */
+    MutableRevSHA1Tree(final CompactRevTree copy) {
+        super(copy.getId(), copy.db, copy.depth);
+        this.mutableSize = copy.size();
+        copy.copyTo(super.myEntries, super.mySubTrees);
+    }
+
     MutableRevSHA1Tree(ObjectDatabase db, int childOrder) {
         super(db, childOrder);
     }
@@ -110,7 +135,8 @@ class MutableRevSHA1Tree extends RevSHA1Tree implements MutableTree {
     @Override
     public Ref remove(final String key) {
         Preconditions.checkNotNull(key, "key can't be null");
-        final Integer bucket = computeBucket(key);
+        final ObjectId keyHash = keyHash(key);
+        final Integer bucket = computeBucket(keyHash);
         if (null == mySubTrees.get(bucket)) {
             // we don't even have a subtree for this key's bucket, it's sure this tree doesn't
             // already hold a value for it
@@ -120,7 +146,7 @@ class MutableRevSHA1Tree extends RevSHA1Tree implements MutableTree {
             }
             return removed;
         } else {
-            Ref ref = this.get(key);
+            Ref ref = this.get(key, keyHash);
             // there's a subtree this key's bucket, we don't know if the subtree contains it at all
             // and it'd be too expensive to find out just now, use null value signaling the removal
             // of the entry. normalize() is gonna take care of removing it from the subtree
@@ -136,29 +162,61 @@ class MutableRevSHA1Tree extends RevSHA1Tree implements MutableTree {
 
     /**
      * Splits the cached entries into subtrees and saves them, making sure the tree contains either
-     * only entries or subtrees
+     * only entries or subtrees.
+     * <p>
+     * Each bucket is independent, so when there are enough entries to split their subtrees are
+     * updated and written on the {@link #normalizeExecutor() shared pool}. The subtrees and the
+     * size are then merged in bucket order, the result is the same as writing them one by one.
+     * Subtrees normalized by the pool threads themselves are written in place.
+     * </p>
      */
     @Override
     public void normalize() {
         if (isNormalized()) {
             return;
         }
-        // System.err.println("spliting tree with order " + this.depth + " having "
-        // + this.myEntries.size() + " entries....");
         if (myEntries.size() <= NORMALIZED_SIZE_LIMIT && mySubTrees.size() == 0) {
             mutableSize = BigInteger.valueOf(myEntries.size());
             return;
         }
         final int childOrder = this.depth + 1;
         try {
-            // sort entries by the bucket they fall on
-            Map<Integer, Set<String>> entriesByBucket = new TreeMap<Integer, Set<String>>();
-            for (Object key : myEntries.keySet()) {
-                Integer bucket = computeBucket((String) key);
+            // sort entries by the bucket they fall on, removed entries map to null
+            final Map<Integer, Map<String, Ref>> entriesByBucket = new TreeMap<Integer, Map<String, Ref>>();
+            for (Map.Entry<String, Ref> entry : myEntries.entrySet()) {
+                final String key = entry.getKey();
+                final Ref ref = entry.getValue();
+                // removed entries have no ref to remember the hash of their name
+                Integer bucket = ref == null ? computeBucket(key) : computeBucket(ref
+                        .getNameHash());
                 if (!entriesByBucket.containsKey(bucket)) {
-                    entriesByBucket.put(bucket, new HashSet<String>());
+                    entriesByBucket.put(bucket, new HashMap<String, Ref>());
+                }
+                entriesByBucket.get(bucket).put(key, ref);
+            }
+            final int pending = myEntries.size();
+            myEntries.clear();
+
+            List<BucketWriter> writers = new ArrayList<BucketWriter>(entriesByBucket.size());
+            for (Map.Entry<Integer, Map<String, Ref>> e : entriesByBucket.entrySet()) {
+                writers.add(new BucketWriter(e.getKey(), childOrder, mySubTrees.get(e.getKey()),
+                        e.getValue()));
+            }
+
+            final List<WrittenBucket> written = new ArrayList<WrittenBucket>(writers.size());
+            if (writers.size() < 2 || pending <= NORMALIZED_SIZE_LIMIT
+                    || Boolean.TRUE.equals(WRITING_BUCKET.get())) {
+                for (BucketWriter writer : writers) {
+                    written.add(writer.call());
+                }
+            } else {
+                for (Future<WrittenBucket> result : normalizeExecutor().invokeAll(writers)) {
+                    try {
+                        written.add(result.get());
+                    } catch (ExecutionException e) {
+                        throw Throwables.propagate(e.getCause());
+                    }
                 }
-                entriesByBucket.get(bucket).add((String) key);
             }
 
             BigInteger size = BigInteger.ZERO;
@@ -167,50 +225,123 @@ class MutableRevSHA1Tree extends RevSHA1Tree implements MutableTree {
             // already added
             Set<Ref> ignoreForSizeComputation = new HashSet<Ref>();
 
-            // for each bucket retrieve/create the bucket's subtree and set its entries
-            Iterator<Map.Entry<Integer, Set<String>>> it = entriesByBucket.entrySet().iterator();
+            for (WrittenBucket bucket : written) {
+                size = size.add(bucket.size);
+                Ref subtreeRef = new Ref("", bucket.subtreeId, TYPE.TREE);
+                ignoreForSizeComputation.add(subtreeRef);
+                mySubTrees.put(bucket.bucket, subtreeRef);
+            }
+
+            // compute the overall size
+            this.mutableSize = computeSize(size, ignoreForSizeComputation);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Updates the subtree of a bucket with the entries that fall on it and writes it back
+     */
+    private class BucketWriter implements Callable<WrittenBucket> {
+
+        private final Integer bucket;
 
-            Ref subtreeRef;
-            ObjectId subtreeId;
-            MutableTree subtree;
+        private final int childOrder;
+
+        private final Ref subtreeRef;
+
+        private final Map<String, Ref> entries;
+
+        /**
+         * @param subtreeRef
+         *            the current subtree of the bucket, or {@code null} if there's none yet
+         * @param entries
+         *            the entries to put in the subtree, by name, mapped to {@code null} for the
+         *            ones to remove
+         */
+        BucketWriter(final Integer bucket, final int childOrder, final Ref subtreeRef,
+                final Map<String, Ref> entries) {
+            this.bucket = bucket;
+            this.childOrder = childOrder;
+            this.subtreeRef = subtreeRef;
+            this.entries = entries;
+        }
 
-            while (it.hasNext()) {
-                Entry<Integer, Set<String>> e = it.next();
-                Integer bucket = e.getKey();
-                Set<String> keys = e.getValue();
-                it.remove();
-                subtreeRef = mySubTrees.get(bucket);
+        @Override
+        public WrittenBucket call() throws Exception {
+            final Boolean writing = WRITING_BUCKET.get();
+            WRITING_BUCKET.set(Boolean.TRUE);
+            try {
+                MutableTree subtree;
                 if (subtreeRef == null) {
                     subtree = new MutableRevSHA1Tree(db, childOrder);
                 } else {
-                    subtreeId = subtreeRef.getObjectId();
-                    subtree = db.get(subtreeId, WrappedSerialisingFactory.getInstance().createRevTreeReader(db, childOrder)).mutable();
-//                    subtree = db.get(subtreeId, new BxmlRevTreeReader(db, childOrder)).mutable();
+                    subtree = db.get(subtreeRef.getObjectId(),
+                            WrappedSerialisingFactory.getInstance().createRevTreeReader(db,
+                                    childOrder)).mutable();
                 }
-                for (String key : keys) {
-                    Ref value = myEntries.remove(key);
+                for (Map.Entry<String, Ref> e : entries.entrySet()) {
+                    Ref value = e.getValue();
                     if (value == null) {
-                        subtree.remove(key);
+                        subtree.remove(e.getKey());
                     } else {
                         subtree.put(value);
                     }
                 }
-                size = size.add(subtree.size());
-                subtreeId = this.db.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(subtree));
-//                subtreeId = this.db.put(new BxmlRevTreeWriter(subtree));
-                subtreeRef = new Ref("", subtreeId, TYPE.TREE);
-                ignoreForSizeComputation.add(subtreeRef);
-                mySubTrees.put(bucket, subtreeRef);
+                final BigInteger size = subtree.size();
+                final ObjectId subtreeId = db.put(WrappedSerialisingFactory.getInstance()
+                        .createRevTreeWriter(subtree));
+                return new WrittenBucket(bucket, subtreeId, size);
+            } finally {
+                WRITING_BUCKET.set(writing);
             }
+        }
+    }
 
-            // compute the overall size
-            this.mutableSize = computeSize(size, ignoreForSizeComputation);
-        } catch (RuntimeException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    private static final class WrittenBucket {
+
+        final Integer bucket;
+
+        final ObjectId subtreeId;
+
+        final BigInteger size;
+
+        WrittenBucket(final Integer bucket, final ObjectId subtreeId, final BigInteger size) {
+            this.bucket = bucket;
+            this.subtreeId = subtreeId;
+            this.size = size;
+        }
+    }
+
+    /**
+     * @return the executor buckets are written on, by default a shared pool of daemon threads, one
+     *         per available processor, or the calling thread if there's a single processor
+     */
+    static synchronized ExecutorService normalizeExecutor() {
+        if (normalizeExecutor == null) {
+            final int nThreads = Runtime.getRuntime().availableProcessors();
+            if (nThreads < 2) {
+                normalizeExecutor = MoreExecutors.sameThreadExecutor();
+            } else {
+                normalizeExecutor = Executors.newFixedThreadPool(nThreads,
+                        new ThreadFactoryBuilder().setDaemon(true)
+                                .setNameFormat("geogit-normalize-%d").build());
+            }
         }
-        // System.err.println("spliting complete.");
+        return normalizeExecutor;
+    }
+
+    /**
+     * Sets the executor buckets are written on, the default pool is not shut down
+     */
+    static synchronized void setNormalizeExecutor(final ExecutorService executor) {
+        Preconditions.checkNotNull(executor);
+        normalizeExecutor = executor;
     }
 
     private BigInteger computeSize(final BigInteger initialSize,
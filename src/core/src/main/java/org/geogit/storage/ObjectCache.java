@@ -0,0 +1,52 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import org.geogit.api.ObjectId;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * A cache of decoded objects used by {@link AbstractObjectDatabase#getCached} to avoid parsing the
+ * same object over and over.
+ * <p>
+ * Implementations must be safe to use by multiple threads concurrently. Cached objects are meant
+ * to be immutable, hence {@link org.geogit.api.MutableTree mutable trees} shall never be cached.
+ * </p>
+ *
+ * @see WeightedObjectCache
+ */
+public interface ObjectCache {
+
+    /**
+     * @return the cached object for the given id, or {@code null} if it's not in the cache
+     */
+    public Object getIfPresent(ObjectId id);
+
+    /**
+     * Adds or replaces the cached object for the given id
+     */
+    public void put(ObjectId id, Object object);
+
+    /**
+     * Evicts the cached object for the given id, if present
+     */
+    public void invalidate(ObjectId id);
+
+    /**
+     * Evicts all the cached objects
+     */
+    public void invalidateAll();
+
+    /**
+     * @return the approximate number of objects currently cached
+     */
+    public long size();
+
+    /**
+     * @return a snapshot of the hit, miss, and eviction counts since the cache was created
+     */
+    public CacheStats stats();
+}
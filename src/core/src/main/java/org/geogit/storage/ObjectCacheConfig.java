@@ -0,0 +1,110 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Configuration for the {@link ObjectCache} of each {@link ObjectDatabase} in a repository.
+ *
+ * @see WeightedObjectCache
+ */
+public class ObjectCacheConfig {
+
+    /**
+     * Default percentage of the JVM heap each object database's cache can use if neither
+     * {@link #getMemoryPercentAllowed()} nor {@link #getSizeMB()} is set
+     */
+    public static final int DEFAULT_MEMORY_PERCENT = 10;
+
+    private Integer memoryPercentAllowed;
+
+    private Integer sizeMB;
+
+    private int concurrencyLevel = 16;
+
+    private Integer recordCacheSizeMB;
+
+    /**
+     * Percentage of the JVM heap size that can be used by the cache of decoded objects
+     * <p>
+     * This value and {@link #getSizeMB()} are mutually exclusive. If both are present this value
+     * takes precedence over {@link #getSizeMB()}
+     * </p>
+     *
+     * @return {@code null} if not set, an integer between 0 and 100 otherwise
+     */
+    public Integer getMemoryPercentAllowed() {
+        return memoryPercentAllowed;
+    }
+
+    /**
+     * Maximum estimated size in MB of the cached objects
+     * <p>
+     * This value and {@link #getMemoryPercentAllowed()} are mutually exclusive. If both are
+     * present {@link #getMemoryPercentAllowed()} takes precedence over this value
+     * </p>
+     *
+     * @return {@code null} if not set, a positive integer otherwise
+     */
+    public Integer getSizeMB() {
+        return sizeMB;
+    }
+
+    /**
+     * @return the number of segments the cache is split into, which bounds the number of threads
+     *         that can update it without contention
+     */
+    public int getConcurrencyLevel() {
+        return concurrencyLevel;
+    }
+
+    /**
+     * Size in MB of the off heap cache of stored records of the repository object database
+     *
+     * @return {@code null} if not set, in which case records are not cached, a positive integer
+     *         otherwise
+     * @see OffHeapRecordCache
+     */
+    public Integer getRecordCacheSizeMB() {
+        return recordCacheSizeMB;
+    }
+
+    public void setMemoryPercentAllowed(int memoryPercentAllowed) {
+        Preconditions.checkArgument(memoryPercentAllowed > 0 && memoryPercentAllowed <= 100);
+        this.memoryPercentAllowed = memoryPercentAllowed;
+        this.sizeMB = null;
+    }
+
+    public void setSizeMB(int sizeMB) {
+        Preconditions.checkArgument(sizeMB > 0);
+        this.sizeMB = sizeMB;
+        this.memoryPercentAllowed = null;
+    }
+
+    public void setConcurrencyLevel(int concurrencyLevel) {
+        Preconditions.checkArgument(concurrencyLevel > 0);
+        this.concurrencyLevel = concurrencyLevel;
+    }
+
+    public void setRecordCacheSizeMB(Integer recordCacheSizeMB) {
+        Preconditions.checkArgument(recordCacheSizeMB == null || recordCacheSizeMB.intValue() > 0);
+        this.recordCacheSizeMB = recordCacheSizeMB;
+    }
+
+    /**
+     * @return the maximum estimated size in bytes of the cached objects, as resolved from
+     *         {@link #getMemoryPercentAllowed()}, {@link #getSizeMB()}, or
+     *         {@link #DEFAULT_MEMORY_PERCENT} of the JVM heap if neither is set
+     */
+    public long getMaxSizeBytes() {
+        if (sizeMB != null && memoryPercentAllowed == null) {
+            return sizeMB.longValue() * 1024 * 1024;
+        }
+        final int percent = memoryPercentAllowed == null ? DEFAULT_MEMORY_PERCENT
+                : memoryPercentAllowed.intValue();
+        return (Runtime.getRuntime().maxMemory() / 100) * percent;
+    }
+}
@@ -0,0 +1,242 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.geogit.api.RevObject.TYPE;
+
+import com.google.common.base.Preconditions;
+import com.ning.compress.lzf.LZFInputStream;
+import com.ning.compress.lzf.LZFOutputStream;
+
+/**
+ * A compression codec for the objects stored in an {@link ObjectDatabase}.
+ * <p>
+ * Stored records start with a two bytes header: the id of the codec they're compressed with and
+ * the {@link TYPE#value() type} of the object, {@code 0xFF} if unknown, followed by the compressed
+ * object contents. The header allows to tell the type of an object without decoding it. Records
+ * written before codecs were introduced have no header and are plain LZF streams, which always
+ * start with the {@code 'Z'} LZF chunk signature, so that value is reserved and can't be used as a
+ * codec id. Neither can {@code 3}, which flags records holding a delta against another object.
+ * </p>
+ * <p>
+ * The {@link #NONE}, {@link #LZF} and {@link #DEFLATE} codecs are always available, additional
+ * ones can be {@link #register(ObjectCodec) registered} before opening a database that uses them.
+ * </p>
+ *
+ * @see ObjectCodecPolicy
+ */
+public abstract class ObjectCodec {
+
+    /**
+     * First byte of an LZF chunk, and hence of records stored without a codec byte
+     */
+    static final int LZF_SIGNATURE = 'Z';
+
+    /**
+     * First byte of records holding a delta against another object rather than the object
+     * contents, which are resolved by the object database since they need the base object
+     */
+    static final int DELTA_RECORD = 3;
+
+    /**
+     * Size of the header of stored records, the codec id and the object type
+     */
+    static final int HEADER_SIZE = 2;
+
+    /**
+     * Type tag of objects whose type is not known
+     */
+    private static final int UNKNOWN_TYPE = 0xFF;
+
+    private static final ObjectCodec[] CODECS = new ObjectCodec[256];
+
+    /**
+     * Stores objects uncompressed, meant for objects too small to benefit from compression
+     */
+    public static final ObjectCodec NONE = register(new ObjectCodec(0, "none") {
+        @Override
+        public OutputStream compress(final OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(final InputStream in) {
+            return in;
+        }
+    });
+
+    /**
+     * Fast compression with a moderate ratio
+     */
+    public static final ObjectCodec LZF = register(new ObjectCodec(1, "lzf") {
+        @Override
+        public OutputStream compress(final OutputStream out) {
+            return new LZFOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(final InputStream in) throws IOException {
+            return new LZFInputStream(in);
+        }
+    });
+
+    /**
+     * Slower compression with a better ratio than {@link #LZF}, meant for big objects like
+     * features with large geometries
+     */
+    public static final ObjectCodec DEFLATE = register(new ObjectCodec(2, "deflate") {
+        @Override
+        public OutputStream compress(final OutputStream out) {
+            return new DeflaterOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(final InputStream in) {
+            return new InflaterInputStream(in);
+        }
+    });
+
+    private final int id;
+
+    private final String name;
+
+    protected ObjectCodec(final int id, final String name) {
+        Preconditions.checkArgument(id >= 0 && id < CODECS.length, "codec id out of range: %s",
+                id);
+        Preconditions.checkArgument(id != LZF_SIGNATURE && id != DELTA_RECORD,
+                "codec id %s is reserved", id);
+        Preconditions.checkNotNull(name);
+        this.id = id;
+        this.name = name;
+    }
+
+    /**
+     * Makes a codec available to decode stored records
+     *
+     * @return {@code codec}
+     * @throws IllegalArgumentException
+     *             if a different codec is already registered with the same id
+     */
+    public static ObjectCodec register(final ObjectCodec codec) {
+        synchronized (CODECS) {
+            ObjectCodec registered = CODECS[codec.getId()];
+            Preconditions.checkArgument(registered == null || registered == codec,
+                    "codec id %s already used by %s", codec.getId(), registered);
+            CODECS[codec.getId()] = codec;
+        }
+        return codec;
+    }
+
+    /**
+     * @return the registered codec with the given id
+     * @throws IllegalArgumentException
+     *             if there's no such codec
+     */
+    public static ObjectCodec forId(final int id) {
+        ObjectCodec codec = null;
+        if (id >= 0 && id < CODECS.length) {
+            synchronized (CODECS) {
+                codec = CODECS[id];
+            }
+        }
+        Preconditions.checkArgument(codec != null, "unknown codec id: %s", id);
+        return codec;
+    }
+
+    /**
+     * Decodes a stored record, reading its header to figure out how it's compressed.
+     *
+     * @param record
+     *            the stored record
+     * @return a stream over the uncompressed object contents
+     */
+    public static InputStream open(final InputStream record) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(record, 1);
+        final int codecId = in.read();
+        if (codecId == -1) {
+            return in;
+        }
+        if (codecId == LZF_SIGNATURE) {
+            // record written before codecs were introduced
+            in.unread(codecId);
+            return LZF.decompress(in);
+        }
+        if (codecId == DELTA_RECORD) {
+            in.close();
+            throw new IOException("Delta records can only be read through their object database");
+        }
+        if (in.read() == -1) {
+            in.close();
+            throw new IOException("Truncated record header");
+        }
+        final ObjectCodec codec;
+        try {
+            codec = forId(codecId);
+        } catch (IllegalArgumentException e) {
+            in.close();
+            throw new IOException(e.getMessage());
+        }
+        return codec.decompress(in);
+    }
+
+    /**
+     * @return the header byte that records the given object type
+     */
+    static int typeTag(final TYPE type) {
+        return type == null ? UNKNOWN_TYPE : type.value();
+    }
+
+    /**
+     * @param header
+     *            the first bytes of a stored record
+     * @param length
+     *            the number of valid bytes in {@code header}
+     * @return the type of the object as recorded in the record header, {@code null} if unknown
+     */
+    static TYPE type(final byte[] header, final int length) {
+        if (length < HEADER_SIZE || header[0] == LZF_SIGNATURE) {
+            return null;
+        }
+        final int tag = header[1] & 0xFF;
+        if (tag >= TYPE.values().length) {
+            return null;
+        }
+        return TYPE.valueOf(tag);
+    }
+
+    /**
+     * @return the id this codec is identified by in stored records
+     */
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return a stream compressing what's written to it into {@code out}, the compressed contents
+     *         are complete once it's closed
+     */
+    public abstract OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * @return a stream of the contents decompressed from {@code in}
+     */
+    public abstract InputStream decompress(InputStream in) throws IOException;
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
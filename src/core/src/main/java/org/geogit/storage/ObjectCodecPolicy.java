@@ -0,0 +1,104 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.geogit.api.RevObject.TYPE;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decides which {@link ObjectCodec} an object is stored with, based on its type and size.
+ * <p>
+ * Objects smaller than {@link #getMinCompressedSize()} are stored {@link ObjectCodec#NONE
+ * uncompressed}, since compressing them saves little to nothing. Bigger ones use the codec
+ * configured for their type, or the default codec if there's none or their type is unknown.
+ * </p>
+ * <p>
+ * The policy only affects how objects are stored, object ids are the same whatever the codec.
+ * </p>
+ */
+public class ObjectCodecPolicy {
+
+    public static final int DEFAULT_MIN_COMPRESSED_SIZE = 64;
+
+    private static final ObjectCodecPolicy DEFAULT = new ObjectCodecPolicy(ObjectCodec.LZF,
+            new EnumMap<TYPE, ObjectCodec>(TYPE.class), DEFAULT_MIN_COMPRESSED_SIZE);
+
+    private final ObjectCodec defaultCodec;
+
+    private final EnumMap<TYPE, ObjectCodec> codecs;
+
+    private final int minCompressedSize;
+
+    /**
+     * @param defaultCodec
+     *            the codec for objects with no type specific codec
+     * @param codecs
+     *            type specific codecs
+     * @param minCompressedSize
+     *            the size in bytes below which objects are stored uncompressed
+     */
+    public ObjectCodecPolicy(final ObjectCodec defaultCodec, final Map<TYPE, ObjectCodec> codecs,
+            final int minCompressedSize) {
+        Preconditions.checkNotNull(defaultCodec);
+        Preconditions.checkNotNull(codecs);
+        Preconditions.checkArgument(minCompressedSize >= 0);
+        this.defaultCodec = defaultCodec;
+        this.codecs = codecs.isEmpty() ? new EnumMap<TYPE, ObjectCodec>(TYPE.class)
+                : new EnumMap<TYPE, ObjectCodec>(codecs);
+        this.minCompressedSize = minCompressedSize;
+    }
+
+    /**
+     * @return the default policy, that compresses all but the smallest objects with
+     *         {@link ObjectCodec#LZF}
+     */
+    public static ObjectCodecPolicy defaultPolicy() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return a copy of this policy that uses {@code codec} for objects of the given type
+     */
+    public ObjectCodecPolicy with(final TYPE type, final ObjectCodec codec) {
+        Preconditions.checkNotNull(type);
+        Preconditions.checkNotNull(codec);
+        EnumMap<TYPE, ObjectCodec> copy = new EnumMap<TYPE, ObjectCodec>(codecs);
+        copy.put(type, codec);
+        return new ObjectCodecPolicy(defaultCodec, copy, minCompressedSize);
+    }
+
+    /**
+     * @param type
+     *            the object type, may be {@code null} if unknown
+     * @param size
+     *            the uncompressed object size in bytes
+     * @return the codec to store the object with
+     */
+    public ObjectCodec codecFor(final TYPE type, final int size) {
+        if (size < minCompressedSize) {
+            return ObjectCodec.NONE;
+        }
+        ObjectCodec codec = type == null ? null : codecs.get(type);
+        return codec == null ? defaultCodec : codec;
+    }
+
+    public ObjectCodec getDefaultCodec() {
+        return defaultCodec;
+    }
+
+    public int getMinCompressedSize() {
+        return minCompressedSize;
+    }
+
+    @Override
+    public String toString() {
+        return "ObjectCodecPolicy[default: " + defaultCodec + ", per type: " + codecs
+                + ", min compressed size: " + minCompressedSize + "]";
+    }
+}
@@ -6,6 +6,7 @@ package org.geogit.storage;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Iterator;
 import java.util.List;
 
 import org.geogit.api.MutableTree;
@@ -13,8 +14,11 @@ import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevBlob;
 import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject.TYPE;
 import org.geogit.api.RevTree;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 public interface ObjectDatabase {
 
     public abstract void close();
@@ -23,6 +27,18 @@ public interface ObjectDatabase {
 
     public abstract boolean exists(final ObjectId id);
 
+    /**
+     * @return whether an object with the given id exists and is of the given type
+     */
+    public abstract boolean exists(final ObjectId id, final TYPE type);
+
+    /**
+     * Returns the type of an object without decoding it if possible.
+     * 
+     * @return the type of the object, or {@code null} if it doesn't exist
+     */
+    public abstract TYPE getType(final ObjectId id);
+
     /**
      * @param id
      * @return
@@ -45,6 +61,54 @@ public interface ObjectDatabase {
      */
     public abstract <T> T get(final ObjectId id, final ObjectReader<T> reader) throws IOException;
 
+    /**
+     * Reads several objects at once. The objects are fetched lazily in batches, each batch in the
+     * order that suits the storage best rather than one object at a time, and returned in the
+     * order of {@code ids}.
+     * <p>
+     * The returned iterator throws {@link IllegalArgumentException} when it reaches the batch of
+     * an object that does not exist, and wraps any {@link IOException} in a
+     * {@link RuntimeException}.
+     * </p>
+     * 
+     * @param ids
+     *            the ids of the objects to read, possibly repeated
+     * @param reader
+     *            the reader to decode every object with
+     */
+    public abstract <T> Iterator<T> getAll(final Iterable<ObjectId> ids,
+            final ObjectReader<T> reader);
+
+    /**
+     * Same as {@link #getAll(Iterable, ObjectReader)}, but returns the uncompressed contents of
+     * each object as {@link #getRaw(ObjectId)} would. Each stream should be closed once read.
+     */
+    public abstract Iterator<InputStream> getAllRaw(final Iterable<ObjectId> ids);
+
+    /**
+     * Asynchronous version of {@link #get(ObjectId, ObjectReader)}, so the caller can go on while
+     * the object is read on a bounded pool of I/O threads.
+     * 
+     * @return the future object, failing with the exception {@link #get(ObjectId, ObjectReader)}
+     *         would have thrown
+     */
+    public abstract <T> ListenableFuture<T> getAsync(final ObjectId id,
+            final ObjectReader<T> reader);
+
+    /**
+     * Asynchronous version of {@link #getRaw(ObjectId)}
+     * 
+     * @see #getAsync(ObjectId, ObjectReader)
+     */
+    public abstract ListenableFuture<InputStream> getRawAsync(final ObjectId id);
+
+    /**
+     * Asynchronous version of {@link #getTree(ObjectId)}
+     * 
+     * @see #getAsync(ObjectId, ObjectReader)
+     */
+    public abstract ListenableFuture<RevTree> getTreeAsync(final ObjectId treeId);
+
     /**
      * Returns a possibly cached version of the object identified by the given {@code id}.
      * <p>
@@ -81,6 +145,19 @@ public interface ObjectDatabase {
      */
     public abstract boolean put(final ObjectId id, final ObjectWriter<?> writer) throws Exception;
 
+    /**
+     * Stores an object that is likely similar to an already stored one, such as a new version of a
+     * feature, allowing the database to store it as a delta against it.
+     * 
+     * @param baseId
+     *            the id of the object to compute the delta against
+     * @param writer
+     * @return the id of the object, the same {@link #put(ObjectWriter)} would return
+     * @throws Exception
+     */
+    public abstract ObjectId putDelta(final ObjectId baseId, final ObjectWriter<?> writer)
+            throws Exception;
+
     /**
      * @param root
      * @param tree
@@ -93,6 +170,26 @@ public interface ObjectDatabase {
 
     public abstract ObjectInserter newObjectInserter();
 
+    /**
+     * Creates an {@link ObjectInserter} meant for bulk loads, that buffers the inserted objects and
+     * writes them in batches.
+     * <p>
+     * Objects inserted through the returned inserter are not guaranteed to be visible until
+     * {@link ObjectInserter#flush()} is called.
+     * </p>
+     */
+    public abstract ObjectInserter newBatchObjectInserter();
+
+    /**
+     * Creates an {@link ObjectInserter} meant for bulk loads, that encodes the inserted objects
+     * concurrently and writes them in batches, in insertion order, from a single thread.
+     * <p>
+     * Objects inserted through the returned inserter are not guaranteed to be visible until
+     * {@link ObjectInserter#flush()} is called.
+     * </p>
+     */
+    public abstract PipelinedObjectInserter newPipelinedObjectInserter();
+
     public RevBlob getBlob(ObjectId objectId);
 
     public RevCommit getCommit(final ObjectId commitId);
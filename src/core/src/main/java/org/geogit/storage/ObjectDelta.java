@@ -0,0 +1,256 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.IOException;
+
+/**
+ * Binary deltas between object versions, in the spirit of git pack deltas.
+ * <p>
+ * A delta is the base length and the target length, followed by a sequence of instructions that
+ * rebuild the target: either copy a range of the base or insert literal bytes carried by the
+ * delta itself. All numbers are unsigned variable length integers, seven bits per byte, least
+ * significant group first.
+ * </p>
+ * <p>
+ * Deltas are computed by indexing the base in {@link #BLOCK_SIZE} blocks and looking up a rolling
+ * hash of the target in that index, extending each match as far as it goes in both directions.
+ * </p>
+ */
+final class ObjectDelta {
+
+    static final int BLOCK_SIZE = 16;
+
+    private static final int INSERT = 0;
+
+    private static final int COPY = 1;
+
+    /**
+     * Maximum number of base blocks with the same hash checked for each target position
+     */
+    private static final int MAX_CANDIDATES = 8;
+
+    private static final int PRIME = 31;
+
+    /**
+     * PRIME^(BLOCK_SIZE - 1), to take the outgoing byte out of the rolling hash
+     */
+    private static final int OUT_FACTOR;
+    static {
+        int f = 1;
+        for (int i = 0; i < BLOCK_SIZE - 1; i++) {
+            f *= PRIME;
+        }
+        OUT_FACTOR = f;
+    }
+
+    private ObjectDelta() {
+        // utility class
+    }
+
+    /**
+     * @return the delta that rebuilds the first {@code targetLength} bytes of {@code target} out
+     *         of {@code base}, or {@code null} if it wouldn't be smaller than
+     *         {@code maxDeltaLength}
+     */
+    public static byte[] create(final byte[] base, final byte[] target, final int targetLength,
+            final int maxDeltaLength) {
+        if (base.length < BLOCK_SIZE || targetLength < BLOCK_SIZE) {
+            return null;
+        }
+        final int numBlocks = base.length / BLOCK_SIZE;
+        final int tableSize = Integer.highestOneBit(numBlocks) << 1;
+        final int mask = tableSize - 1;
+        // chained hash table of block offsets: head per hash bucket, next per block. Later blocks
+        // are inserted first so earlier offsets are preferred on equal match lengths
+        final int[] heads = new int[tableSize];
+        final int[] next = new int[numBlocks];
+        for (int b = numBlocks - 1; b >= 0; b--) {
+            final int bucket = hash(base, b * BLOCK_SIZE) & mask;
+            next[b] = heads[bucket];
+            heads[bucket] = b + 1;
+        }
+
+        final Out out = new Out(Math.min(maxDeltaLength, targetLength + 16));
+        writeVarInt(out, base.length);
+        writeVarInt(out, targetLength);
+
+        int insertStart = 0;
+        int t = 0;
+        int h = hash(target, 0);
+        while (t + BLOCK_SIZE <= targetLength) {
+            int bestOffset = -1;
+            int bestLength = 0;
+            int candidates = 0;
+            for (int b = heads[h & mask]; b != 0 && candidates < MAX_CANDIDATES; b = next[b - 1]) {
+                candidates++;
+                final int offset = (b - 1) * BLOCK_SIZE;
+                int length = 0;
+                while (offset + length < base.length && t + length < targetLength
+                        && base[offset + length] == target[t + length]) {
+                    length++;
+                }
+                if (length > bestLength) {
+                    bestLength = length;
+                    bestOffset = offset;
+                }
+            }
+            if (bestLength < BLOCK_SIZE) {
+                if (t + BLOCK_SIZE < targetLength) {
+                    h = (h - target[t] * OUT_FACTOR) * PRIME + target[t + BLOCK_SIZE];
+                }
+                t++;
+                continue;
+            }
+            // extend backwards over the pending literal bytes
+            while (bestOffset > 0 && t > insertStart && base[bestOffset - 1] == target[t - 1]) {
+                bestOffset--;
+                bestLength++;
+                t--;
+            }
+            insert(out, target, insertStart, t);
+            copy(out, bestOffset, bestLength);
+            if (out.overflow) {
+                return null;
+            }
+            t += bestLength;
+            insertStart = t;
+            if (t + BLOCK_SIZE <= targetLength) {
+                h = hash(target, t);
+            }
+        }
+        insert(out, target, insertStart, targetLength);
+        return out.overflow ? null : out.toByteArray();
+    }
+
+    /**
+     * Rebuilds the target of a delta
+     *
+     * @throws IOException
+     *             if the delta is corrupt or was not computed against {@code base}
+     */
+    public static byte[] apply(final byte[] base, final byte[] delta) throws IOException {
+        final int[] pos = { 0 };
+        final int baseLength = readVarInt(delta, pos);
+        if (baseLength != base.length) {
+            throw new IOException("Delta base length mismatch, expected " + baseLength + ", got "
+                    + base.length);
+        }
+        final byte[] target = new byte[readVarInt(delta, pos)];
+        int t = 0;
+        while (pos[0] < delta.length) {
+            final int op = delta[pos[0]++];
+            if (op == COPY) {
+                final int offset = readVarInt(delta, pos);
+                final int length = readVarInt(delta, pos);
+                if (offset < 0 || length < 0 || offset + length > base.length
+                        || t + length > target.length) {
+                    throw new IOException("Corrupt delta, copy out of bounds");
+                }
+                System.arraycopy(base, offset, target, t, length);
+                t += length;
+            } else if (op == INSERT) {
+                final int length = readVarInt(delta, pos);
+                if (length < 0 || pos[0] + length > delta.length || t + length > target.length) {
+                    throw new IOException("Corrupt delta, insert out of bounds");
+                }
+                System.arraycopy(delta, pos[0], target, t, length);
+                pos[0] += length;
+                t += length;
+            } else {
+                throw new IOException("Corrupt delta, unknown instruction " + op);
+            }
+        }
+        if (t != target.length) {
+            throw new IOException("Corrupt delta, rebuilt " + t + " bytes out of "
+                    + target.length);
+        }
+        return target;
+    }
+
+    private static void insert(final Out out, final byte[] target, final int from, final int to) {
+        if (from < to) {
+            out.write(INSERT);
+            writeVarInt(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    private static void copy(final Out out, final int offset, final int length) {
+        out.write(COPY);
+        writeVarInt(out, offset);
+        writeVarInt(out, length);
+    }
+
+    private static int hash(final byte[] data, final int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+            h = h * PRIME + data[i];
+        }
+        return h;
+    }
+
+    private static void writeVarInt(final Out out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(final byte[] data, final int[] pos) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (pos[0] >= data.length) {
+                throw new IOException("Corrupt delta, truncated");
+            }
+            final int b = data[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt delta, malformed length");
+    }
+
+    /**
+     * Fixed capacity output buffer, overflows once the delta grew too big to be worth it
+     */
+    private static final class Out {
+
+        private final byte[] buf;
+
+        private int count;
+
+        boolean overflow;
+
+        Out(final int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        void write(final int b) {
+            if (count == buf.length) {
+                overflow = true;
+            } else {
+                buf[count++] = (byte) b;
+            }
+        }
+
+        void write(final byte[] b, final int off, final int len) {
+            if (count + len > buf.length) {
+                overflow = true;
+            } else {
+                System.arraycopy(b, off, buf, count, len);
+                count += len;
+            }
+        }
+
+        byte[] toByteArray() {
+            byte[] copy = new byte[count];
+            System.arraycopy(buf, 0, copy, 0, count);
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevObject.TYPE;
+
+import com.google.common.io.ByteStreams;
+import com.ning.compress.lzf.LZFOutputStream;
+
+/**
+ * Encodes objects to the form they're stored in and computes their ids, reusing the buffers and
+ * the SHA-1 digest across calls.
+ * <p>
+ * Object ids are the SHA-1 hash of the {@link ObjectCodec#LZF LZF} compressed object contents,
+ * whatever the codec the object is actually stored with, so that ids don't depend on the
+ * {@link ObjectCodecPolicy}. The stored record is the codec id and object type header described in
+ * {@link ObjectCodec}, followed by the contents compressed with that codec.
+ * </p>
+ * <p>
+ * Encoders are confined to a thread: {@link #acquire()} hands out the calling thread's encoder,
+ * which must be given back with {@link #release()} once the encoded bytes were consumed. The
+ * encoded bytes live in the encoder's buffer and are overwritten by the next encoding, so callers
+ * that need to keep them shall {@link #toByteArray() copy} them.
+ * </p>
+ */
+final class ObjectEncoder {
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Buffers grown beyond this size are discarded on release, so a thread that encoded a huge
+     * object doesn't hold on to its buffer forever
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<ObjectEncoder> ENCODERS = new ThreadLocal<ObjectEncoder>() {
+        @Override
+        protected ObjectEncoder initialValue() {
+            return new ObjectEncoder();
+        }
+    };
+
+    /**
+     * The uncompressed object contents
+     */
+    private final Buffer plain;
+
+    /**
+     * The record header for the LZF codec followed by the LZF compressed contents, the id is
+     * computed out of
+     */
+    private final Buffer lzf;
+
+    /**
+     * The record for objects stored with a codec other than LZF
+     */
+    private final Buffer record;
+
+    /**
+     * Either {@link #lzf} or {@link #record}
+     */
+    private Buffer out;
+
+    private final MessageDigest sha1;
+
+    private boolean inUse;
+
+    private ObjectEncoder() {
+        this.plain = new Buffer();
+        this.lzf = new Buffer();
+        this.record = new Buffer();
+        this.out = lzf;
+        try {
+            this.sha1 = MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the calling thread's encoder, or a new one if it's already in use further up the
+     *         call stack
+     */
+    public static ObjectEncoder acquire() {
+        ObjectEncoder encoder = ENCODERS.get();
+        if (encoder.inUse) {
+            encoder = new ObjectEncoder();
+        }
+        encoder.inUse = true;
+        return encoder;
+    }
+
+    /**
+     * Gives the encoder back, its buffer contents are no longer valid after this call
+     */
+    public void release() {
+        plain.reset();
+        lzf.reset();
+        record.reset();
+        out = lzf;
+        inUse = false;
+    }
+
+    /**
+     * Writes the stored record for the object to this encoder's buffer, replacing its previous
+     * contents.
+     *
+     * @param policy
+     *            decides the codec the object is stored with
+     */
+    public void compress(final ObjectWriter<?> writer, final ObjectCodecPolicy policy)
+            throws IOException {
+        final TYPE type = writer.getType();
+        final int typeTag = ObjectCodec.typeTag(type);
+        plain.reset();
+        lzf.reset();
+        lzf.write(ObjectCodec.LZF.getId());
+        lzf.write(typeTag);
+        // the LZF output is needed for the object id regardless of the codec the record uses,
+        // and so are the flushes issued by the writer, which determine the LZF chunk boundaries
+        LZFOutputStream cOut = new LZFOutputStream(lzf);
+        try {
+            writer.write(new TeeOutputStream(plain, cOut));
+        } finally {
+            cOut.flush();
+            cOut.close();
+        }
+
+        final ObjectCodec codec = policy.codecFor(type, plain.count);
+        if (codec == ObjectCodec.LZF) {
+            out = lzf;
+        } else {
+            record.reset();
+            record.write(codec.getId());
+            record.write(typeTag);
+            OutputStream recordOut = codec.compress(record);
+            recordOut.write(plain.buf, 0, plain.count);
+            recordOut.close();
+            out = record;
+        }
+    }
+
+    /**
+     * Writes the stored record for the object to this encoder's buffer and computes the object id
+     * as the SHA-1 hash of its LZF compressed contents.
+     *
+     * @param policy
+     *            decides the codec the object is stored with
+     */
+    public ObjectId encode(final ObjectWriter<?> writer, final ObjectCodecPolicy policy)
+            throws IOException {
+        compress(writer, policy);
+        sha1.reset();
+        sha1.update(lzf.buf, ObjectCodec.HEADER_SIZE, lzf.count - ObjectCodec.HEADER_SIZE);
+        return new ObjectId(sha1.digest());
+    }
+
+    /**
+     * Computes the id of a stored object out of its record, hashing it right away if it's LZF
+     * compressed, with or without a header, and recompressing its contents otherwise.
+     * <p>
+     * Records written before codecs were introduced are hashed as stored, since they may have
+     * been compressed with different LZF chunk boundaries than recompressing them would produce.
+     * </p>
+     *
+     * @param record
+     *            the stored record, which must not be a delta
+     * @see #hash(InputStream)
+     */
+    public ObjectId hash(final byte[] record) throws IOException {
+        if (record.length > 0 && record[0] == ObjectCodec.LZF_SIGNATURE) {
+            sha1.reset();
+            sha1.update(record, 0, record.length);
+            return new ObjectId(sha1.digest());
+        }
+        if (record.length >= ObjectCodec.HEADER_SIZE && record[0] == ObjectCodec.LZF.getId()) {
+            sha1.reset();
+            sha1.update(record, ObjectCodec.HEADER_SIZE, record.length - ObjectCodec.HEADER_SIZE);
+            return new ObjectId(sha1.digest());
+        }
+        InputStream contents = ObjectCodec.open(new ByteArrayInputStream(record));
+        try {
+            return hash(contents);
+        } finally {
+            contents.close();
+        }
+    }
+
+    /**
+     * Computes the id of an object out of its uncompressed contents, the way
+     * {@link #encode(ObjectWriter, ObjectCodecPolicy)} does as long as the object writer didn't
+     * flush halfway through, since flushes end LZF chunks early. None of the writers do.
+     */
+    public ObjectId hash(final InputStream contents) throws IOException {
+        lzf.reset();
+        LZFOutputStream cOut = new LZFOutputStream(lzf);
+        try {
+            ByteStreams.copy(contents, cOut);
+        } finally {
+            cOut.close();
+        }
+        sha1.reset();
+        sha1.update(lzf.buf, 0, lzf.count);
+        return new ObjectId(sha1.digest());
+    }
+
+    /**
+     * @return the buffer holding the stored record, only the first {@link #length()} bytes of
+     *         which are valid
+     */
+    public byte[] buffer() {
+        return out.buf;
+    }
+
+    /**
+     * @return the length of the stored record
+     */
+    public int length() {
+        return out.count;
+    }
+
+    /**
+     * @return the buffer holding the uncompressed object contents, only the first
+     *         {@link #contentsLength()} bytes of which are valid
+     */
+    public byte[] contents() {
+        return plain.buf;
+    }
+
+    /**
+     * @return the length of the uncompressed object contents
+     */
+    public int contentsLength() {
+        return plain.count;
+    }
+
+    /**
+     * @return a copy of the stored record
+     */
+    public byte[] toByteArray() {
+        byte[] copy = new byte[out.count];
+        System.arraycopy(out.buf, 0, copy, 0, out.count);
+        return copy;
+    }
+
+    /**
+     * Copies what's written to it to the buffer that holds the uncompressed contents and to the
+     * stream that computes the LZF compressed ones
+     */
+    private static final class TeeOutputStream extends OutputStream {
+
+        private final Buffer plain;
+
+        private final OutputStream compressed;
+
+        TeeOutputStream(final Buffer plain, final OutputStream compressed) {
+            this.plain = plain;
+            this.compressed = compressed;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            plain.write(b);
+            compressed.write(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            plain.write(b, off, len);
+            compressed.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            compressed.flush();
+        }
+    }
+
+    /**
+     * Unsynchronized, growable byte array output stream whose backing array can be handed out
+     * directly
+     */
+    private static final class Buffer extends OutputStream {
+
+        private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+
+        private int count;
+
+        @Override
+        public void write(final int b) {
+            ensureCapacity(count + 1);
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        private void ensureCapacity(final int capacity) {
+            if (capacity > buf.length) {
+                byte[] grown = new byte[Math.max(capacity, buf.length * 2)];
+                System.arraycopy(buf, 0, grown, 0, count);
+                buf = grown;
+            }
+        }
+
+        void reset() {
+            if (buf.length > MAX_RETAINED_BUFFER_SIZE) {
+                buf = new byte[INITIAL_BUFFER_SIZE];
+            }
+            count = 0;
+        }
+    }
+}
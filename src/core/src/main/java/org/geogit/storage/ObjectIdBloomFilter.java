@@ -0,0 +1,190 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.geogit.api.ObjectId;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A Bloom filter over {@link ObjectId}s, used by object databases to answer "definitely not
+ * present" without probing the backing store.
+ * <p>
+ * Object ids are already SHA-1 hashes, so the bit positions are derived straight from the id bytes
+ * by double hashing, with no further hashing involved. The filter is safe for concurrent use: once
+ * {@link #put(ObjectId)} returns, {@link #mightContain(ObjectId)} returns {@code true} for that
+ * id in any thread.
+ * </p>
+ * <p>
+ * The filter doesn't grow. Once more than {@link #getExpectedInsertions()} ids were added the
+ * false positive rate increases beyond the one it was created for, which {@link #isSaturated()}
+ * reports so that the owner can rebuild it bigger.
+ * </p>
+ */
+public class ObjectIdBloomFilter {
+
+    private static final int MAGIC = 0x47424c4d;// GBLM
+
+    private static final int VERSION = 1;
+
+    private final AtomicLongArray bits;
+
+    private final long numBits;
+
+    private final int numHashFunctions;
+
+    private final long expectedInsertions;
+
+    private final AtomicLong insertions;
+
+    private ObjectIdBloomFilter(final AtomicLongArray bits, final int numHashFunctions,
+            final long expectedInsertions, final long insertions) {
+        this.bits = bits;
+        this.numBits = 64L * bits.length();
+        this.numHashFunctions = numHashFunctions;
+        this.expectedInsertions = expectedInsertions;
+        this.insertions = new AtomicLong(insertions);
+    }
+
+    /**
+     * @param expectedInsertions
+     *            the number of ids the filter is sized for
+     * @param fpp
+     *            the desired false positive probability when {@code expectedInsertions} ids were
+     *            added
+     */
+    public static ObjectIdBloomFilter create(final long expectedInsertions, final double fpp) {
+        Preconditions.checkArgument(expectedInsertions > 0, "expectedInsertions must be > 0");
+        Preconditions.checkArgument(fpp > 0 && fpp < 1, "fpp must be between 0 and 1");
+        final double ln2 = Math.log(2);
+        final long optimalBits = (long) (-expectedInsertions * Math.log(fpp) / (ln2 * ln2));
+        final int numLongs = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(1, (optimalBits + 63) / 64));
+        final long numBits = 64L * numLongs;
+        final int numHashFunctions = Math.max(1,
+                (int) Math.round((double) numBits / expectedInsertions * ln2));
+        return new ObjectIdBloomFilter(new AtomicLongArray(numLongs), numHashFunctions,
+                expectedInsertions, 0);
+    }
+
+    /**
+     * @return {@code false} if the id was definitely never added to the filter, {@code true} if it
+     *         might have been
+     */
+    public boolean mightContain(final ObjectId id) {
+        final long hash1 = id.getLong(0);
+        final long hash2 = id.getLong(1);
+        for (int i = 0; i < numHashFunctions; i++) {
+            final long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % numBits;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void put(final ObjectId id) {
+        final long hash1 = id.getLong(0);
+        final long hash2 = id.getLong(1);
+        for (int i = 0; i < numHashFunctions; i++) {
+            final long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % numBits;
+            final int index = (int) (bit >>> 6);
+            final long mask = 1L << bit;
+            long current;
+            do {
+                current = bits.get(index);
+                if ((current & mask) != 0) {
+                    break;
+                }
+            } while (!bits.compareAndSet(index, current, current | mask));
+        }
+        insertions.incrementAndGet();
+    }
+
+    /**
+     * @return the number of ids the filter was sized for
+     */
+    public long getExpectedInsertions() {
+        return expectedInsertions;
+    }
+
+    /**
+     * @return the number of calls to {@link #put(ObjectId)}, which is an upper bound of the number
+     *         of distinct ids in the filter
+     */
+    public long getInsertions() {
+        return insertions.get();
+    }
+
+    /**
+     * @return whether more ids than the filter was sized for were added to it
+     */
+    public boolean isSaturated() {
+        return insertions.get() > expectedInsertions;
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashFunctions() {
+        return numHashFunctions;
+    }
+
+    /**
+     * @return the estimated probability of {@link #mightContain(ObjectId)} returning {@code true}
+     *         for an id that was not added, given the current number of insertions
+     */
+    public double expectedFpp() {
+        final double fillRatio = 1 - Math.exp(-(double) numHashFunctions * insertions.get()
+                / numBits);
+        return Math.pow(fillRatio, numHashFunctions);
+    }
+
+    public void writeTo(final DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(numHashFunctions);
+        out.writeLong(expectedInsertions);
+        out.writeLong(insertions.get());
+        final int length = bits.length();
+        out.writeInt(length);
+        for (int i = 0; i < length; i++) {
+            out.writeLong(bits.get(i));
+        }
+    }
+
+    public static ObjectIdBloomFilter readFrom(final DataInput in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not an object id bloom filter");
+        }
+        final int numHashFunctions = in.readInt();
+        final long expectedInsertions = in.readLong();
+        final long insertions = in.readLong();
+        final int length = in.readInt();
+        if (numHashFunctions <= 0 || expectedInsertions <= 0 || length <= 0) {
+            throw new IOException("Corrupt object id bloom filter");
+        }
+        final AtomicLongArray bits = new AtomicLongArray(length);
+        for (int i = 0; i < length; i++) {
+            bits.set(i, in.readLong());
+        }
+        return new ObjectIdBloomFilter(bits, numHashFunctions, expectedInsertions, insertions);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("ObjectIdBloomFilter[bits: ").append(numBits)
+                .append(", hash functions: ").append(numHashFunctions).append(", insertions: ")
+                .append(insertions.get()).append('/').append(expectedInsertions)
+                .append(", expected fpp: ").append(expectedFpp()).append(']').toString();
+    }
+}
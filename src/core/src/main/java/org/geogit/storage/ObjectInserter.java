@@ -4,6 +4,10 @@
  */
 package org.geogit.storage;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
 import org.geogit.api.ObjectId;
 
 /**
@@ -13,7 +17,7 @@ import org.geogit.api.ObjectId;
  * </p>
  * 
  * @author groldan
- * 
+ * @see BatchObjectInserter
  */
 public class ObjectInserter {
 
@@ -29,4 +33,27 @@ public class ObjectInserter {
         return objectId;
     }
 
+    /**
+     * Inserts all the objects provided by the {@code writers} iterator and {@link #flush() flushes}
+     * 
+     * @return the ids of the inserted objects, in the same order as the provided writers
+     */
+    public List<ObjectId> insertAll(final Iterator<? extends ObjectWriter<?>> writers)
+            throws Exception {
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        while (writers.hasNext()) {
+            ids.add(insert(writers.next()));
+        }
+        flush();
+        return ids;
+    }
+
+    /**
+     * Makes sure all the objects inserted so far are written to the object database. This
+     * implementation does nothing as objects are written as soon as they're inserted.
+     */
+    public void flush() throws Exception {
+        //
+    }
+
 }
@@ -7,6 +7,8 @@ package org.geogit.storage;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import org.geogit.api.RevObject.TYPE;
+
 public interface ObjectWriter<T> {
 
     /**
@@ -18,4 +20,10 @@ public interface ObjectWriter<T> {
      */
     public void write(OutputStream out) throws IOException;
 
+    /**
+     * @return the type of the object written, or {@code null} if unknown. Object databases may
+     *         use it to decide how to store the object.
+     */
+    public TYPE getType();
+
 }
@@ -0,0 +1,502 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geogit.api.ObjectId;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+
+/**
+ * A cache of stored records, as returned by {@link AbstractObjectDatabase#getRawInternal}, held
+ * out of the Java heap in direct {@link ByteBuffer buffers}, used by
+ * {@link AbstractObjectDatabase#getRaw} as a second level cache behind the {@link ObjectCache} of
+ * decoded objects.
+ * <p>
+ * The memory budget is split into fixed size slabs, allocated as they're needed. Each slab is cut
+ * into equally sized chunks of one of a series of size classes, growing by a factor of 1.25, and
+ * each record is stored in a chunk of the smallest class it fits in. Once the budget is used up,
+ * a chunk of the needed class is freed following the CLOCK algorithm: the chunks of the class are
+ * swept in a circle, evicting the first one not read since the last sweep. If the class has no
+ * slab at all, the least recently swept slab of the class with the most slabs is emptied and
+ * handed over to it. Records bigger than a slab are not cached.
+ * </p>
+ * <p>
+ * Reads only lock the slab they read from and copy the record out of it. Writes and evictions are
+ * serialized, they only happen on cache misses, which are bound by the cost of fetching the
+ * record anyway.
+ * </p>
+ */
+public class OffHeapRecordCache {
+
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    private static final int MIN_CHUNK_SIZE = 64;
+
+    private static final double GROWTH_FACTOR = 1.25;
+
+    private final int slabSize;
+
+    private final int maxSlabs;
+
+    private final SizeClass[] classes;
+
+    private final List<Slab> slabs = new ArrayList<Slab>();
+
+    private final ConcurrentHashMap<ObjectId, Location> index = new ConcurrentHashMap<ObjectId, Location>();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSizeBytes
+     *            the off heap memory budget, rounded down to a number of
+     *            {@link #DEFAULT_SLAB_SIZE default sized} slabs
+     */
+    public OffHeapRecordCache(final long maxSizeBytes) {
+        this(maxSizeBytes, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * @param maxSizeBytes
+     *            the off heap memory budget, rounded down to a number of slabs. Note the JVM
+     *            limits the amount of direct memory with {@code -XX:MaxDirectMemorySize}
+     * @param slabSize
+     *            the size of each slab, which is also the size of the biggest record that can be
+     *            cached
+     */
+    public OffHeapRecordCache(final long maxSizeBytes, final int slabSize) {
+        Preconditions.checkArgument(maxSizeBytes >= 0, "maxSizeBytes must be positive");
+        Preconditions.checkArgument(slabSize >= MIN_CHUNK_SIZE, "slabSize must be at least %s",
+                MIN_CHUNK_SIZE);
+        this.slabSize = slabSize;
+        this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, maxSizeBytes / slabSize);
+
+        List<SizeClass> sizeClasses = new ArrayList<SizeClass>();
+        int chunkSize = MIN_CHUNK_SIZE;
+        while (chunkSize < slabSize) {
+            sizeClasses.add(new SizeClass(chunkSize));
+            // keep chunks 8 bytes aligned
+            chunkSize = (((int) Math.ceil(chunkSize * GROWTH_FACTOR)) + 7) & ~7;
+        }
+        sizeClasses.add(new SizeClass(slabSize));
+        this.classes = sizeClasses.toArray(new SizeClass[sizeClasses.size()]);
+    }
+
+    /**
+     * @return a copy of the cached record, or {@code null} if it's not cached
+     */
+    public byte[] get(final ObjectId id) {
+        final Location location = index.get(id);
+        if (location != null) {
+            byte[] record = location.slab.read(id, location.chunk);
+            if (record != null) {
+                return record;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the first {@code length} bytes of {@code record}, unless there's already a cached
+     * record for {@code id} or it's too big to be cached.
+     */
+    public void put(final ObjectId id, final byte[] record, final int length) {
+        Preconditions.checkNotNull(id);
+        if (length > slabSize || maxSlabs == 0 || index.containsKey(id)) {
+            return;
+        }
+        final SizeClass sizeClass = sizeClass(length);
+        synchronized (this) {
+            if (index.containsKey(id)) {
+                return;
+            }
+            final Location location = allocate(sizeClass);
+            location.slab.write(location.chunk, id, record, length);
+            index.put(id, location);
+        }
+    }
+
+    /**
+     * Evicts the cached record for the given id, if present
+     */
+    public synchronized void invalidate(final ObjectId id) {
+        final Location location = index.remove(id);
+        if (location != null) {
+            location.slab.free(location.chunk, id);
+        }
+    }
+
+    /**
+     * Evicts all the cached records, keeping the slabs allocated
+     */
+    public synchronized void invalidateAll() {
+        index.clear();
+        for (Slab slab : slabs) {
+            slab.reset(slab.chunkSize);
+        }
+    }
+
+    /**
+     * @return the number of records currently cached
+     */
+    public long size() {
+        return index.size();
+    }
+
+    /**
+     * @return the number of bytes of direct memory allocated so far
+     */
+    public synchronized long getAllocatedBytes() {
+        return (long) slabs.size() * slabSize;
+    }
+
+    public long getMaxSizeBytes() {
+        return (long) maxSlabs * slabSize;
+    }
+
+    /**
+     * @return a snapshot of the hit, miss, and eviction counts since the cache was created
+     */
+    public CacheStats stats() {
+        long hits = 0;
+        long evictions = 0;
+        for (SlabStats s : getSlabStats()) {
+            hits += s.getHits();
+            evictions += s.getEvictions();
+        }
+        return new CacheStats(hits, misses.get(), 0, 0, 0, evictions);
+    }
+
+    /**
+     * @return a snapshot of the usage of each allocated slab, in allocation order
+     */
+    public List<SlabStats> getSlabStats() {
+        final Slab[] current;
+        synchronized (this) {
+            current = slabs.toArray(new Slab[slabs.size()]);
+        }
+        List<SlabStats> stats = new ArrayList<SlabStats>(current.length);
+        for (Slab slab : current) {
+            stats.add(slab.stats());
+        }
+        return stats;
+    }
+
+    private SizeClass sizeClass(final int length) {
+        int low = 0;
+        int high = classes.length - 1;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (classes[mid].chunkSize < length) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return classes[low];
+    }
+
+    /**
+     * Finds a free chunk of the given class, allocating or evicting as needed. Must be called
+     * while holding the cache lock.
+     */
+    private Location allocate(final SizeClass sizeClass) {
+        for (Slab slab : sizeClass.slabs) {
+            final int chunk = slab.takeFree();
+            if (chunk != -1) {
+                return new Location(slab, chunk);
+            }
+        }
+        if (slabs.size() < maxSlabs) {
+            final Slab slab = new Slab(ByteBuffer.allocateDirect(slabSize), sizeClass.chunkSize);
+            slabs.add(slab);
+            sizeClass.slabs.add(slab);
+            return new Location(slab, slab.takeFree());
+        }
+        if (sizeClass.slabs.isEmpty()) {
+            final Slab slab = steal();
+            slab.reset(sizeClass.chunkSize);
+            sizeClass.slabs.add(slab);
+            return new Location(slab, slab.takeFree());
+        }
+        return evict(sizeClass);
+    }
+
+    /**
+     * Sweeps the chunks of a class with the clock hand until finding one that was not read since
+     * the last sweep, and evicts it.
+     */
+    private Location evict(final SizeClass sizeClass) {
+        while (true) {
+            if (sizeClass.handSlab >= sizeClass.slabs.size()) {
+                sizeClass.handSlab = 0;
+            }
+            final Slab slab = sizeClass.slabs.get(sizeClass.handSlab);
+            final int chunk = sizeClass.handChunk;
+            if (++sizeClass.handChunk >= slab.chunks) {
+                sizeClass.handChunk = 0;
+                sizeClass.handSlab++;
+            }
+            final ObjectId evicted = slab.evictIfUnreferenced(chunk);
+            if (evicted != null) {
+                index.remove(evicted);
+                return new Location(slab, chunk);
+            }
+        }
+    }
+
+    /**
+     * Empties the slab under the clock hand of the class holding the most slabs, to hand it over
+     * to a class that has none.
+     */
+    private Slab steal() {
+        SizeClass victim = classes[0];
+        for (SizeClass c : classes) {
+            if (c.slabs.size() > victim.slabs.size()) {
+                victim = c;
+            }
+        }
+        if (victim.handSlab >= victim.slabs.size()) {
+            victim.handSlab = 0;
+        }
+        final Slab slab = victim.slabs.remove(victim.handSlab);
+        victim.handChunk = 0;
+        for (ObjectId evicted : slab.evictAll()) {
+            index.remove(evicted);
+        }
+        return slab;
+    }
+
+    private static class SizeClass {
+
+        final int chunkSize;
+
+        final List<Slab> slabs = new ArrayList<Slab>(2);
+
+        int handSlab;
+
+        int handChunk;
+
+        SizeClass(final int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    private static class Location {
+
+        final Slab slab;
+
+        final int chunk;
+
+        Location(final Slab slab, final int chunk) {
+            this.slab = slab;
+            this.chunk = chunk;
+        }
+    }
+
+    /**
+     * A direct buffer cut into chunks of the same size. All access is synchronized on the slab.
+     */
+    private static class Slab {
+
+        private final ByteBuffer buffer;
+
+        int chunkSize;
+
+        int chunks;
+
+        private ObjectId[] owners;
+
+        private int[] lengths;
+
+        private boolean[] referenced;
+
+        private int[] free;
+
+        private int freeCount;
+
+        private long hits;
+
+        private long evictions;
+
+        Slab(final ByteBuffer buffer, final int chunkSize) {
+            this.buffer = buffer;
+            reset(chunkSize);
+        }
+
+        synchronized void reset(final int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.chunks = buffer.capacity() / chunkSize;
+            this.owners = new ObjectId[chunks];
+            this.lengths = new int[chunks];
+            this.referenced = new boolean[chunks];
+            this.free = new int[chunks];
+            for (int i = 0; i < chunks; i++) {
+                free[i] = chunks - 1 - i;
+            }
+            this.freeCount = chunks;
+        }
+
+        synchronized int takeFree() {
+            return freeCount == 0 ? -1 : free[--freeCount];
+        }
+
+        synchronized byte[] read(final ObjectId id, final int chunk) {
+            if (chunk >= chunks || !id.equals(owners[chunk])) {
+                // evicted, or the slab was handed over to another size class
+                return null;
+            }
+            final byte[] record = new byte[lengths[chunk]];
+            buffer.position(chunk * chunkSize);
+            buffer.get(record);
+            referenced[chunk] = true;
+            hits++;
+            return record;
+        }
+
+        synchronized void write(final int chunk, final ObjectId id, final byte[] record,
+                final int length) {
+            buffer.position(chunk * chunkSize);
+            buffer.put(record, 0, length);
+            owners[chunk] = id;
+            lengths[chunk] = length;
+            referenced[chunk] = false;
+        }
+
+        synchronized void free(final int chunk, final ObjectId id) {
+            if (chunk < chunks && id.equals(owners[chunk])) {
+                owners[chunk] = null;
+                free[freeCount++] = chunk;
+            }
+        }
+
+        /**
+         * @return the id of the evicted record, or {@code null} if the chunk was referenced, in
+         *         which case it's given a second chance
+         */
+        synchronized ObjectId evictIfUnreferenced(final int chunk) {
+            if (referenced[chunk]) {
+                referenced[chunk] = false;
+                return null;
+            }
+            final ObjectId evicted = owners[chunk];
+            if (evicted == null) {
+                // an empty chunk can only be under the hand if it's free, take it off the list
+                for (int i = 0; i < freeCount; i++) {
+                    if (free[i] == chunk) {
+                        free[i] = free[--freeCount];
+                        break;
+                    }
+                }
+                return ObjectId.NULL;
+            }
+            owners[chunk] = null;
+            evictions++;
+            return evicted;
+        }
+
+        synchronized List<ObjectId> evictAll() {
+            List<ObjectId> evicted = new ArrayList<ObjectId>(chunks - freeCount);
+            for (ObjectId owner : owners) {
+                if (owner != null) {
+                    evicted.add(owner);
+                }
+            }
+            evictions += evicted.size();
+            return evicted;
+        }
+
+        synchronized SlabStats stats() {
+            long usedBytes = 0;
+            for (int i = 0; i < chunks; i++) {
+                if (owners[i] != null) {
+                    usedBytes += lengths[i];
+                }
+            }
+            return new SlabStats(chunkSize, chunks, chunks - freeCount, usedBytes, hits,
+                    evictions);
+        }
+    }
+
+    /**
+     * Usage of a slab at the time it was taken
+     */
+    public static class SlabStats {
+
+        private final int chunkSize;
+
+        private final int chunks;
+
+        private final int usedChunks;
+
+        private final long usedBytes;
+
+        private final long hits;
+
+        private final long evictions;
+
+        SlabStats(final int chunkSize, final int chunks, final int usedChunks,
+                final long usedBytes, final long hits, final long evictions) {
+            this.chunkSize = chunkSize;
+            this.chunks = chunks;
+            this.usedChunks = usedChunks;
+            this.usedBytes = usedBytes;
+            this.hits = hits;
+            this.evictions = evictions;
+        }
+
+        /**
+         * @return the size of the chunks of the size class the slab is currently assigned to
+         */
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public int getChunks() {
+            return chunks;
+        }
+
+        public int getUsedChunks() {
+            return usedChunks;
+        }
+
+        /**
+         * @return the size of the records held, the rest of the used chunks is lost to
+         *         fragmentation
+         */
+        public long getUsedBytes() {
+            return usedBytes;
+        }
+
+        /**
+         * @return the number of records read from the slab since it was allocated
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return the number of records evicted from the slab since it was allocated
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder("Slab[chunkSize: ").append(chunkSize).append(", used: ")
+                    .append(usedChunks).append('/').append(chunks).append(", bytes: ")
+                    .append(usedBytes).append(", hits: ").append(hits).append(", evictions: ")
+                    .append(evictions).append(']').toString();
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geogit.api.ObjectId;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * An {@link ObjectInserter} for bulk loads that encodes, compresses and hashes the inserted
+ * objects concurrently on a pool of worker threads, and funnels them to a single writer thread
+ * that stores them in submission order, in batches, as {@link BatchObjectInserter} does.
+ * <p>
+ * The number of objects submitted but not yet handed to the writer is bounded, so
+ * {@link #submit(ObjectWriter)} blocks when encoding or writing can't keep up with the producer.
+ * </p>
+ * <p>
+ * The ids returned by {@link #submit(ObjectWriter)} are available as soon as the object is
+ * encoded, but the object is not guaranteed to exist in the object database until
+ * {@link #flush()} is called, which shall be done before the inserter is discarded. Errors found
+ * while encoding or writing are rethrown by {@link #flush()}. An inserter whose objects are not
+ * to be kept is {@link #discard() discarded} instead.
+ * </p>
+ */
+public class PipelinedObjectInserter extends ObjectInserter {
+
+    private static final Logger LOGGER = Logging.getLogger(PipelinedObjectInserter.class);
+
+    /**
+     * Default maximum number of objects submitted but not yet handed to the writer thread
+     */
+    public static final int DEFAULT_MAX_PENDING = 1000;
+
+    private static ListeningExecutorService defaultEncoders;
+
+    private final AbstractObjectDatabase db;
+
+    private final ListeningExecutorService encoders;
+
+    private final int maxObjects;
+
+    private final long maxBytes;
+
+    private final Semaphore pending;
+
+    private ExecutorService writer;
+
+    private volatile Throwable failure;
+
+    /*
+     * Confined to the writer thread
+     */
+    private final Map<ObjectId, byte[]> batch;
+
+    private long batchBytes;
+
+    private long insertedCount;
+
+    private long insertedBytes;
+
+    public PipelinedObjectInserter(final AbstractObjectDatabase db) {
+        this(db, defaultEncoders(), DEFAULT_MAX_PENDING, BatchObjectInserter.DEFAULT_MAX_OBJECTS,
+                BatchObjectInserter.DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param db
+     *            the object database to insert objects to
+     * @param encoders
+     *            the executor to encode objects on
+     * @param maxPending
+     *            the maximum number of submitted objects not yet handed to the writer thread
+     * @param maxObjects
+     *            the maximum number of objects to buffer before writing them to the database
+     * @param maxBytes
+     *            the maximum number of compressed bytes to buffer before writing them to the
+     *            database
+     */
+    public PipelinedObjectInserter(final AbstractObjectDatabase db,
+            final ExecutorService encoders, final int maxPending, final int maxObjects,
+            final long maxBytes) {
+        super(db);
+        Preconditions.checkNotNull(db);
+        Preconditions.checkNotNull(encoders);
+        Preconditions.checkArgument(maxPending > 0);
+        Preconditions.checkArgument(maxObjects > 0);
+        Preconditions.checkArgument(maxBytes > 0);
+        this.db = db;
+        this.encoders = MoreExecutors.listeningDecorator(encoders);
+        this.pending = new Semaphore(maxPending);
+        this.maxObjects = maxObjects;
+        this.maxBytes = maxBytes;
+        this.batch = new LinkedHashMap<ObjectId, byte[]>();
+    }
+
+    /**
+     * @return a shared pool of daemon threads, one per available processor
+     */
+    private static synchronized ListeningExecutorService defaultEncoders() {
+        if (defaultEncoders == null) {
+            final int nThreads = Runtime.getRuntime().availableProcessors();
+            defaultEncoders = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+                    nThreads, new ThreadFactoryBuilder().setDaemon(true)
+                            .setNameFormat("geogit-encoder-%d").build()));
+        }
+        return defaultEncoders;
+    }
+
+    /**
+     * Schedules the object to be encoded and stored, blocking if too many objects are pending.
+     *
+     * @return the future id of the object
+     */
+    public synchronized ListenableFuture<ObjectId> submit(final ObjectWriter<?> objectWriter)
+            throws InterruptedException {
+        Preconditions.checkNotNull(objectWriter);
+        pending.acquire();
+        final ListenableFuture<Encoded> encoded;
+        try {
+            encoded = encoders.submit(new Callable<Encoded>() {
+                @Override
+                public Encoded call() throws Exception {
+                    final ObjectEncoder encoder = ObjectEncoder.acquire();
+                    try {
+                        ObjectId id = encoder.encode(objectWriter, db.getCodecPolicy());
+                        return new Encoded(id, encoder.toByteArray());
+                    } finally {
+                        encoder.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.release();
+            throw e;
+        }
+        // the writer is single threaded, so objects are stored in submission order
+        writer().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    store(Uninterruptibles.getUninterruptibly(encoded));
+                } catch (ExecutionException e) {
+                    fail(e.getCause());
+                } catch (Throwable e) {
+                    fail(e);
+                } finally {
+                    pending.release();
+                }
+            }
+        });
+        return Futures.transform(encoded, new Function<Encoded, ObjectId>() {
+            @Override
+            public ObjectId apply(final Encoded input) {
+                return input.id;
+            }
+        });
+    }
+
+    private ExecutorService writer() {
+        if (writer == null) {
+            writer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setDaemon(true).setNameFormat("geogit-object-writer-%d").build());
+        }
+        return writer;
+    }
+
+    /**
+     * Called on the writer thread
+     */
+    private void store(final Encoded object) throws Exception {
+        if (failure != null) {
+            return;
+        }
+        if (batch.put(object.id, object.rawData) == null) {
+            batchBytes += object.rawData.length;
+        }
+        if (batch.size() >= maxObjects || batchBytes >= maxBytes) {
+            writeBatch();
+        }
+    }
+
+    /**
+     * Called on the writer thread
+     */
+    private void writeBatch() throws Exception {
+        if (batch.isEmpty() || failure != null) {
+            return;
+        }
+        db.storeAll(batch);
+        insertedCount += batch.size();
+        insertedBytes += batchBytes;
+        batch.clear();
+        batchBytes = 0;
+    }
+
+    private void fail(final Throwable cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+        LOGGER.log(Level.FINE, "Error inserting object", cause);
+    }
+
+    /**
+     * Encodes and stores the object, waiting for its id.
+     */
+    @Override
+    public ObjectId insert(final ObjectWriter<?> objectWriter) throws Exception {
+        return get(submit(objectWriter));
+    }
+
+    /**
+     * Submits all the objects provided by the {@code writers} iterator and {@link #flush()
+     * flushes}
+     *
+     * @return the ids of the inserted objects, in the same order as the provided writers
+     */
+    @Override
+    public List<ObjectId> insertAll(final Iterator<? extends ObjectWriter<?>> writers)
+            throws Exception {
+        List<ListenableFuture<ObjectId>> futures = new ArrayList<ListenableFuture<ObjectId>>();
+        try {
+            while (writers.hasNext()) {
+                futures.add(submit(writers.next()));
+            }
+        } finally {
+            flush();
+        }
+        List<ObjectId> ids = new ArrayList<ObjectId>(futures.size());
+        for (ListenableFuture<ObjectId> id : futures) {
+            ids.add(get(id));
+        }
+        return ids;
+    }
+
+    /**
+     * Waits for all the submitted objects to be written to the object database.
+     *
+     * @throws Exception
+     *             the first error found encoding or writing any of the submitted objects
+     */
+    @Override
+    public synchronized void flush() throws Exception {
+        if (writer != null) {
+            Future<?> written = writer.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        writeBatch();
+                    } catch (Exception e) {
+                        fail(e);
+                    }
+                    return null;
+                }
+            });
+            Uninterruptibles.getUninterruptibly(written);
+            // the writer thread is started again by the next submit
+            writer.shutdown();
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            writer = null;
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(toString());
+            }
+        }
+        final Throwable cause = failure;
+        if (cause != null) {
+            Throwables.propagateIfPossible(cause, Exception.class);
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Stops without writing the objects not yet written to the object database, and forgets any
+     * error found so far, for when the insert is canceled or failed. Objects written in earlier
+     * batches are kept, though nothing references them yet.
+     */
+    public synchronized void discard() {
+        if (writer != null) {
+            // the writer skips the remaining objects once a failure is set
+            fail(new CancellationException("discarded"));
+            writer.shutdown();
+            boolean interrupted = false;
+            while (!writer.isTerminated()) {
+                try {
+                    writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            writer = null;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        batch.clear();
+        batchBytes = 0;
+        failure = null;
+    }
+
+    private static ObjectId get(final Future<ObjectId> id) throws Exception {
+        try {
+            return id.get();
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the number of objects written to the database so far, only accurate after
+     *         {@link #flush()}
+     */
+    public synchronized long getInsertedCount() {
+        return insertedCount;
+    }
+
+    /**
+     * @return the number of compressed bytes written to the database so far, only accurate after
+     *         {@link #flush()}
+     */
+    public synchronized long getInsertedBytes() {
+        return insertedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(getClass().getSimpleName()).append("[inserted: ")
+                .append(insertedCount).append(" objects, ").append(insertedBytes)
+                .append(" bytes]").toString();
+    }
+
+    private static final class Encoded {
+        final ObjectId id;
+
+        final byte[] rawData;
+
+        Encoded(final ObjectId id, final byte[] rawData) {
+            this.id = id;
+            this.rawData = rawData;
+        }
+    }
+}
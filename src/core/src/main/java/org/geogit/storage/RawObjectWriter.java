@@ -8,6 +8,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import org.geogit.api.RevObject.TYPE;
+
 /**
  * Object writer that merely transfers the contents of an {@link InputStream} to the target
  * {@link OutputStream}, mainly used to copy raw objects from one {@link ObjectDatabase} to another.
@@ -19,8 +21,21 @@ public class RawObjectWriter implements ObjectWriter<Object> {
 
     private final InputStream from;
 
+    private final TYPE type;
+
     public RawObjectWriter(final InputStream from) {
+        this(from, null);
+    }
+
+    /**
+     * @param from
+     *            the raw object contents
+     * @param type
+     *            the type of the object being copied, or {@code null} if unknown
+     */
+    public RawObjectWriter(final InputStream from, final TYPE type) {
         this.from = from;
+        this.type = type;
     }
 
     @Override
@@ -31,4 +46,9 @@ public class RawObjectWriter implements ObjectWriter<Object> {
         }
     }
 
+    @Override
+    public TYPE getType() {
+        return type;
+    }
+
 }
@@ -13,6 +13,9 @@ import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevObject.TYPE;
 import org.geogit.api.RevTree;
+import org.geogit.metrics.Meter;
+import org.geogit.metrics.MetricsRegistry;
+import org.geogit.metrics.Timer;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
@@ -24,20 +27,43 @@ import com.google.common.collect.Iterators;
  * It uses the {@link ObjectDatabase} to store the references in a {@link RevTree} under the
  * {@code ".geogit/refs"} key.
  * </p>
+ * <p>
+ * The refs tree is the only object of the repository that's overwritten in place, and it's
+ * written as a single record, so readers always see either the previous or the new version of all
+ * the refs. Updates read, modify and write the whole tree, hence they're serialized: there's a
+ * single writer of refs at a time, while reads don't lock at all.
+ * </p>
  * 
  */
 public class RefDatabase {
 
     private static final String REFS_TREE_KEY = ".geogit/refs";
 
-    private static final ObjectId REFS_TREE_ID = ObjectId.forString(REFS_TREE_KEY);
+    /**
+     * Fixed id the refs tree is stored under, rather than the hash of its contents
+     */
+    static final ObjectId REFS_TREE_ID = ObjectId.forString(REFS_TREE_KEY);
 
     private ObjectDatabase db;
 
+    private volatile Meter reads = new Meter();
+
+    private volatile Timer updates = new Timer();
+
     public RefDatabase(final ObjectDatabase db) {
         this.db = db;
     }
 
+    /**
+     * Sets the registry to record ref accesses in: a {@code reads} meter of the ref look ups and
+     * an {@code updates} timer of the ref changes
+     */
+    public void setMetrics(final MetricsRegistry registry) {
+        Preconditions.checkNotNull(registry);
+        reads = registry.meter("reads");
+        updates = registry.timer("updates");
+    }
+
     public void create() {
         final String headRefName = Ref.HEAD;
         condCreate(headRefName, TYPE.COMMIT);
@@ -53,7 +79,7 @@ public class RefDatabase {
         condCreate(ref.getName(), TYPE.REMOTE);
     }
 
-    private void condCreate(final String refName, TYPE type) {
+    private synchronized void condCreate(final String refName, TYPE type) {
         RevTree refsTree = getRefsTree();
 
         Ref child = refsTree.get(refName);
@@ -88,6 +114,7 @@ public class RefDatabase {
 
     public Ref getRef(final String name) {
         Preconditions.checkNotNull(name, "Ref name can't be null");
+        reads.mark();
         RevTree refsTree = getRefsTree();
         Ref child = refsTree.get(name);
         return child;
@@ -122,7 +149,7 @@ public class RefDatabase {
      * @return {@code true} if the ref was inserted, {@code false} if it already existed and pointed
      *         to the same object
      */
-    public boolean put(final Ref ref) {
+    public synchronized boolean put(final Ref ref) {
         Preconditions.checkNotNull(ref);
         Preconditions.checkNotNull(ref.getName());
         Preconditions.checkNotNull(ref.getObjectId());
@@ -132,6 +159,7 @@ public class RefDatabase {
         if (oldTarget != null && oldTarget.equals(ref)) {
             return false;
         }
+        final long start = updates.start();
         refsTree = refsTree.mutable();
         ((MutableTree) refsTree).put(ref);
         try {
@@ -140,6 +168,7 @@ public class RefDatabase {
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+        updates.stop(start);
 
         return true;
     }
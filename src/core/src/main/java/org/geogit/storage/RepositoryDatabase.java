@@ -4,6 +4,8 @@
  */
 package org.geogit.storage;
 
+import org.geogit.metrics.MetricsRegistry;
+
 public interface RepositoryDatabase {
 
     public RefDatabase getReferenceDatabase();
@@ -12,6 +14,12 @@ public interface RepositoryDatabase {
 
     public StagingDatabase getStagingDatabase();
 
+    /**
+     * @return the registry the databases record their metrics in, under the {@code objects},
+     *         {@code refs} and {@code staging} scopes
+     */
+    public MetricsRegistry getMetrics();
+
     public void create();
 
     public void close();
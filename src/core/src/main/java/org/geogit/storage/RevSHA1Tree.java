@@ -5,14 +5,15 @@
 package org.geogit.storage;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.geogit.api.AbstractRevObject;
 import org.geogit.api.MutableTree;
@@ -25,7 +26,10 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 
 public class RevSHA1Tree extends AbstractRevObject implements RevTree {
 
@@ -36,12 +40,16 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
 
     protected static final int NORMALIZED_SIZE_LIMIT = 4 * 1024;
 
+    /**
+     * How many of the following subtrees to start loading while the entries of a subtree are
+     * being iterated
+     */
+    private static final int PREFETCH_SUBTREES = 4;
+
     protected final int depth;
 
     protected final ObjectDatabase db;
 
-    protected MessageDigest md;
-
     // aggregated number of leaf nodes (data entries)
     private final BigInteger size;
 
@@ -102,16 +110,16 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
                 Integer bucket;
                 Ref subtreeRef;
                 ObjectId subtreeId;
-                RevSHA1Tree subtree;
+                RevTree subtree;
                 for (Map.Entry<Integer, Ref> e : mySubTrees.entrySet()) {
                     bucket = e.getKey();
                     subtreeRef = e.getValue();
                     subtreeId = subtreeRef.getObjectId();
                     if (visitor.visitSubTree(bucket, subtreeId)) {
-                        subtree = (RevSHA1Tree) db
+                        subtree = db
                                 .get(subtreeId, 
                                 WrappedSerialisingFactory.getInstance().createRevTreeReader(db, childDepth));
-                        subtree.accept(visitor, myEntries);
+                        acceptEntries(subtree, visitor, myEntries);
                     }
                 }
             } catch (IOException ioe) {
@@ -120,6 +128,21 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
         }
     }
 
+    /**
+     * Visits the entries {@code tree} holds itself, but not the ones of its subtrees
+     * 
+     * @param ignore
+     *            the entries to skip, by name
+     */
+    static void acceptEntries(final RevTree tree, final TreeVisitor visitor,
+            final Map<String, Ref> ignore) {
+        if (tree instanceof CompactRevTree) {
+            ((CompactRevTree) tree).accept(visitor, ignore);
+        } else {
+            ((RevSHA1Tree) tree).accept(visitor, ignore);
+        }
+    }
+
     private void accept(final TreeVisitor visitor, final Map<String, Ref> ignore) {
         if (myEntries.size() > 0) {
             for (Map.Entry<String, Ref> e : myEntries.entrySet()) {
@@ -140,14 +163,33 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
     }
 
     protected final Integer computeBucket(final String key) {
-        byte[] hashedKey = hashKey(key);
-        // int ch1 = hashedKey[2 * this.order] & 0xFF;
-        // int ch2 = hashedKey[2 * this.order + 1] & 0xFF;
-        // int b = (ch1 << 8) + (ch2 << 0);
-        // final Integer bucket = Integer.valueOf(b);
-        final Integer bucket = Integer.valueOf(hashedKey[this.depth] & 0xFF);
-
-        return bucket;
+        return computeBucket(keyHash(key));
+    }
+
+    /**
+     * @return the hash of {@code key}, the same as {@link Ref#getNameHash()} of a ref named so
+     */
+    protected final ObjectId keyHash(final String key) {
+        // lock free, trees are shared by the readers of the object cache
+        return ObjectId.forString(key);
+    }
+
+    /**
+     * @param keyHash
+     *            the {@link Ref#getNameHash() name hash} of the key
+     * @return the bucket this tree places the key in
+     */
+    protected final Integer computeBucket(final ObjectId keyHash) {
+        return Integer.valueOf(computeBucket(keyHash, this.depth));
+    }
+
+    /**
+     * @param keyHash
+     *            the SHA-1 hash of the UTF-8 encoded key
+     * @return the bucket the tree at the given depth places the key in
+     */
+    static int computeBucket(final ObjectId keyHash, final int depth) {
+        return keyHash.getByte(depth);
     }
 
     /**
@@ -159,6 +201,15 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
      */
     @Override
     public Ref get(final String key) {
+        return get(key, null);
+    }
+
+    /**
+     * @param keyHash
+     *            the name hash of {@code key}, or {@code null} to compute it if needed, passed
+     *            down the subtrees so it's only computed once
+     */
+    protected Ref get(final String key, ObjectId keyHash) {
         Ref value = null;
         if (myEntries.containsKey(key)) {
             value = myEntries.get(key);
@@ -168,7 +219,10 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
             }
         }
         if (value == null) {
-            final Integer bucket = computeBucket(key);
+            if (keyHash == null) {
+                keyHash = keyHash(key);
+            }
+            final Integer bucket = computeBucket(keyHash);
             final Ref subTreeRef = mySubTrees.get(bucket);
             if (subTreeRef == null) {
                 value = null;
@@ -181,26 +235,23 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
                 } catch (IOException ioe) {
                     throw new RuntimeException(ioe);
                 }
-                value = subTree.get(key);
+                value = get(subTree, key, keyHash);
             }
         }
         return value;
     }
 
-    private synchronized byte[] hashKey(final String key) {
-        if (md == null) {
-            try {
-                md = MessageDigest.getInstance("SHA1");
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
-            }
+    /**
+     * Looks {@code key} up in {@code tree} reusing its already computed hash where possible
+     */
+    static Ref get(final RevTree tree, final String key, final ObjectId keyHash) {
+        if (tree instanceof RevSHA1Tree) {
+            return ((RevSHA1Tree) tree).get(key, keyHash);
         }
-        try {
-            md.reset();
-            return md.digest(key.getBytes("UTF-8"));
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
+        if (tree instanceof CompactRevTree) {
+            return ((CompactRevTree) tree).get(key, keyHash);
         }
+        return tree.get(key);
     }
 
     @Override
@@ -237,26 +288,56 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
             return Collections.EMPTY_SET.iterator();
         }
         if (!mySubTrees.isEmpty()) {
-            Iterator<Ref>[] iterators = new Iterator[mySubTrees.size()];
+            final ObjectId[] subtreeIds = new ObjectId[mySubTrees.size()];
             int i = 0;
             for (Ref subtreeRef : mySubTrees.values()) {
-                iterators[i] = new LazySubtreeIterator(this.db, subtreeRef.getObjectId(),
-                        this.depth + 1, filter);
+                subtreeIds[i] = subtreeRef.getObjectId();
                 i++;
             }
-            return Iterators.concat(iterators);
+            return subtreesIterator(this.db, subtreeIds, this.depth + 1, filter);
         }
 
         // we have only content entries, return them in our internal order
         Map<ObjectId, Ref> sorted = new TreeMap<ObjectId, Ref>();
         for (Ref ref : myEntries.values()) {
             if (filter.apply(ref)) {
-                sorted.put(ObjectId.forString(ref.getName()), ref);
+                sorted.put(ref.getNameHash(), ref);
             }
         }
         return sorted.values().iterator();
     }
 
+    /**
+     * @return the entries of the given subtrees one subtree after the other, loading the
+     *         subtrees as they're reached
+     */
+    static Iterator<Ref> subtreesIterator(final ObjectDatabase db, final ObjectId[] subtreeIds,
+            final int depth, final Predicate<Ref> filter) {
+        final LazySubtreeIterator[] iterators = new LazySubtreeIterator[subtreeIds.length];
+        final AbstractIterator<Iterator<Ref>> subtrees = new AbstractIterator<Iterator<Ref>>() {
+            private int next;
+
+            @Override
+            protected Iterator<Ref> computeNext() {
+                if (next == iterators.length) {
+                    for (LazySubtreeIterator it : iterators) {
+                        it.cancelPrefetch();
+                    }
+                    return endOfData();
+                }
+                final int last = Math.min(iterators.length - 1, next + PREFETCH_SUBTREES);
+                for (int j = next + 1; j <= last; j++) {
+                    iterators[j].prefetch(this);
+                }
+                return iterators[next++];
+            }
+        };
+        for (int i = 0; i < subtreeIds.length; i++) {
+            iterators[i] = new LazySubtreeIterator(db, subtreeIds[i], depth, filter);
+        }
+        return Iterators.concat(subtrees);
+    }
+
     private static class LazySubtreeIterator implements Iterator<Ref> {
 
         private final ObjectDatabase db;
@@ -269,6 +350,10 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
 
         private Iterator<Ref> subject;
 
+        private ListenableFuture<RevTree> prefetched;
+
+        private PrefetchTask prefetchTask;
+
         public LazySubtreeIterator(ObjectDatabase db, ObjectId objectId, int depth,
                 Predicate<Ref> filter) {
             this.db = db;
@@ -277,16 +362,63 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
             this.filter = filter;
         }
 
+        /**
+         * Starts loading the subtree in the background, if it's not loaded yet
+         * 
+         * @param owner the iterator the subtree is prefetched for, the load is skipped if it has
+         *        been discarded by the time the task starts
+         */
+        void prefetch(final Object owner) {
+            if (subject == null && prefetched == null) {
+                final ListeningExecutorService executor;
+                if (db instanceof AbstractObjectDatabase) {
+                    executor = ((AbstractObjectDatabase) db).getReadExecutor();
+                } else {
+                    executor = AbstractObjectDatabase.defaultReadExecutor();
+                }
+                prefetchTask = new PrefetchTask(db, objectId, depth, owner);
+                prefetched = executor.submit(prefetchTask);
+            }
+        }
+
+        /**
+         * Cancels the prefetch of the subtree unless it's already being loaded
+         */
+        void cancelPrefetch() {
+            if (prefetched != null && prefetchTask.claim()) {
+                prefetched.cancel(false);
+                prefetched = null;
+                prefetchTask = null;
+            }
+        }
+
         public boolean hasNext() {
             if (subject == null) {
-                RevTree subtree;
+                RevTree subtree = null;
                 try {
-                    subtree = db.get(objectId, 
-                    		WrappedSerialisingFactory.getInstance().createRevTreeReader(db, depth));
-                    subject = subtree.iterator(filter);
+                    // a prefetch that hasn't started is cancelled and the subtree read right here,
+                    // the pool may be busy with reads waiting for this thread. One that has
+                    // started is waited for, it doesn't depend on this thread to complete
+                    if (prefetched != null && !prefetchTask.claim()) {
+                        subtree = prefetched.get();
+                    } else {
+                        if (prefetched != null) {
+                            prefetched.cancel(false);
+                        }
+                        subtree = db.get(objectId, WrappedSerialisingFactory.getInstance()
+                                .createRevTreeReader(db, depth));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw Throwables.propagate(e.getCause());
                 } catch (IOException e) {
-                    Throwables.propagate(e);
+                    throw Throwables.propagate(e);
                 }
+                prefetched = null;
+                prefetchTask = null;
+                subject = subtree.iterator(filter);
             }
             return subject.hasNext();
         }
@@ -299,4 +431,49 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
             throw new UnsupportedOperationException();
         }
     }
+
+    /**
+     * Loads a subtree in the background unless the consumer claims it first, or the iterator it
+     * is loaded for has been discarded.
+     * <p>
+     * Only holds a weak reference to the owning iterator so an abandoned iteration doesn't keep
+     * its pending prefetches alive.
+     * </p>
+     */
+    private static class PrefetchTask implements Callable<RevTree> {
+
+        private final ObjectDatabase db;
+
+        private final ObjectId objectId;
+
+        private final int depth;
+
+        private final WeakReference<Object> owner;
+
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        PrefetchTask(ObjectDatabase db, ObjectId objectId, int depth, Object owner) {
+            this.db = db;
+            this.objectId = objectId;
+            this.depth = depth;
+            this.owner = new WeakReference<Object>(owner);
+        }
+
+        /**
+         * @return {@code true} if the caller gets to load the subtree, {@code false} if this task
+         *         has already started loading it
+         */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        @Override
+        public RevTree call() throws Exception {
+            if (owner.get() == null || !claim()) {
+                return null;
+            }
+            return db.get(objectId, WrappedSerialisingFactory.getInstance().createRevTreeReader(
+                    db, depth));
+        }
+    }
 }
@@ -8,11 +8,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.geogit.api.DiffEntry;
 import org.geogit.api.MutableTree;
@@ -23,11 +26,19 @@ import org.geogit.api.RevCommit;
 import org.geogit.api.RevObject.TYPE;
 import org.geogit.api.RevTree;
 import org.geogit.api.SpatialRef;
+import org.geogit.metrics.Gauge;
+import org.geogit.metrics.Meter;
+import org.geogit.metrics.MetricsRegistry;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.opengis.geometry.BoundingBox;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.sleepycat.bind.tuple.TupleBinding;
 import com.sleepycat.bind.tuple.TupleInput;
 import com.sleepycat.bind.tuple.TupleOutput;
@@ -57,19 +68,42 @@ import com.sleepycat.je.Environment;
  * <p>
  * A diff operation between the repository root tree and the index staged root tree results in the
  * list of staged objects.
+ * <p>
+ * The staged and unstaged entries are kept in Berkeley DB JE databases of the given environment,
+ * or in memory if the staging database is created without one.
  * 
  * @author groldan
  * 
  */
 public class StagingDatabase implements ObjectDatabase {
 
+    /**
+     * Same order {@link PathBinding} keys sort in the JE databases: shorter paths first, then
+     * step by step
+     */
+    private static final Comparator<List<String>> PATH_ORDER = new Comparator<List<String>>() {
+        @Override
+        public int compare(final List<String> p1, final List<String> p2) {
+            if (p1.size() != p2.size()) {
+                return p1.size() < p2.size() ? -1 : 1;
+            }
+            for (int i = 0; i < p1.size(); i++) {
+                final int c = p1.get(i).compareTo(p2.get(i));
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+    };
+
     private Database unstagedEntries;
 
     private Database stagedEntries;
 
-    StoredSortedMap<List<String>, DiffEntry> staged;
+    SortedMap<List<String>, DiffEntry> staged;
 
-    StoredSortedMap<List<String>, DiffEntry> unstaged;
+    SortedMap<List<String>, DiffEntry> unstaged;
 
     private final PathBinding keyPathBinding = new PathBinding();
 
@@ -86,6 +120,10 @@ public class StagingDatabase implements ObjectDatabase {
 
     private final ObjectDatabase repositoryDb;
 
+    private volatile Meter unstagedWrites = new Meter();
+
+    private volatile Meter stagedWrites = new Meter();
+
     /**
      * @param referenceDatabase
      *            the repository reference database, used to get the head re
@@ -99,8 +137,50 @@ public class StagingDatabase implements ObjectDatabase {
         this.env = env;
     }
 
+    /**
+     * Creates a staging database that keeps the staged and unstaged entries in memory, they're
+     * lost once it's discarded
+     */
+    public StagingDatabase(final ObjectDatabase repositoryDb, final ObjectDatabase stagingDb) {
+        this(repositoryDb, stagingDb, null);
+    }
+
+    /**
+     * Sets the registry to record the changes to the staging area in: {@code unstagedWrites} and
+     * {@code stagedWrites} meters, and {@code unstaged} and {@code staged} gauges counting the
+     * entries, which count them one by one on the JE databases. The staging area object database
+     * metrics go to the {@code objects} scope.
+     */
+    public void setMetrics(final MetricsRegistry registry) {
+        Preconditions.checkNotNull(registry);
+        unstagedWrites = registry.meter("unstagedWrites");
+        stagedWrites = registry.meter("stagedWrites");
+        registry.register("unstaged", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return unstaged == null ? null : Integer.valueOf(unstaged.size());
+            }
+        });
+        registry.register("staged", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return staged == null ? null : Integer.valueOf(staged.size());
+            }
+        });
+        if (stagingDb instanceof AbstractObjectDatabase) {
+            ((AbstractObjectDatabase) stagingDb).setMetrics(registry.scope("objects"));
+        }
+    }
+
     public void create() {
         stagingDb.create();
+        if (env == null) {
+            if (staged == null) {
+                unstaged = new ConcurrentSkipListMap<List<String>, DiffEntry>(PATH_ORDER);
+                staged = new ConcurrentSkipListMap<List<String>, DiffEntry>(PATH_ORDER);
+            }
+            return;
+        }
         {
             DatabaseConfig unstagedDbConfig = new DatabaseConfig();
             unstagedDbConfig.setAllowCreate(true);
@@ -130,8 +210,10 @@ public class StagingDatabase implements ObjectDatabase {
     public void close() {
         stagingDb.close();
 
-        unstagedEntries.close();
-        stagedEntries.close();
+        if (env != null) {
+            unstagedEntries.close();
+            stagedEntries.close();
+        }
     }
 
     public void reset() {
@@ -157,6 +239,7 @@ public class StagingDatabase implements ObjectDatabase {
 
     public void putUnstaged(final DiffEntry diffEntry) {
         unstaged.put(diffEntry.getPath(), diffEntry);
+        unstagedWrites.mark();
     }
 
     public void stage(DiffEntry diffEntry) {
@@ -164,6 +247,7 @@ public class StagingDatabase implements ObjectDatabase {
         DiffEntry remove = unstaged.remove(path);
         if (remove != null) {
             staged.put(path, diffEntry);
+            stagedWrites.mark();
         }
     }
 
@@ -323,17 +407,14 @@ public class StagingDatabase implements ObjectDatabase {
         if (pathFilter == null || pathFilter.size() == 0) {
             return unstaged.size();
         }
-        SortedMap<List<String>, DiffEntry> subMap = unstaged.subMap(pathFilter, true, pathFilter,
-                true);
-        int size = subMap.size();
-        return size;
+        return unstaged.containsKey(pathFilter) ? 1 : 0;
     }
 
     public int countStaged(final List<String> pathFilter) {
         if (pathFilter == null || pathFilter.size() == 0) {
             return staged.size();
         }
-        SortedMap<List<String>, DiffEntry> subMap = staged.tailMap(pathFilter, true);
+        SortedMap<List<String>, DiffEntry> subMap = staged.tailMap(pathFilter);
         int size = subMap.size();
         return size;
     }
@@ -342,7 +423,7 @@ public class StagingDatabase implements ObjectDatabase {
         if (pathFilter == null || pathFilter.size() == 0) {
             return unstaged.values().iterator();
         }
-        SortedMap<List<String>, DiffEntry> subMap = unstaged.tailMap(pathFilter, true);
+        SortedMap<List<String>, DiffEntry> subMap = unstaged.tailMap(pathFilter);
         return subMap.values().iterator();
     }
 
@@ -350,7 +431,7 @@ public class StagingDatabase implements ObjectDatabase {
         if (pathFilter == null || pathFilter.size() == 0) {
             return staged.values().iterator();
         }
-        SortedMap<List<String>, DiffEntry> subMap = staged.tailMap(pathFilter, true);
+        SortedMap<List<String>, DiffEntry> subMap = staged.tailMap(pathFilter);
         return subMap.values().iterator();
     }
 
@@ -358,7 +439,7 @@ public class StagingDatabase implements ObjectDatabase {
         SortedMap<List<String>, DiffEntry> subMap = staged;
 
         if (pathFilter != null && pathFilter.size() > 0) {
-            subMap = staged.tailMap(pathFilter, true);
+            subMap = staged.tailMap(pathFilter);
         }
         int size = subMap.size();
         subMap.clear();
@@ -366,13 +447,11 @@ public class StagingDatabase implements ObjectDatabase {
     }
 
     public int removeUnStaged(final List<String> pathFilter) {
-        SortedMap<List<String>, DiffEntry> subMap = unstaged;
-
         if (pathFilter != null && pathFilter.size() > 0) {
-            subMap = staged.subMap(pathFilter, true, pathFilter, true);
+            return unstaged.remove(pathFilter) == null ? 0 : 1;
         }
-        int size = subMap.size();
-        subMap.clear();
+        int size = unstaged.size();
+        unstaged.clear();
         return size;
     }
 
@@ -410,6 +489,20 @@ public class StagingDatabase implements ObjectDatabase {
         return exists;
     }
 
+    @Override
+    public boolean exists(ObjectId id, TYPE type) {
+        return stagingDb.exists(id, type) || repositoryDb.exists(id, type);
+    }
+
+    @Override
+    public TYPE getType(ObjectId id) {
+        TYPE type = stagingDb.getType(id);
+        if (type == null) {
+            type = repositoryDb.getType(id);
+        }
+        return type;
+    }
+
     @Override
     public InputStream getRaw(ObjectId id) throws IOException {
         if (stagingDb.exists(id)) {
@@ -433,6 +526,118 @@ public class StagingDatabase implements ObjectDatabase {
         return repositoryDb.get(id, reader);
     }
 
+    /**
+     * Runs {@link #get(ObjectId, ObjectReader)} on the shared read executor, so finding out which
+     * database holds the object doesn't block the caller either.
+     * 
+     * @see org.geogit.storage.ObjectDatabase#getAsync(org.geogit.api.ObjectId,
+     *      org.geogit.storage.ObjectReader)
+     */
+    @Override
+    public <T> ListenableFuture<T> getAsync(final ObjectId id, final ObjectReader<T> reader) {
+        return AbstractObjectDatabase.defaultReadExecutor().submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return get(id, reader);
+            }
+        });
+    }
+
+    /**
+     * @see #getAsync(ObjectId, ObjectReader)
+     */
+    @Override
+    public ListenableFuture<InputStream> getRawAsync(final ObjectId id) {
+        return AbstractObjectDatabase.defaultReadExecutor().submit(new Callable<InputStream>() {
+            @Override
+            public InputStream call() throws Exception {
+                return getRaw(id);
+            }
+        });
+    }
+
+    /**
+     * @see #getAsync(ObjectId, ObjectReader)
+     */
+    @Override
+    public ListenableFuture<RevTree> getTreeAsync(final ObjectId treeId) {
+        return AbstractObjectDatabase.defaultReadExecutor().submit(new Callable<RevTree>() {
+            @Override
+            public RevTree call() throws Exception {
+                return getTree(treeId);
+            }
+        });
+    }
+
+    /**
+     * Splits each batch of ids between the staging and the repository databases, and reads each
+     * part with a single batch read on each database.
+     * 
+     * @see org.geogit.storage.ObjectDatabase#getAll(java.lang.Iterable,
+     *      org.geogit.storage.ObjectReader)
+     */
+    @Override
+    public <T> Iterator<T> getAll(final Iterable<ObjectId> ids, final ObjectReader<T> reader) {
+        Iterator<List<ObjectId>> batches = Iterables.partition(ids,
+                AbstractObjectDatabase.GET_ALL_BATCH_SIZE).iterator();
+        return Iterators.concat(Iterators.transform(batches,
+                new Function<List<ObjectId>, Iterator<T>>() {
+                    @Override
+                    public Iterator<T> apply(final List<ObjectId> batch) {
+                        List<ObjectId> staged = new ArrayList<ObjectId>();
+                        List<ObjectId> committed = new ArrayList<ObjectId>();
+                        boolean[] isStaged = split(batch, staged, committed);
+                        return merge(isStaged, stagingDb.getAll(staged, reader),
+                                repositoryDb.getAll(committed, reader));
+                    }
+                }));
+    }
+
+    /**
+     * @see #getAll(Iterable, ObjectReader)
+     * @see org.geogit.storage.ObjectDatabase#getAllRaw(java.lang.Iterable)
+     */
+    @Override
+    public Iterator<InputStream> getAllRaw(final Iterable<ObjectId> ids) {
+        Iterator<List<ObjectId>> batches = Iterables.partition(ids,
+                AbstractObjectDatabase.GET_ALL_BATCH_SIZE).iterator();
+        return Iterators.concat(Iterators.transform(batches,
+                new Function<List<ObjectId>, Iterator<InputStream>>() {
+                    @Override
+                    public Iterator<InputStream> apply(final List<ObjectId> batch) {
+                        List<ObjectId> staged = new ArrayList<ObjectId>();
+                        List<ObjectId> committed = new ArrayList<ObjectId>();
+                        boolean[] isStaged = split(batch, staged, committed);
+                        return merge(isStaged, stagingDb.getAllRaw(staged),
+                                repositoryDb.getAllRaw(committed));
+                    }
+                }));
+    }
+
+    /**
+     * @return whether each id of the batch is in the staging database, in which case it's added
+     *         to {@code staged}, or not, in which case it's added to {@code committed}
+     */
+    private boolean[] split(final List<ObjectId> batch, final List<ObjectId> staged,
+            final List<ObjectId> committed) {
+        final boolean[] isStaged = new boolean[batch.size()];
+        for (int i = 0; i < isStaged.length; i++) {
+            final ObjectId id = batch.get(i);
+            isStaged[i] = stagingDb.exists(id);
+            (isStaged[i] ? staged : committed).add(id);
+        }
+        return isStaged;
+    }
+
+    private static <T> Iterator<T> merge(final boolean[] isStaged,
+            final Iterator<T> fromStaging, final Iterator<T> fromRepository) {
+        List<T> merged = new ArrayList<T>(isStaged.length);
+        for (boolean staged : isStaged) {
+            merged.add(staged ? fromStaging.next() : fromRepository.next());
+        }
+        return merged.iterator();
+    }
+
     @Override
     public <T> T getCached(ObjectId id, ObjectReader<T> reader) throws IOException {
         if (stagingDb.exists(id)) {
@@ -451,6 +656,11 @@ public class StagingDatabase implements ObjectDatabase {
         return stagingDb.put(id, writer);
     }
 
+    @Override
+    public ObjectId putDelta(ObjectId baseId, ObjectWriter<?> writer) throws Exception {
+        return stagingDb.putDelta(baseId, writer);
+    }
+
     @Override
     public ObjectId writeBack(MutableTree root, RevTree tree, List<String> pathToTree)
             throws Exception {
@@ -462,6 +672,16 @@ public class StagingDatabase implements ObjectDatabase {
         return stagingDb.newObjectInserter();
     }
 
+    @Override
+    public ObjectInserter newBatchObjectInserter() {
+        return stagingDb.newBatchObjectInserter();
+    }
+
+    @Override
+    public PipelinedObjectInserter newPipelinedObjectInserter() {
+        return stagingDb.newPipelinedObjectInserter();
+    }
+
     @Override
     public RevBlob getBlob(ObjectId objectId) {
         if (stagingDb.exists(objectId)) {
@@ -0,0 +1,168 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.util.List;
+import java.util.Map;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevBlob;
+import org.geogit.api.RevCommit;
+import org.geogit.api.SpatialRef;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+/**
+ * {@link ObjectCache} bounded by the estimated heap size of the cached objects rather than by the
+ * number of them, so that a leaf tree holding thousands of entries accounts for more of the cache
+ * budget than a commit does.
+ * <p>
+ * Backed by a segmented Guava {@link Cache}, so concurrent readers don't block each other and
+ * eviction happens per segment in approximate LRU order.
+ * </p>
+ */
+public class WeightedObjectCache implements ObjectCache {
+
+    private final Cache<ObjectId, Object> cache;
+
+    private final long maxSizeBytes;
+
+    public WeightedObjectCache() {
+        this(new ObjectCacheConfig());
+    }
+
+    public WeightedObjectCache(final ObjectCacheConfig config) {
+        this(config.getMaxSizeBytes(), config.getConcurrencyLevel());
+    }
+
+    /**
+     * @param maxSizeBytes
+     *            the maximum estimated size of the cached objects
+     * @param concurrencyLevel
+     *            the number of segments the cache is split into
+     */
+    public WeightedObjectCache(final long maxSizeBytes, final int concurrencyLevel) {
+        Preconditions.checkArgument(maxSizeBytes >= 0);
+        Preconditions.checkArgument(concurrencyLevel > 0);
+        this.maxSizeBytes = maxSizeBytes;
+        this.cache = CacheBuilder.newBuilder().maximumWeight(maxSizeBytes)
+                .weigher(new ObjectWeigher()).concurrencyLevel(concurrencyLevel).build();
+    }
+
+    public long getMaxSizeBytes() {
+        return maxSizeBytes;
+    }
+
+    @Override
+    public Object getIfPresent(final ObjectId id) {
+        return cache.getIfPresent(id);
+    }
+
+    @Override
+    public void put(final ObjectId id, final Object object) {
+        Preconditions.checkNotNull(id);
+        Preconditions.checkNotNull(object);
+        cache.put(id, object);
+    }
+
+    @Override
+    public void invalidate(final ObjectId id) {
+        cache.invalidate(id);
+    }
+
+    @Override
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public long size() {
+        return cache.size();
+    }
+
+    @Override
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(getClass().getSimpleName()).append("[max bytes: ")
+                .append(maxSizeBytes).append(", size: ").append(size()).append(", ")
+                .append(stats()).append(']').toString();
+    }
+
+    /**
+     * Rough estimate of the heap size of the objects handled by the object database. It doesn't
+     * need to be accurate, just proportional to the real footprint.
+     */
+    static final class ObjectWeigher implements Weigher<ObjectId, Object> {
+
+        private static final int OBJECT_ID_SIZE = 16 + 40;
+
+        private static final int MAP_ENTRY_SIZE = 40;
+
+        private static final int REF_SIZE = 24 + OBJECT_ID_SIZE;
+
+        private static final int BOUNDS_SIZE = 64;
+
+        private static final int DEFAULT_SIZE = 1024;
+
+        @Override
+        public int weigh(final ObjectId key, final Object value) {
+            long size = OBJECT_ID_SIZE;
+            if (value instanceof RevSHA1Tree) {
+                size += weigh((RevSHA1Tree) value);
+            } else if (value instanceof CompactRevTree) {
+                size += ((CompactRevTree) value).weight();
+            } else if (value instanceof RevCommit) {
+                size += weigh((RevCommit) value);
+            } else if (value instanceof RevBlob) {
+                Object parsed = ((RevBlob) value).getParsed();
+                size += 16 + (parsed instanceof byte[] ? ((byte[]) parsed).length : DEFAULT_SIZE);
+            } else {
+                size += DEFAULT_SIZE;
+            }
+            return (int) Math.min(Integer.MAX_VALUE, size);
+        }
+
+        private long weigh(final RevSHA1Tree tree) {
+            long size = 64;
+            for (Map.Entry<String, Ref> e : tree.myEntries.entrySet()) {
+                size += MAP_ENTRY_SIZE + stringSize(e.getKey());
+                Ref ref = e.getValue();
+                if (ref != null) {
+                    size += REF_SIZE;
+                    if (ref instanceof SpatialRef) {
+                        size += BOUNDS_SIZE;
+                    }
+                }
+            }
+            size += tree.mySubTrees.size() * (MAP_ENTRY_SIZE + 16 + REF_SIZE);
+            return size;
+        }
+
+        private long weigh(final RevCommit commit) {
+            long size = 64 + OBJECT_ID_SIZE;
+            List<ObjectId> parentIds = commit.getParentIds();
+            if (parentIds != null) {
+                size += parentIds.size() * OBJECT_ID_SIZE;
+            }
+            size += stringSize(commit.getAuthor());
+            size += stringSize(commit.getCommitter());
+            size += stringSize(commit.getMessage());
+            return size;
+        }
+
+        private static int stringSize(final String s) {
+            return s == null ? 0 : 40 + 2 * s.length();
+        }
+    }
+}
@@ -57,7 +57,7 @@ public class EnvironmentBuilder {
                 envCfg.setCachePercent(50);
             } else {
                 LOGGER.info("Disk quota page store cache explicitly set to " + cacheSizeMB + "MB");
-                envCfg.setCacheSize(cacheSizeMB);
+                envCfg.setCacheSize(cacheSizeMB.longValue() * 1024 * 1024);
             }
         } else {
             envCfg.setCachePercent(cacheMemoryPercentAllowed);
@@ -0,0 +1,138 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.bdbje;
+
+import java.util.concurrent.TimeUnit;
+
+import org.geogit.metrics.Gauge;
+import org.geogit.metrics.MetricsRegistry;
+
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentStats;
+import com.sleepycat.je.StatsConfig;
+
+/**
+ * Exposes the cache and I/O statistics of a JE environment as gauges.
+ * <p>
+ * The statistics are fetched with {@link StatsConfig#setFast(boolean) fast} stats and without
+ * clearing them, at most once a second however many gauges are read, so reading them doesn't
+ * disturb the environment.
+ * </p>
+ */
+final class EnvironmentMetrics {
+
+    private static final long REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final Environment env;
+
+    private EnvironmentStats stats;
+
+    private long statsTime;
+
+    private EnvironmentMetrics(final Environment env) {
+        this.env = env;
+    }
+
+    /**
+     * Registers the gauges of the environment statistics in {@code registry}
+     */
+    static void register(final MetricsRegistry registry, final Environment env) {
+        final EnvironmentMetrics metrics = new EnvironmentMetrics(env);
+        registry.register("cacheTotalBytes", new StatGauge(metrics) {
+            @Override
+            long value(final EnvironmentStats stats) {
+                return stats.getCacheTotalBytes();
+            }
+        });
+        registry.register("cacheDataBytes", new StatGauge(metrics) {
+            @Override
+            long value(final EnvironmentStats stats) {
+                return stats.getDataBytes();
+            }
+        });
+        registry.register("cacheMisses", new StatGauge(metrics) {
+            @Override
+            long value(final EnvironmentStats stats) {
+                return stats.getNCacheMiss();
+            }
+        });
+        registry.register("evictPasses", new StatGauge(metrics) {
+            @Override
+            long value(final EnvironmentStats stats) {
+                return stats.getNEvictPasses();
+            }
+        });
+        registry.register("randomReads", new StatGauge(metrics) {
+            @Override
+            long value(final EnvironmentStats stats) {
+                return stats.getNRandomReads();
+            }
+        });
+        registry.register("sequentialReads", new StatGauge(metrics) {
+            @Override
+            long value(final EnvironmentStats stats) {
+                return stats.getNSequentialReads();
+            }
+        });
+        registry.register("randomWrites", new StatGauge(metrics) {
+            @Override
+            long value(final EnvironmentStats stats) {
+                return stats.getNRandomWrites();
+            }
+        });
+        registry.register("sequentialWrites", new StatGauge(metrics) {
+            @Override
+            long value(final EnvironmentStats stats) {
+                return stats.getNSequentialWrites();
+            }
+        });
+        registry.register("fsyncs", new StatGauge(metrics) {
+            @Override
+            long value(final EnvironmentStats stats) {
+                return stats.getNFSyncs();
+            }
+        });
+        registry.register("cleanerBacklog", new StatGauge(metrics) {
+            @Override
+            long value(final EnvironmentStats stats) {
+                return stats.getCleanerBacklog();
+            }
+        });
+        registry.register("totalLogSize", new StatGauge(metrics) {
+            @Override
+            long value(final EnvironmentStats stats) {
+                return stats.getTotalLogSize();
+            }
+        });
+    }
+
+    private synchronized EnvironmentStats stats() {
+        final long now = System.nanoTime();
+        if (stats == null || now - statsTime > REFRESH_INTERVAL) {
+            StatsConfig config = new StatsConfig();
+            config.setFast(true);
+            config.setClear(false);
+            stats = env.getStats(config);
+            statsTime = now;
+        }
+        return stats;
+    }
+
+    private static abstract class StatGauge implements Gauge<Long> {
+
+        private final EnvironmentMetrics metrics;
+
+        StatGauge(final EnvironmentMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Long getValue() {
+            return Long.valueOf(value(metrics.stats()));
+        }
+
+        abstract long value(EnvironmentStats stats);
+    }
+}
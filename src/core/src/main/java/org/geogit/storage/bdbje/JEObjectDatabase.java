@@ -7,19 +7,34 @@ package org.geogit.storage.bdbje;
 import static com.sleepycat.je.OperationStatus.NOTFOUND;
 import static com.sleepycat.je.OperationStatus.SUCCESS;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.geogit.api.ObjectId;
 import org.geogit.storage.AbstractObjectDatabase;
+import org.geogit.storage.ObjectCache;
 import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.ObjectIdBloomFilter;
 import org.geotools.util.logging.Logging;
 
 import com.google.common.base.Preconditions;
@@ -35,28 +50,113 @@ import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.Transaction;
 
 /**
+ * Object database backed by a Berkeley DB JE database keyed by object id.
+ * <p>
+ * Supports any number of concurrent readers alongside a single writer. Reads never take part in a
+ * transaction and use {@code READ_UNCOMMITTED} isolation, so they neither take locks nor wait for
+ * the locks of a writer's open transaction. Since objects are immutable and addressed by the hash
+ * of their contents, a record read before it's committed is already final, and a reader that
+ * resolved a commit gets a consistent snapshot of everything reachable from it: the objects a
+ * concurrent writer adds are not reachable until a ref is updated to point to them. The writer
+ * sees its own uncommitted records the same way. The refs tree is the one record rewritten in
+ * place, so a reader may see a ref update before the transaction holding it commits.
+ * </p>
+ * 
  * @TODO: extract interface
  */
 public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDatabase {
 
     private static final Logger LOGGER = Logging.getLogger(JEObjectDatabase.class);
 
+    private static final String DATABASE_NAME = "BlobStore";
+
+    private static final long BLOOM_FILTER_MIN_SIZE = 100000;
+
+    private static final double BLOOM_FILTER_FPP = 0.01;
+
     private final Environment env;
 
     private Database objectDb;
 
     private CurrentTransaction txn;
 
+    private boolean useBloomFilter;
+
+    private volatile ObjectIdBloomFilter bloomFilter;
+
+    private final AtomicLong avoidedProbes = new AtomicLong();
+
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    /**
+     * Held for reading while adding objects, and for writing while the bloom filter is rebuilt at
+     * runtime, so that the objects added meanwhile are neither missed by the key scan nor only
+     * added to the filter being replaced
+     */
+    private final ReadWriteLock bloomFilterLock = new ReentrantReadWriteLock();
+
     public JEObjectDatabase(final Environment env) {
         super();
         this.env = env;
     }
 
+    public JEObjectDatabase(final Environment env, final ObjectCache cache) {
+        super(cache);
+        this.env = env;
+    }
+
+    /**
+     * Enables or disables the {@link ObjectIdBloomFilter} used to answer {@link #exists(ObjectId)}
+     * for missing objects without probing the database. Must be called before {@link #create()}.
+     * <p>
+     * The filter is saved next to the environment files on {@link #close()} and loaded back on
+     * {@link #create()}. If it's missing, because the database was not closed cleanly or the
+     * filter was never enabled before, or if it's saturated, it's rebuilt by scanning the keys.
+     * It's also rebuilt, twice as big as the number of objects, as soon as the objects added while
+     * the database is open saturate it. Writes wait for the key scan to complete.
+     * </p>
+     */
+    public void setUseBloomFilter(final boolean useBloomFilter) {
+        Preconditions.checkState(objectDb == null, "database already created");
+        this.useBloomFilter = useBloomFilter;
+    }
+
+    /**
+     * @return the bloom filter in use, or {@code null} if it's not enabled
+     */
+    public ObjectIdBloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+
+    /**
+     * @return the number of {@link #exists(ObjectId)} calls answered by the bloom filter alone
+     */
+    public long getAvoidedProbes() {
+        return avoidedProbes.get();
+    }
+
+    /**
+     * @return the number of {@link #exists(ObjectId)} calls for missing objects the bloom filter
+     *         couldn't rule out
+     */
+    public long getBloomFilterFalsePositives() {
+        return falsePositives.get();
+    }
+
     /**
      * @see org.geogit.storage.ObjectDatabase#close()
      */
     @Override
     public void close() {
+        if (bloomFilter != null) {
+            try {
+                saveBloomFilter();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Can't save bloom filter, will be rebuilt on next open",
+                        e);
+            }
+            bloomFilter = null;
+        }
         objectDb.close();
     }
 
@@ -69,7 +169,80 @@ public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDa
         DatabaseConfig dbConfig = new DatabaseConfig();
         dbConfig.setAllowCreate(true);
         dbConfig.setTransactional(env.getConfig().getTransactional());
-        this.objectDb = env.openDatabase(null, "BlobStore", dbConfig);
+        this.objectDb = env.openDatabase(null, DATABASE_NAME, dbConfig);
+        if (useBloomFilter) {
+            this.bloomFilter = loadBloomFilter();
+        } else {
+            // a filter saved by a previous session would miss the writes done by this one
+            bloomFilterFile().delete();
+        }
+    }
+
+    private File bloomFilterFile() {
+        return new File(env.getHome(), DATABASE_NAME + ".bloom");
+    }
+
+    private ObjectIdBloomFilter loadBloomFilter() {
+        final File file = bloomFilterFile();
+        if (file.exists()) {
+            ObjectIdBloomFilter filter = null;
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file), 64 * 1024));
+                try {
+                    filter = ObjectIdBloomFilter.readFrom(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Can't read bloom filter, rebuilding it", e);
+            }
+            // the file is written back on close, if it's not there on next open the filter
+            // may have missed some writes
+            if (!file.delete()) {
+                throw new IllegalStateException("Can't delete " + file.getAbsolutePath());
+            }
+            if (filter != null && !filter.isSaturated()) {
+                return filter;
+            }
+        }
+        return rebuildBloomFilter();
+    }
+
+    private ObjectIdBloomFilter rebuildBloomFilter() {
+        final long count = objectDb.count();
+        final ObjectIdBloomFilter filter = ObjectIdBloomFilter.create(
+                Math.max(BLOOM_FILTER_MIN_SIZE, 2 * count), BLOOM_FILTER_FPP);
+
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry data = new DatabaseEntry();
+        data.setPartial(0, 0, true);// do not retrieve data
+        Cursor cursor = objectDb.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+        try {
+            while (SUCCESS.equals(cursor.getNext(key, data, LockMode.DEFAULT))) {
+                filter.put(new ObjectId(key.getData()));
+            }
+        } finally {
+            cursor.close();
+        }
+        LOGGER.fine("Rebuilt " + filter);
+        return filter;
+    }
+
+    private void saveBloomFilter() throws IOException {
+        final File file = bloomFilterFile();
+        final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                tmp), 64 * 1024));
+        try {
+            bloomFilter.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can't rename " + tmp.getAbsolutePath());
+        }
     }
 
     @Override
@@ -86,11 +259,7 @@ public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDa
 
         List<ObjectId> matches;
 
-        CursorConfig cursorConfig = new CursorConfig();
-        cursorConfig.setReadCommitted(true);
-        cursorConfig.setReadUncommitted(false);
-
-        Cursor cursor = objectDb.openCursor(txn.getTransaction(), cursorConfig);
+        Cursor cursor = objectDb.openCursor(null, CursorConfig.READ_UNCOMMITTED);
         try {
             // position cursor at the first closest key to the one looked up
             OperationStatus status = cursor.getSearchKeyRange(key, data, LockMode.DEFAULT);
@@ -116,22 +285,82 @@ public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDa
         }
     }
 
+    /**
+     * Scans the keys with a read uncommitted cursor, so no locks are taken on the listed records.
+     * 
+     * @see org.geogit.storage.AbstractObjectDatabase#listInternal()
+     */
+    @Override
+    protected List<ObjectId> listInternal() {
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry data = new DatabaseEntry();
+        data.setPartial(0, 0, true);// do not retrieve data
+        Cursor cursor = objectDb.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+        try {
+            while (SUCCESS.equals(cursor.getNext(key, data, LockMode.DEFAULT))) {
+                ids.add(new ObjectId(key.getData()));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
     /**
      * @see org.geogit.storage.ObjectDatabase#exists(org.geogit.api.ObjectId)
      */
     @Override
     public boolean exists(final ObjectId id) {
         Preconditions.checkNotNull(id, "id");
+        final ObjectIdBloomFilter filter = bloomFilter;
+        if (filter != null && !filter.mightContain(id)) {
+            avoidedProbes.incrementAndGet();
+            return false;
+        }
 
         DatabaseEntry key = new DatabaseEntry(id.getRawValue());
         DatabaseEntry data = new DatabaseEntry();
         // tell db not to retrieve data
         data.setPartial(0, 0, true);
 
-        final LockMode lockMode = LockMode.DEFAULT;
-        CurrentTransaction.getInstance(env);
-        OperationStatus status = objectDb.get(txn.getTransaction(), key, data, lockMode);
-        return SUCCESS == status;
+        final LockMode lockMode = LockMode.READ_UNCOMMITTED;
+        OperationStatus status = objectDb.get(null, key, data, lockMode);
+        final boolean found = SUCCESS == status;
+        if (filter != null && !found) {
+            falsePositives.incrementAndGet();
+        }
+        return found;
+    }
+
+    /**
+     * Fetches only the requested bytes of the record with a partial get.
+     * 
+     * @see org.geogit.storage.AbstractObjectDatabase#readHeader(org.geogit.api.ObjectId, byte[])
+     */
+    @Override
+    protected int readHeader(final ObjectId id, final byte[] header) {
+        Preconditions.checkNotNull(id, "id");
+        final ObjectIdBloomFilter filter = bloomFilter;
+        if (filter != null && !filter.mightContain(id)) {
+            avoidedProbes.incrementAndGet();
+            return -1;
+        }
+        DatabaseEntry key = new DatabaseEntry(id.getRawValue());
+        DatabaseEntry data = new DatabaseEntry();
+        data.setPartial(0, header.length, true);
+
+        final LockMode lockMode = LockMode.READ_UNCOMMITTED;
+        OperationStatus status = objectDb.get(null, key, data, lockMode);
+        if (NOTFOUND.equals(status)) {
+            if (filter != null) {
+                falsePositives.incrementAndGet();
+            }
+            return -1;
+        }
+        final int length = data.getSize();
+        System.arraycopy(data.getData(), data.getOffset(), header, 0, length);
+        return length;
     }
 
     /**
@@ -143,9 +372,8 @@ public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDa
         DatabaseEntry key = new DatabaseEntry(id.getRawValue());
         DatabaseEntry data = new DatabaseEntry();
 
-        final LockMode lockMode = LockMode.READ_COMMITTED;
-        Transaction transaction = txn.getTransaction();
-        OperationStatus operationStatus = objectDb.get(transaction, key, data, lockMode);
+        final LockMode lockMode = LockMode.READ_UNCOMMITTED;
+        OperationStatus operationStatus = objectDb.get(null, key, data, lockMode);
         if (NOTFOUND.equals(operationStatus)) {
             throw new IllegalArgumentException("Object does not exist: " + id.toString());
         }
@@ -154,22 +382,63 @@ public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDa
         return new ByteArrayInputStream(cData);
     }
 
+    /**
+     * Sorts the ids in key order and looks them up walking a single read uncommitted cursor, so
+     * consecutive look ups mostly hit the bottom internal nodes already in the JE cache.
+     * 
+     * @see org.geogit.storage.AbstractObjectDatabase#getAllRawInternal(java.util.Collection)
+     */
+    @Override
+    protected Map<ObjectId, byte[]> getAllRawInternal(final Collection<ObjectId> ids) {
+        final List<ObjectId> sorted = new ArrayList<ObjectId>(ids);
+        Collections.sort(sorted, RAW_ORDER);
+        final ObjectIdBloomFilter filter = bloomFilter;
+        final Map<ObjectId, byte[]> records = new HashMap<ObjectId, byte[]>();
+        Cursor cursor = objectDb.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+        try {
+            for (ObjectId id : sorted) {
+                if (filter != null && !filter.mightContain(id)) {
+                    avoidedProbes.incrementAndGet();
+                    continue;
+                }
+                DatabaseEntry key = new DatabaseEntry(id.getRawValue());
+                DatabaseEntry data = new DatabaseEntry();
+                if (SUCCESS.equals(cursor.getSearchKey(key, data, LockMode.DEFAULT))) {
+                    records.put(id, data.getData());
+                } else if (filter != null) {
+                    falsePositives.incrementAndGet();
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return records;
+    }
+
     /**
      * @see org.geogit.storage.ObjectDatabase#put(org.geogit.storage.ObjectWriter)
      */
     @Override
-    protected boolean putInternal(final ObjectId id, final byte[] rawData, final boolean override)
-            throws IOException {
+    protected boolean putInternal(final ObjectId id, final byte[] rawData, final int length,
+            final boolean override) throws IOException {
         final byte[] rawKey = id.getRawValue();
         DatabaseEntry key = new DatabaseEntry(rawKey);
-        DatabaseEntry data = new DatabaseEntry(rawData);
+        DatabaseEntry data = new DatabaseEntry(rawData, 0, length);
 
         OperationStatus status;
-        if (override) {
-            status = objectDb.put(txn.getTransaction(), key, data);
-        } else {
-            status = objectDb.putNoOverwrite(txn.getTransaction(), key, data);
+        bloomFilterLock.readLock().lock();
+        try {
+            // added before writing, so that the filter never denies an object that's visible
+            addToBloomFilter(id);
+            if (override) {
+                status = objectDb.put(txn.getTransaction(), key, data);
+            } else {
+                status = objectDb.putNoOverwrite(txn.getTransaction(), key, data);
+            }
+        } finally {
+            bloomFilterLock.readLock().unlock();
         }
+        rebuildBloomFilterIfSaturated();
         final boolean didntExist = SUCCESS.equals(status);
 
         if (LOGGER.isLoggable(Level.FINER)) {
@@ -180,8 +449,80 @@ public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDa
         return didntExist;
     }
 
+    /**
+     * Writes all the records in a single JE transaction, or in the thread's current transaction if
+     * there's one in progress.
+     * 
+     * @see org.geogit.storage.AbstractObjectDatabase#putAllInternal(java.util.Map)
+     */
+    @Override
+    protected void putAllInternal(final Map<ObjectId, byte[]> records) throws IOException {
+        bloomFilterLock.readLock().lock();
+        try {
+            writeAll(records);
+        } finally {
+            bloomFilterLock.readLock().unlock();
+        }
+        rebuildBloomFilterIfSaturated();
+    }
+
+    private void writeAll(final Map<ObjectId, byte[]> records) {
+        final Transaction current = txn.getTransaction();
+        final boolean ownTransaction = current == null && env.getConfig().getTransactional();
+        final Transaction transaction = ownTransaction ? env.beginTransaction(null, null)
+                : current;
+        boolean committed = false;
+        try {
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            for (Map.Entry<ObjectId, byte[]> record : records.entrySet()) {
+                addToBloomFilter(record.getKey());
+                key.setData(record.getKey().getRawValue());
+                data.setData(record.getValue());
+                objectDb.putNoOverwrite(transaction, key, data);
+            }
+            if (ownTransaction) {
+                transaction.commit();
+            }
+            committed = true;
+        } finally {
+            if (ownTransaction && !committed) {
+                transaction.abort();
+            }
+        }
+    }
+
+    private void addToBloomFilter(final ObjectId id) {
+        final ObjectIdBloomFilter filter = bloomFilter;
+        if (filter != null) {
+            filter.put(id);
+        }
+    }
+
+    /**
+     * Replaces the bloom filter by a bigger one if more objects were added to it than it was sized
+     * for, since its false positive rate keeps growing past that point. Must not be called while
+     * holding the {@link #bloomFilterLock} read lock.
+     */
+    private void rebuildBloomFilterIfSaturated() {
+        final ObjectIdBloomFilter filter = bloomFilter;
+        if (filter == null || !filter.isSaturated()) {
+            return;
+        }
+        bloomFilterLock.writeLock().lock();
+        try {
+            // another writer may have rebuilt it meanwhile
+            if (bloomFilter == filter) {
+                LOGGER.fine("Bloom filter saturated, rebuilding it: " + filter);
+                bloomFilter = rebuildBloomFilter();
+            }
+        } finally {
+            bloomFilterLock.writeLock().unlock();
+        }
+    }
+
     @Override
-    public boolean delete(final ObjectId id) {
+    protected boolean deleteInternal(final ObjectId id) {
         final byte[] rawKey = id.getRawValue();
         final DatabaseEntry key = new DatabaseEntry(rawKey);
 
@@ -4,9 +4,13 @@
  */
 package org.geogit.storage.bdbje;
 
+import org.geogit.metrics.MetricsRegistry;
+import org.geogit.storage.ObjectCacheConfig;
+import org.geogit.storage.OffHeapRecordCache;
 import org.geogit.storage.RefDatabase;
 import org.geogit.storage.RepositoryDatabase;
 import org.geogit.storage.StagingDatabase;
+import org.geogit.storage.WeightedObjectCache;
 
 import com.sleepycat.je.Environment;
 
@@ -22,17 +26,45 @@ public class JERepositoryDatabase implements RepositoryDatabase {
 
     private StagingDatabase stagingDatabase;
 
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
     public JERepositoryDatabase(final Environment repositoryEnvironment,
             final Environment stagingEnvironment) {
+        this(repositoryEnvironment, stagingEnvironment, new ObjectCacheConfig());
+    }
+
+    /**
+     * @param cacheConfig
+     *            configuration for the cache of decoded objects of both the repository and the
+     *            staging object databases, and for the record cache of the repository object
+     *            database
+     */
+    public JERepositoryDatabase(final Environment repositoryEnvironment,
+            final Environment stagingEnvironment, final ObjectCacheConfig cacheConfig) {
 
         this.repositoryEnvironment = repositoryEnvironment;
         this.stagingEnvironment = stagingEnvironment;
-        this.repositoryObjectDb = new JEObjectDatabase(repositoryEnvironment);
+        this.repositoryObjectDb = new JEObjectDatabase(repositoryEnvironment,
+                new WeightedObjectCache(cacheConfig));
+        final Integer recordCacheSizeMB = cacheConfig.getRecordCacheSizeMB();
+        if (recordCacheSizeMB != null) {
+            this.repositoryObjectDb.setRecordCache(new OffHeapRecordCache(recordCacheSizeMB
+                    .longValue() * 1024 * 1024));
+        }
         this.referenceDatabase = new RefDatabase(repositoryObjectDb);
 
-        JEObjectDatabase stagingObjectDb = new JEObjectDatabase(stagingEnvironment);
+        JEObjectDatabase stagingObjectDb = new JEObjectDatabase(stagingEnvironment,
+                new WeightedObjectCache(cacheConfig));
+        // most staging database look ups are for objects that live in the repository database
+        stagingObjectDb.setUseBloomFilter(true);
         this.stagingDatabase = new StagingDatabase(repositoryObjectDb, stagingObjectDb,
                 stagingEnvironment);
+
+        repositoryObjectDb.setMetrics(metrics.scope("objects"));
+        referenceDatabase.setMetrics(metrics.scope("refs"));
+        stagingDatabase.setMetrics(metrics.scope("staging"));
+        EnvironmentMetrics.register(metrics.scope("je.repository"), repositoryEnvironment);
+        EnvironmentMetrics.register(metrics.scope("je.staging"), stagingEnvironment);
     }
 
     /**
@@ -82,6 +114,14 @@ public class JERepositoryDatabase implements RepositoryDatabase {
         return stagingDatabase;
     }
 
+    /**
+     * @see org.geogit.storage.RepositoryDatabase#getMetrics()
+     */
+    @Override
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
     @Override
     public void beginTransaction() {
         // CurrentTransaction.getInstance(environment).beginTransaction(null);
@@ -10,26 +10,139 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
 
 import org.geogit.api.ObjectId;
 import org.geogit.storage.AbstractObjectDatabase;
+import org.geogit.storage.ObjectCache;
 import org.geogit.storage.ObjectDatabase;
+import org.geotools.util.logging.Logging;
 
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * {@link ObjectDatabase} storing objects in the file system.
+ * <p>
+ * Objects are stored either as <i>loose</i> objects, one file per object under a two level
+ * directory structure named after the first bytes of the object id, or in append-only
+ * <i>packs</i> under the {@code pack} directory, whose memory mapped indexes allow reading an
+ * object without opening a file for it. Whether new objects are written loose or packed is
+ * decided at construction time; objects are read from the loose files first and then from the
+ * packs regardless. A loose copy is never older than a packed copy of the same object: overriding
+ * puts in packed mode delete the loose copy, and {@link #packLooseObjects()} appends loose copies
+ * to a new pack, which shadows the older ones.
+ * </p>
+ * <p>
+ * Loose objects are moved to a pack either explicitly through {@link #packLooseObjects()}, or
+ * automatically once {@link #setPackThreshold(int) a number of them} were written. The threshold
+ * is disabled by default, so a database in loose mode keeps one file per object unless asked
+ * otherwise.
+ * </p>
+ * <p>
+ * The ids of the loose objects are kept in a sorted in-memory {@link LooseObjectIndex}, so
+ * existence checks and partial id look ups don't hit the file system once the relevant fan-out
+ * directory was scanned.
+ * </p>
+ */
 public class FileObjectDatabase extends AbstractObjectDatabase implements ObjectDatabase {
 
+    private static final Logger LOGGER = Logging.getLogger(FileObjectDatabase.class);
+
+    private static final String PACK_DIR = "pack";
+
     private final File environment;
 
     private final String environmentPath;
 
+    private final boolean packed;
+
+    private final PackDatabase packDb;
+
+    private final LooseObjectIndex looseIndex;
+
+    /**
+     * Held for reading while writing loose objects and for writing while packing them, so that a
+     * loose object written while packing is neither lost nor dropped from the index
+     */
+    private final ReadWriteLock looseLock = new ReentrantReadWriteLock();
+
+    private final AtomicInteger looseWrites = new AtomicInteger();
+
+    private volatile int packThreshold;
+
     public FileObjectDatabase(final File environment) {
+        this(environment, false);
+    }
+
+    /**
+     * @param packed
+     *            whether new objects are appended to pack files instead of written as loose
+     *            objects
+     */
+    public FileObjectDatabase(final File environment, final boolean packed) {
+        this.environment = environment;
+        this.environmentPath = environment.getAbsolutePath();
+        this.packed = packed;
+        this.packDb = new PackDatabase(new File(environment, PACK_DIR));
+        this.looseIndex = new LooseObjectIndex(environment);
+    }
+
+    public FileObjectDatabase(final File environment, final ObjectCache cache) {
+        this(environment, cache, false);
+    }
+
+    public FileObjectDatabase(final File environment, final ObjectCache cache,
+            final boolean packed) {
+        super(cache);
         this.environment = environment;
         this.environmentPath = environment.getAbsolutePath();
+        this.packed = packed;
+        this.packDb = new PackDatabase(new File(environment, PACK_DIR));
+        this.looseIndex = new LooseObjectIndex(environment);
+    }
+
+    public boolean isPacked() {
+        return packed;
     }
 
+    /**
+     * @param threshold
+     *            the number of loose objects to write before moving them all to a pack, {@code 0}
+     *            to only pack them when {@link #packLooseObjects()} is called
+     */
+    public void setPackThreshold(final int threshold) {
+        Preconditions.checkArgument(threshold >= 0, "threshold must be >= 0");
+        this.packThreshold = threshold;
+    }
+
+    public int getPackThreshold() {
+        return packThreshold;
+    }
+
+    /**
+     * Seals the pack being written, if any, so that its objects are durable and memory mapped.
+     */
     @Override
     public void close() {
-        // TODO Auto-generated method stub
+        try {
+            packDb.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
@@ -46,50 +159,235 @@ public class FileObjectDatabase extends AbstractObjectDatabase implements Object
             throw new IllegalStateException("Environment is not writable: "
                     + environment.getAbsolutePath());
         }
+        try {
+            packDb.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't open pack files at "
+                    + environment.getAbsolutePath(), e);
+        }
     }
 
     @Override
     public boolean exists(final ObjectId id) {
-        File f = filePath(id);
-        return f.exists();
+        if (packDb.exists(id)) {
+            return true;
+        }
+        return looseIndex.contains(id);
     }
 
     @Override
     protected InputStream getRawInternal(ObjectId id) throws IOException {
+        if (looseIndex.contains(id)) {
+            try {
+                return new FileInputStream(filePath(id));
+            } catch (FileNotFoundException packedMeanwhile) {
+                // fall back to the packs
+            }
+        }
+        InputStream packed = packDb.getRaw(id);
+        if (packed != null) {
+            return packed;
+        }
         File f = filePath(id);
         return new FileInputStream(f);
     }
 
     /**
-     * @see org.geogit.storage.AbstractObjectDatabase#putInternal(org.geogit.api.ObjectId, byte[])
+     * Reads the loose objects in id order, so the files of each fan-out directory are read one
+     * after the other, then the remaining ones pack by pack in pack order.
+     * 
+     * @see org.geogit.storage.AbstractObjectDatabase#getAllRawInternal(java.util.Collection)
      */
     @Override
-    protected boolean putInternal(final ObjectId id, final byte[] rawData, final boolean override)
+    protected Map<ObjectId, byte[]> getAllRawInternal(final Collection<ObjectId> ids)
             throws IOException {
-        final File f = filePath(id);
-        if (!override && f.exists()) {
-            return false;
+        final Map<ObjectId, byte[]> records = new HashMap<ObjectId, byte[]>();
+        final List<ObjectId> loose = new ArrayList<ObjectId>();
+        for (ObjectId id : ids) {
+            if (looseIndex.contains(id)) {
+                loose.add(id);
+            }
+        }
+        Collections.sort(loose, RAW_ORDER);
+        for (ObjectId id : loose) {
+            try {
+                records.put(id, Files.toByteArray(filePath(id)));
+            } catch (FileNotFoundException deletedMeanwhile) {
+                continue;
+            }
+        }
+        packDb.getAll(ids, records);
+        return records;
+    }
+
+    /**
+     * @return the size of the loose copy of the object if there's one, since that's the one
+     *         {@link #deleteInternal(ObjectId)} deletes
+     */
+    @Override
+    protected long sizeInternal(final ObjectId id) throws IOException {
+        if (looseIndex.contains(id)) {
+            return filePath(id).length();
         }
+        return super.sizeInternal(id);
+    }
 
-        FileOutputStream fileOutputStream;
+    /**
+     * @see org.geogit.storage.AbstractObjectDatabase#putInternal(ObjectId, byte[], int, boolean)
+     */
+    @Override
+    protected boolean putInternal(final ObjectId id, final byte[] rawData, final int length,
+            final boolean override) throws IOException {
+        if (packed) {
+            if (!override && exists(id)) {
+                return false;
+            }
+            packDb.put(id, rawData, length);
+            if (override && looseIndex.contains(id)) {
+                // the loose copy would shadow the new contents
+                deleteInternal(id);
+            }
+            return true;
+        }
+        looseLock.readLock().lock();
         try {
-            fileOutputStream = new FileOutputStream(f);
-        } catch (FileNotFoundException dirDoesNotExist) {
-            final File parent = f.getParentFile();
-            if (!parent.exists() && !parent.mkdirs()) {
-                throw new IOException("Can't create " + parent.getAbsolutePath());
+            if (!override && looseIndex.contains(id)) {
+                return false;
+            }
+            final File f = filePath(id);
+
+            FileOutputStream fileOutputStream;
+            try {
+                fileOutputStream = new FileOutputStream(f);
+            } catch (FileNotFoundException dirDoesNotExist) {
+                final File parent = f.getParentFile();
+                if (!parent.exists() && !parent.mkdirs()) {
+                    throw new IOException("Can't create " + parent.getAbsolutePath());
+                }
+                fileOutputStream = new FileOutputStream(f);
             }
-            fileOutputStream = new FileOutputStream(f);
+            fileOutputStream.write(rawData, 0, length);
+            fileOutputStream.flush();
+            fileOutputStream.close();
+            looseIndex.add(id);
+        } finally {
+            looseLock.readLock().unlock();
+        }
+        final int threshold = packThreshold;
+        if (threshold > 0 && looseWrites.incrementAndGet() >= threshold) {
+            packLooseObjects();
         }
-        fileOutputStream.write(rawData);
-        fileOutputStream.flush();
-        fileOutputStream.close();
         return true;
     }
 
+    /**
+     * Deletes the loose copy of an object. Packs are append-only, so objects already moved to a
+     * pack are not deleted and this method returns {@code false} for them.
+     */
     @Override
-    public boolean delete(ObjectId objectId) {
-        return filePath(objectId).delete();
+    protected boolean deleteInternal(ObjectId objectId) {
+        final boolean deleted = filePath(objectId).delete();
+        if (deleted) {
+            looseIndex.remove(objectId);
+        }
+        return deleted;
+    }
+
+    /**
+     * Moves all the loose objects to a new pack and deletes their files. Loose objects that are
+     * also in a pack are appended again unless the packed copy has the same contents, since the
+     * loose copy may have been overridden after the object was packed.
+     * <p>
+     * The pack is sealed before the loose files are deleted, so no object is lost if the process
+     * dies half way. Loose objects can't be written meanwhile.
+     * </p>
+     *
+     * @return the number of loose objects removed
+     */
+    public int packLooseObjects() {
+        looseLock.writeLock().lock();
+        try {
+            looseWrites.set(0);
+            return packLooseObjectsInternal();
+        } finally {
+            looseLock.writeLock().unlock();
+        }
+    }
+
+    private int packLooseObjectsInternal() {
+        List<File> looseFiles = new ArrayList<File>();
+        try {
+            for (File dir1 : listHexDirs(environment)) {
+                for (File dir2 : listHexDirs(dir1)) {
+                    File[] files = dir2.listFiles();
+                    if (files == null) {
+                        continue;
+                    }
+                    for (File f : files) {
+                        final String name = f.getName();
+                        if (name.length() != 40 || !f.isFile()) {
+                            continue;
+                        }
+                        final ObjectId id = ObjectId.valueOf(name);
+                        final byte[] rawData = Files.toByteArray(f);
+                        if (!isPacked(id, rawData)) {
+                            packDb.put(id, rawData, rawData.length);
+                        }
+                        looseFiles.add(f);
+                    }
+                }
+            }
+            packDb.seal();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        for (File f : looseFiles) {
+            if (!f.delete()) {
+                LOGGER.warning("Can't delete packed loose object " + f.getAbsolutePath());
+            }
+        }
+        for (File dir1 : listHexDirs(environment)) {
+            for (File dir2 : listHexDirs(dir1)) {
+                dir2.delete();
+            }
+            dir1.delete();
+        }
+        looseIndex.clear();
+        LOGGER.fine("Moved " + looseFiles.size() + " loose objects to " + packDb);
+        return looseFiles.size();
+    }
+
+    /**
+     * @return whether the newest packed copy of the object has the given contents
+     */
+    private boolean isPacked(final ObjectId id, final byte[] rawData) throws IOException {
+        final InputStream packed = packDb.getRaw(id);
+        if (packed == null) {
+            return false;
+        }
+        try {
+            return Arrays.equals(rawData, ByteStreams.toByteArray(packed));
+        } finally {
+            packed.close();
+        }
+    }
+
+    /**
+     * @return the two character named sub directories of {@code dir}, as used to fan out the
+     *         loose objects
+     */
+    private static List<File> listHexDirs(final File dir) {
+        List<File> dirs = new ArrayList<File>();
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.getName().length() == 2 && child.isDirectory()) {
+                    dirs.add(child);
+                }
+            }
+        }
+        return dirs;
     }
 
     private File filePath(final ObjectId id) {
@@ -106,9 +404,16 @@ public class FileObjectDatabase extends AbstractObjectDatabase implements Object
         return new File(filePath);
     }
 
+    /**
+     * Looks up the partial id in the pack indexes and the {@link LooseObjectIndex}, without probing
+     * the file system.
+     */
     @Override
-    protected List<ObjectId> lookUpInternal(byte[] raw) {
-        throw new UnsupportedOperationException("This method is not yet implemented");
+    protected List<ObjectId> lookUpInternal(final byte[] raw) {
+        Set<ObjectId> matches = new TreeSet<ObjectId>();
+        packDb.lookUp(raw, matches);
+        looseIndex.lookUp(raw, matches);
+        return new ArrayList<ObjectId>(matches);
     }
 
 }
@@ -6,6 +6,7 @@ package org.geogit.storage.fs;
 
 import java.io.File;
 
+import org.geogit.metrics.MetricsRegistry;
 import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.RefDatabase;
 import org.geogit.storage.RepositoryDatabase;
@@ -19,11 +20,15 @@ public class FileSystemRepositoryDatabase implements RepositoryDatabase {
 
     private StagingDatabase stagingDatabase;
 
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
     public FileSystemRepositoryDatabase(final File repositoryEnvironment,
             final File stagingEnvironment) {
 
         this.repositoryObjectDb = new FileObjectDatabase(repositoryEnvironment);
         this.referenceDatabase = new RefDatabase(repositoryObjectDb);
+        repositoryObjectDb.setMetrics(metrics.scope("objects"));
+        referenceDatabase.setMetrics(metrics.scope("refs"));
 
         FileObjectDatabase stagingObjectDb = new FileObjectDatabase(stagingEnvironment);
         throw new UnsupportedOperationException("need to revisit here");
@@ -59,6 +64,11 @@ public class FileSystemRepositoryDatabase implements RepositoryDatabase {
         return stagingDatabase;
     }
 
+    @Override
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
     @Override
     public void beginTransaction() {
         // TODO Auto-generated method stub
@@ -0,0 +1,232 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.fs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.geogit.api.ObjectId;
+
+/**
+ * In-memory sorted index of the ids of the loose objects of a {@link FileObjectDatabase}, so that
+ * existence checks and partial id lookups are binary searches instead of file system probes.
+ * <p>
+ * The index is split in 256 buckets, one per first id byte and hence per top level fan-out
+ * directory. Each bucket is a single {@code byte[]} holding its sorted 20 bytes ids back to back,
+ * loaded from disk the first time it's accessed and kept up to date afterwards through
+ * {@link #add(ObjectId)} and {@link #remove(ObjectId)}. Objects written to the environment by
+ * another process after a bucket was loaded are not seen until {@link #clear()} is called.
+ * </p>
+ */
+final class LooseObjectIndex {
+
+    private static final int ID_SIZE = 20;
+
+    private final File environment;
+
+    private final Bucket[] buckets;
+
+    public LooseObjectIndex(final File environment) {
+        this.environment = environment;
+        this.buckets = new Bucket[256];
+        for (int i = 0; i < 256; i++) {
+            buckets[i] = new Bucket(i);
+        }
+    }
+
+    public boolean contains(final ObjectId id) {
+        final byte[] raw = id.getRawValue();
+        return bucket(raw).contains(raw);
+    }
+
+    public void add(final ObjectId id) {
+        final byte[] raw = id.getRawValue();
+        bucket(raw).add(raw);
+    }
+
+    public void remove(final ObjectId id) {
+        final byte[] raw = id.getRawValue();
+        bucket(raw).remove(raw);
+    }
+
+    /**
+     * Adds the ids of the loose objects starting with the given bytes to {@code target}
+     */
+    public void lookUp(final byte[] prefix, final Collection<ObjectId> target) {
+        if (prefix.length == 0) {
+            for (Bucket b : buckets) {
+                b.lookUp(prefix, target);
+            }
+        } else {
+            bucket(prefix).lookUp(prefix, target);
+        }
+    }
+
+    /**
+     * Discards the loaded buckets, so that they're read again from disk when next accessed
+     */
+    public void clear() {
+        for (Bucket b : buckets) {
+            b.clear();
+        }
+    }
+
+    private Bucket bucket(final byte[] raw) {
+        return buckets[raw[0] & 0xFF];
+    }
+
+    /**
+     * Compares the first {@code length} bytes of the id at position {@code index} in
+     * {@code ids} with those of {@code raw}, in unsigned byte order
+     */
+    private static int compare(final byte[] ids, final int index, final byte[] raw,
+            final int length) {
+        final int base = index * ID_SIZE;
+        for (int i = 0; i < length; i++) {
+            final int c = (ids[base + i] & 0xFF) - (raw[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    private static final Comparator<byte[]> UNSIGNED_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(final byte[] id1, final byte[] id2) {
+            return LooseObjectIndex.compare(id1, 0, id2, ID_SIZE);
+        }
+    };
+
+    private final class Bucket {
+
+        private final int firstByte;
+
+        private byte[] ids;
+
+        private int size;
+
+        Bucket(final int firstByte) {
+            this.firstByte = firstByte;
+        }
+
+        synchronized boolean contains(final byte[] raw) {
+            load();
+            return search(raw) >= 0;
+        }
+
+        synchronized void add(final byte[] raw) {
+            if (ids == null) {
+                // not loaded yet, will be found on disk when loaded
+                return;
+            }
+            final int pos = search(raw);
+            if (pos >= 0) {
+                return;
+            }
+            final int insertAt = -(pos + 1);
+            if ((size + 1) * ID_SIZE > ids.length) {
+                final byte[] grown = new byte[Math.max(16, size * 3 / 2 + 1) * ID_SIZE];
+                System.arraycopy(ids, 0, grown, 0, size * ID_SIZE);
+                ids = grown;
+            }
+            System.arraycopy(ids, insertAt * ID_SIZE, ids, (insertAt + 1) * ID_SIZE,
+                    (size - insertAt) * ID_SIZE);
+            System.arraycopy(raw, 0, ids, insertAt * ID_SIZE, ID_SIZE);
+            size++;
+        }
+
+        synchronized void remove(final byte[] raw) {
+            if (ids == null) {
+                return;
+            }
+            final int pos = search(raw);
+            if (pos < 0) {
+                return;
+            }
+            System.arraycopy(ids, (pos + 1) * ID_SIZE, ids, pos * ID_SIZE, (size - pos - 1)
+                    * ID_SIZE);
+            size--;
+        }
+
+        synchronized void lookUp(final byte[] prefix, final Collection<ObjectId> target) {
+            load();
+            // find the first id greater than or equal to the prefix
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (compare(ids, mid, prefix, prefix.length) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            for (int i = low; i < size && compare(ids, i, prefix, prefix.length) == 0; i++) {
+                final byte[] raw = new byte[ID_SIZE];
+                System.arraycopy(ids, i * ID_SIZE, raw, 0, ID_SIZE);
+                target.add(new ObjectId(raw));
+            }
+        }
+
+        synchronized void clear() {
+            ids = null;
+            size = 0;
+        }
+
+        /**
+         * @return the position of the id, or {@code (-(insertion point) - 1)} if not found, as
+         *         {@link java.util.Arrays#binarySearch(byte[], byte)} does
+         */
+        private int search(final byte[] raw) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int c = compare(ids, mid, raw, ID_SIZE);
+                if (c < 0) {
+                    low = mid + 1;
+                } else if (c > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        private void load() {
+            if (ids != null) {
+                return;
+            }
+            final List<byte[]> found = new ArrayList<byte[]>();
+            final String dirName = ObjectId.toString(new byte[] { (byte) firstByte });
+            final File[] subDirs = new File(environment, dirName).listFiles();
+            if (subDirs != null) {
+                for (File subDir : subDirs) {
+                    String[] names = subDir.list();
+                    if (names == null) {
+                        continue;
+                    }
+                    for (String name : names) {
+                        if (name.length() == 2 * ID_SIZE) {
+                            found.add(ObjectId.valueOf(name).getRawValue());
+                        }
+                    }
+                }
+            }
+            Collections.sort(found, UNSIGNED_ORDER);
+            ids = new byte[Math.max(16, found.size()) * ID_SIZE];
+            size = found.size();
+            for (int i = 0; i < size; i++) {
+                System.arraycopy(found.get(i), 0, ids, i * ID_SIZE, ID_SIZE);
+            }
+        }
+    }
+}
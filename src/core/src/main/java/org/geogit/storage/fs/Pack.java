@@ -0,0 +1,232 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geogit.api.ObjectId;
+import org.geogit.storage.ByteBufferInputStream;
+
+/**
+ * A sealed, read only pack file and its {@link PackIndex}, both memory mapped.
+ * <p>
+ * A pack file starts with an {@code int} magic number and an {@code int} format version, followed
+ * by the object records, each one being the 20 bytes object id, the {@code int} length of the
+ * object contents, and the contents themselves (the same raw bytes a loose object file holds).
+ * The ids and lengths are redundant with the index but allow to rebuild it if it's lost, for
+ * example when the process died before the pack was sealed.
+ * </p>
+ * <p>
+ * Reading an object is a lookup in the mapped index and a slice of the mapped pack file, so no
+ * file is opened per object and the contents are not copied to the heap.
+ * </p>
+ */
+final class Pack {
+
+    static final int MAGIC = 0x4750414b;// GPAK
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 8;
+
+    static final int RECORD_HEADER_SIZE = 20 + 4;
+
+    private final int sequence;
+
+    private final File packFile;
+
+    private final MappedByteBuffer data;
+
+    private final PackIndex index;
+
+    private Pack(final int sequence, final File packFile, final MappedByteBuffer data,
+            final PackIndex index) {
+        this.sequence = sequence;
+        this.packFile = packFile;
+        this.data = data;
+        this.index = index;
+    }
+
+    /**
+     * Maps a pack file and its index, rebuilding the index if it does not exist. The pack file is
+     * only opened for writing in that case, since recovering may truncate a torn trailing record.
+     */
+    public static Pack open(final int sequence, final File packFile, final File indexFile)
+            throws IOException {
+        final boolean recover = !indexFile.exists();
+        RandomAccessFile raf = new RandomAccessFile(packFile, recover ? "rw" : "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (recover) {
+                recoverIndex(channel, indexFile);
+            }
+            final long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Pack file too big to be mapped: "
+                        + packFile.getAbsolutePath());
+            }
+            MappedByteBuffer data = channel.map(MapMode.READ_ONLY, 0, length);
+            if (length < HEADER_SIZE || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+                throw new IOException("Not a pack file: " + packFile.getAbsolutePath());
+            }
+            PackIndex index = PackIndex.open(indexFile);
+            return new Pack(sequence, packFile, data, index);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Scans the records of a pack file that has no index and writes one. A trailing record that
+     * was only partially written is truncated away. If the same object was written more than once
+     * the last record wins.
+     */
+    private static void recoverIndex(final FileChannel channel, final File indexFile)
+            throws IOException {
+        final long length = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.limit(HEADER_SIZE);
+        if (length < HEADER_SIZE || channel.read(header, 0) != HEADER_SIZE
+                || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Not a pack file, can't recover "
+                    + indexFile.getAbsolutePath());
+        }
+
+        final Map<ObjectId, PackIndex.Entry> entries = new HashMap<ObjectId, PackIndex.Entry>();
+
+        long position = HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= length) {
+            header.clear();
+            while (header.hasRemaining()) {
+                if (channel.read(header, position + header.position()) < 0) {
+                    break;
+                }
+            }
+            final byte[] id = new byte[20];
+            header.flip();
+            header.get(id);
+            final int recordLength = header.getInt();
+            final long offset = position + RECORD_HEADER_SIZE;
+            if (recordLength < 0 || offset + recordLength > length) {
+                break;
+            }
+            entries.put(new ObjectId(id), new PackIndex.Entry(id, offset, recordLength));
+            position = offset + recordLength;
+        }
+        if (position < length) {
+            channel.truncate(position);
+        }
+        channel.force(true);
+        PackIndex.write(indexFile, entries.values().toArray(new PackIndex.Entry[entries.size()]));
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public File getPackFile() {
+        return packFile;
+    }
+
+    public File getIndexFile() {
+        return index.getFile();
+    }
+
+    /**
+     * @return the number of objects in the pack
+     */
+    public int size() {
+        return index.size();
+    }
+
+    public boolean contains(final ObjectId id) {
+        return index.find(id.getRawValue()) != -1;
+    }
+
+    /**
+     * @return a stream over the raw contents of the object, or {@code null} if it's not in this
+     *         pack
+     */
+    public InputStream getRaw(final ObjectId id) {
+        final int i = index.find(id.getRawValue());
+        if (i == -1) {
+            return null;
+        }
+        final int offset = (int) index.offset(i);
+        final int length = index.length(i);
+        ByteBuffer slice = data.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return new ByteBufferInputStream(slice.slice());
+    }
+
+    /**
+     * Copies the raw contents of the given objects that are in this pack and not already in
+     * {@code target} to it, reading them in pack order rather than in the order of {@code ids}
+     */
+    public void getAll(final Collection<ObjectId> ids, final Map<ObjectId, byte[]> target) {
+        final List<Integer> found = new ArrayList<Integer>();
+        final Map<Integer, ObjectId> foundIds = new HashMap<Integer, ObjectId>();
+        for (ObjectId id : ids) {
+            if (target.containsKey(id)) {
+                continue;
+            }
+            final int i = index.find(id.getRawValue());
+            if (i != -1 && foundIds.put(Integer.valueOf(i), id) == null) {
+                found.add(Integer.valueOf(i));
+            }
+        }
+        Collections.sort(found, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer i1, final Integer i2) {
+                final long o1 = index.offset(i1.intValue());
+                final long o2 = index.offset(i2.intValue());
+                return o1 < o2 ? -1 : (o1 == o2 ? 0 : 1);
+            }
+        });
+        final ByteBuffer buffer = data.duplicate();
+        for (Integer i : found) {
+            final byte[] raw = new byte[index.length(i.intValue())];
+            buffer.position((int) index.offset(i.intValue()));
+            buffer.get(raw);
+            target.put(foundIds.get(i), raw);
+        }
+    }
+
+    /**
+     * Adds the ids of the objects in this pack starting with the given bytes to {@code target}
+     */
+    public void lookUp(final byte[] prefix, final Collection<ObjectId> target) {
+        index.lookUp(prefix, target);
+    }
+
+    /**
+     * @return the ids of all the objects in the pack
+     */
+    public List<ObjectId> getObjectIds() {
+        List<ObjectId> ids = new ArrayList<ObjectId>(index.size());
+        index.addAll(ids);
+        return ids;
+    }
+
+    @Override
+    public String toString() {
+        return "Pack[" + packFile.getName() + ", objects: " + index.size() + "]";
+    }
+}
@@ -0,0 +1,251 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+import org.geogit.api.ObjectId;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Manages the pack files of a {@link FileObjectDatabase}: the sealed, memory mapped {@link Pack}s
+ * and the {@link PackWriter} new objects are appended to.
+ * <p>
+ * Packs are looked up from the newest to the oldest, so when an object was written more than once
+ * (as it happens for objects put with {@code override == true}) the latest contents win.
+ * </p>
+ */
+final class PackDatabase {
+
+    private static final Logger LOGGER = Logging.getLogger(PackDatabase.class);
+
+    static final String PACK_EXTENSION = ".pack";
+
+    static final String INDEX_EXTENSION = ".idx";
+
+    private static final String PREFIX = "pack-";
+
+    /**
+     * Default size at which the current pack is sealed and a new one started
+     */
+    static final long DEFAULT_MAX_PACK_SIZE = 256L * 1024 * 1024;
+
+    private final File packDir;
+
+    private final long maxPackSize;
+
+    /**
+     * Sealed packs, newest first
+     */
+    private final List<Pack> packs;
+
+    private volatile PackWriter current;
+
+    private int lastSequence;
+
+    private volatile boolean open;
+
+    public PackDatabase(final File packDir) {
+        this(packDir, DEFAULT_MAX_PACK_SIZE);
+    }
+
+    public PackDatabase(final File packDir, final long maxPackSize) {
+        Preconditions.checkArgument(maxPackSize > 0 && maxPackSize < Integer.MAX_VALUE,
+                "max pack size must fit in a single memory mapped buffer");
+        this.packDir = packDir;
+        this.maxPackSize = maxPackSize;
+        this.packs = new CopyOnWriteArrayList<Pack>();
+    }
+
+    /**
+     * Maps the existing pack files, recovering the index of any pack that was not sealed.
+     */
+    public synchronized void open() throws IOException {
+        if (!packDir.exists() && !packDir.mkdirs()) {
+            throw new IOException("Can't create " + packDir.getAbsolutePath());
+        }
+        List<Integer> sequences = new ArrayList<Integer>();
+        for (String name : packDir.list()) {
+            if (name.startsWith(PREFIX) && name.endsWith(PACK_EXTENSION)) {
+                String seq = name.substring(PREFIX.length(), name.length()
+                        - PACK_EXTENSION.length());
+                try {
+                    sequences.add(Integer.valueOf(seq));
+                } catch (NumberFormatException e) {
+                    LOGGER.warning("Ignoring unrecognized pack file " + name);
+                }
+            }
+        }
+        Collections.sort(sequences, Collections.reverseOrder());
+        List<Pack> opened = new ArrayList<Pack>(sequences.size());
+        for (Integer seq : sequences) {
+            opened.add(Pack.open(seq.intValue(), packFile(seq), indexFile(seq)));
+        }
+        packs.clear();
+        packs.addAll(opened);
+        lastSequence = sequences.isEmpty() ? 0 : sequences.get(0).intValue();
+        open = true;
+    }
+
+    /**
+     * Seals the current pack, if any. The sealed packs stay readable, but no object can be
+     * appended until the database is opened again.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            seal();
+        } finally {
+            open = false;
+        }
+    }
+
+    /**
+     * Seals the current pack so that its contents are durable and memory mapped. Objects appended
+     * afterwards go to a new pack.
+     */
+    public synchronized void seal() throws IOException {
+        final PackWriter writer = current;
+        if (writer == null) {
+            return;
+        }
+        if (writer.size() == 0) {
+            writer.discard();
+        } else {
+            Pack pack = writer.seal();
+            packs.add(0, pack);
+            LOGGER.fine("Sealed " + pack);
+        }
+        current = null;
+    }
+
+    public boolean exists(final ObjectId id) {
+        final PackWriter writer = current;
+        if (writer != null && writer.contains(id)) {
+            return true;
+        }
+        for (Pack pack : packs) {
+            if (pack.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the raw contents of the object, or {@code null} if it's not in any pack
+     */
+    public InputStream getRaw(final ObjectId id) throws IOException {
+        final PackWriter writer = current;
+        if (writer != null) {
+            InputStream raw = writer.getRaw(id);
+            if (raw != null) {
+                return raw;
+            }
+        }
+        for (Pack pack : packs) {
+            InputStream raw = pack.getRaw(id);
+            if (raw != null) {
+                return raw;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies the raw contents of the given objects that are packed to {@code target}, reading
+     * each pack in one go. Objects already in {@code target} are skipped.
+     */
+    public void getAll(final Collection<ObjectId> ids, final Map<ObjectId, byte[]> target)
+            throws IOException {
+        final PackWriter writer = current;
+        if (writer != null) {
+            for (ObjectId id : ids) {
+                if (target.containsKey(id)) {
+                    continue;
+                }
+                InputStream raw = writer.getRaw(id);
+                if (raw != null) {
+                    try {
+                        target.put(id, ByteStreams.toByteArray(raw));
+                    } finally {
+                        raw.close();
+                    }
+                }
+            }
+        }
+        for (Pack pack : packs) {
+            pack.getAll(ids, target);
+        }
+    }
+
+    /**
+     * Adds the ids of the packed objects starting with the given bytes to {@code target}
+     */
+    public void lookUp(final byte[] prefix, final Collection<ObjectId> target) {
+        final PackWriter writer = current;
+        if (writer != null) {
+            writer.lookUp(prefix, target);
+        }
+        for (Pack pack : packs) {
+            pack.lookUp(prefix, target);
+        }
+    }
+
+    /**
+     * Appends an object to the current pack, starting a new one if the current pack reached the
+     * maximum pack size.
+     * 
+     * @throws IllegalStateException if the pack database is not {@link #open() open}, since the
+     *         sequence of the next pack is only known once the existing ones were listed
+     */
+    public synchronized void put(final ObjectId id, final byte[] rawData, final int length)
+            throws IOException {
+        Preconditions.checkState(open, "pack database is not open: %s", packDir);
+        PackWriter writer = current;
+        final long recordSize = Pack.RECORD_HEADER_SIZE + length;
+        if (writer != null && writer.size() > 0 && writer.length() + recordSize > maxPackSize) {
+            seal();
+            writer = null;
+        }
+        if (writer == null) {
+            final int sequence = ++lastSequence;
+            writer = new PackWriter(sequence, packFile(sequence), indexFile(sequence));
+            current = writer;
+        }
+        writer.append(id, rawData, length);
+    }
+
+    /**
+     * @return the sealed packs, newest first
+     */
+    public List<Pack> getPacks() {
+        return Collections.unmodifiableList(packs);
+    }
+
+    private File packFile(final int sequence) {
+        return new File(packDir, PREFIX + sequence + PACK_EXTENSION);
+    }
+
+    private File indexFile(final int sequence) {
+        return new File(packDir, PREFIX + sequence + INDEX_EXTENSION);
+    }
+
+    @Override
+    public String toString() {
+        return "PackDatabase[" + packDir.getAbsolutePath() + ", packs: " + packs.size() + "]";
+    }
+}
@@ -0,0 +1,273 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.fs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+import org.geogit.api.ObjectId;
+
+/**
+ * Memory mapped, sorted index of the objects contained in a {@link Pack}.
+ * <p>
+ * File layout:
+ * <ul>
+ * <li>{@code int} magic number and {@code int} format version
+ * <li>{@code int} number of entries
+ * <li>fan-out table of 256 {@code int}s, where the value at position {@code b} is the number of
+ * entries whose object id first byte is lower than or equal to {@code b}
+ * <li>one {@link #ENTRY_SIZE} bytes entry per object, sorted by object id in unsigned byte order:
+ * the 20 bytes object id, the {@code long} offset of the object contents in the pack file, and
+ * the {@code int} length of the object contents.
+ * </ul>
+ * </p>
+ */
+final class PackIndex {
+
+    static final int MAGIC = 0x47504958;// GPIX
+
+    static final int VERSION = 1;
+
+    static final int ENTRY_SIZE = 20 + 8 + 4;
+
+    private static final int FANOUT_OFFSET = 12;
+
+    private static final int ENTRIES_OFFSET = FANOUT_OFFSET + 256 * 4;
+
+    private final File file;
+
+    private final MappedByteBuffer buffer;
+
+    private final int size;
+
+    private PackIndex(final File file, final MappedByteBuffer buffer, final int size) {
+        this.file = file;
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    /**
+     * Maps an existing index file
+     */
+    public static PackIndex open(final File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            final long length = channel.size();
+            if (length < ENTRIES_OFFSET) {
+                throw new IOException("Pack index is truncated: " + file.getAbsolutePath());
+            }
+            MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, length);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a pack index: " + file.getAbsolutePath());
+            }
+            final int size = buffer.getInt(8);
+            if (length != ENTRIES_OFFSET + (long) size * ENTRY_SIZE) {
+                throw new IOException("Pack index is truncated: " + file.getAbsolutePath());
+            }
+            return new PackIndex(file, buffer, size);
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes an index file for the given entries. The file is written to a temporary location and
+     * renamed once complete, so a partially written index is never found at {@code file}.
+     *
+     * @param entries
+     *            the entries to index, in any order
+     */
+    public static void write(final File file, final Entry[] entries) throws IOException {
+        Arrays.sort(entries, ENTRY_ORDER);
+
+        final int[] fanout = new int[256];
+        for (Entry e : entries) {
+            fanout[e.id[0] & 0xFF]++;
+        }
+        for (int i = 1; i < 256; i++) {
+            fanout[i] += fanout[i - 1];
+        }
+
+        final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream fout = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.length);
+            for (int i = 0; i < 256; i++) {
+                out.writeInt(fanout[i]);
+            }
+            for (Entry e : entries) {
+                out.write(e.id);
+                out.writeLong(e.offset);
+                out.writeInt(e.length);
+            }
+            out.flush();
+            fout.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can't create pack index " + file.getAbsolutePath());
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of objects in the index
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param rawId
+     *            the 20 bytes of the object id to look for
+     * @return the position of the object in the index, or {@code -1} if not found
+     */
+    public int find(final byte[] rawId) {
+        final int firstByte = rawId[0] & 0xFF;
+        int low = firstByte == 0 ? 0 : fanout(firstByte - 1);
+        int high = fanout(firstByte) - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int c = compare(mid, rawId);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the offset in the pack file of the contents of the object at position {@code index}
+     */
+    public long offset(final int index) {
+        return buffer.getLong(ENTRIES_OFFSET + index * ENTRY_SIZE + 20);
+    }
+
+    /**
+     * @return the length of the contents of the object at position {@code index}
+     */
+    public int length(final int index) {
+        return buffer.getInt(ENTRIES_OFFSET + index * ENTRY_SIZE + 28);
+    }
+
+    /**
+     * @return the id of the object at position {@code index}
+     */
+    public ObjectId objectId(final int index) {
+        final byte[] raw = new byte[20];
+        final int base = ENTRIES_OFFSET + index * ENTRY_SIZE;
+        for (int i = 0; i < 20; i++) {
+            raw[i] = buffer.get(base + i);
+        }
+        return new ObjectId(raw);
+    }
+
+    /**
+     * Adds the ids of all the indexed objects to {@code target}
+     */
+    public void addAll(final Collection<ObjectId> target) {
+        for (int i = 0; i < size; i++) {
+            target.add(objectId(i));
+        }
+    }
+
+    /**
+     * Adds the ids of the indexed objects starting with the given bytes to {@code target}
+     */
+    public void lookUp(final byte[] prefix, final Collection<ObjectId> target) {
+        if (prefix.length == 0) {
+            addAll(target);
+            return;
+        }
+        final int firstByte = prefix[0] & 0xFF;
+        int low = firstByte == 0 ? 0 : fanout(firstByte - 1);
+        int high = fanout(firstByte);
+        // find the first id greater than or equal to the prefix
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compare(mid, prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = low; i < size && compare(i, prefix) == 0; i++) {
+            target.add(objectId(i));
+        }
+    }
+
+    private int fanout(final int firstByte) {
+        return buffer.getInt(FANOUT_OFFSET + firstByte * 4);
+    }
+
+    /**
+     * Compares the id at position {@code index} with {@code rawId}, or with the first bytes of the
+     * id at {@code index} if {@code rawId} is a partial id
+     */
+    private int compare(final int index, final byte[] rawId) {
+        final int base = ENTRIES_OFFSET + index * ENTRY_SIZE;
+        for (int i = 0; i < rawId.length; i++) {
+            final int c = (buffer.get(base + i) & 0xFF) - (rawId[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * An index entry as collected while writing or recovering a pack file
+     */
+    static final class Entry {
+        final byte[] id;
+
+        final long offset;
+
+        final int length;
+
+        Entry(final byte[] id, final long offset, final int length) {
+            this.id = id;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry e1, final Entry e2) {
+            for (int i = 0; i < 20; i++) {
+                final int c = (e1.id[i] & 0xFF) - (e2.id[i] & 0xFF);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+    };
+}
@@ -0,0 +1,169 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.fs;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.geogit.api.ObjectId;
+
+/**
+ * Appends objects to the pack file currently being written, keeping its index in memory until
+ * the pack is {@link #seal() sealed}.
+ * <p>
+ * Objects appended to this pack can be read back before it is sealed, at the cost of a
+ * positional read from the pack file.
+ * </p>
+ */
+final class PackWriter {
+
+    private final int sequence;
+
+    private final File packFile;
+
+    private final File indexFile;
+
+    private final FileOutputStream fileOut;
+
+    private final DataOutputStream out;
+
+    private final Map<ObjectId, PackIndex.Entry> entries;
+
+    private long position;
+
+    private boolean dirty;
+
+    public PackWriter(final int sequence, final File packFile, final File indexFile)
+            throws IOException {
+        this.sequence = sequence;
+        this.packFile = packFile;
+        this.indexFile = indexFile;
+        this.entries = new HashMap<ObjectId, PackIndex.Entry>();
+        this.fileOut = new FileOutputStream(packFile);
+        this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+        out.writeInt(Pack.MAGIC);
+        out.writeInt(Pack.VERSION);
+        this.position = Pack.HEADER_SIZE;
+        this.dirty = true;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the number of bytes written to the pack file so far
+     */
+    public synchronized long length() {
+        return position;
+    }
+
+    /**
+     * @return the number of objects in the pack
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized boolean contains(final ObjectId id) {
+        return entries.containsKey(id);
+    }
+
+    /**
+     * Adds the ids of the objects in this pack starting with the given bytes to {@code target}
+     */
+    public synchronized void lookUp(final byte[] prefix, final Collection<ObjectId> target) {
+        for (PackIndex.Entry e : entries.values()) {
+            if (startsWith(e.id, prefix)) {
+                target.add(new ObjectId(e.id));
+            }
+        }
+    }
+
+    private static boolean startsWith(final byte[] id, final byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (id[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends an object to the pack. If the object was already in this pack the new contents
+     * replace the old ones.
+     */
+    public synchronized void append(final ObjectId id, final byte[] rawData, final int length)
+            throws IOException {
+        final byte[] rawId = id.getRawValue();
+        out.write(rawId);
+        out.writeInt(length);
+        out.write(rawData, 0, length);
+        final long offset = position + Pack.RECORD_HEADER_SIZE;
+        entries.put(id, new PackIndex.Entry(rawId, offset, length));
+        position = offset + length;
+        dirty = true;
+    }
+
+    /**
+     * @return the raw contents of the object, or {@code null} if it's not in this pack
+     */
+    public synchronized InputStream getRaw(final ObjectId id) throws IOException {
+        final PackIndex.Entry entry = entries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        if (dirty) {
+            out.flush();
+            dirty = false;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        RandomAccessFile raf = new RandomAccessFile(packFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, entry.offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of pack file "
+                            + packFile.getAbsolutePath());
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        return new ByteArrayInputStream(buffer.array());
+    }
+
+    /**
+     * Flushes and syncs the pack file, writes its index, and maps it as a read only {@link Pack}.
+     * No more objects can be appended after this method is called.
+     */
+    public synchronized Pack seal() throws IOException {
+        out.flush();
+        fileOut.getFD().sync();
+        out.close();
+        dirty = false;
+        PackIndex.write(indexFile, entries.values().toArray(new PackIndex.Entry[entries.size()]));
+        return Pack.open(sequence, packFile, indexFile);
+    }
+
+    /**
+     * Closes and deletes the pack file, used when nothing was appended to it.
+     */
+    public synchronized void discard() throws IOException {
+        out.close();
+        packFile.delete();
+    }
+}
@@ -10,6 +10,7 @@ import java.util.List;
 
 import org.geogit.api.ObjectId;
 import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject.TYPE;
 import org.geogit.storage.ObjectWriter;
 
 import com.caucho.hessian.io.Hessian2Output;
@@ -50,4 +51,9 @@ class HessianCommitWriter extends HessianRevWriter implements ObjectWriter<RevCo
         hout.flush();
     }
 
+    @Override
+    public TYPE getType() {
+        return TYPE.COMMIT;
+    }
+
 }
@@ -11,6 +11,7 @@ import java.math.BigInteger;
 import java.util.Collection;
 import java.util.UUID;
 
+import org.geogit.api.RevObject.TYPE;
 import org.geogit.storage.ObjectWriter;
 import org.geotools.referencing.CRS;
 import org.opengis.feature.Feature;
@@ -64,6 +65,11 @@ class HessianFeatureWriter implements ObjectWriter<Feature> {
         }
     }
 
+    @Override
+    public TYPE getType() {
+        return TYPE.BLOB;
+    }
+
     /**
      * Encodes supported properties in the provided Hessian2Output stream.
      * 
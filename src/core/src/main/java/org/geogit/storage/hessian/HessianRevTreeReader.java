@@ -7,15 +7,12 @@ package org.geogit.storage.hessian;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
-import java.util.TreeMap;
 
 import org.geogit.api.ObjectId;
-import org.geogit.api.Ref;
-import org.geogit.api.RevObject.TYPE;
 import org.geogit.api.RevTree;
 import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.ObjectReader;
-import org.geogit.storage.RevSHA1Tree;
+import org.geogit.storage.CompactRevTree;
 
 import com.caucho.hessian.io.Hessian2Input;
 import com.caucho.hessian.io.HessianProtocolException;
@@ -47,8 +44,7 @@ class HessianRevTreeReader extends HessianRevReader implements ObjectReader<RevT
 
         BigInteger size = new BigInteger(hin.readBytes());
 
-        TreeMap<String, Ref> references = new TreeMap<String, Ref>();
-        TreeMap<Integer, Ref> subtrees = new TreeMap<Integer, Ref>();
+        CompactRevTree.Builder builder = new CompactRevTree.Builder(objectDb, order);
 
         while (true) {
             Node type = null;
@@ -58,10 +54,9 @@ class HessianRevTreeReader extends HessianRevReader implements ObjectReader<RevT
                 ex.printStackTrace();
             }
             if (type.equals(Node.REF)) {
-                Ref entryRef = readRef(hin);
-                references.put(entryRef.getName(), entryRef);
+                builder.put(readRef(hin));
             } else if (type.equals(Node.TREE)) {
-                parseAndSetSubTree(hin, subtrees);
+                parseAndSetSubTree(hin, builder);
             } else if (type.equals(Node.END)) {
                 break;
             }
@@ -69,14 +64,14 @@ class HessianRevTreeReader extends HessianRevReader implements ObjectReader<RevT
 
         hin.completeMessage();
 
-        RevSHA1Tree tree = new RevSHA1Tree(id, objectDb, order, references, subtrees, size);
+        CompactRevTree tree = builder.build(id, size);
         return tree;
     }
 
-    private void parseAndSetSubTree(Hessian2Input hin, TreeMap<Integer, Ref> subtrees)
+    private void parseAndSetSubTree(Hessian2Input hin, CompactRevTree.Builder builder)
             throws IOException {
         int bucket = hin.readInt();
         ObjectId id = readObjectId(hin);
-        subtrees.put(Integer.valueOf(bucket), new Ref("", id, TYPE.TREE));
+        builder.put(bucket, id);
     }
 }
@@ -10,19 +10,19 @@ import java.io.OutputStream;
 import org.geogit.api.MutableTree;
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
+import org.geogit.api.RevObject.TYPE;
 import org.geogit.api.RevTree;
 import org.geogit.api.TreeVisitor;
 import org.geogit.storage.ObjectWriter;
-import org.geogit.storage.RevSHA1Tree;
 
 import com.caucho.hessian.io.Hessian2Output;
 import com.google.common.base.Throwables;
 
 class HessianRevTreeWriter extends HessianRevWriter implements ObjectWriter<RevTree> {
-    private final RevSHA1Tree tree;
+    private final RevTree tree;
 
     public HessianRevTreeWriter(RevTree tree) {
-        this.tree = (RevSHA1Tree) tree;
+        this.tree = tree;
     }
 
     @Override
@@ -50,6 +50,11 @@ class HessianRevTreeWriter extends HessianRevWriter implements ObjectWriter<RevT
         }
     }
 
+    @Override
+    public TYPE getType() {
+        return TYPE.TREE;
+    }
+
     private final class WritingTreeVisitor implements TreeVisitor {
         private Hessian2Output hout;
 
@@ -0,0 +1,757 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.lsm;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.geogit.api.ObjectId;
+import org.geogit.storage.AbstractObjectDatabase;
+import org.geogit.storage.ObjectCache;
+import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.lsm.Segment.Record;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * {@link ObjectDatabase} organized as a log-structured merge tree, for write heavy loads.
+ * <p>
+ * Object ids are uniformly random, so inserting them in a B-tree such as the one of
+ * {@code JEObjectDatabase} touches a random leaf per object. Here writes are appended to a
+ * {@link WriteLog} and kept in a sorted in-memory memtable instead. Once the memtable reaches
+ * {@link #setMemtableSize(long) its maximum size} it's written out sequentially as an immutable,
+ * sorted {@link Segment} file and the log is discarded. Segments of similar size are merged in the
+ * background once there are {@link #setCompactionThreshold(int) enough of them}, so a look up
+ * probes a number of segments logarithmic to the number of objects, most of them ruled out by
+ * the bloom filter of each segment.
+ * </p>
+ * <p>
+ * Reads look the object up in the memtable and then in the segments from the newest to the
+ * oldest, so the latest write of an object wins. Deletes write a tombstone, dropped when the
+ * segment holding it is merged with the oldest one. Any number of threads can read while a single
+ * thread at a time writes.
+ * </p>
+ * <p>
+ * Segment files are named after the range of write log sequence numbers they hold the records
+ * of, so a segment left behind by a compaction interrupted before deleting it is recognized on
+ * {@link #create()} as contained in the merged segment, and deleted. Merged segments also carry
+ * a generation number, one more than the newest of their inputs, so merging a single segment
+ * never writes over its own file and the newer generation wins over a leftover of the same
+ * range.
+ * </p>
+ */
+public class LsmObjectDatabase extends AbstractObjectDatabase implements ObjectDatabase {
+
+    private static final Logger LOGGER = Logging.getLogger(LsmObjectDatabase.class);
+
+    public static final long DEFAULT_MEMTABLE_SIZE = 32L * 1024 * 1024;
+
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 4;
+
+    /**
+     * Rough heap used by a memtable entry besides the record contents
+     */
+    private static final int MEMTABLE_ENTRY_OVERHEAD = 128;
+
+    private static final Pattern LOG_NAME = Pattern.compile("log-(\\d+)\\.log");
+
+    private static final Pattern SEGMENT_NAME = Pattern
+            .compile("segment-(\\d+)-(\\d+)(?:-(\\d+))?\\.seg");
+
+    /**
+     * Contents of the memtable entries of deleted objects
+     */
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    /**
+     * Returned by {@link #find(ObjectId, boolean)} when the contents are not requested
+     */
+    private static final byte[] PRESENT = new byte[0];
+
+    private final File environment;
+
+    private long memtableSize = DEFAULT_MEMTABLE_SIZE;
+
+    private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    private final Object writeLock = new Object();
+
+    private final Object segmentsLock = new Object();
+
+    private final Object compactionLock = new Object();
+
+    private volatile ConcurrentSkipListMap<ObjectId, byte[]> memtable;
+
+    private long memtableBytes;
+
+    private WriteLog log;
+
+    private int lastSequence;
+
+    /**
+     * Segments from the newest to the oldest, replaced as a whole when segments are added or
+     * merged
+     */
+    private volatile List<Segment> segments = Collections.emptyList();
+
+    private ExecutorService compactor;
+
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    public LsmObjectDatabase(final File environment) {
+        super();
+        this.environment = environment;
+    }
+
+    public LsmObjectDatabase(final File environment, final ObjectCache cache) {
+        super(cache);
+        this.environment = environment;
+    }
+
+    /**
+     * Sets the size the memtable is flushed to a segment at, defaults to
+     * {@link #DEFAULT_MEMTABLE_SIZE}. Must be called before {@link #create()}.
+     */
+    public void setMemtableSize(final long memtableSize) {
+        Preconditions.checkArgument(memtableSize > 0, "memtableSize must be positive");
+        Preconditions.checkState(memtable == null, "database already created");
+        this.memtableSize = memtableSize;
+    }
+
+    /**
+     * Sets how many segments of similar size there have to be for them to be merged, defaults to
+     * {@link #DEFAULT_COMPACTION_THRESHOLD}. Must be called before {@link #create()}.
+     */
+    public void setCompactionThreshold(final int compactionThreshold) {
+        Preconditions.checkArgument(compactionThreshold > 1, "compactionThreshold must be > 1");
+        Preconditions.checkState(memtable == null, "database already created");
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * @return the number of segment files
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void create() {
+        if (!environment.exists() && !environment.mkdirs()) {
+            throw new IllegalStateException("Can't create environment: "
+                    + environment.getAbsolutePath());
+        }
+        try {
+            open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't open object database at "
+                    + environment.getAbsolutePath(), e);
+        }
+        compactor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("geogit-lsm-compaction-%d").build());
+        scheduleCompaction();
+    }
+
+    /**
+     * Opens the existing segments and turns the records of the write logs left by a database not
+     * closed cleanly into a new segment
+     */
+    private void open() throws IOException {
+        final List<int[]> ranges = new ArrayList<int[]>();
+        final TreeMap<Integer, File> logs = new TreeMap<Integer, File>();
+        for (File f : environment.listFiles()) {
+            final Matcher segment = SEGMENT_NAME.matcher(f.getName());
+            final Matcher log = LOG_NAME.matcher(f.getName());
+            if (segment.matches()) {
+                final String generation = segment.group(3);
+                ranges.add(new int[] { Integer.parseInt(segment.group(1)),
+                        Integer.parseInt(segment.group(2)),
+                        generation == null ? 0 : Integer.parseInt(generation) });
+            } else if (log.matches()) {
+                logs.put(Integer.valueOf(log.group(1)), f);
+            } else if (f.getName().endsWith(".tmp")) {
+                f.delete();
+            }
+        }
+        // newest first
+        Collections.sort(ranges, new Comparator<int[]>() {
+            @Override
+            public int compare(final int[] r1, final int[] r2) {
+                return r2[1] - r1[1];
+            }
+        });
+        lastSequence = 0;
+        final List<Segment> opened = new ArrayList<Segment>();
+        for (int[] range : ranges) {
+            lastSequence = Math.max(lastSequence, range[1]);
+            final File file = segmentFile(range[0], range[1], range[2]);
+            if (covered(ranges, range)) {
+                LOGGER.info("Deleting segment already merged " + file);
+                file.delete();
+            } else {
+                opened.add(Segment.open(file, range[0], range[1], range[2]));
+            }
+        }
+
+        final ConcurrentSkipListMap<ObjectId, byte[]> replayed = newMemtable();
+        int firstReplayed = -1;
+        int lastReplayed = -1;
+        for (Map.Entry<Integer, File> log : logs.entrySet()) {
+            final int sequence = log.getKey().intValue();
+            lastSequence = Math.max(lastSequence, sequence);
+            if (covered(ranges, new int[] { sequence, sequence, -1 })) {
+                // flushed, but not deleted yet
+                log.getValue().delete();
+                continue;
+            }
+            WriteLog.replay(log.getValue(), replayed, TOMBSTONE);
+            firstReplayed = firstReplayed == -1 ? sequence : firstReplayed;
+            lastReplayed = sequence;
+        }
+        if (!replayed.isEmpty()) {
+            LOGGER.info("Recovered " + replayed.size() + " records from the write logs of "
+                    + environment.getAbsolutePath());
+            opened.add(0, writeSegment(replayed, firstReplayed, lastReplayed));
+        }
+        for (File log : logs.values()) {
+            log.delete();
+        }
+        segments = Collections.unmodifiableList(opened);
+        memtable = newMemtable();
+        memtableBytes = 0;
+        log = new WriteLog(++lastSequence, logFile(lastSequence));
+    }
+
+    /**
+     * @param range
+     *            the first and last sequence numbers and the generation of a segment
+     * @return whether another range of {@code ranges} contains {@code range}, either a wider one
+     *         or the same one with a newer generation
+     */
+    private static boolean covered(final List<int[]> ranges, final int[] range) {
+        for (int[] other : ranges) {
+            if (other != range && other[0] <= range[0] && range[1] <= other[1]
+                    && (other[0] < range[0] || range[1] < other[1] || other[2] > range[2])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ConcurrentSkipListMap<ObjectId, byte[]> newMemtable() {
+        return new ConcurrentSkipListMap<ObjectId, byte[]>(RAW_ORDER);
+    }
+
+    private File logFile(final int sequence) {
+        return new File(environment, "log-" + sequence + ".log");
+    }
+
+    private File segmentFile(final int firstSequence, final int lastSequence,
+            final int generation) {
+        if (generation == 0) {
+            return new File(environment, "segment-" + firstSequence + "-" + lastSequence + ".seg");
+        }
+        return new File(environment, "segment-" + firstSequence + "-" + lastSequence + "-"
+                + generation + ".seg");
+    }
+
+    /**
+     * Flushes the memtable and waits for the compaction in progress, if any, to finish
+     */
+    @Override
+    public void close() {
+        if (memtable == null) {
+            return;
+        }
+        try {
+            synchronized (writeLock) {
+                flushMemtable();
+                log.close();
+                log.getFile().delete();
+                log = null;
+            }
+            compactor.shutdown();
+            while (!compactor.awaitTermination(1, TimeUnit.SECONDS)) {
+                LOGGER.fine("Waiting for compaction to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            synchronized (segmentsLock) {
+                for (Segment segment : segments) {
+                    segment.release();
+                }
+                segments = Collections.emptyList();
+            }
+            memtable = null;
+        }
+    }
+
+    /**
+     * Writes the memtable out to a new segment and starts a new write log. Must be called holding
+     * the write lock.
+     */
+    private void flushMemtable() throws IOException {
+        final ConcurrentSkipListMap<ObjectId, byte[]> flushed = memtable;
+        if (flushed.isEmpty()) {
+            return;
+        }
+        final WriteLog flushedLog = log;
+        flushedLog.close();
+        final int sequence = flushedLog.getSequence();
+        final Segment segment = writeSegment(flushed, sequence, sequence);
+        synchronized (segmentsLock) {
+            List<Segment> updated = new ArrayList<Segment>(segments.size() + 1);
+            updated.add(segment);
+            updated.addAll(segments);
+            segments = Collections.unmodifiableList(updated);
+        }
+        // readers look in the memtable first, so its records are always found in either place
+        memtable = newMemtable();
+        memtableBytes = 0;
+        flushedLog.getFile().delete();
+        log = new WriteLog(++lastSequence, logFile(lastSequence));
+        LOGGER.fine("Flushed " + flushed.size() + " records to " + segment);
+        scheduleCompaction();
+    }
+
+    private Segment writeSegment(final Map<ObjectId, byte[]> records, final int firstSequence,
+            final int lastSequence) throws IOException {
+        final File file = segmentFile(firstSequence, lastSequence, 0);
+        final Iterator<Map.Entry<ObjectId, byte[]>> entries = records.entrySet().iterator();
+        Segment.write(file, new AbstractIterator<Record>() {
+            @Override
+            protected Record computeNext() {
+                if (!entries.hasNext()) {
+                    return endOfData();
+                }
+                Map.Entry<ObjectId, byte[]> e = entries.next();
+                final byte[] contents = e.getValue();
+                return new Record(e.getKey().getRawValue(), contents == TOMBSTONE ? null
+                        : contents);
+            }
+        }, records.size());
+        return Segment.open(file, firstSequence, lastSequence, 0);
+    }
+
+    /**
+     * Writes the memtable out and merges all the segments into a single one, dropping deleted and
+     * overwritten records
+     */
+    public void compact() throws IOException {
+        synchronized (writeLock) {
+            flushMemtable();
+        }
+        synchronized (compactionLock) {
+            final List<Segment> current = segments;
+            if (current.size() > 1 || (current.size() == 1 && hasTombstones(current.get(0)))) {
+                merge(current, true);
+            }
+        }
+    }
+
+    private static boolean hasTombstones(final Segment segment) {
+        for (int i = 0; i < segment.size(); i++) {
+            if (segment.isTombstone(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void scheduleCompaction() {
+        final ExecutorService executor = compactor;
+        if (executor == null || !compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compactionScheduled.set(false);
+                try {
+                    while (compactOnce()) {
+                        //
+                    }
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Compaction of " + environment.getAbsolutePath()
+                            + " failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Merges the first run of at least {@link #setCompactionThreshold(int) compaction threshold}
+     * consecutive segments of the same size tier, if there's one. Tier {@code n} holds the
+     * segments between {@code threshold^n} and {@code threshold^(n+1)} times the memtable size.
+     * Only consecutive segments are merged, so the merged segment takes their place in the newest
+     * to oldest order.
+     *
+     * @return whether segments were merged
+     */
+    private boolean compactOnce() throws IOException {
+        synchronized (compactionLock) {
+            final List<Segment> current = segments;
+            int runStart = 0;
+            for (int i = 1; i <= current.size(); i++) {
+                if (i < current.size() && tier(current.get(i)) == tier(current.get(runStart))) {
+                    continue;
+                }
+                if (i - runStart >= compactionThreshold) {
+                    merge(current.subList(runStart, i), i == current.size());
+                    return true;
+                }
+                runStart = i;
+            }
+            return false;
+        }
+    }
+
+    private int tier(final Segment segment) {
+        final long length = segment.length();
+        int tier = 0;
+        for (long limit = memtableSize * compactionThreshold; length >= limit
+                && limit < Long.MAX_VALUE / compactionThreshold; limit *= compactionThreshold) {
+            tier++;
+        }
+        return tier;
+    }
+
+    /**
+     * Merges consecutive segments into a new one that replaces them. Must be called holding the
+     * compaction lock.
+     *
+     * @param merged
+     *            the segments to merge, newest first
+     * @param dropTombstones
+     *            whether the oldest segment is merged, so that there's no older record a tombstone
+     *            has to shadow
+     */
+    private void merge(final List<Segment> merged, final boolean dropTombstones)
+            throws IOException {
+        final List<Segment> inputs = new ArrayList<Segment>(merged);
+        final int first = inputs.get(inputs.size() - 1).getFirstSequence();
+        final int last = inputs.get(0).getLastSequence();
+        long expectedSize = 0;
+        int generation = 0;
+        List<PeekingIterator<Record>> iterators = new ArrayList<PeekingIterator<Record>>();
+        for (Segment segment : inputs) {
+            expectedSize += segment.size();
+            generation = Math.max(generation, segment.getGeneration() + 1);
+            iterators.add(Iterators.peekingIterator(segment.iterator()));
+        }
+        // a new name even when a single segment is merged, its file is deleted once released
+        final File file = segmentFile(first, last, generation);
+        Segment.write(file, new MergingIterator(iterators, dropTombstones), expectedSize);
+        final Segment segment = Segment.open(file, first, last, generation);
+
+        synchronized (segmentsLock) {
+            List<Segment> updated = new ArrayList<Segment>(segments);
+            final int position = updated.indexOf(inputs.get(0));
+            updated.removeAll(inputs);
+            updated.add(position, segment);
+            segments = Collections.unmodifiableList(updated);
+        }
+        for (Segment input : inputs) {
+            input.markObsolete();
+            input.release();
+        }
+        LOGGER.fine("Merged " + inputs.size() + " segments into " + segment);
+    }
+
+    /**
+     * Merges the records of several segments in id order, keeping only the record of the newest
+     * segment for each id
+     */
+    private static class MergingIterator extends AbstractIterator<Record> {
+
+        private final PriorityQueue<Integer> heads;
+
+        private final List<PeekingIterator<Record>> iterators;
+
+        private final boolean dropTombstones;
+
+        /**
+         * @param iterators
+         *            the records of each segment, newest segment first
+         */
+        MergingIterator(final List<PeekingIterator<Record>> iterators,
+                final boolean dropTombstones) {
+            this.iterators = iterators;
+            this.dropTombstones = dropTombstones;
+            // the position of each iterator in the list, ordered by their next id and then
+            // newest iterator first
+            this.heads = new PriorityQueue<Integer>(iterators.size(), new Comparator<Integer>() {
+                @Override
+                public int compare(final Integer i1, final Integer i2) {
+                    final int c = compareRaw(iterators.get(i1.intValue()).peek().id, iterators
+                            .get(i2.intValue()).peek().id);
+                    return c != 0 ? c : i1.intValue() - i2.intValue();
+                }
+            });
+            for (int i = 0; i < iterators.size(); i++) {
+                if (iterators.get(i).hasNext()) {
+                    heads.add(Integer.valueOf(i));
+                }
+            }
+        }
+
+        @Override
+        protected Record computeNext() {
+            while (!heads.isEmpty()) {
+                final Integer newest = heads.poll();
+                final Record record = advance(newest);
+                // skip the older records of the same object
+                while (!heads.isEmpty()
+                        && Arrays.equals(record.id, iterators.get(heads.peek().intValue())
+                                .peek().id)) {
+                    advance(heads.poll());
+                }
+                if (record.contents != null || !dropTombstones) {
+                    return record;
+                }
+            }
+            return endOfData();
+        }
+
+        private Record advance(final Integer i) {
+            final PeekingIterator<Record> it = iterators.get(i.intValue());
+            final Record record = it.next();
+            if (it.hasNext()) {
+                heads.add(i);
+            }
+            return record;
+        }
+    }
+
+    private static int compareRaw(final byte[] raw1, final byte[] raw2) {
+        for (int i = 0; i < raw1.length; i++) {
+            final int c = (raw1[i] & 0xFF) - (raw2[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param read
+     *            whether to read the record contents, or just find out whether the object exists
+     * @return the record contents, {@link #PRESENT} if not {@code read}, or {@code null} if the
+     *         object doesn't exist
+     */
+    private byte[] find(final ObjectId id, final boolean read) throws IOException {
+        final byte[] inMemory = memtable.get(id);
+        if (inMemory != null) {
+            return inMemory == TOMBSTONE ? null : inMemory;
+        }
+        final byte[] raw = id.getRawValue();
+        retry: for (;;) {
+            for (Segment segment : segments) {
+                if (!segment.mightContain(id)) {
+                    continue;
+                }
+                if (!segment.retain()) {
+                    // merged away meanwhile, the new list has the merged segment
+                    continue retry;
+                }
+                try {
+                    final int index = segment.find(raw);
+                    if (index != -1) {
+                        if (segment.isTombstone(index)) {
+                            return null;
+                        }
+                        return read ? segment.read(index) : PRESENT;
+                    }
+                } finally {
+                    segment.release();
+                }
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public boolean exists(final ObjectId id) {
+        Preconditions.checkNotNull(id, "id");
+        try {
+            return find(id, false) != null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    protected InputStream getRawInternal(final ObjectId id) throws IOException {
+        final byte[] record = find(id, true);
+        if (record == null) {
+            throw new IllegalArgumentException("Object does not exist: " + id.toString());
+        }
+        return new ByteArrayInputStream(record);
+    }
+
+    /**
+     * Looks the objects up in id order, so consecutive look ups hit nearby index pages
+     *
+     * @see org.geogit.storage.AbstractObjectDatabase#getAllRawInternal(java.util.Collection)
+     */
+    @Override
+    protected Map<ObjectId, byte[]> getAllRawInternal(final Collection<ObjectId> ids)
+            throws IOException {
+        final List<ObjectId> sorted = new ArrayList<ObjectId>(ids);
+        Collections.sort(sorted, RAW_ORDER);
+        final Map<ObjectId, byte[]> records = new HashMap<ObjectId, byte[]>();
+        for (ObjectId id : sorted) {
+            final byte[] record = find(id, true);
+            if (record != null) {
+                records.put(id, record);
+            }
+        }
+        return records;
+    }
+
+    @Override
+    protected int readHeader(final ObjectId id, final byte[] header) throws IOException {
+        final byte[] record = find(id, true);
+        if (record == null) {
+            return -1;
+        }
+        final int length = Math.min(header.length, record.length);
+        System.arraycopy(record, 0, header, 0, length);
+        return length;
+    }
+
+    @Override
+    protected List<ObjectId> lookUpInternal(final byte[] raw) {
+        retry: for (;;) {
+            final Map<ObjectId, Boolean> found = new HashMap<ObjectId, Boolean>();
+            final ObjectId from = new ObjectId(Arrays.copyOf(raw, 20));
+            for (Map.Entry<ObjectId, byte[]> e : memtable.tailMap(from).entrySet()) {
+                final byte[] id = e.getKey().getRawValue();
+                if (compareRaw(Arrays.copyOf(id, raw.length), raw) != 0) {
+                    break;
+                }
+                found.put(e.getKey(), Boolean.valueOf(e.getValue() != TOMBSTONE));
+            }
+            for (Segment segment : segments) {
+                if (!segment.retain()) {
+                    continue retry;
+                }
+                try {
+                    segment.lookUp(raw, found);
+                } finally {
+                    segment.release();
+                }
+            }
+            final List<ObjectId> matches = new ArrayList<ObjectId>();
+            for (Map.Entry<ObjectId, Boolean> e : found.entrySet()) {
+                if (e.getValue().booleanValue()) {
+                    matches.add(e.getKey());
+                }
+            }
+            Collections.sort(matches, RAW_ORDER);
+            return matches;
+        }
+    }
+
+    @Override
+    protected boolean putInternal(final ObjectId id, final byte[] rawData, final int length,
+            final boolean override) throws IOException {
+        synchronized (writeLock) {
+            if (!override && exists(id)) {
+                return false;
+            }
+            append(id, Arrays.copyOf(rawData, length));
+            log.flush();
+            maybeFlushMemtable();
+            return true;
+        }
+    }
+
+    /**
+     * Appends the whole batch to the write log at once. Objects that already exist are written
+     * again rather than looked up first; their ids are the hash of their contents, so the only
+     * cost is the space the duplicates take until compaction drops them.
+     *
+     * @see org.geogit.storage.AbstractObjectDatabase#putAllInternal(java.util.Map)
+     */
+    @Override
+    protected void putAllInternal(final Map<ObjectId, byte[]> records) throws IOException {
+        synchronized (writeLock) {
+            for (Map.Entry<ObjectId, byte[]> record : records.entrySet()) {
+                append(record.getKey(), record.getValue());
+            }
+            log.flush();
+            maybeFlushMemtable();
+        }
+    }
+
+    private void append(final ObjectId id, final byte[] contents) throws IOException {
+        log.append(id, contents, contents.length);
+        memtable.put(id, contents);
+        memtableBytes += contents.length + MEMTABLE_ENTRY_OVERHEAD;
+    }
+
+    private void maybeFlushMemtable() throws IOException {
+        if (memtableBytes >= memtableSize) {
+            flushMemtable();
+        }
+    }
+
+    @Override
+    protected boolean deleteInternal(final ObjectId objectId) {
+        synchronized (writeLock) {
+            try {
+                if (!exists(objectId)) {
+                    return false;
+                }
+                log.appendDelete(objectId);
+                log.flush();
+                memtable.put(objectId, TOMBSTONE);
+                memtableBytes += MEMTABLE_ENTRY_OVERHEAD;
+                maybeFlushMemtable();
+                return true;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LsmObjectDatabase[" + environment.getAbsolutePath() + ", segments: "
+                + segments.size() + "]";
+    }
+}
@@ -0,0 +1,478 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.lsm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geogit.api.ObjectId;
+import org.geogit.storage.ObjectIdBloomFilter;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * A sorted, immutable file of object records, written at once from a flushed memtable or from
+ * the merge of other segments.
+ * <p>
+ * File layout:
+ * <ul>
+ * <li>{@code int} magic number and {@code int} format version
+ * <li>the contents of each record, in object id order
+ * <li>the index: one {@link #ENTRY_SIZE} bytes entry per record, sorted by object id in unsigned
+ * byte order: the 20 bytes object id, the {@code long} offset of the record contents and their
+ * {@code int} length, or {@code -1} if the record is a tombstone for a deleted object; followed by
+ * a fan-out table of 256 {@code int}s, where the value at position {@code b} is the number of
+ * entries whose object id first byte is lower than or equal to {@code b}
+ * <li>the {@link ObjectIdBloomFilter} of the ids in the segment
+ * <li>the footer: the {@code int} number of records, the {@code long} offsets of the index and of
+ * the bloom filter, and the magic number again
+ * </ul>
+ * </p>
+ * <p>
+ * The index is memory mapped and the bloom filter loaded in the heap, record contents are read
+ * with positional reads, so looking an object up is safe from any number of threads. Segments are
+ * reference counted, so the one merged away by a compaction is closed and deleted only after the
+ * last reader releases it.
+ * </p>
+ */
+final class Segment {
+
+    static final int MAGIC = 0x47534547;// GSEG
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 8;
+
+    static final int ENTRY_SIZE = 20 + 8 + 4;
+
+    private static final int FANOUT_SIZE = 256 * 4;
+
+    private static final int FOOTER_SIZE = 4 + 8 + 8 + 4;
+
+    private static final int TOMBSTONE = -1;
+
+    private static final double BLOOM_FILTER_FPP = 0.01;
+
+    private final File file;
+
+    private final int firstSequence;
+
+    private final int lastSequence;
+
+    private final int generation;
+
+    private final RandomAccessFile raf;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer index;
+
+    private final int size;
+
+    private final ObjectIdBloomFilter bloomFilter;
+
+    /**
+     * One for the segment list holding the segment, plus one per reader currently using it
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private volatile boolean obsolete;
+
+    private Segment(final File file, final int firstSequence, final int lastSequence,
+            final int generation, final RandomAccessFile raf, final MappedByteBuffer index,
+            final int size, final ObjectIdBloomFilter bloomFilter) {
+        this.file = file;
+        this.firstSequence = firstSequence;
+        this.lastSequence = lastSequence;
+        this.generation = generation;
+        this.raf = raf;
+        this.channel = raf.getChannel();
+        this.index = index;
+        this.size = size;
+        this.bloomFilter = bloomFilter;
+    }
+
+    /**
+     * Opens an existing segment file
+     *
+     * @param firstSequence
+     *            the sequence number of the oldest write log the segment holds records of
+     * @param lastSequence
+     *            the sequence number of the newest write log the segment holds records of
+     * @param generation
+     *            how many times the records of the sequence range were merged, {@code 0} for a
+     *            flushed memtable
+     */
+    public static Segment open(final File file, final int firstSequence, final int lastSequence,
+            final int generation) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        boolean opened = false;
+        try {
+            FileChannel channel = raf.getChannel();
+            final long length = channel.size();
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            if (length < HEADER_SIZE + FANOUT_SIZE + FOOTER_SIZE) {
+                throw new IOException("Segment is truncated: " + file.getAbsolutePath());
+            }
+            readFully(channel, footer, length - FOOTER_SIZE);
+            final int size = footer.getInt(0);
+            final long indexOffset = footer.getLong(4);
+            final long bloomOffset = footer.getLong(12);
+            if (footer.getInt(20) != MAGIC
+                    || bloomOffset != indexOffset + (long) size * ENTRY_SIZE + FANOUT_SIZE) {
+                throw new IOException("Not a segment file: " + file.getAbsolutePath());
+            }
+            MappedByteBuffer index = channel.map(MapMode.READ_ONLY, indexOffset, bloomOffset
+                    - indexOffset);
+            channel.position(bloomOffset);
+            ObjectIdBloomFilter bloomFilter = ObjectIdBloomFilter.readFrom(new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024)));
+            Segment segment = new Segment(file, firstSequence, lastSequence, generation, raf,
+                    index, size, bloomFilter);
+            opened = true;
+            return segment;
+        } finally {
+            if (!opened) {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Writes a segment file, to a temporary location first so that a partially written segment is
+     * never found at {@code file}.
+     *
+     * @param records
+     *            the records to write, sorted by id in unsigned byte order and without duplicates
+     * @param expectedSize
+     *            an upper bound of the number of records, to size the bloom filter
+     */
+    public static void write(final File file, final Iterator<Record> records,
+            final long expectedSize) throws IOException {
+        final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        final File indexTmp = new File(file.getParentFile(), file.getName() + ".idx.tmp");
+        final ObjectIdBloomFilter bloomFilter = ObjectIdBloomFilter.create(
+                Math.max(1, expectedSize), BLOOM_FILTER_FPP);
+        final int[] fanout = new int[256];
+        int size = 0;
+
+        FileOutputStream fout = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 64 * 1024));
+        try {
+            DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(indexTmp), 64 * 1024));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                long position = HEADER_SIZE;
+                while (records.hasNext()) {
+                    final Record record = records.next();
+                    indexOut.write(record.id);
+                    indexOut.writeLong(position);
+                    if (record.contents == null) {
+                        indexOut.writeInt(TOMBSTONE);
+                    } else {
+                        indexOut.writeInt(record.contents.length);
+                        out.write(record.contents);
+                        position += record.contents.length;
+                    }
+                    bloomFilter.put(new ObjectId(record.id));
+                    fanout[record.id[0] & 0xFF]++;
+                    size++;
+                }
+            } finally {
+                indexOut.close();
+            }
+            out.flush();
+            final long indexOffset = fout.getChannel().position();
+            Files.copy(indexTmp, out);
+            for (int i = 1; i < 256; i++) {
+                fanout[i] += fanout[i - 1];
+            }
+            for (int i = 0; i < 256; i++) {
+                out.writeInt(fanout[i]);
+            }
+            out.flush();
+            final long bloomOffset = fout.getChannel().position();
+            bloomFilter.writeTo(out);
+            out.writeInt(size);
+            out.writeLong(indexOffset);
+            out.writeLong(bloomOffset);
+            out.writeInt(MAGIC);
+            out.flush();
+            fout.getFD().sync();
+        } finally {
+            out.close();
+            indexTmp.delete();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can't create segment " + file.getAbsolutePath());
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getFirstSequence() {
+        return firstSequence;
+    }
+
+    public int getLastSequence() {
+        return lastSequence;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the number of records in the segment, tombstones included
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the size of the segment file in bytes
+     */
+    public long length() {
+        return file.length();
+    }
+
+    /**
+     * Takes a reference to the segment, which must be {@link #release() released} once done
+     * reading from it
+     *
+     * @return {@code false} if the segment was already closed, in which case it must not be used
+     */
+    public boolean retain() {
+        for (;;) {
+            final int current = references.get();
+            if (current == 0) {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a reference taken with {@link #retain()}, or the initial one, closing the segment
+     * when none is left and deleting its file if it was marked {@link #markObsolete() obsolete}
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (obsolete) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Marks the segment file to be deleted once the segment is closed, because its records were
+     * merged into another segment
+     */
+    public void markObsolete() {
+        this.obsolete = true;
+    }
+
+    public boolean mightContain(final ObjectId id) {
+        return bloomFilter.mightContain(id);
+    }
+
+    /**
+     * @param rawId
+     *            the 20 bytes of the object id to look for
+     * @return the position of the object in the index, or {@code -1} if not found
+     */
+    public int find(final byte[] rawId) {
+        final int firstByte = rawId[0] & 0xFF;
+        int low = firstByte == 0 ? 0 : fanout(firstByte - 1);
+        int high = fanout(firstByte) - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int c = compare(mid, rawId);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return whether the record at position {@code index} is a tombstone for a deleted object
+     */
+    public boolean isTombstone(final int index) {
+        return length(index) == TOMBSTONE;
+    }
+
+    /**
+     * @return the contents of the record at position {@code index}, which must not be a tombstone
+     */
+    public byte[] read(final int index) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length(index));
+        readFully(channel, buffer, offset(index));
+        return buffer.array();
+    }
+
+    /**
+     * Adds the ids of the records in this segment starting with the given bytes to
+     * {@code target}, mapped to whether they're live or tombstones, unless {@code target} already
+     * has them because a newer segment does
+     */
+    public void lookUp(final byte[] prefix, final Map<ObjectId, Boolean> target) {
+        int low = 0;
+        int high = size;
+        if (prefix.length > 0) {
+            final int firstByte = prefix[0] & 0xFF;
+            low = firstByte == 0 ? 0 : fanout(firstByte - 1);
+            high = fanout(firstByte);
+            // find the first id greater than or equal to the prefix
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (compare(mid, prefix) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+        }
+        for (int i = low; i < size && compare(i, prefix) == 0; i++) {
+            final ObjectId id = id(i);
+            if (!target.containsKey(id)) {
+                target.put(id, Boolean.valueOf(!isTombstone(i)));
+            }
+        }
+    }
+
+    /**
+     * @return the records of the segment in id order, reading their contents sequentially
+     */
+    public Iterator<Record> iterator() throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(file), 256 * 1024);
+        ByteStreams.skipFully(in, HEADER_SIZE);
+        return new AbstractIterator<Record>() {
+            private int next = 0;
+
+            @Override
+            protected Record computeNext() {
+                try {
+                    if (next == size) {
+                        in.close();
+                        return endOfData();
+                    }
+                    final int i = next++;
+                    byte[] contents = null;
+                    if (!isTombstone(i)) {
+                        contents = new byte[length(i)];
+                        ByteStreams.readFully(in, contents);
+                    }
+                    return new Record(rawId(i), contents);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    private ObjectId id(final int index) {
+        return new ObjectId(this.index, index * ENTRY_SIZE);
+    }
+
+    private byte[] rawId(final int index) {
+        final byte[] raw = new byte[20];
+        final int base = index * ENTRY_SIZE;
+        for (int i = 0; i < 20; i++) {
+            raw[i] = this.index.get(base + i);
+        }
+        return raw;
+    }
+
+    private long offset(final int index) {
+        return this.index.getLong(index * ENTRY_SIZE + 20);
+    }
+
+    private int length(final int index) {
+        return this.index.getInt(index * ENTRY_SIZE + 28);
+    }
+
+    private int fanout(final int firstByte) {
+        return index.getInt(size * ENTRY_SIZE + firstByte * 4);
+    }
+
+    /**
+     * Compares the id at position {@code index} with {@code rawId}, or with the first bytes of the
+     * id at {@code index} if {@code rawId} is a partial id
+     */
+    private int compare(final int index, final byte[] rawId) {
+        final int base = index * ENTRY_SIZE;
+        for (int i = 0; i < rawId.length; i++) {
+            final int c = (this.index.get(base + i) & 0xFF) - (rawId[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer,
+            final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of segment file");
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Segment[" + file.getName() + ", records: " + size + "]";
+    }
+
+    /**
+     * A record as written to or read from a segment, with {@code null} contents for tombstones
+     */
+    static final class Record {
+        final byte[] id;
+
+        final byte[] contents;
+
+        Record(final byte[] id, final byte[] contents) {
+            this.id = id;
+            this.contents = contents;
+        }
+    }
+}
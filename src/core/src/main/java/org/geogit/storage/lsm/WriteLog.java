@@ -0,0 +1,150 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.lsm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+import org.geogit.api.ObjectId;
+
+/**
+ * Append-only log of the writes held by a memtable, replayed into a new memtable if the database
+ * was not closed cleanly.
+ * <p>
+ * A log file starts with an {@code int} magic number and an {@code int} format version, followed
+ * by one record per write: the 20 bytes object id, the {@code int} length of the object contents
+ * or {@code -1} for a delete, and the contents themselves.
+ * </p>
+ * <p>
+ * Writes are handed over to the operating system on every {@link #flush()}, so they survive the
+ * process dying, and synced to disk on {@link #sync()} and {@link #close()}.
+ * </p>
+ */
+final class WriteLog {
+
+    static final int MAGIC = 0x474c4f47;// GLOG
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 8;
+
+    static final int RECORD_HEADER_SIZE = 20 + 4;
+
+    private static final int TOMBSTONE = -1;
+
+    private final int sequence;
+
+    private final File file;
+
+    private final FileOutputStream fileOut;
+
+    private final DataOutputStream out;
+
+    public WriteLog(final int sequence, final File file) throws IOException {
+        this.sequence = sequence;
+        this.file = file;
+        this.fileOut = new FileOutputStream(file);
+        this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void append(final ObjectId id, final byte[] contents, final int length)
+            throws IOException {
+        out.write(id.getRawValue());
+        out.writeInt(length);
+        out.write(contents, 0, length);
+    }
+
+    public void appendDelete(final ObjectId id) throws IOException {
+        out.write(id.getRawValue());
+        out.writeInt(TOMBSTONE);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void sync() throws IOException {
+        out.flush();
+        fileOut.getFD().sync();
+    }
+
+    public void close() throws IOException {
+        sync();
+        out.close();
+    }
+
+    /**
+     * Reads back the records of a log file into {@code target}, with {@code tombstone} as the
+     * contents of deleted objects. A trailing record that was only partially written is ignored.
+     */
+    public static void replay(final File file, final Map<ObjectId, byte[]> target,
+            final byte[] tombstone) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            final long length = channel.size();
+            final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            header.limit(HEADER_SIZE);
+            if (length < HEADER_SIZE || channel.read(header, 0) != HEADER_SIZE
+                    || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a write log: " + file.getAbsolutePath());
+            }
+            long position = HEADER_SIZE;
+            while (position + RECORD_HEADER_SIZE <= length) {
+                header.clear();
+                readFully(channel, header, position);
+                final byte[] id = new byte[20];
+                header.flip();
+                header.get(id);
+                final int recordLength = header.getInt();
+                position += RECORD_HEADER_SIZE;
+                if (recordLength == TOMBSTONE) {
+                    target.put(new ObjectId(id), tombstone);
+                    continue;
+                }
+                if (recordLength < 0 || position + recordLength > length) {
+                    break;
+                }
+                ByteBuffer contents = ByteBuffer.allocate(recordLength);
+                readFully(channel, contents, position);
+                target.put(new ObjectId(id), contents.array());
+                position += recordLength;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer,
+            final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of write log");
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WriteLog[" + file.getName() + "]";
+    }
+}
@@ -0,0 +1,159 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.memory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.geogit.api.ObjectId;
+import org.geogit.storage.AbstractObjectDatabase;
+import org.geogit.storage.ObjectCache;
+import org.geogit.storage.ObjectDatabase;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * {@link ObjectDatabase} keeping the objects in the heap, in a concurrent hash map of object id
+ * to stored record.
+ * <p>
+ * Records are kept compressed, just like the other object databases store them, so the memory
+ * held is roughly the size the same objects take on disk. Objects only live as long as the
+ * database instance does; {@link #close()} doesn't discard them, so the database can be created
+ * again.
+ * </p>
+ */
+public class HeapObjectDatabase extends AbstractObjectDatabase implements ObjectDatabase {
+
+    private final ConcurrentMap<ObjectId, byte[]> records = new ConcurrentHashMap<ObjectId, byte[]>();
+
+    public HeapObjectDatabase() {
+        super();
+    }
+
+    public HeapObjectDatabase(final ObjectCache cache) {
+        super(cache);
+    }
+
+    @Override
+    public void create() {
+        //
+    }
+
+    @Override
+    public void close() {
+        //
+    }
+
+    /**
+     * @return the number of objects stored
+     */
+    public int size() {
+        return records.size();
+    }
+
+    @Override
+    public boolean exists(final ObjectId id) {
+        Preconditions.checkNotNull(id, "id");
+        return records.containsKey(id);
+    }
+
+    /**
+     * Scans all the ids, partial id look ups are not worth a sorted map for the few objects an
+     * in-memory database is meant to hold.
+     */
+    @Override
+    protected List<ObjectId> lookUpInternal(final byte[] raw) {
+        List<ObjectId> matches = new ArrayList<ObjectId>(2);
+        final byte[] prefix = new byte[raw.length];
+        for (ObjectId id : records.keySet()) {
+            System.arraycopy(id.getRawValue(), 0, prefix, 0, prefix.length);
+            if (Arrays.equals(raw, prefix)) {
+                matches.add(id);
+            }
+        }
+        return matches;
+    }
+
+    @Override
+    protected List<ObjectId> listInternal() {
+        return new ArrayList<ObjectId>(records.keySet());
+    }
+
+    @Override
+    protected InputStream getRawInternal(final ObjectId id) throws IOException {
+        return new ByteArrayInputStream(record(id));
+    }
+
+    @Override
+    protected Map<ObjectId, byte[]> getAllRawInternal(final Collection<ObjectId> ids)
+            throws IOException {
+        Map<ObjectId, byte[]> found = new HashMap<ObjectId, byte[]>();
+        for (ObjectId id : ids) {
+            final byte[] record = records.get(id);
+            if (record != null) {
+                found.put(id, record);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    protected long sizeInternal(final ObjectId id) throws IOException {
+        return record(id).length;
+    }
+
+    @Override
+    protected int readHeader(final ObjectId id, final byte[] header) throws IOException {
+        final byte[] record = records.get(id);
+        if (record == null) {
+            return -1;
+        }
+        final int length = Math.min(header.length, record.length);
+        System.arraycopy(record, 0, header, 0, length);
+        return length;
+    }
+
+    private byte[] record(final ObjectId id) {
+        final byte[] record = records.get(id);
+        if (record == null) {
+            throw new IllegalArgumentException("Object does not exist: " + id.toString());
+        }
+        return record;
+    }
+
+    /**
+     * Copies the record, {@code rawData} is a buffer the caller reuses
+     */
+    @Override
+    protected boolean putInternal(final ObjectId id, final byte[] rawData, final int length,
+            final boolean override) throws IOException {
+        final byte[] record = Arrays.copyOf(rawData, length);
+        if (override) {
+            return records.put(id, record) == null;
+        }
+        return records.putIfAbsent(id, record) == null;
+    }
+
+    @Override
+    protected void putAllInternal(final Map<ObjectId, byte[]> records) throws IOException {
+        for (Map.Entry<ObjectId, byte[]> record : records.entrySet()) {
+            this.records.putIfAbsent(record.getKey(), record.getValue());
+        }
+    }
+
+    @Override
+    protected boolean deleteInternal(final ObjectId objectId) {
+        return records.remove(objectId) != null;
+    }
+}
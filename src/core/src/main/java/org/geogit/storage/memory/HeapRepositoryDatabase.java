@@ -0,0 +1,119 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.memory;
+
+import org.geogit.metrics.MetricsRegistry;
+import org.geogit.storage.ObjectCacheConfig;
+import org.geogit.storage.RefDatabase;
+import org.geogit.storage.RepositoryDatabase;
+import org.geogit.storage.StagingDatabase;
+import org.geogit.storage.WeightedObjectCache;
+
+/**
+ * {@link RepositoryDatabase} keeping everything in the heap: the repository and staging objects
+ * in {@link HeapObjectDatabase}s and the staged and unstaged entries in memory.
+ * <p>
+ * Meant for ephemeral repositories, such as scratch repositories to merge into or test and
+ * benchmark fixtures. Nothing is persisted, the contents are lost once the database is discarded.
+ * </p>
+ */
+public class HeapRepositoryDatabase implements RepositoryDatabase {
+
+    private final HeapObjectDatabase repositoryObjectDb;
+
+    private final RefDatabase referenceDatabase;
+
+    private final StagingDatabase stagingDatabase;
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    public HeapRepositoryDatabase() {
+        this(new ObjectCacheConfig());
+    }
+
+    /**
+     * @param cacheConfig
+     *            configuration for the cache of decoded objects of both the repository and the
+     *            staging object databases
+     */
+    public HeapRepositoryDatabase(final ObjectCacheConfig cacheConfig) {
+        this.repositoryObjectDb = new HeapObjectDatabase(new WeightedObjectCache(cacheConfig));
+        this.referenceDatabase = new RefDatabase(repositoryObjectDb);
+        HeapObjectDatabase stagingObjectDb = new HeapObjectDatabase(new WeightedObjectCache(
+                cacheConfig));
+        this.stagingDatabase = new StagingDatabase(repositoryObjectDb, stagingObjectDb);
+
+        repositoryObjectDb.setMetrics(metrics.scope("objects"));
+        referenceDatabase.setMetrics(metrics.scope("refs"));
+        stagingDatabase.setMetrics(metrics.scope("staging"));
+    }
+
+    /**
+     * @see org.geogit.storage.RepositoryDatabase#create()
+     */
+    @Override
+    public void create() {
+        repositoryObjectDb.create();
+        referenceDatabase.create();
+        stagingDatabase.create();
+    }
+
+    /**
+     * @see org.geogit.storage.RepositoryDatabase#close()
+     */
+    @Override
+    public void close() {
+        stagingDatabase.close();
+        referenceDatabase.close();
+        repositoryObjectDb.close();
+    }
+
+    /**
+     * @see org.geogit.storage.RepositoryDatabase#getReferenceDatabase()
+     */
+    @Override
+    public RefDatabase getReferenceDatabase() {
+        return referenceDatabase;
+    }
+
+    /**
+     * @see org.geogit.storage.RepositoryDatabase#getObjectDatabase()
+     */
+    @Override
+    public HeapObjectDatabase getObjectDatabase() {
+        return repositoryObjectDb;
+    }
+
+    /**
+     * @see org.geogit.storage.RepositoryDatabase#getStagingDatabase()
+     */
+    @Override
+    public StagingDatabase getStagingDatabase() {
+        return stagingDatabase;
+    }
+
+    /**
+     * @see org.geogit.storage.RepositoryDatabase#getMetrics()
+     */
+    @Override
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void beginTransaction() {
+        //
+    }
+
+    @Override
+    public void commitTransaction() {
+        //
+    }
+
+    @Override
+    public void rollbackTransaction() {
+        //
+    }
+}
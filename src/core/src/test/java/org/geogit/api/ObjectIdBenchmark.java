@@ -0,0 +1,247 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.api;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures equality, hashing, ordering and hex conversion of {@link ObjectId} against the byte
+ * array it used to wrap.
+ * <p>
+ * The legacy column runs the former implementation over the same ids: {@code Arrays.equals},
+ * a hash code assembled from bytes 4 to 7, a byte by byte comparison and a cloned raw value. Run
+ * with {@code [ids] [rounds]}, the best round is reported.
+ * </p>
+ */
+public class ObjectIdBenchmark {
+
+    private static int sink;
+
+    public static void main(String[] args) {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        Random random = new Random(1);
+        final ObjectId[] ids = new ObjectId[count];
+        final ObjectId[] copies = new ObjectId[count];
+        final LegacyId[] legacy = new LegacyId[count];
+        final LegacyId[] legacyCopies = new LegacyId[count];
+        final String[] hex = new String[count];
+        for (int i = 0; i < count; i++) {
+            byte[] raw = new byte[20];
+            random.nextBytes(raw);
+            ids[i] = new ObjectId(raw);
+            copies[i] = new ObjectId(raw.clone());
+            legacy[i] = new LegacyId(raw.clone());
+            legacyCopies[i] = new LegacyId(raw.clone());
+            hex[i] = ids[i].toString();
+        }
+
+        System.out.printf("%-12s %14s %14s%n", "ns/op", "ObjectId", "legacy");
+        report("equals", count, rounds, new Op() {
+            @Override
+            void run() {
+                for (int i = 0; i < ids.length; i++) {
+                    sink += ids[i].equals(copies[i]) ? 1 : 0;
+                }
+            }
+        }, new Op() {
+            @Override
+            void run() {
+                for (int i = 0; i < legacy.length; i++) {
+                    sink += legacy[i].equals(legacyCopies[i]) ? 1 : 0;
+                }
+            }
+        });
+        report("compareTo", count, rounds, new Op() {
+            @Override
+            void run() {
+                for (int i = 1; i < ids.length; i++) {
+                    sink += ids[i].compareTo(copies[i - 1]);
+                }
+            }
+        }, new Op() {
+            @Override
+            void run() {
+                for (int i = 1; i < legacy.length; i++) {
+                    sink += legacy[i].compareTo(legacyCopies[i - 1]);
+                }
+            }
+        });
+        report("sort", count, 1, new Op() {
+            @Override
+            void run() {
+                Arrays.sort(ids.clone());
+            }
+        }, new Op() {
+            @Override
+            void run() {
+                Arrays.sort(legacy.clone());
+            }
+        });
+        report("hash lookup", count, rounds, new Op() {
+            @Override
+            void run() {
+                Map<ObjectId, Integer> map = new HashMap<ObjectId, Integer>();
+                for (int i = 0; i < ids.length; i++) {
+                    map.put(ids[i], Integer.valueOf(i));
+                }
+                for (int i = 0; i < copies.length; i++) {
+                    sink += map.get(copies[i]).intValue();
+                }
+            }
+        }, new Op() {
+            @Override
+            void run() {
+                Map<LegacyId, Integer> map = new HashMap<LegacyId, Integer>();
+                for (int i = 0; i < legacy.length; i++) {
+                    map.put(legacy[i], Integer.valueOf(i));
+                }
+                for (int i = 0; i < legacyCopies.length; i++) {
+                    sink += map.get(legacyCopies[i]).intValue();
+                }
+            }
+        });
+        report("raw value", count, rounds, new Op() {
+            @Override
+            void run() {
+                byte[] buff = new byte[20];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i].writeTo(buff, 0);
+                    sink += buff[19];
+                }
+            }
+        }, new Op() {
+            @Override
+            void run() {
+                for (int i = 0; i < legacy.length; i++) {
+                    sink += legacy[i].getRawValue()[19];
+                }
+            }
+        });
+        report("toString", count, rounds, new Op() {
+            @Override
+            void run() {
+                for (int i = 0; i < ids.length; i++) {
+                    sink += ids[i].toString().length();
+                }
+            }
+        }, new Op() {
+            @Override
+            void run() {
+                for (int i = 0; i < legacy.length; i++) {
+                    sink += legacy[i].toString().length();
+                }
+            }
+        });
+        report("valueOf", count, rounds, new Op() {
+            @Override
+            void run() {
+                for (int i = 0; i < hex.length; i++) {
+                    sink += ObjectId.valueOf(hex[i]).hashCode();
+                }
+            }
+        }, new Op() {
+            @Override
+            void run() {
+                for (int i = 0; i < hex.length; i++) {
+                    sink += LegacyId.valueOf(hex[i]).hashCode();
+                }
+            }
+        });
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void report(final String name, final int count, final int rounds,
+            final Op current, final Op legacy) {
+        System.out.printf("%-12s %14.1f %14.1f%n", name, current.best(rounds) / (double) count,
+                legacy.best(rounds) / (double) count);
+    }
+
+    private static abstract class Op {
+
+        abstract void run();
+
+        long best(final int rounds) {
+            // the first run warms up the JIT
+            run();
+            long best = Long.MAX_VALUE;
+            for (int r = 0; r < rounds; r++) {
+                final long start = System.nanoTime();
+                run();
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            return best;
+        }
+    }
+
+    /**
+     * The former byte array based implementation
+     */
+    private static class LegacyId implements Comparable<LegacyId> {
+
+        private final byte[] raw;
+
+        LegacyId(final byte[] raw) {
+            this.raw = raw;
+        }
+
+        static LegacyId valueOf(final String hash) {
+            final byte[] raw = new byte[20];
+            for (int i = 0; i < 20; i++) {
+                raw[i] = (byte) Integer.parseInt(hash.substring(2 * i, 2 * i + 2), 16);
+            }
+            return new LegacyId(raw);
+        }
+
+        byte[] getRawValue() {
+            return raw.clone();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof LegacyId && Arrays.equals(raw, ((LegacyId) o).raw);
+        }
+
+        @Override
+        public int hashCode() {
+            return (raw[4] << 24) + (raw[5] << 16) + (raw[6] << 8) + raw[7];
+        }
+
+        @Override
+        public int compareTo(final LegacyId o) {
+            for (int i = 0; i < raw.length; i++) {
+                final int c = raw[i] - o.raw[i];
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < raw.length; i++) {
+                int halfbyte = (raw[i] >>> 4) & 0x0F;
+                int twoHalfs = 0;
+                do {
+                    if (halfbyte <= 9) {
+                        buf.append((char) ('0' + halfbyte));
+                    } else {
+                        buf.append((char) ('a' + (halfbyte - 10)));
+                    }
+                    halfbyte = raw[i] & 0x0F;
+                } while (twoHalfs++ < 1);
+            }
+            return buf.toString();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.api;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class ObjectIdTableTest extends TestCase {
+
+    private File spillDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        spillDirectory = new File(new File("target"), "ObjectIdTableTest");
+        FileUtils.deleteDirectory(spillDirectory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(spillDirectory);
+    }
+
+    public void testSet() {
+        ObjectIdSet set = new ObjectIdSet();
+        try {
+            Set<ObjectId> expected = new HashSet<ObjectId>();
+            for (int i = 0; i < 10000; i++) {
+                ObjectId id = ObjectId.forString("id " + i);
+                assertTrue(set.add(id));
+                assertFalse(set.add(id));
+                expected.add(id);
+            }
+            assertFalse(set.contains(ObjectId.NULL));
+            assertTrue(set.add(ObjectId.NULL));
+            assertFalse(set.add(ObjectId.NULL));
+            expected.add(ObjectId.NULL);
+
+            assertEquals(expected.size(), set.size());
+            for (ObjectId id : expected) {
+                assertTrue(set.contains(id));
+            }
+            assertFalse(set.contains(ObjectId.forString("missing")));
+
+            Set<ObjectId> iterated = new HashSet<ObjectId>();
+            for (ObjectId id : set) {
+                assertTrue(iterated.add(id));
+            }
+            assertEquals(expected, iterated);
+            assertFalse(set.isSpilled());
+        } finally {
+            set.close();
+        }
+    }
+
+    public void testMap() {
+        ObjectIdMap map = new ObjectIdMap(10);
+        try {
+            for (int i = 0; i < 10000; i++) {
+                map.put(ObjectId.forString("id " + i), i);
+            }
+            map.put(ObjectId.NULL, -5);
+            map.put(ObjectId.forString("id 7"), 70);
+            assertEquals(10001, map.size());
+            for (int i = 0; i < 10000; i++) {
+                assertEquals(i == 7 ? 70 : i, map.get(ObjectId.forString("id " + i), -1));
+            }
+            assertEquals(-5, map.get(ObjectId.NULL, -1));
+            assertEquals(-1, map.get(ObjectId.forString("missing"), -1));
+            assertFalse(map.containsKey(ObjectId.forString("missing")));
+        } finally {
+            map.close();
+        }
+    }
+
+    public void testSpill() {
+        // a few hundred ids fit in the heap limit, the set spills while it grows
+        ObjectIdSet set = new ObjectIdSet(0, spillDirectory, 16 * 1024);
+        try {
+            assertFalse(set.isSpilled());
+            for (int i = 0; i < 100000; i++) {
+                set.add(ObjectId.forString("id " + i));
+            }
+            assertTrue(set.isSpilled());
+            assertEquals(1, spillDirectory.list().length);
+            assertEquals(100000, set.size());
+            for (int i = 0; i < 100000; i++) {
+                assertTrue(set.contains(ObjectId.forString("id " + i)));
+            }
+        } finally {
+            set.close();
+        }
+        assertEquals(0, spillDirectory.list().length);
+        try {
+            set.add(ObjectId.NULL);
+            fail("expected ISE");
+        } catch (IllegalStateException e) {
+            assertTrue(true);
+        }
+    }
+}
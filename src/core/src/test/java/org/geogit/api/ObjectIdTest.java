@@ -4,6 +4,10 @@
  */
 package org.geogit.api;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
 import junit.framework.TestCase;
 
 import org.junit.Test;
@@ -31,4 +35,84 @@ public class ObjectIdTest extends TestCase {
         ObjectId valueOf = ObjectId.valueOf(stringRep);
         assertEquals(id1, valueOf);
     }
+
+    @Test
+    public void testRawValue() {
+        byte[] raw = new byte[20];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = (byte) (0xF0 + i);
+        }
+        ObjectId id = new ObjectId(raw);
+        assertTrue(Arrays.equals(raw, id.getRawValue()));
+        assertNotSame(id.getRawValue(), id.getRawValue());
+        assertEquals(ObjectId.toString(raw), id.toString());
+        assertEquals("f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff00010203", id.toString());
+        assertEquals(ObjectId.valueOf(id.toString().toUpperCase()), id);
+        for (int i = 0; i < raw.length; i++) {
+            assertEquals(raw[i] & 0xFF, id.getByte(i));
+        }
+        assertEquals(0xF0F1F2F3F4F5F6F7L, id.getLong(0));
+        assertEquals(0xF8F9FAFBFCFDFEFFL, id.getLong(1));
+        assertEquals(0xF0F1F2F3, id.getInt(0));
+        assertEquals(0xF4F5F6F7, id.getInt(1));
+        assertEquals(0x00010203, id.getInt(4));
+        assertEquals(id, new ObjectId(id.getLong(0), id.getLong(1), id.getInt(4)));
+
+        byte[] target = new byte[25];
+        id.writeTo(target, 3);
+        assertTrue(Arrays.equals(raw, Arrays.copyOfRange(target, 3, 23)));
+        assertEquals(id, new ObjectId(target, 3));
+
+        ByteBuffer buffer = ByteBuffer.allocate(25);
+        buffer.position(2);
+        id.writeTo(buffer);
+        assertEquals(22, buffer.position());
+        assertEquals(id, new ObjectId(buffer, 2));
+        assertEquals(22, buffer.position());
+    }
+
+    @Test
+    public void testValueOfInvalid() {
+        try {
+            ObjectId.valueOf("f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff0001020g");
+            fail("expected IAE");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("At index 39"));
+        }
+    }
+
+    @Test
+    public void testCompareTo() {
+        Random random = new Random(1);
+        for (int n = 0; n < 10000; n++) {
+            byte[] raw1 = new byte[20];
+            byte[] raw2 = new byte[20];
+            random.nextBytes(raw1);
+            System.arraycopy(raw1, 0, raw2, 0, 20);
+            // make them differ from a random byte on, to exercise each word
+            final int from = random.nextInt(21);
+            for (int i = from; i < 20; i++) {
+                raw2[i] = (byte) random.nextInt();
+            }
+            ObjectId id1 = new ObjectId(raw1);
+            ObjectId id2 = new ObjectId(raw2);
+            assertEquals(Integer.signum(compare(raw1, raw2, false)),
+                    Integer.signum(id1.compareTo(id2)));
+            assertEquals(Integer.signum(compare(raw1, raw2, true)),
+                    Integer.signum(id1.compareRawTo(id2)));
+            assertEquals(Integer.signum(id1.toString().compareTo(id2.toString())),
+                    Integer.signum(id1.compareRawTo(id2)));
+            assertEquals(Arrays.equals(raw1, raw2), id1.equals(id2));
+        }
+    }
+
+    private static int compare(final byte[] raw1, final byte[] raw2, final boolean unsigned) {
+        for (int i = 0; i < raw1.length; i++) {
+            final int c = unsigned ? (raw1[i] & 0xFF) - (raw2[i] & 0xFF) : raw1[i] - raw2[i];
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
 }
@@ -0,0 +1,88 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+public class MetricsRegistryTest extends TestCase {
+
+    public void testHistogramPercentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+        for (long i = 1; i <= 1000; i++) {
+            histogram.update(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 1e-9);
+        // values are kept in buckets a quarter of a power of two wide
+        assertBetween(500, 625, histogram.getPercentile(0.5));
+        assertBetween(990, 1000, histogram.getPercentile(0.99));
+        assertEquals(1000, histogram.getPercentile(1));
+        for (long value = 0; value < 1L << 40; value = value * 3 + 1) {
+            assertTrue(value <= Histogram.upperBound(Histogram.bucket(value)));
+        }
+    }
+
+    public void testScopes() {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry objects = registry.scope("objects");
+        objects.counter("reads").inc(3);
+        assertSame(objects.counter("reads"), registry.counter("objects.reads"));
+        assertSame(objects.counter("reads"), registry.scope("objects").counter("reads"));
+        try {
+            objects.meter("reads");
+            fail("expected IAE, reads is a counter");
+        } catch (IllegalArgumentException e) {
+            assertTrue(true);
+        }
+        objects.register("size", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return Integer.valueOf(42);
+            }
+        });
+        assertEquals(3, ((Counter) registry.getMetrics().get("objects.reads")).getCount());
+        assertEquals(Integer.valueOf(42),
+                ((Gauge<?>) registry.getMetrics().get("objects.size")).getValue());
+        assertEquals(2, objects.getMetrics().size());
+        assertTrue(registry.scope("refs").getMetrics().isEmpty());
+
+        objects.remove("size");
+        assertFalse(registry.getMetrics().containsKey("objects.size"));
+    }
+
+    public void testMBean() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("objects.deletes").inc();
+        registry.meter("objects.reads").mark(10);
+        registry.timer("ops.CommitOp").update(4, TimeUnit.MILLISECONDS);
+
+        ObjectName name = registry.registerMBean("MetricsRegistryTest");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(Long.valueOf(1), server.getAttribute(name, "objects.deletes"));
+            assertEquals(Long.valueOf(10), server.getAttribute(name, "objects.reads.count"));
+            assertEquals(Long.valueOf(1), server.getAttribute(name, "ops.CommitOp.count"));
+            double max = ((Double) server.getAttribute(name, "ops.CommitOp.maxMillis"))
+                    .doubleValue();
+            assertEquals(4D, max, 1e-9);
+            // a counter, three meter values and six timer values
+            assertEquals(10, server.getMBeanInfo(name).getAttributes().length);
+        } finally {
+            MetricsRegistry.unregisterMBean(name);
+        }
+    }
+
+    private static void assertBetween(final long min, final long max, final long value) {
+        assertTrue(min + " <= " + value + " <= " + max, value >= min && value <= max);
+    }
+}
@@ -0,0 +1,52 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geogit.api.ObjectId;
+import org.geogit.test.RepositoryTestCase;
+
+public class BatchObjectInserterTest extends RepositoryTestCase {
+
+    private AbstractObjectDatabase odb;
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        odb = (AbstractObjectDatabase) repositoryDatabase.getObjectDatabase();
+    }
+
+    public void testInsertFlushesInBatches() throws Exception {
+        BatchObjectInserter inserter = new BatchObjectInserter(odb, 100, Long.MAX_VALUE);
+
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        for (int i = 0; i < 250; i++) {
+            ids.add(inserter.insert(new BlobWriter(("blob " + i).getBytes())));
+        }
+        assertEquals(200, inserter.getInsertedCount());
+        assertTrue(odb.exists(ids.get(199)));
+        assertFalse(odb.exists(ids.get(200)));
+
+        inserter.flush();
+        assertEquals(250, inserter.getInsertedCount());
+        for (ObjectId id : ids) {
+            assertTrue(odb.exists(id));
+        }
+    }
+
+    public void testInsertAllReturnsSameIdsAsPut() throws Exception {
+        List<ObjectWriter<?>> writers = new ArrayList<ObjectWriter<?>>();
+        for (int i = 0; i < 10; i++) {
+            writers.add(new BlobWriter(("blob " + i).getBytes()));
+        }
+        List<ObjectId> ids = odb.newBatchObjectInserter().insertAll(writers.iterator());
+        assertEquals(writers.size(), ids.size());
+        for (int i = 0; i < writers.size(); i++) {
+            assertTrue(odb.exists(ids.get(i)));
+            assertEquals(ids.get(i), odb.put(writers.get(i)));
+        }
+    }
+}
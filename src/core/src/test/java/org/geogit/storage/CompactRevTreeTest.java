@@ -0,0 +1,201 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.geogit.api.MutableTree;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.RevTree;
+import org.geogit.api.SpatialRef;
+import org.geogit.storage.memory.HeapObjectDatabase;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.geometry.BoundingBox;
+
+public class CompactRevTreeTest extends TestCase {
+
+    private HeapObjectDatabase odb;
+
+    @Override
+    protected void setUp() throws Exception {
+        odb = new HeapObjectDatabase();
+        odb.create();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        odb.close();
+    }
+
+    public void testLeafNode() throws Exception {
+        MutableTree mutable = odb.newTree();
+        for (int i = 0; i < 100; i++) {
+            mutable.put(new Ref("feature" + i, ObjectId.forString("feature " + i), TYPE.BLOB));
+        }
+        mutable.put(new SpatialRef("spatial", ObjectId.forString("spatial"), TYPE.BLOB,
+                new ReferencedEnvelope(1, 2, 3, 4, null)));
+        mutable.put(new Ref("tree", ObjectId.forString("tree"), TYPE.TREE));
+        final ObjectId treeId = put(mutable);
+
+        RevTree tree = read(treeId, 0);
+        assertTrue(tree instanceof CompactRevTree);
+        assertTrue(tree.isNormalized());
+        assertEquals(BigInteger.valueOf(102), tree.size());
+        for (int i = 0; i < 100; i++) {
+            Ref ref = tree.get("feature" + i);
+            assertEquals(new Ref("feature" + i, ObjectId.forString("feature " + i), TYPE.BLOB),
+                    ref);
+            assertEquals(ObjectId.forString("feature" + i), ref.getNameHash());
+        }
+        assertNull(tree.get("feature100"));
+        assertEquals(TYPE.TREE, tree.get("tree").getType());
+
+        BoundingBox bounds = ((SpatialRef) tree.get("spatial")).getBounds();
+        assertEquals(1D, bounds.getMinX());
+        assertEquals(2D, bounds.getMaxX());
+        assertEquals(3D, bounds.getMinY());
+        assertEquals(4D, bounds.getMaxY());
+
+        // entries come in name hash order
+        List<Ref> refs = new ArrayList<Ref>();
+        for (Iterator<Ref> it = tree.iterator(null); it.hasNext();) {
+            refs.add(it.next());
+        }
+        assertEquals(102, refs.size());
+        for (int i = 1; i < refs.size(); i++) {
+            assertTrue(refs.get(i - 1).getNameHash().compareTo(refs.get(i).getNameHash()) < 0);
+        }
+
+        // and are written back in the order they were read
+        assertEquals(treeId, put(tree));
+        assertEquals(treeId, put(tree.mutable()));
+    }
+
+    public void testSplitNode() throws Exception {
+        final int numEntries = RevSHA1Tree.NORMALIZED_SIZE_LIMIT * 3;
+        MutableTree mutable = odb.newTree();
+        for (int i = 0; i < numEntries; i++) {
+            mutable.put(new Ref("feature" + i, ObjectId.forString("feature " + i), TYPE.BLOB));
+        }
+        mutable.normalize();
+        final ObjectId treeId = put(mutable);
+
+        RevTree tree = read(treeId, 0);
+        assertTrue(tree instanceof CompactRevTree);
+        assertEquals(BigInteger.valueOf(numEntries), tree.size());
+        for (int i = 0; i < numEntries; i += 7) {
+            assertEquals(ObjectId.forString("feature " + i), tree.get("feature" + i)
+                    .getObjectId());
+        }
+        assertNull(tree.get("missing"));
+
+        int count = 0;
+        for (Iterator<Ref> it = tree.iterator(null); it.hasNext(); it.next()) {
+            count++;
+        }
+        assertEquals(numEntries, count);
+        assertEquals(treeId, put(tree));
+
+        MutableTree edited = tree.mutable();
+        edited.remove("feature0");
+        edited.put(new Ref("added", ObjectId.forString("added"), TYPE.BLOB));
+        edited.normalize();
+        RevTree saved = read(put(edited), 0);
+        assertEquals(BigInteger.valueOf(numEntries), saved.size());
+        assertNull(saved.get("feature0"));
+        assertNotNull(saved.get("added"));
+    }
+
+    public void testIteratorReadsEachSubtreeOnce() throws Exception {
+        final ConcurrentMap<ObjectId, AtomicInteger> reads = new ConcurrentHashMap<ObjectId, AtomicInteger>();
+        final HeapObjectDatabase countingDb = new HeapObjectDatabase() {
+            @Override
+            protected InputStream getRawInternal(final ObjectId id) throws IOException {
+                reads.putIfAbsent(id, new AtomicInteger());
+                reads.get(id).incrementAndGet();
+                try {
+                    // slow enough for the consumer to reach prefetches still being read
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getRawInternal(id);
+            }
+        };
+        countingDb.create();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        countingDb.setReadExecutor(pool);
+        try {
+            final int numEntries = RevSHA1Tree.NORMALIZED_SIZE_LIMIT * 3;
+            MutableTree mutable = countingDb.newTree();
+            for (int i = 0; i < numEntries; i++) {
+                mutable.put(new Ref("feature" + i, ObjectId.forString("feature " + i),
+                        TYPE.BLOB));
+            }
+            mutable.normalize();
+            final ObjectId treeId = countingDb.put(WrappedSerialisingFactory.getInstance()
+                    .createRevTreeWriter(mutable));
+            RevTree tree = countingDb.get(treeId, WrappedSerialisingFactory.getInstance()
+                    .createRevTreeReader(countingDb, 0));
+            reads.clear();
+
+            int count = 0;
+            for (Iterator<Ref> it = tree.iterator(null); it.hasNext(); it.next()) {
+                count++;
+            }
+            assertEquals(numEntries, count);
+            assertFalse(reads.isEmpty());
+            for (Map.Entry<ObjectId, AtomicInteger> e : reads.entrySet()) {
+                assertEquals("reads of " + e.getKey(), 1, e.getValue().get());
+            }
+        } finally {
+            pool.shutdown();
+            countingDb.close();
+        }
+    }
+
+    public void testEmptyNode() throws Exception {
+        RevTree tree = read(put(odb.newTree()), 0);
+        assertEquals(BigInteger.ZERO, tree.size());
+        assertNull(tree.get("any"));
+        assertFalse(tree.iterator(null).hasNext());
+    }
+
+    public void testDuplicateEntries() {
+        CompactRevTree.Builder builder = new CompactRevTree.Builder(odb, 0);
+        builder.put(new Ref("a", ObjectId.forString("a"), TYPE.BLOB));
+        builder.put(new Ref("a", ObjectId.forString("b"), TYPE.BLOB));
+        try {
+            builder.build(null, BigInteger.valueOf(2));
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("Duplicate"));
+        }
+    }
+
+    private ObjectId put(final RevTree tree) throws Exception {
+        return odb.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(tree));
+    }
+
+    private RevTree read(final ObjectId treeId, final int depth) throws Exception {
+        return odb.get(treeId, WrappedSerialisingFactory.getInstance().createRevTreeReader(odb,
+                depth));
+    }
+}
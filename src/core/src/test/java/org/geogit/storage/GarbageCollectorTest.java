@@ -0,0 +1,190 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geogit.api.DiffEntry;
+import org.geogit.api.MutableTree;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.RevTree;
+import org.geogit.storage.bdbje.EntityStoreConfig;
+import org.geogit.storage.bdbje.EnvironmentBuilder;
+import org.geogit.storage.fs.FileObjectDatabase;
+
+import com.google.common.io.ByteStreams;
+import com.sleepycat.je.Environment;
+
+public class GarbageCollectorTest extends TestCase {
+
+    private File envHome;
+
+    private FileObjectDatabase odb;
+
+    private RefDatabase refs;
+
+    @Override
+    protected void setUp() throws Exception {
+        envHome = new File(new File("target"), "GarbageCollectorTest");
+        FileUtils.deleteDirectory(envHome);
+        envHome.mkdirs();
+        odb = new FileObjectDatabase(envHome);
+        odb.create();
+        refs = new RefDatabase(odb);
+        refs.create();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        odb.close();
+        FileUtils.deleteDirectory(envHome);
+    }
+
+    public void testPrunesUnreachableObjects() throws Exception {
+        ObjectId blob1 = odb.put(new BlobWriter("blob 1".getBytes()));
+        ObjectId blob2 = odb.put(new BlobWriter("blob 2".getBytes()));
+        ObjectId garbageBlob = odb.put(new BlobWriter("garbage".getBytes()));
+        ObjectId garbageTree = putTree(garbageBlob);
+
+        ObjectId subTree = putTree(blob2);
+        MutableTree root = odb.newTree();
+        root.put(new Ref("blob1", blob1, TYPE.BLOB));
+        root.put(new Ref("sub", subTree, TYPE.TREE));
+        ObjectId rootTree = odb.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(
+                root));
+        ObjectId parent = putCommit(putTree(blob1), ObjectId.NULL);
+        ObjectId head = putCommit(rootTree, parent);
+        refs.put(new Ref(Ref.MASTER, head, TYPE.COMMIT));
+
+        GarbageCollector gc = GarbageCollector.forRepository(odb, refs).setThreads(2);
+        final long reclaimed = gc.collect();
+        assertEquals(2, gc.getPrunedObjects());
+        assertTrue(reclaimed > 0);
+        assertEquals(reclaimed, gc.getPrunedBytes());
+        assertFalse(odb.exists(garbageBlob));
+        assertFalse(odb.exists(garbageTree));
+        for (ObjectId id : new ObjectId[] { blob1, blob2, subTree, rootTree, parent, head,
+                RefDatabase.REFS_TREE_ID }) {
+            assertTrue(odb.exists(id));
+        }
+        assertEquals(head, refs.getRef(Ref.MASTER).getObjectId());
+
+        // nothing left to collect
+        assertEquals(0, gc.collect());
+        assertEquals(gc.getReachableObjects(), odb.lookUp("").size());
+    }
+
+    public void testKeepsDeltaBases() throws Exception {
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            contents.append("attribute").append(i).append(';');
+        }
+        ObjectId base = odb.put(new BlobWriter(contents.toString().getBytes()));
+        ObjectId version = odb.putDelta(base,
+                new BlobWriter(contents.append("more").toString().getBytes()));
+        assertEquals(base, ((AbstractObjectDatabase) odb).getDeltaBaseId(version));
+        refs.put(new Ref(Ref.MASTER, putCommit(putTree(version), ObjectId.NULL), TYPE.COMMIT));
+
+        GarbageCollector gc = GarbageCollector.forRepository(odb, refs);
+        gc.collect();
+        assertEquals(0, gc.getPrunedObjects());
+        assertTrue(odb.exists(base));
+        InputStream in = odb.getRaw(version);
+        try {
+            assertEquals(contents.toString(), new String(ByteStreams.toByteArray(in)));
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testWalksTreeBuckets() throws Exception {
+        MutableTree tree = odb.newTree();
+        final int numEntries = RevSHA1Tree.NORMALIZED_SIZE_LIMIT + 100;
+        ObjectId last = null;
+        for (int i = 0; i < numEntries; i++) {
+            last = odb.put(new BlobWriter(("feature " + i).getBytes()));
+            tree.put(new Ref("feature" + i, last, TYPE.BLOB));
+        }
+        tree.normalize();
+        ObjectId treeId = odb.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(
+                tree));
+        refs.put(new Ref(Ref.MASTER, putCommit(treeId, ObjectId.NULL), TYPE.COMMIT));
+        odb.put(new BlobWriter("garbage".getBytes()));
+
+        GarbageCollector gc = GarbageCollector.forRepository(odb, refs).setThreads(4);
+        gc.collect();
+        assertEquals(1, gc.getPrunedObjects());
+        RevTree stored = odb.getTree(treeId);
+        assertEquals(numEntries, stored.size().intValue());
+        assertEquals(last, stored.get("feature" + (numEntries - 1)).getObjectId());
+    }
+
+    public void testStagingArea() throws Exception {
+        File stagingHome = new File(envHome, "staging");
+        File indexHome = new File(envHome, "index");
+        indexHome.mkdirs();
+        Environment env = new EnvironmentBuilder(new EntityStoreConfig()).buildEnvironment(
+                indexHome, null);
+        FileObjectDatabase stagingOdb = new FileObjectDatabase(stagingHome);
+        StagingDatabase index = new StagingDatabase(odb, stagingOdb, env);
+        index.create();
+        try {
+            ObjectId committed = odb.put(new BlobWriter("committed".getBytes()));
+            ObjectId staged = index.put(new BlobWriter("staged".getBytes()));
+            ObjectId unstaged = index.put(new BlobWriter("unstaged".getBytes()));
+            ObjectId replaced = index.put(new BlobWriter("replaced".getBytes()));
+            ObjectId tree = index.put(WrappedSerialisingFactory.getInstance()
+                    .createRevTreeWriter(stagingOdb.newTree()));
+
+            index.putUnstaged(DiffEntry.newInstance(new Ref("a", committed, TYPE.BLOB), new Ref(
+                    "a", staged, TYPE.BLOB), Arrays.asList("a")));
+            index.stage(index.findUnstaged("a"));
+            index.putUnstaged(DiffEntry.newInstance(null, new Ref("b", unstaged, TYPE.BLOB),
+                    Arrays.asList("b")));
+            index.putUnstaged(DiffEntry.newInstance(null, new Ref("c", tree, TYPE.TREE),
+                    Arrays.asList("c")));
+
+            GarbageCollector gc = GarbageCollector.forStagingArea(index);
+            gc.collect();
+            assertEquals(1, gc.getPrunedObjects());
+            assertFalse(index.exists(replaced));
+            assertTrue(stagingOdb.exists(staged));
+            assertTrue(stagingOdb.exists(unstaged));
+            assertTrue(stagingOdb.exists(tree));
+            // objects of the repository database are left alone
+            assertTrue(odb.exists(committed));
+        } finally {
+            index.close();
+            env.close();
+        }
+    }
+
+    private ObjectId putTree(final ObjectId blob) throws Exception {
+        MutableTree tree = odb.newTree();
+        tree.put(new Ref("blob", blob, TYPE.BLOB));
+        return odb.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(tree));
+    }
+
+    private ObjectId putCommit(final ObjectId treeId, final ObjectId parentId) throws Exception {
+        RevCommit commit = new RevCommit(ObjectId.NULL);
+        commit.setAuthor("groldan");
+        commit.setCommitter("groldan");
+        commit.setMessage("commit");
+        commit.setTreeId(treeId);
+        if (!parentId.isNull()) {
+            commit.setParentIds(Collections.singletonList(parentId));
+        }
+        return odb.put(WrappedSerialisingFactory.getInstance().createCommitWriter(commit));
+    }
+}
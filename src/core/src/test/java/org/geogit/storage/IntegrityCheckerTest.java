@@ -0,0 +1,236 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geogit.api.MutableTree;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.storage.fs.FileObjectDatabase;
+
+import com.ning.compress.lzf.LZFOutputStream;
+
+public class IntegrityCheckerTest extends TestCase {
+
+    private File envHome;
+
+    private FileObjectDatabase odb;
+
+    private RefDatabase refs;
+
+    @Override
+    protected void setUp() throws Exception {
+        envHome = new File(new File("target"), "IntegrityCheckerTest");
+        FileUtils.deleteDirectory(envHome);
+        envHome.mkdirs();
+        odb = new FileObjectDatabase(envHome);
+        odb.create();
+        refs = new RefDatabase(odb);
+        refs.create();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        odb.close();
+        FileUtils.deleteDirectory(envHome);
+    }
+
+    public void testValidRepository() throws Exception {
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            contents.append("attribute").append(i).append(';');
+        }
+        ObjectId base = odb.put(new BlobWriter(contents.toString().getBytes()));
+        ObjectId delta = odb.putDelta(base,
+                new BlobWriter(contents.append("more").toString().getBytes()));
+
+        MutableTree tree = odb.newTree();
+        final int numEntries = RevSHA1Tree.NORMALIZED_SIZE_LIMIT + 100;
+        for (int i = 0; i < numEntries; i++) {
+            tree.put(new Ref("feature" + i, odb.put(new BlobWriter(("feature " + i).getBytes())),
+                    TYPE.BLOB));
+        }
+        tree.put(new Ref("delta", delta, TYPE.BLOB));
+        tree.normalize();
+        ObjectId treeId = odb.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(
+                tree));
+        ObjectId parent = putCommit(putTree(base), ObjectId.NULL);
+        refs.put(new Ref(Ref.MASTER, putCommit(treeId, parent), TYPE.COMMIT));
+
+        IntegrityChecker checker = IntegrityChecker.forRepository(odb).setThreads(4);
+        assertTrue(checker.getErrors().toString(), checker.check());
+        // blobs, delta, trees and their buckets, commits and the refs tree
+        assertTrue(checker.getCheckedObjects() > numEntries + 6);
+        assertTrue(checker.getCheckedBytes() > 0);
+        assertTrue(checker.getObjectsPerSecond() > 0);
+    }
+
+    public void testCorruptObjects() throws Exception {
+        ObjectId missing = odb.put(new BlobWriter("missing".getBytes()));
+        ObjectId corrupt = odb.put(new BlobWriter("corrupt".getBytes()));
+        ObjectId blob = odb.put(new BlobWriter("blob".getBytes()));
+        MutableTree tree = odb.newTree();
+        tree.put(new Ref("missing", missing, TYPE.BLOB));
+        tree.put(new Ref("corrupt", corrupt, TYPE.BLOB));
+        tree.put(new Ref("wrongType", blob, TYPE.TREE));
+        ObjectId treeId = odb.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(
+                tree));
+        refs.put(new Ref(Ref.MASTER, putCommit(treeId, ObjectId.NULL), TYPE.COMMIT));
+
+        odb.delete(missing);
+        odb.put(corrupt, new BlobWriter("tampered".getBytes()));
+
+        IntegrityChecker checker = IntegrityChecker.forRepository(odb);
+        assertFalse(checker.check());
+        assertEquals(checker.getErrors().toString(), 3, checker.getErrors().size());
+        assertContains(checker, "Missing BLOB " + missing);
+        assertContains(checker, "Object " + corrupt + " hashes to");
+        assertContains(checker, blob + " is a BLOB but is referenced as a TREE");
+    }
+
+    public void testLegacyRecord() throws Exception {
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            contents.append("attribute").append(i).append(';');
+        }
+        final byte[] bytes = contents.toString().getBytes();
+        // records written before codecs were introduced are bare LZF streams, whose chunks may
+        // end early where the writer flushed
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        LZFOutputStream lzfOut = new LZFOutputStream(legacy);
+        lzfOut.write(bytes, 0, bytes.length / 2);
+        lzfOut.flush();
+        lzfOut.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+        lzfOut.close();
+        final byte[] record = legacy.toByteArray();
+        final ObjectId id = new ObjectId(MessageDigest.getInstance("SHA1").digest(record));
+
+        odb.put(id, new BlobWriter(bytes));
+        FileUtils.writeByteArrayToFile(file(id), record);
+
+        MutableTree tree = odb.newTree();
+        tree.put(new Ref("legacy", id, TYPE.BLOB));
+        ObjectId treeId = odb.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(
+                tree));
+        refs.put(new Ref(Ref.MASTER, putCommit(treeId, ObjectId.NULL), TYPE.COMMIT));
+
+        IntegrityChecker checker = IntegrityChecker.forRepository(odb);
+        assertTrue(checker.getErrors().toString(), checker.check());
+    }
+
+    public void testDeltaBaseReadFromStorage() throws Exception {
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            contents.append("attribute").append(i).append(';');
+        }
+        ObjectId base = odb.put(new BlobWriter(contents.toString().getBytes()));
+        ObjectId delta = odb.putDelta(base,
+                new BlobWriter(contents.append("more").toString().getBytes()));
+        MutableTree tree = odb.newTree();
+        tree.put(new Ref("base", base, TYPE.BLOB));
+        tree.put(new Ref("delta", delta, TYPE.BLOB));
+        ObjectId treeId = odb.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(
+                tree));
+        refs.put(new Ref(Ref.MASTER, putCommit(treeId, ObjectId.NULL), TYPE.COMMIT));
+
+        // reading the delta caches its base, which is then corrupted behind the database's back
+        odb.getRaw(delta).close();
+        ObjectId other = odb.put(new BlobWriter(contents.reverse().toString().getBytes()));
+        FileUtils.copyFile(file(other), file(base));
+
+        IntegrityChecker checker = IntegrityChecker.forRepository(odb);
+        assertFalse(checker.check());
+        assertEquals(checker.getErrors().toString(), 2, checker.getErrors().size());
+        assertContains(checker, "Object " + base + " hashes to");
+    }
+
+    public void testTreeConsistency() throws Exception {
+        ObjectId blob = odb.put(new BlobWriter("blob".getBytes()));
+        TreeMap<String, Ref> entries = new TreeMap<String, Ref>();
+        entries.put("a", new Ref("a", blob, TYPE.BLOB));
+        entries.put("b", new Ref("b", blob, TYPE.BLOB));
+        ObjectId wrongSize = odb.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(
+                new RevSHA1Tree(null, odb, 0, entries, new TreeMap<Integer, Ref>(),
+                        BigInteger.valueOf(3))));
+
+        // "a" goes to bucket 134 of the root tree
+        final int wrongBucket = 5;
+        TreeMap<Integer, Ref> buckets = new TreeMap<Integer, Ref>();
+        buckets.put(Integer.valueOf(wrongBucket), new Ref("", wrongSize, TYPE.TREE));
+        ObjectId misplaced = odb.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(
+                new RevSHA1Tree(null, odb, 0, new TreeMap<String, Ref>(), buckets, BigInteger
+                        .valueOf(3))));
+        refs.put(new Ref(Ref.MASTER, putCommit(misplaced, ObjectId.NULL), TYPE.COMMIT));
+
+        IntegrityChecker checker = IntegrityChecker.forRepository(odb);
+        assertFalse(checker.check());
+        assertEquals(checker.getErrors().toString(), 3, checker.getErrors().size());
+        assertContains(checker, "Tree " + wrongSize + " has size 3 but holds 2 entries");
+        assertContains(checker, "Entry a of tree " + wrongSize + " is not in its bucket");
+        assertContains(checker, "Entry b of tree " + wrongSize + " is not in its bucket");
+    }
+
+    public void testStopsAtMaxErrors() throws Exception {
+        MutableTree tree = odb.newTree();
+        for (int i = 0; i < 100; i++) {
+            ObjectId id = odb.put(new BlobWriter(("blob " + i).getBytes()));
+            tree.put(new Ref("blob" + i, id, TYPE.BLOB));
+            odb.delete(id);
+        }
+        ObjectId treeId = odb.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(
+                tree));
+        refs.put(new Ref(Ref.MASTER, putCommit(treeId, ObjectId.NULL), TYPE.COMMIT));
+
+        IntegrityChecker checker = IntegrityChecker.forRepository(odb).setMaxErrors(5);
+        assertFalse(checker.check());
+        assertEquals(5, checker.getErrors().size());
+    }
+
+    private static void assertContains(final IntegrityChecker checker, final String error) {
+        for (String e : checker.getErrors()) {
+            if (e.startsWith(error)) {
+                return;
+            }
+        }
+        fail(error + " not in " + checker.getErrors());
+    }
+
+    private File file(final ObjectId id) {
+        final String name = id.toString();
+        File file = new File(new File(new File(envHome, name.substring(0, 2)), name.substring(2,
+                4)), name);
+        assertTrue(file.exists());
+        return file;
+    }
+
+    private ObjectId putTree(final ObjectId blob) throws Exception {
+        MutableTree tree = odb.newTree();
+        tree.put(new Ref("blob", blob, TYPE.BLOB));
+        return odb.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(tree));
+    }
+
+    private ObjectId putCommit(final ObjectId treeId, final ObjectId parentId) throws Exception {
+        RevCommit commit = new RevCommit(ObjectId.NULL);
+        commit.setAuthor("groldan");
+        commit.setCommitter("groldan");
+        commit.setMessage("commit");
+        commit.setTreeId(treeId);
+        if (!parentId.isNull()) {
+            commit.setParentIds(Collections.singletonList(parentId));
+        }
+        return odb.put(WrappedSerialisingFactory.getInstance().createCommitWriter(commit));
+    }
+}
@@ -0,0 +1,80 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.storage.memory.HeapObjectDatabase;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Measures {@link MutableRevSHA1Tree#normalize()} of a tree holding a large number of pending
+ * entries, writing its buckets from the calling thread and from pools of increasing size.
+ * <p>
+ * The entries are added to the tree directly, bypassing the {@link RevSHA1Tree#SPLIT_FACTOR
+ * split factor} that would otherwise normalize the tree along the way. Every run writes the same
+ * tree id. Run with {@code [entries] [maxThreads] [rounds]}, the best round is reported.
+ * </p>
+ */
+public class MutableRevSHA1TreeNormalizeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime
+                .getRuntime().availableProcessors();
+        final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        final Ref[] refs = new Ref[entries];
+        for (int i = 0; i < entries; i++) {
+            refs[i] = new Ref("Feature." + i, ObjectId.forString("feature " + i), TYPE.BLOB);
+            refs[i].getNameHash();
+        }
+
+        System.out.printf("%-8s %12s %14s  %s%n", "threads", "best ms", "entries/s", "tree");
+        report("caller", MoreExecutors.sameThreadExecutor(), refs, rounds);
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                report(String.valueOf(threads), pool, refs, rounds);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static void report(final String name, final ExecutorService executor,
+            final Ref[] refs, final int rounds) throws Exception {
+        MutableRevSHA1Tree.setNormalizeExecutor(executor);
+        long best = Long.MAX_VALUE;
+        ObjectId treeId = null;
+        // the first round warms up the JIT
+        for (int r = 0; r <= rounds; r++) {
+            HeapObjectDatabase db = new HeapObjectDatabase();
+            db.create();
+            try {
+                MutableRevSHA1Tree tree = new MutableRevSHA1Tree(db, 0);
+                for (Ref ref : refs) {
+                    tree.myEntries.put(ref.getName(), ref);
+                }
+                final long start = System.nanoTime();
+                tree.normalize();
+                treeId = db.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(
+                        tree));
+                if (r > 0) {
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+            } finally {
+                db.close();
+            }
+        }
+        System.out.printf("%-8s %12.1f %14.0f  %s%n", name, best / 1e6, refs.length * 1e9 / best,
+                treeId);
+    }
+}
@@ -0,0 +1,95 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.math.BigInteger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.geogit.api.MutableTree;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.RevTree;
+import org.geogit.storage.memory.HeapObjectDatabase;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class MutableRevSHA1TreeTest extends TestCase {
+
+    private HeapObjectDatabase odb;
+
+    private ExecutorService pool;
+
+    private ExecutorService defaultExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        defaultExecutor = MutableRevSHA1Tree.normalizeExecutor();
+        odb = new HeapObjectDatabase();
+        odb.create();
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        MutableRevSHA1Tree.setNormalizeExecutor(defaultExecutor);
+        pool.shutdown();
+        odb.close();
+    }
+
+    public void testParallelNormalizeMatchesSequential() throws Exception {
+        final int numEntries = RevSHA1Tree.NORMALIZED_SIZE_LIMIT * 10;
+
+        MutableRevSHA1Tree.setNormalizeExecutor(MoreExecutors.sameThreadExecutor());
+        final ObjectId sequential = write(numEntries);
+        MutableRevSHA1Tree.setNormalizeExecutor(pool);
+        final ObjectId parallel = write(numEntries);
+        assertEquals(sequential, parallel);
+
+        // updates of an already split tree, with removals
+        MutableRevSHA1Tree.setNormalizeExecutor(MoreExecutors.sameThreadExecutor());
+        final ObjectId sequentialUpdate = update(sequential, numEntries);
+        MutableRevSHA1Tree.setNormalizeExecutor(pool);
+        final ObjectId parallelUpdate = update(parallel, numEntries);
+        assertEquals(sequentialUpdate, parallelUpdate);
+
+        RevTree tree = read(parallelUpdate);
+        assertEquals(BigInteger.valueOf(numEntries), tree.size());
+        assertNull(tree.get("feature0"));
+        assertEquals(ObjectId.forString("updated 1"), tree.get("feature1").getObjectId());
+        assertNotNull(tree.get("added0"));
+    }
+
+    private ObjectId write(final int numEntries) throws Exception {
+        MutableTree tree = odb.newTree();
+        for (int i = 0; i < numEntries; i++) {
+            tree.put(new Ref("feature" + i, ObjectId.forString("feature " + i), TYPE.BLOB));
+        }
+        tree.normalize();
+        assertEquals(BigInteger.valueOf(numEntries), tree.size());
+        return odb.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(tree));
+    }
+
+    private ObjectId update(final ObjectId treeId, final int numEntries) throws Exception {
+        MutableTree tree = read(treeId).mutable();
+        for (int i = 0; i < numEntries; i += 2) {
+            tree.remove("feature" + i);
+            tree.put(new Ref("added" + i, ObjectId.forString("added " + i), TYPE.BLOB));
+        }
+        for (int i = 1; i < numEntries; i += 2) {
+            tree.put(new Ref("feature" + i, ObjectId.forString("updated " + i), TYPE.BLOB));
+        }
+        tree.normalize();
+        return odb.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(tree));
+    }
+
+    private RevTree read(final ObjectId treeId) throws Exception {
+        return odb.get(treeId, WrappedSerialisingFactory.getInstance()
+                .createRevTreeReader(odb, 0));
+    }
+}
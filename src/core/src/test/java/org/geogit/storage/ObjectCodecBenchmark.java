@@ -0,0 +1,147 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.storage.hessian.HessianFactory;
+import org.geotools.data.DataUtilities;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Compares the stored size and the encoding and decoding time of features of different geometry
+ * sizes for each {@link ObjectCodec}.
+ * <p>
+ * Features are built the way a data import would, with a few attributes and geometries following
+ * a random walk at the coordinate precision of typical vector data, and encoded with the default
+ * serialisation. Run with {@code [featuresPerKind] [rounds]}.
+ * </p>
+ */
+public class ObjectCodecBenchmark {
+
+    private static final ObjectCodec[] CODECS = { ObjectCodec.NONE, ObjectCodec.LZF,
+            ObjectCodec.DEFLATE };
+
+    private static final GeometryFactory GF = new GeometryFactory();
+
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        SimpleFeatureType type = DataUtilities.createType("http://geogit.bench", "Bench",
+                "name:String,code:Integer,area:Double,geom:Geometry:srid=4326");
+
+        Random random = new Random(1);
+        Object[][] kinds = { { "point", 1 }, { "line (50 vertices)", 50 },
+                { "polygon (2000 vertices)", 2000 } };
+
+        System.out.printf("%-25s %-8s %12s %8s %12s %12s%n", "features", "codec", "bytes",
+                "ratio", "encode us", "decode us");
+        for (Object[] kind : kinds) {
+            final int vertices = ((Integer) kind[1]).intValue();
+            List<ObjectWriter<?>> writers = new ArrayList<ObjectWriter<?>>(count);
+            HessianFactory factory = new HessianFactory();
+            for (int i = 0; i < count; i++) {
+                writers.add(factory.createFeatureWriter(feature(type, i, vertices, random)));
+            }
+            long plainSize = 0;
+            for (ObjectCodec codec : CODECS) {
+                ObjectCodecPolicy policy = new ObjectCodecPolicy(codec,
+                        new HashMap<TYPE, ObjectCodec>(), 0);
+                List<byte[]> records = new ArrayList<byte[]>(count);
+                long encodeNanos = Long.MAX_VALUE;
+                for (int r = 0; r < rounds; r++) {
+                    records.clear();
+                    final long start = System.nanoTime();
+                    ObjectEncoder encoder = ObjectEncoder.acquire();
+                    try {
+                        for (ObjectWriter<?> writer : writers) {
+                            encoder.encode(writer, policy);
+                            records.add(encoder.toByteArray());
+                        }
+                    } finally {
+                        encoder.release();
+                    }
+                    encodeNanos = Math.min(encodeNanos, System.nanoTime() - start);
+                }
+                long size = 0;
+                for (byte[] record : records) {
+                    size += record.length;
+                }
+                if (codec == ObjectCodec.NONE) {
+                    plainSize = size;
+                }
+                long decodeNanos = Long.MAX_VALUE;
+                long decoded = 0;
+                byte[] buff = new byte[8192];
+                for (int r = 0; r < rounds; r++) {
+                    final long start = System.nanoTime();
+                    for (byte[] record : records) {
+                        InputStream in = ObjectCodec.open(new ByteArrayInputStream(record));
+                        for (int n; (n = in.read(buff)) != -1;) {
+                            decoded += n;
+                        }
+                        in.close();
+                    }
+                    decodeNanos = Math.min(decodeNanos, System.nanoTime() - start);
+                }
+                if (decoded == 0) {
+                    throw new IllegalStateException("nothing decoded");
+                }
+                System.out.printf("%-25s %-8s %12d %8.2f %12.1f %12.1f%n", kind[0], codec, size,
+                        (double) plainSize / size, encodeNanos / 1000d / count, decodeNanos
+                                / 1000d / count);
+            }
+        }
+    }
+
+    private static Feature feature(final SimpleFeatureType type, final int index,
+            final int vertices, final Random random) {
+        Coordinate[] coords = new Coordinate[vertices == 1 ? 1 : vertices + 1];
+        double x = -180 + 360 * random.nextDouble();
+        double y = -80 + 160 * random.nextDouble();
+        for (int i = 0; i < vertices; i++) {
+            x += (random.nextDouble() - 0.5) * 0.001;
+            y += (random.nextDouble() - 0.5) * 0.001;
+            coords[i] = new Coordinate(round(x), round(y));
+        }
+        Geometry geom;
+        if (vertices == 1) {
+            geom = GF.createPoint(coords[0]);
+        } else if (vertices < 100) {
+            coords = Arrays.copyOf(coords, vertices);
+            geom = GF.createLineString(coords);
+        } else {
+            coords[vertices] = coords[0];
+            geom = GF.createPolygon(GF.createLinearRing(coords), null);
+        }
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+        builder.set("name", "Feature number " + index);
+        builder.set("code", Integer.valueOf(random.nextInt(1000)));
+        builder.set("area", Double.valueOf(geom.getArea()));
+        builder.set("geom", geom);
+        return builder.buildFeature("Bench." + index);
+    }
+
+    /**
+     * Rounds to 7 decimals, about a centimeter, as most real world data sets are
+     */
+    private static double round(final double ordinate) {
+        return Math.round(ordinate * 1e7) / 1e7;
+    }
+}
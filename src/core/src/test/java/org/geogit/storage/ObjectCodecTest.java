@@ -0,0 +1,126 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.geogit.api.RevObject.TYPE;
+
+import com.google.common.io.ByteStreams;
+import com.ning.compress.lzf.LZFOutputStream;
+
+public class ObjectCodecTest extends TestCase {
+
+    private byte[] contents;
+
+    @Override
+    protected void setUp() throws Exception {
+        contents = new byte[100 * 1024];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) (i % 31);
+        }
+    }
+
+    public void testRoundTrip() throws Exception {
+        for (ObjectCodec codec : new ObjectCodec[] { ObjectCodec.NONE, ObjectCodec.LZF,
+                ObjectCodec.DEFLATE }) {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            record.write(codec.getId());
+            record.write(TYPE.BLOB.value());
+            OutputStream out = codec.compress(record);
+            out.write(contents);
+            out.close();
+
+            InputStream in = ObjectCodec.open(new ByteArrayInputStream(record.toByteArray()));
+            assertTrue(codec.getName(), Arrays.equals(contents, ByteStreams.toByteArray(in)));
+        }
+    }
+
+    /**
+     * Records stored before codecs were introduced have no codec byte and are plain LZF
+     */
+    public void testReadLegacyRecord() throws Exception {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        LZFOutputStream out = new LZFOutputStream(record);
+        out.write(contents);
+        out.close();
+
+        InputStream in = ObjectCodec.open(new ByteArrayInputStream(record.toByteArray()));
+        assertTrue(Arrays.equals(contents, ByteStreams.toByteArray(in)));
+
+        in = ObjectCodec.open(new ByteArrayInputStream(new byte[0]));
+        assertEquals(-1, in.read());
+    }
+
+    public void testTypeTag() {
+        byte[] header = { (byte) ObjectCodec.LZF.getId(), 0 };
+        for (TYPE type : TYPE.values()) {
+            header[1] = (byte) ObjectCodec.typeTag(type);
+            assertEquals(type, ObjectCodec.type(header, header.length));
+        }
+        header[1] = (byte) ObjectCodec.typeTag(null);
+        assertNull(ObjectCodec.type(header, header.length));
+        assertNull(ObjectCodec.type(header, 1));
+        // legacy records carry no type
+        assertNull(ObjectCodec.type(new byte[] { 'Z', 'V' }, 2));
+    }
+
+    public void testTruncatedHeader() throws Exception {
+        try {
+            ObjectCodec.open(new ByteArrayInputStream(new byte[] { (byte) ObjectCodec.NONE.getId() }));
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Truncated"));
+        }
+    }
+
+    public void testUnknownCodec() throws Exception {
+        try {
+            ObjectCodec.open(new ByteArrayInputStream(new byte[] { (byte) 200, 1, 2 }));
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("200"));
+        }
+    }
+
+    public void testRegister() {
+        assertSame(ObjectCodec.DEFLATE, ObjectCodec.forId(ObjectCodec.DEFLATE.getId()));
+        try {
+            ObjectCodec.register(new TestCodec(ObjectCodec.LZF.getId()));
+            fail("expected IAE, id already taken");
+        } catch (IllegalArgumentException e) {
+            assertTrue(true);
+        }
+        try {
+            new TestCodec('Z');
+            fail("expected IAE, id reserved for records without codec byte");
+        } catch (IllegalArgumentException e) {
+            assertTrue(true);
+        }
+    }
+
+    private static class TestCodec extends ObjectCodec {
+        TestCodec(int id) {
+            super(id, "test");
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+    }
+}
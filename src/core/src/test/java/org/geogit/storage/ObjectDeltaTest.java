@@ -0,0 +1,93 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ObjectDeltaTest extends TestCase {
+
+    private Random random;
+
+    private byte[] base;
+
+    @Override
+    protected void setUp() throws Exception {
+        random = new Random(1);
+        base = new byte[4096];
+        random.nextBytes(base);
+    }
+
+    public void testIdentical() throws Exception {
+        byte[] delta = assertRoundTrip(base, base.clone());
+        assertTrue(delta.length < 16);
+    }
+
+    public void testSmallChanges() throws Exception {
+        // replace a few bytes in the middle
+        byte[] target = base.clone();
+        target[2000] ^= 0xFF;
+        target[2001] ^= 0xFF;
+        byte[] delta = assertRoundTrip(base, target);
+        assertTrue(delta.length < 64);
+
+        // insert at the start, remove at the end
+        target = new byte[base.length + 10 - 100];
+        System.arraycopy(base, 0, target, 10, base.length - 100);
+        delta = assertRoundTrip(base, target);
+        assertTrue(delta.length < 64);
+
+        // unaligned removal from the middle
+        target = new byte[base.length - 37];
+        System.arraycopy(base, 0, target, 0, 1001);
+        System.arraycopy(base, 1038, target, 1001, base.length - 1038);
+        delta = assertRoundTrip(base, target);
+        assertTrue(delta.length < 64);
+    }
+
+    public void testUnrelatedContents() throws Exception {
+        byte[] target = new byte[base.length];
+        random.nextBytes(target);
+        assertNull(ObjectDelta.create(base, target, target.length, target.length / 2));
+        // but a delta is still computed if allowed to be as big as the target
+        assertRoundTrip(base, target);
+    }
+
+    public void testTooSmall() throws Exception {
+        byte[] small = new byte[ObjectDelta.BLOCK_SIZE - 1];
+        assertNull(ObjectDelta.create(small, base, base.length, base.length));
+        assertNull(ObjectDelta.create(base, small, small.length, base.length));
+    }
+
+    public void testWrongBase() throws Exception {
+        byte[] target = base.clone();
+        target[10] = 0;
+        byte[] delta = ObjectDelta.create(base, target, target.length, target.length);
+        try {
+            ObjectDelta.apply(new byte[base.length + 1], delta);
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("length mismatch"));
+        }
+        try {
+            ObjectDelta.apply(base, Arrays.copyOf(delta, delta.length - 1));
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertTrue(true);
+        }
+    }
+
+    private byte[] assertRoundTrip(final byte[] base, final byte[] target) throws IOException {
+        // pass a bigger buffer than the target, as the object encoder does
+        byte[] buffer = Arrays.copyOf(target, target.length + 100);
+        byte[] delta = ObjectDelta.create(base, buffer, target.length, 2 * target.length);
+        assertNotNull(delta);
+        assertTrue(Arrays.equals(target, ObjectDelta.apply(base, delta)));
+        return delta;
+    }
+}
@@ -0,0 +1,169 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevObject.TYPE;
+
+import com.google.common.io.ByteStreams;
+import com.ning.compress.lzf.LZFOutputStream;
+
+public class ObjectEncoderTest extends TestCase {
+
+    private static final ObjectCodecPolicy LZF_ONLY = new ObjectCodecPolicy(ObjectCodec.LZF,
+            new HashMap<TYPE, ObjectCodec>(), 0);
+
+    /**
+     * Ids must not change with the encoding implementation, check against the straightforward
+     * stream composition
+     */
+    public void testSameIdsAndBytesAsStreamedDigest() throws Exception {
+        Random random = new Random(1);
+        for (int size : new int[] { 0, 1, 100, 64 * 1024, 64 * 1024 + 1, 2 * 1024 * 1024 }) {
+            byte[] contents = new byte[size];
+            // half random, half repeated, so it's partially compressible
+            for (int i = 0; i < size; i++) {
+                contents[i] = (byte) (i % 2 == 0 ? random.nextInt() : i % 7);
+            }
+            ObjectWriter<?> writer = writer(contents);
+
+            ByteArrayOutputStream expectedBytes = new ByteArrayOutputStream();
+            DigestOutputStream digestOut = new DigestOutputStream(expectedBytes,
+                    MessageDigest.getInstance("SHA1"));
+            LZFOutputStream cOut = new LZFOutputStream(digestOut);
+            writer.write(cOut);
+            cOut.flush();
+            cOut.close();
+            ObjectId expectedId = new ObjectId(digestOut.getMessageDigest().digest());
+
+            ObjectEncoder encoder = ObjectEncoder.acquire();
+            try {
+                assertEquals(expectedId, encoder.encode(writer, LZF_ONLY));
+                // the record is the codec and type bytes followed by the LZF stream
+                assertEquals(expectedBytes.size() + 2, encoder.length());
+                byte[] record = encoder.toByteArray();
+                assertEquals(ObjectCodec.LZF.getId(), record[0]);
+                assertEquals((byte) 0xFF, record[1]);
+                assertTrue(Arrays.equals(expectedBytes.toByteArray(),
+                        Arrays.copyOfRange(record, 2, record.length)));
+            } finally {
+                encoder.release();
+            }
+        }
+    }
+
+    public void testEncoderIsReusedPerThread() throws Exception {
+        ObjectEncoder encoder = ObjectEncoder.acquire();
+        encoder.release();
+        ObjectEncoder again = ObjectEncoder.acquire();
+        try {
+            assertSame(encoder, again);
+            // reentrant acquisition gets a different one
+            ObjectEncoder nested = ObjectEncoder.acquire();
+            assertNotSame(again, nested);
+            nested.release();
+        } finally {
+            again.release();
+        }
+    }
+
+    public void testBufferContentsSurviveNestedEncoding() throws Exception {
+        final byte[] inner = "inner".getBytes();
+        final ObjectId innerId[] = new ObjectId[1];
+        ObjectWriter<?> outer = new ObjectWriter<Object>() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write("outer".getBytes());
+                ObjectEncoder nested = ObjectEncoder.acquire();
+                try {
+                    innerId[0] = nested.encode(writer(inner), LZF_ONLY);
+                } finally {
+                    nested.release();
+                }
+                out.write("outer".getBytes());
+            }
+
+            @Override
+            public TYPE getType() {
+                return null;
+            }
+        };
+        ObjectEncoder encoder = ObjectEncoder.acquire();
+        try {
+            ObjectId outerId = encoder.encode(outer, LZF_ONLY);
+            ObjectEncoder check = ObjectEncoder.acquire();
+            try {
+                assertEquals(outerId, check.encode(writer("outerouter".getBytes()), LZF_ONLY));
+                assertEquals(innerId[0], check.encode(writer(inner), LZF_ONLY));
+            } finally {
+                check.release();
+            }
+        } finally {
+            encoder.release();
+        }
+    }
+
+    public void testIdsDontDependOnCodec() throws Exception {
+        byte[] contents = new byte[10000];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) (i % 13);
+        }
+        ObjectEncoder encoder = ObjectEncoder.acquire();
+        try {
+            final ObjectId expected = encoder.encode(writer(contents), LZF_ONLY);
+            for (ObjectCodec codec : new ObjectCodec[] { ObjectCodec.NONE, ObjectCodec.DEFLATE }) {
+                ObjectCodecPolicy policy = LZF_ONLY.with(TYPE.BLOB, codec);
+                assertEquals(expected, encoder.encode(new BlobWriter(contents), policy));
+                byte[] record = encoder.toByteArray();
+                assertEquals(codec.getId(), record[0]);
+                assertEquals(TYPE.BLOB.value(), record[1]);
+                InputStream in = ObjectCodec.open(new ByteArrayInputStream(record));
+                assertTrue(Arrays.equals(contents, ByteStreams.toByteArray(in)));
+            }
+        } finally {
+            encoder.release();
+        }
+    }
+
+    public void testSmallObjectsAreNotCompressed() throws Exception {
+        ObjectCodecPolicy policy = ObjectCodecPolicy.defaultPolicy();
+        ObjectEncoder encoder = ObjectEncoder.acquire();
+        try {
+            encoder.encode(new BlobWriter("tiny".getBytes()), policy);
+            byte[] record = encoder.toByteArray();
+            assertEquals(ObjectCodec.NONE.getId(), record[0]);
+            assertEquals("tiny", new String(record, 2, record.length - 2));
+        } finally {
+            encoder.release();
+        }
+    }
+
+    private static ObjectWriter<?> writer(final byte[] contents) {
+        return new ObjectWriter<Object>() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write(contents);
+            }
+
+            @Override
+            public TYPE getType() {
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,76 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import junit.framework.TestCase;
+
+import org.geogit.api.ObjectId;
+
+public class ObjectIdBloomFilterTest extends TestCase {
+
+    public void testNoFalseNegatives() {
+        ObjectIdBloomFilter filter = ObjectIdBloomFilter.create(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.put(ObjectId.forString("object" + i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain(ObjectId.forString("object" + i)));
+        }
+        assertEquals(10000, filter.getInsertions());
+        assertFalse(filter.isSaturated());
+    }
+
+    public void testFalsePositiveRate() {
+        ObjectIdBloomFilter filter = ObjectIdBloomFilter.create(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.put(ObjectId.forString("object" + i));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain(ObjectId.forString("missing" + i))) {
+                falsePositives++;
+            }
+        }
+        // expected around 100, allow for some variance
+        assertTrue("false positives: " + falsePositives, falsePositives < 200);
+        assertEquals(0.01, filter.expectedFpp(), 0.005);
+    }
+
+    public void testSaturation() {
+        ObjectIdBloomFilter filter = ObjectIdBloomFilter.create(10, 0.01);
+        for (int i = 0; i < 11; i++) {
+            filter.put(ObjectId.forString("object" + i));
+        }
+        assertTrue(filter.isSaturated());
+    }
+
+    public void testWriteAndRead() throws Exception {
+        ObjectIdBloomFilter filter = ObjectIdBloomFilter.create(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter.put(ObjectId.forString("object" + i));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        filter.writeTo(new DataOutputStream(bytes));
+
+        ObjectIdBloomFilter read = ObjectIdBloomFilter.readFrom(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(filter.getNumBits(), read.getNumBits());
+        assertEquals(filter.getNumHashFunctions(), read.getNumHashFunctions());
+        assertEquals(filter.getExpectedInsertions(), read.getExpectedInsertions());
+        assertEquals(filter.getInsertions(), read.getInsertions());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(read.mightContain(ObjectId.forString("object" + i)));
+        }
+        for (int i = 0; i < 1000; i++) {
+            ObjectId missing = ObjectId.forString("missing" + i);
+            assertEquals(filter.mightContain(missing), read.mightContain(missing));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geogit.api.ObjectId;
+import org.geogit.storage.OffHeapRecordCache.SlabStats;
+import org.geogit.storage.fs.FileObjectDatabase;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.io.ByteStreams;
+
+public class OffHeapRecordCacheTest extends TestCase {
+
+    private static final int SLAB_SIZE = 1024;
+
+    public void testGetPut() {
+        OffHeapRecordCache cache = new OffHeapRecordCache(4 * SLAB_SIZE, SLAB_SIZE);
+        ObjectId id = ObjectId.forString("record");
+        byte[] record = record(100, 1);
+
+        assertNull(cache.get(id));
+        cache.put(id, record, 80);
+        assertEquals(1, cache.size());
+        assertTrue(Arrays.equals(Arrays.copyOf(record, 80), cache.get(id)));
+        assertTrue(Arrays.equals(Arrays.copyOf(record, 80), cache.get(id)));
+
+        CacheStats stats = cache.stats();
+        assertEquals(2, stats.hitCount());
+        assertEquals(1, stats.missCount());
+        assertEquals(SLAB_SIZE, cache.getAllocatedBytes());
+    }
+
+    public void testStaysWithinBudget() {
+        OffHeapRecordCache cache = new OffHeapRecordCache(2 * SLAB_SIZE, SLAB_SIZE);
+        for (int i = 0; i < 100; i++) {
+            cache.put(ObjectId.forString("record" + i), record(100, i), 100);
+        }
+        assertEquals(2 * SLAB_SIZE, cache.getAllocatedBytes());
+        assertTrue(cache.size() < 100);
+        assertEquals(100 - cache.size(), cache.stats().evictionCount());
+        // the latest record is always cached
+        assertTrue(Arrays.equals(record(100, 99), cache.get(ObjectId.forString("record99"))));
+    }
+
+    public void testClockKeepsReadRecords() {
+        OffHeapRecordCache cache = new OffHeapRecordCache(SLAB_SIZE, SLAB_SIZE);
+        // a single slab of 16 chunks of 64 bytes
+        for (int i = 0; i < 16; i++) {
+            cache.put(ObjectId.forString("record" + i), record(64, i), 64);
+        }
+        assertEquals(16, cache.size());
+        for (int i = 0; i < 8; i++) {
+            assertNotNull(cache.get(ObjectId.forString("record" + i)));
+        }
+        for (int i = 16; i < 24; i++) {
+            cache.put(ObjectId.forString("record" + i), record(64, i), 64);
+        }
+        assertEquals(16, cache.size());
+        assertEquals(8, cache.stats().evictionCount());
+        for (int i = 0; i < 8; i++) {
+            assertTrue(Arrays.equals(record(64, i), cache.get(ObjectId.forString("record" + i))));
+        }
+        for (int i = 8; i < 16; i++) {
+            assertNull(cache.get(ObjectId.forString("record" + i)));
+        }
+    }
+
+    public void testSlabHandedOverToOtherSizeClass() {
+        OffHeapRecordCache cache = new OffHeapRecordCache(SLAB_SIZE, SLAB_SIZE);
+        for (int i = 0; i < 16; i++) {
+            cache.put(ObjectId.forString("small" + i), record(64, i), 64);
+        }
+        ObjectId big = ObjectId.forString("big");
+        cache.put(big, record(600, 0), 600);
+
+        assertEquals(1, cache.size());
+        assertTrue(Arrays.equals(record(600, 0), cache.get(big)));
+        assertNull(cache.get(ObjectId.forString("small0")));
+        assertEquals(SLAB_SIZE, cache.getAllocatedBytes());
+
+        List<SlabStats> slabs = cache.getSlabStats();
+        assertEquals(1, slabs.size());
+        assertTrue(slabs.get(0).getChunkSize() >= 600);
+        assertEquals(1, slabs.get(0).getUsedChunks());
+        assertEquals(600, slabs.get(0).getUsedBytes());
+        assertEquals(16, slabs.get(0).getEvictions());
+    }
+
+    public void testInvalidate() {
+        OffHeapRecordCache cache = new OffHeapRecordCache(SLAB_SIZE, SLAB_SIZE);
+        for (int i = 0; i < 16; i++) {
+            cache.put(ObjectId.forString("record" + i), record(64, i), 64);
+        }
+        cache.invalidate(ObjectId.forString("record3"));
+        assertNull(cache.get(ObjectId.forString("record3")));
+        assertEquals(15, cache.size());
+
+        // takes the freed chunk, no eviction needed
+        cache.put(ObjectId.forString("record16"), record(64, 16), 64);
+        assertEquals(16, cache.size());
+        assertEquals(0, cache.stats().evictionCount());
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(ObjectId.forString("record16")));
+        assertEquals(0, cache.getSlabStats().get(0).getUsedChunks());
+    }
+
+    public void testRecordsBiggerThanSlabNotCached() {
+        OffHeapRecordCache cache = new OffHeapRecordCache(SLAB_SIZE, SLAB_SIZE);
+        cache.put(ObjectId.forString("huge"), record(SLAB_SIZE + 1, 0), SLAB_SIZE + 1);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getAllocatedBytes());
+    }
+
+    public void testGetRawThroughCache() throws Exception {
+        File envHome = new File(new File("target"), "OffHeapRecordCacheTest");
+        FileUtils.deleteDirectory(envHome);
+        envHome.mkdirs();
+        FileObjectDatabase odb = new FileObjectDatabase(envHome);
+        odb.create();
+        try {
+            OffHeapRecordCache cache = new OffHeapRecordCache(4 * SLAB_SIZE, SLAB_SIZE);
+            odb.setRecordCache(cache);
+            ObjectId id = odb.put(new BlobWriter("cached contents".getBytes()));
+
+            assertEquals("cached contents", read(odb, id));
+            assertEquals("cached contents", read(odb, id));
+            assertEquals(1, cache.stats().hitCount());
+            assertEquals(1, cache.stats().missCount());
+
+            odb.delete(id);
+            assertEquals(0, cache.size());
+            assertFalse(odb.exists(id));
+        } finally {
+            odb.close();
+            FileUtils.deleteDirectory(envHome);
+        }
+    }
+
+    private static String read(final ObjectDatabase odb, final ObjectId id) throws Exception {
+        InputStream in = odb.getRaw(id);
+        try {
+            return new String(ByteStreams.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] record(final int length, final int seed) {
+        byte[] record = new byte[length];
+        for (int i = 0; i < length; i++) {
+            record[i] = (byte) (seed + i);
+        }
+        return record;
+    }
+}
@@ -0,0 +1,133 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.storage.fs.FileObjectDatabase;
+
+public class PipelinedObjectInserterTest extends TestCase {
+
+    private File envHome;
+
+    private FileObjectDatabase odb;
+
+    private ExecutorService encoders;
+
+    @Override
+    protected void setUp() throws Exception {
+        envHome = new File(new File("target"), "PipelinedObjectInserterTest");
+        FileUtils.deleteDirectory(envHome);
+        envHome.mkdirs();
+        odb = new FileObjectDatabase(envHome);
+        odb.create();
+        encoders = Executors.newFixedThreadPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        encoders.shutdownNow();
+        odb.close();
+        FileUtils.deleteDirectory(envHome);
+    }
+
+    public void testInsertAllReturnsSameIdsAsPut() throws Exception {
+        List<ObjectWriter<?>> writers = new ArrayList<ObjectWriter<?>>();
+        for (int i = 0; i < 1000; i++) {
+            writers.add(new BlobWriter(("blob " + i).getBytes()));
+        }
+        PipelinedObjectInserter inserter = new PipelinedObjectInserter(odb, encoders, 10, 100,
+                Long.MAX_VALUE);
+        List<ObjectId> ids = inserter.insertAll(writers.iterator());
+        assertEquals(writers.size(), ids.size());
+        assertEquals(writers.size(), inserter.getInsertedCount());
+        for (int i = 0; i < writers.size(); i++) {
+            assertTrue(odb.exists(ids.get(i)));
+            assertEquals(ids.get(i), odb.put(writers.get(i)));
+        }
+    }
+
+    public void testSubmittedObjectsExistAfterFlush() throws Exception {
+        PipelinedObjectInserter inserter = odb.newPipelinedObjectInserter();
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        for (int i = 0; i < 100; i++) {
+            ids.add(inserter.submit(new BlobWriter(("blob " + i).getBytes())).get());
+        }
+        inserter.flush();
+        assertEquals(100, inserter.getInsertedCount());
+        for (ObjectId id : ids) {
+            assertTrue(odb.exists(id));
+        }
+
+        // the inserter can be reused after a flush
+        ObjectId id = inserter.insert(new BlobWriter("one more".getBytes()));
+        inserter.flush();
+        assertTrue(odb.exists(id));
+    }
+
+    public void testEncodingErrorIsRethrownOnFlush() throws Exception {
+        PipelinedObjectInserter inserter = new PipelinedObjectInserter(odb, encoders, 10, 100,
+                Long.MAX_VALUE);
+        inserter.submit(new BlobWriter("good".getBytes()));
+        inserter.submit(new ObjectWriter<Object>() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                throw new IOException("expected");
+            }
+
+            @Override
+            public TYPE getType() {
+                return TYPE.BLOB;
+            }
+        });
+        try {
+            inserter.flush();
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertEquals("expected", e.getMessage());
+        }
+    }
+
+    public void testDiscardDropsBufferedObjectsAndErrors() throws Exception {
+        PipelinedObjectInserter inserter = new PipelinedObjectInserter(odb, encoders, 10, 100,
+                Long.MAX_VALUE);
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        for (int i = 0; i < 10; i++) {
+            ids.add(inserter.submit(new BlobWriter(("blob " + i).getBytes())).get());
+        }
+        inserter.submit(new ObjectWriter<Object>() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                throw new IOException("expected");
+            }
+
+            @Override
+            public TYPE getType() {
+                return TYPE.BLOB;
+            }
+        });
+        inserter.discard();
+        assertEquals(0, inserter.getInsertedCount());
+        for (ObjectId id : ids) {
+            assertFalse(odb.exists(id));
+        }
+
+        // the error is forgotten and the inserter can be reused
+        ObjectId id = inserter.insert(new BlobWriter("one more".getBytes()));
+        inserter.flush();
+        assertTrue(odb.exists(id));
+    }
+}
@@ -0,0 +1,143 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.geogit.api.MutableTree;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.RevTree;
+import org.geogit.storage.memory.HeapObjectDatabase;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Measures concurrent {@link RevTree#get(String) lookups} on a single tree instance shared by all
+ * threads, the way readers share trees out of {@link ObjectDatabase#getCached}.
+ * <p>
+ * Next to each tree lookup figure is the throughput of hashing the same keys the way the tree
+ * used to, through one digest guarded by the tree's monitor, which is what serialized the
+ * lookups. Run with {@code [entries] [lookupsPerThread] [maxThreads]}.
+ * </p>
+ */
+public class RevSHA1TreeLookupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        final int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime
+                .getRuntime().availableProcessors();
+
+        HeapObjectDatabase db = new HeapObjectDatabase();
+        db.create();
+        MutableTree mutable = db.newTree();
+        for (int i = 0; i < entries; i++) {
+            mutable.put(new Ref(key(i), ObjectId.forString("feature " + i), TYPE.BLOB));
+        }
+        mutable.normalize();
+        ObjectId treeId = db.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(
+                mutable));
+        final RevTree tree = db.getCached(treeId, WrappedSerialisingFactory.getInstance()
+                .createRevTreeReader(db, 0));
+        final LockedHasher locked = new LockedHasher();
+
+        System.out.printf("%-8s %16s %16s%n", "threads", "lookups/s", "locked hashes/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            final double lookupRate = run(threads, lookups, new Lookup() {
+                @Override
+                boolean lookUp(final String key) {
+                    return tree.get(key) != null;
+                }
+            });
+            final double lockedRate = run(threads, lookups, new Lookup() {
+                @Override
+                boolean lookUp(final String key) {
+                    return locked.hash(key)[0] == 0;
+                }
+            });
+            System.out.printf("%-8d %16.0f %16.0f%n", threads, lookupRate, lockedRate);
+        }
+        db.close();
+    }
+
+    private static String key(final int i) {
+        return "Feature." + i;
+    }
+
+    /**
+     * @return the aggregated lookups per second of {@code threads} threads doing
+     *         {@code lookups} lookups each
+     */
+    private static double run(final int threads, final int lookups, final Lookup lookup)
+            throws Exception {
+        // warm up
+        for (int i = 0; i < 100000; i++) {
+            lookup.lookUp(key(i % 1000));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            @SuppressWarnings("unchecked")
+            Future<Integer>[] results = new Future[threads];
+            for (int t = 0; t < threads; t++) {
+                final int seed = t;
+                results[t] = executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        int found = 0;
+                        for (int i = 0; i < lookups; i++) {
+                            // spread the keys, both present and missing, over the buckets
+                            if (lookup.lookUp(key((i * 31 + seed * 7919) % (lookups / 2 + 1)))) {
+                                found++;
+                            }
+                        }
+                        return Integer.valueOf(found);
+                    }
+                });
+            }
+            final long startTime = System.nanoTime();
+            start.countDown();
+            for (Future<Integer> result : results) {
+                result.get();
+            }
+            final long elapsed = System.nanoTime() - startTime;
+            return (double) threads * lookups * 1e9 / elapsed;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static abstract class Lookup {
+        abstract boolean lookUp(String key);
+    }
+
+    /**
+     * How keys were hashed before, one digest per tree reused under the tree's monitor
+     */
+    private static class LockedHasher {
+
+        private MessageDigest md;
+
+        synchronized byte[] hash(final String key) {
+            try {
+                if (md == null) {
+                    md = MessageDigest.getInstance("SHA1");
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            md.reset();
+            return md.digest(key.getBytes(Charsets.UTF_8));
+        }
+    }
+}
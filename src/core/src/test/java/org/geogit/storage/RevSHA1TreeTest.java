@@ -204,6 +204,23 @@ public class RevSHA1TreeTest extends RepositoryTestCase {
         assertEquals(numEntries, count);
     }
     
+    public void testNameHash() throws Exception {
+        Ref ref = new Ref("Feature.1", ObjectId.forString("contents"), TYPE.BLOB);
+        assertEquals(ObjectId.forString("Feature.1"), ref.getNameHash());
+        assertSame(ref.getNameHash(), ref.getNameHash());
+
+        // the buckets of a normalized tree are found with the hash of the key alone
+        final int numEntries = RevSHA1Tree.NORMALIZED_SIZE_LIMIT * 2;
+        ObjectId treeId = createAndSaveTree(numEntries, true);
+        RevTree tree = odb.get(treeId, WrappedSerialisingFactory.getInstance()
+                .createRevTreeReader(odb, 0));
+        Iterator<Ref> iterator = tree.iterator(null);
+        while (iterator.hasNext()) {
+            Ref entry = iterator.next();
+            assertEquals(entry, tree.get(entry.getName()));
+        }
+    }
+
     public void testPrint() throws Exception {
     	final int numEntries = RevSHA1Tree.SPLIT_FACTOR + 1000;
     	ObjectId treeId = createAndSaveTree(numEntries, true);
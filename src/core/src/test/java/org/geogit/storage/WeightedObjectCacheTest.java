@@ -0,0 +1,79 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.math.BigInteger;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject.TYPE;
+
+import com.google.common.cache.CacheStats;
+
+public class WeightedObjectCacheTest extends TestCase {
+
+    public void testWeighsTreesByNumberOfEntries() {
+        WeightedObjectCache.ObjectWeigher weigher = new WeightedObjectCache.ObjectWeigher();
+
+        RevCommit commit = new RevCommit(ObjectId.forString("commit"));
+        commit.setMessage("a commit message");
+        RevSHA1Tree smallTree = tree(10);
+        RevSHA1Tree bigTree = tree(4096);
+
+        int commitWeight = weigher.weigh(commit.getId(), commit);
+        int smallTreeWeight = weigher.weigh(smallTree.getId(), smallTree);
+        int bigTreeWeight = weigher.weigh(bigTree.getId(), bigTree);
+
+        assertTrue(commitWeight < bigTreeWeight);
+        assertTrue(smallTreeWeight < bigTreeWeight);
+        assertTrue(bigTreeWeight > 100 * smallTreeWeight);
+    }
+
+    public void testHitsMissesAndEvictions() {
+        RevSHA1Tree bigTree = tree(4096);
+        final int treeWeight = new WeightedObjectCache.ObjectWeigher().weigh(bigTree.getId(),
+                bigTree);
+
+        // room for about two big trees in a single segment
+        WeightedObjectCache cache = new WeightedObjectCache(2L * treeWeight + treeWeight / 2, 1);
+
+        ObjectId id1 = ObjectId.forString("tree1");
+        ObjectId id2 = ObjectId.forString("tree2");
+        ObjectId id3 = ObjectId.forString("tree3");
+
+        assertNull(cache.getIfPresent(id1));
+        cache.put(id1, bigTree);
+        cache.put(id2, bigTree);
+        assertSame(bigTree, cache.getIfPresent(id1));
+        cache.put(id3, bigTree);
+
+        CacheStats stats = cache.stats();
+        assertEquals(1, stats.hitCount());
+        assertEquals(1, stats.missCount());
+        assertEquals(1, stats.evictionCount());
+        assertEquals(2, cache.size());
+        // id1 was accessed after id2 was added, so id2 is the least recently used
+        assertNull(cache.getIfPresent(id2));
+
+        cache.invalidate(id1);
+        assertNull(cache.getIfPresent(id1));
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    private RevSHA1Tree tree(final int numEntries) {
+        TreeMap<String, Ref> entries = new TreeMap<String, Ref>();
+        for (int i = 0; i < numEntries; i++) {
+            String name = "Feature." + i;
+            entries.put(name, new Ref(name, ObjectId.forString(name), TYPE.BLOB));
+        }
+        return new RevSHA1Tree(ObjectId.forString("tree" + numEntries), null, 0, entries,
+                new TreeMap<Integer, Ref>(), BigInteger.valueOf(numEntries));
+    }
+}
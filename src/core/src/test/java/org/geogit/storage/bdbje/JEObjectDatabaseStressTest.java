@@ -0,0 +1,249 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.bdbje;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geogit.api.MutableTree;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevBlob;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.RevTree;
+import org.geogit.storage.BlobReader;
+import org.geogit.storage.BlobWriter;
+import org.geogit.storage.ObjectWriter;
+import org.geogit.storage.OffHeapRecordCache;
+import org.geogit.storage.RefDatabase;
+import org.geogit.storage.WrappedSerialisingFactory;
+
+import com.google.common.base.Throwables;
+import com.sleepycat.collections.CurrentTransaction;
+import com.sleepycat.je.Environment;
+
+/**
+ * Runs several reader threads against a {@link JEObjectDatabase} while a single writer keeps
+ * committing, checking every reader always sees a complete snapshot of the repository, and never
+ * waits for the locks of the writer's open transaction.
+ */
+public class JEObjectDatabaseStressTest extends TestCase {
+
+    private static final int READERS = 4;
+
+    private static final int COMMITS = 100;
+
+    private static final int BLOBS_PER_COMMIT = 20;
+
+    private File envHome;
+
+    private Environment env;
+
+    private JEObjectDatabase db;
+
+    private RefDatabase refs;
+
+    @Override
+    protected void setUp() throws Exception {
+        envHome = new File(new File("target"), "JEObjectDatabaseStressTest");
+        FileUtils.deleteDirectory(envHome);
+        envHome.mkdirs();
+        env = new EnvironmentBuilder(new EntityStoreConfig()).buildEnvironment(envHome, null);
+        db = new JEObjectDatabase(env);
+        db.setUseBloomFilter(true);
+        // small enough for readers to keep evicting and refilling it while the refs change
+        db.setRecordCache(new OffHeapRecordCache(64 * 1024, 16 * 1024));
+        db.create();
+        refs = new RefDatabase(db);
+        refs.create();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        env.close();
+        FileUtils.deleteDirectory(envHome);
+    }
+
+    public void testConcurrentReadersSingleWriter() throws Exception {
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicInteger snapshots = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(READERS);
+
+        for (int i = 0; i < READERS; i++) {
+            final boolean batched = i % 2 == 0;
+            Thread reader = new Thread("reader-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        int lastCommit = -1;
+                        while (writing.get() && failure.get() == null) {
+                            final int commit = readSnapshot(batched);
+                            assertTrue("refs went back from commit " + lastCommit + " to "
+                                    + commit, commit >= lastCommit);
+                            lastCommit = commit;
+                            snapshots.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        try {
+            ObjectId parent = ObjectId.NULL;
+            for (int commit = 0; commit < COMMITS && failure.get() == null; commit++) {
+                parent = writeCommit(commit, parent);
+                refs.put(new Ref(Ref.MASTER, parent, TYPE.COMMIT));
+            }
+        } finally {
+            writing.set(false);
+            done.await();
+        }
+        if (failure.get() != null) {
+            throw Throwables.propagate(failure.get());
+        }
+        assertTrue(snapshots.get() > 0);
+        assertEquals(COMMITS - 1, readSnapshot(true));
+    }
+
+    public void testReadersDontWaitForOpenWriteTransaction() throws Exception {
+        final ObjectId committed = db.put(new BlobWriter(contents(0, "committed")));
+        refs.put(new Ref(Ref.MASTER, committed, TYPE.BLOB));
+
+        final CurrentTransaction txn = CurrentTransaction.getInstance(env);
+        txn.beginTransaction(null);
+        final ObjectId uncommitted;
+        try {
+            // write locks a new record and the refs tree record
+            uncommitted = db.put(new BlobWriter(contents(0, "uncommitted")));
+            refs.put(new Ref(Ref.MASTER, uncommitted, TYPE.BLOB));
+            assertTrue(db.exists(uncommitted));
+
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            final CountDownLatch done = new CountDownLatch(READERS);
+            for (int i = 0; i < READERS; i++) {
+                Thread reader = new Thread("reader-" + i) {
+                    @Override
+                    public void run() {
+                        try {
+                            assertTrue(db.exists(committed));
+                            assertTrue(db.exists(uncommitted));
+                            assertTrue(Arrays.equals(contents(0, "uncommitted"),
+                                    (byte[]) db.getBlob(uncommitted).getParsed()));
+                            assertEquals(1, db.lookUp(uncommitted.toString().substring(0, 10))
+                                    .size());
+                            Iterator<RevBlob> blobs = db.getAll(
+                                    Arrays.asList(committed, uncommitted), new BlobReader());
+                            assertTrue(Arrays.equals(contents(0, "committed"),
+                                    (byte[]) blobs.next().getParsed()));
+                            assertNotNull(refs.getRef(Ref.MASTER));
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                };
+                reader.setDaemon(true);
+                reader.start();
+            }
+            // a reader waiting on the writer's locks would time out well before this
+            assertTrue("readers blocked by the open transaction", done.await(30,
+                    TimeUnit.SECONDS));
+            if (failure.get() != null) {
+                throw Throwables.propagate(failure.get());
+            }
+        } finally {
+            txn.commitTransaction();
+        }
+        assertEquals(uncommitted, refs.getRef(Ref.MASTER).getObjectId());
+    }
+
+    /**
+     * Writes the blobs of a commit in a single batch, then its tree and the commit itself
+     */
+    private ObjectId writeCommit(final int commit, final ObjectId parent) throws Exception {
+        List<ObjectWriter<?>> blobs = new ArrayList<ObjectWriter<?>>();
+        for (int i = 0; i < BLOBS_PER_COMMIT; i++) {
+            blobs.add(new BlobWriter(contents(commit, "blob" + i)));
+        }
+        List<ObjectId> blobIds = db.newObjectInserter().insertAll(blobs.iterator());
+
+        MutableTree tree = db.newTree();
+        for (int i = 0; i < BLOBS_PER_COMMIT; i++) {
+            tree.put(new Ref("blob" + i, blobIds.get(i), TYPE.BLOB));
+        }
+        ObjectId treeId = db.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(
+                tree));
+
+        RevCommit revCommit = new RevCommit(ObjectId.NULL);
+        revCommit.setAuthor("groldan");
+        revCommit.setCommitter("groldan");
+        revCommit.setMessage(String.valueOf(commit));
+        revCommit.setTreeId(treeId);
+        if (!parent.isNull()) {
+            revCommit.setParentIds(Collections.singletonList(parent));
+        }
+        return db.put(WrappedSerialisingFactory.getInstance().createCommitWriter(revCommit));
+    }
+
+    /**
+     * Resolves {@code MASTER} and reads everything its commit references
+     *
+     * @return the number of the commit read, or {@code -1} if there's none yet
+     */
+    private int readSnapshot(final boolean batched) throws Exception {
+        final ObjectId commitId = refs.getRef(Ref.MASTER).getObjectId();
+        if (commitId.isNull()) {
+            return -1;
+        }
+        final RevCommit commit = db.getCommit(commitId);
+        final int number = Integer.parseInt(commit.getMessage());
+        if (number > 0) {
+            assertTrue(db.exists(commit.getParentIds().get(0)));
+        }
+        final RevTree tree = db.getTree(commit.getTreeId());
+        assertEquals(BLOBS_PER_COMMIT, tree.size().intValue());
+
+        List<Ref> entries = new ArrayList<Ref>();
+        List<ObjectId> blobIds = new ArrayList<ObjectId>();
+        for (Iterator<Ref> it = tree.iterator(null); it.hasNext();) {
+            Ref entry = it.next();
+            entries.add(entry);
+            blobIds.add(entry.getObjectId());
+        }
+        Iterator<RevBlob> blobs = batched ? db.getAll(blobIds, new BlobReader()) : null;
+        for (Ref entry : entries) {
+            RevBlob blob = batched ? blobs.next() : db.getBlob(entry.getObjectId());
+            assertTrue(entry.getName() + " of commit " + number, Arrays.equals(
+                    contents(number, entry.getName()), (byte[]) blob.getParsed()));
+        }
+        return number;
+    }
+
+    private static byte[] contents(final int commit, final String name) {
+        return ("commit " + commit + " " + name).getBytes();
+    }
+}
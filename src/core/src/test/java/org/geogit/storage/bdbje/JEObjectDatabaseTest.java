@@ -0,0 +1,246 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.bdbje;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geogit.api.MutableTree;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevBlob;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.RevTree;
+import org.geogit.storage.AbstractObjectDatabase;
+import org.geogit.storage.BlobReader;
+import org.geogit.storage.BlobWriter;
+import org.geogit.storage.ObjectIdBloomFilter;
+import org.geogit.storage.ObjectWriter;
+import org.geogit.storage.RawObjectWriter;
+import org.geogit.storage.RevSHA1Tree;
+import org.geogit.storage.WrappedSerialisingFactory;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sleepycat.je.Environment;
+
+public class JEObjectDatabaseTest extends TestCase {
+
+    private File envHome;
+
+    private Environment env;
+
+    private JEObjectDatabase db;
+
+    @Override
+    protected void setUp() throws Exception {
+        envHome = new File(new File("target"), "JEObjectDatabaseTest");
+        FileUtils.deleteDirectory(envHome);
+        envHome.mkdirs();
+        open(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (db != null) {
+            close();
+        }
+        FileUtils.deleteDirectory(envHome);
+    }
+
+    private void open(final boolean useBloomFilter) {
+        env = new EnvironmentBuilder(new EntityStoreConfig()).buildEnvironment(envHome, null);
+        db = new JEObjectDatabase(env);
+        db.setUseBloomFilter(useBloomFilter);
+        db.create();
+    }
+
+    private void close() {
+        db.close();
+        env.close();
+        db = null;
+    }
+
+    public void testBloomFilterAvoidsProbes() throws Exception {
+        List<ObjectId> ids = putObjects(100);
+        for (ObjectId id : ids) {
+            assertTrue(db.exists(id));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(db.exists(ObjectId.forString("missing" + i)));
+        }
+        assertEquals(1000, db.getAvoidedProbes() + db.getBloomFilterFalsePositives());
+        assertTrue(db.getAvoidedProbes() > 950);
+    }
+
+    public void testBloomFilterPersistedOnClose() throws Exception {
+        List<ObjectId> ids = putObjects(100);
+        close();
+
+        File filterFile = new File(envHome, "BlobStore.bloom");
+        assertTrue(filterFile.exists());
+
+        open(true);
+        // deleted while the database is open, so it's rebuilt if not closed cleanly
+        assertFalse(filterFile.exists());
+        assertEquals(100, db.getBloomFilter().getInsertions());
+        for (ObjectId id : ids) {
+            assertTrue(db.exists(id));
+        }
+    }
+
+    public void testBloomFilterRebuilt() throws Exception {
+        close();
+        open(false);
+        List<ObjectId> ids = putObjects(100);
+        assertNull(db.getBloomFilter());
+        close();
+
+        assertFalse(new File(envHome, "BlobStore.bloom").exists());
+        open(true);
+        assertEquals(100, db.getBloomFilter().getInsertions());
+        for (ObjectId id : ids) {
+            assertTrue(db.exists(id));
+        }
+        assertEquals(0, db.getAvoidedProbes());
+    }
+
+    public void testBloomFilterRebuiltWhenSaturated() throws Exception {
+        final ObjectIdBloomFilter filter = db.getBloomFilter();
+        final int count = (int) filter.getExpectedInsertions() + 1;
+        List<ObjectWriter<?>> blobs = new ArrayList<ObjectWriter<?>>(count);
+        for (int i = 0; i < count; i++) {
+            blobs.add(new BlobWriter(("object " + i).getBytes("UTF-8")));
+        }
+        List<ObjectId> ids = db.newObjectInserter().insertAll(blobs.iterator());
+
+        final ObjectIdBloomFilter rebuilt = db.getBloomFilter();
+        assertNotSame(filter, rebuilt);
+        assertFalse(rebuilt.isSaturated());
+        assertTrue(rebuilt.getExpectedInsertions() >= 2L * (count - 1));
+        for (int i = 0; i < count; i += 97) {
+            assertTrue(db.exists(ids.get(i)));
+        }
+        assertTrue(db.exists(ids.get(count - 1)));
+    }
+
+    public void testGetType() throws Exception {
+        ObjectId tree = db.put(new RawObjectWriter(new ByteArrayInputStream("a tree".getBytes()),
+                TYPE.TREE));
+        ObjectId commit = db.put(new RawObjectWriter(new ByteArrayInputStream("a commit"
+                .getBytes()), TYPE.COMMIT));
+        ObjectId blob = putObjects(1).get(0);
+
+        assertEquals(TYPE.TREE, db.getType(tree));
+        assertEquals(TYPE.COMMIT, db.getType(commit));
+        assertEquals(TYPE.BLOB, db.getType(blob));
+        assertNull(db.getType(ObjectId.forString("missing")));
+
+        assertTrue(db.exists(tree, TYPE.TREE));
+        assertFalse(db.exists(tree, TYPE.COMMIT));
+        assertTrue(db.exists(commit, TYPE.COMMIT));
+        assertFalse(db.exists(blob, TYPE.TREE));
+        assertFalse(db.exists(ObjectId.forString("missing"), TYPE.BLOB));
+    }
+
+    public void testListObjects() throws Exception {
+        List<ObjectId> ids = putObjects(100);
+        assertEquals(new HashSet<ObjectId>(ids), new HashSet<ObjectId>(db.listInternal()));
+    }
+
+    public void testGetAll() throws Exception {
+        List<ObjectId> ids = putObjects(AbstractObjectDatabase.GET_ALL_BATCH_SIZE + 10);
+        List<ObjectId> request = new ArrayList<ObjectId>(ids);
+        Collections.reverse(request);
+        Iterator<RevBlob> blobs = db.getAll(request, new BlobReader());
+        for (int i = ids.size() - 1; i >= 0; i--) {
+            RevBlob blob = blobs.next();
+            assertEquals(ids.get(i), blob.getId());
+            assertEquals("object " + i, new String((byte[]) blob.getParsed(), "UTF-8"));
+        }
+        assertFalse(blobs.hasNext());
+
+        try {
+            db.getAllRaw(Arrays.asList(ObjectId.forString("missing"), ids.get(0))).next();
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("does not exist"));
+        }
+    }
+
+    public void testGetAsync() throws Exception {
+        List<ObjectId> ids = putObjects(10);
+        ListenableFuture<InputStream> raw = db.getRawAsync(ids.get(3));
+        ListenableFuture<RevBlob> blob = db.getAsync(ids.get(4), new BlobReader());
+        ListenableFuture<RevBlob> missing = db.getAsync(ObjectId.forString("missing"),
+                new BlobReader());
+
+        InputStream in = raw.get();
+        try {
+            assertEquals("object 3", new String(ByteStreams.toByteArray(in), "UTF-8"));
+        } finally {
+            in.close();
+        }
+        assertEquals("object 4", new String((byte[]) blob.get().getParsed(), "UTF-8"));
+        try {
+            missing.get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    public void testGetTreeAsync() throws Exception {
+        MutableTree tree = db.newTree();
+        final int numEntries = 3 * RevSHA1Tree.SPLIT_FACTOR / 2;
+        for (int i = 0; i < numEntries; i++) {
+            tree.put(new Ref("feature" + i, ObjectId.forString("feature" + i), TYPE.BLOB));
+        }
+        tree.normalize();
+        ObjectId treeId = db.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(tree));
+
+        RevTree stored = db.getTreeAsync(treeId).get();
+        assertEquals(numEntries, stored.size().intValue());
+        // the bucket subtrees are prefetched while iterating
+        Set<String> names = new HashSet<String>();
+        for (Iterator<Ref> it = stored.iterator(null); it.hasNext();) {
+            names.add(it.next().getName());
+        }
+        assertEquals(numEntries, names.size());
+    }
+
+    private List<ObjectId> putObjects(int count) throws Exception {
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        for (int i = 0; i < count; i++) {
+            final byte[] contents = ("object " + i).getBytes("UTF-8");
+            ids.add(db.put(new ObjectWriter<Object>() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    out.write(contents);
+                }
+
+                @Override
+                public TYPE getType() {
+                    return TYPE.BLOB;
+                }
+            }));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,172 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.bdbje;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.storage.ObjectInserter;
+import org.geogit.storage.ObjectWriter;
+import org.geogit.storage.OffHeapRecordCache;
+import org.geogit.storage.OffHeapRecordCache.SlabStats;
+
+import com.sleepycat.je.Environment;
+
+/**
+ * Compares reading records through the JE cache alone, sized to a given memory budget, against
+ * reading them through an {@link OffHeapRecordCache} of the same budget with a minimal JE cache.
+ * <p>
+ * The database holds more records than fit in the budget, and reads are skewed the way browsing
+ * a data set is: most of them hit a small hot set of records, the rest are spread over the whole
+ * database. Run with {@code [records] [recordSize] [reads] [budgetMB]}, and with
+ * {@code -XX:MaxDirectMemorySize} big enough for the budget.
+ * </p>
+ */
+public class OffHeapRecordCacheBenchmark {
+
+    private static final int MIN_JE_CACHE_MB = 2;
+
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        final int recordSize = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+        final int reads = args.length > 2 ? Integer.parseInt(args[2]) : 500000;
+        final int budgetMB = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+
+        File envHome = new File(new File("target"), "OffHeapRecordCacheBenchmark");
+        FileUtils.deleteDirectory(envHome);
+        envHome.mkdirs();
+        try {
+            final List<ObjectId> ids = populate(envHome, count, recordSize);
+            // 90% of the reads go to 10% of the records
+            final int[] readOrder = new int[reads];
+            Random random = new Random(1);
+            final int hotSet = Math.max(1, count / 10);
+            for (int i = 0; i < reads; i++) {
+                readOrder[i] = random.nextInt(10) == 0 ? random.nextInt(count) : random
+                        .nextInt(hotSet);
+            }
+
+            System.out.printf("%-30s %12s %12s %12s%n", "cache", "reads/s", "hit rate",
+                    "heap MB");
+            run("JE " + budgetMB + "MB", envHome, budgetMB, null, ids, readOrder);
+            OffHeapRecordCache recordCache = new OffHeapRecordCache(
+                    budgetMB * 1024L * 1024 - MIN_JE_CACHE_MB * 1024L * 1024);
+            run("JE " + MIN_JE_CACHE_MB + "MB + off heap", envHome, MIN_JE_CACHE_MB,
+                    recordCache, ids, readOrder);
+
+            for (SlabStats slab : recordCache.getSlabStats()) {
+                System.out.println(slab);
+            }
+        } finally {
+            FileUtils.deleteDirectory(envHome);
+        }
+    }
+
+    private static List<ObjectId> populate(final File envHome, final int count,
+            final int recordSize) throws Exception {
+        Environment env = new EnvironmentBuilder(new EntityStoreConfig()).buildEnvironment(
+                envHome, null);
+        JEObjectDatabase db = new JEObjectDatabase(env);
+        db.create();
+        List<ObjectId> ids = new ArrayList<ObjectId>(count);
+        Random random = new Random(0);
+        try {
+            ObjectInserter inserter = db.newObjectInserter();
+            for (int i = 0; i < count; i++) {
+                ids.add(inserter.insert(new RecordWriter(recordSize, random)));
+            }
+            inserter.flush();
+        } finally {
+            db.close();
+            env.close();
+        }
+        return ids;
+    }
+
+    private static void run(final String name, final File envHome, final int jeCacheMB,
+            final OffHeapRecordCache recordCache, final List<ObjectId> ids, final int[] readOrder)
+            throws Exception {
+        EntityStoreConfig config = new EntityStoreConfig();
+        config.setCacheSizeMB(jeCacheMB);
+        Environment env = new EnvironmentBuilder(config).buildEnvironment(envHome, null);
+        JEObjectDatabase db = new JEObjectDatabase(env);
+        db.setRecordCache(recordCache);
+        db.create();
+        try {
+            final byte[] buff = new byte[8192];
+            // warm up the caches and the JIT
+            read(db, ids, readOrder, buff);
+            final long startMisses = env.getStats(null).getNCacheMiss();
+            final long startRecordMisses = recordCache == null ? 0 : recordCache.stats()
+                    .missCount();
+            final long start = System.nanoTime();
+            read(db, ids, readOrder, buff);
+            final long nanos = System.nanoTime() - start;
+
+            final long misses = recordCache == null ? env.getStats(null).getNCacheMiss()
+                    - startMisses : recordCache.stats().missCount() - startRecordMisses;
+            System.gc();
+            final Runtime runtime = Runtime.getRuntime();
+            final long heap = runtime.totalMemory() - runtime.freeMemory();
+            System.out.printf("%-30s %12.0f %12.3f %12d%n", name, readOrder.length * 1e9 / nanos,
+                    1 - (double) misses / readOrder.length, heap / 1024 / 1024);
+        } finally {
+            db.close();
+            env.close();
+        }
+    }
+
+    private static void read(final JEObjectDatabase db, final List<ObjectId> ids,
+            final int[] readOrder, final byte[] buff) throws IOException {
+        long total = 0;
+        for (int index : readOrder) {
+            InputStream in = db.getRaw(ids.get(index));
+            try {
+                for (int n; (n = in.read(buff)) != -1;) {
+                    total += n;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        if (total == 0) {
+            throw new IllegalStateException("nothing read");
+        }
+    }
+
+    /**
+     * Writes records made of runs of repeated bytes, so they compress about as well as features
+     */
+    private static class RecordWriter implements ObjectWriter<Object> {
+
+        private final byte[] contents;
+
+        RecordWriter(final int size, final Random random) {
+            contents = new byte[size];
+            for (int i = 0; i < size; i++) {
+                contents[i] = (byte) (i % 4 == 0 ? random.nextInt() : contents[Math.max(0,
+                        i - 1)]);
+            }
+        }
+
+        @Override
+        public void write(final OutputStream out) throws IOException {
+            out.write(contents);
+        }
+
+        @Override
+        public TYPE getType() {
+            return TYPE.BLOB;
+        }
+    }
+}
@@ -0,0 +1,433 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.storage.AbstractObjectDatabase;
+import org.geogit.storage.BlobReader;
+import org.geogit.storage.ObjectReader;
+import org.geogit.storage.ObjectWriter;
+
+import com.google.common.io.ByteStreams;
+
+public class FileObjectDatabaseTest extends TestCase {
+
+    private File envHome;
+
+    @Override
+    protected void setUp() throws Exception {
+        envHome = new File(new File("target"), "FileObjectDatabaseTest");
+        FileUtils.deleteDirectory(envHome);
+        envHome.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(envHome);
+    }
+
+    public void testPackedPutAndGet() throws Exception {
+        FileObjectDatabase db = new FileObjectDatabase(envHome, true);
+        db.create();
+        List<ObjectId> ids = putObjects(db, 100);
+
+        // readable before the pack is sealed
+        assertObjects(db, ids);
+        assertFalse(db.exists(ObjectId.forString("not there")));
+        assertFalse(new File(envHome, ids.get(0).toString().substring(0, 2)).exists());
+
+        db.close();
+        db = new FileObjectDatabase(envHome, true);
+        db.create();
+        assertObjects(db, ids);
+        db.close();
+
+        File packDir = new File(envHome, "pack");
+        assertTrue(new File(packDir, "pack-1.pack").exists());
+        assertTrue(new File(packDir, "pack-1.idx").exists());
+    }
+
+    public void testRecoverUnsealedPack() throws Exception {
+        FileObjectDatabase db = new FileObjectDatabase(envHome, true);
+        db.create();
+        List<ObjectId> ids = putObjects(db, 10);
+        // simulate a crash: the pack was flushed but neither sealed nor indexed
+        InputStream raw = db.getRaw(ids.get(0));
+        raw.close();
+
+        File packDir = new File(envHome, "pack");
+        assertFalse(new File(packDir, "pack-1.idx").exists());
+
+        FileObjectDatabase reopened = new FileObjectDatabase(envHome, true);
+        reopened.create();
+        assertObjects(reopened, ids);
+        assertTrue(new File(packDir, "pack-1.idx").exists());
+        reopened.close();
+    }
+
+    public void testOverrideShadowsOlderPacks() throws Exception {
+        FileObjectDatabase db = new FileObjectDatabase(envHome, true);
+        db.create();
+        ObjectId id = ObjectId.forString("mutable");
+        db.put(id, writer("version 1"));
+        db.close();
+
+        db = new FileObjectDatabase(envHome, true);
+        db.create();
+        assertTrue(db.put(id, writer("version 2")));
+        assertEquals("version 2", read(db, id));
+        db.close();
+
+        db = new FileObjectDatabase(envHome, true);
+        db.create();
+        assertEquals("version 2", read(db, id));
+        db.close();
+    }
+
+    public void testLooseOverrideOfPackedObject() throws Exception {
+        FileObjectDatabase db = new FileObjectDatabase(envHome);
+        db.create();
+        ObjectId id = ObjectId.forString("mutable");
+        db.put(id, writer("version 1"));
+        assertEquals(1, db.packLooseObjects());
+
+        assertTrue(db.put(id, writer("version 2")));
+        assertEquals("version 2", read(db, id));
+        db.close();
+
+        db = new FileObjectDatabase(envHome);
+        db.create();
+        assertEquals("version 2", read(db, id));
+        // packing again keeps the newer contents
+        assertEquals(1, db.packLooseObjects());
+        assertEquals("version 2", read(db, id));
+        db.close();
+
+        db = new FileObjectDatabase(envHome);
+        db.create();
+        assertEquals("version 2", read(db, id));
+
+        // a packed database overriding the object drops the loose copy
+        assertTrue(db.put(id, writer("version 3")));
+        db.close();
+        db = new FileObjectDatabase(envHome, true);
+        db.create();
+        assertTrue(db.put(id, writer("version 4")));
+        assertEquals("version 4", read(db, id));
+        db.close();
+
+        db = new FileObjectDatabase(envHome);
+        db.create();
+        assertEquals("version 4", read(db, id));
+        db.close();
+    }
+
+    public void testPackLooseObjects() throws Exception {
+        FileObjectDatabase loose = new FileObjectDatabase(envHome);
+        loose.create();
+        List<ObjectId> ids = putObjects(loose, 50);
+        loose.close();
+
+        String fanoutDir = ids.get(0).toString().substring(0, 2);
+        assertTrue(new File(envHome, fanoutDir).isDirectory());
+
+        FileObjectDatabase db = new FileObjectDatabase(envHome, true);
+        db.create();
+        assertEquals(50, db.packLooseObjects());
+        assertFalse(new File(envHome, fanoutDir).exists());
+        assertObjects(db, ids);
+        db.close();
+    }
+
+    public void testPackThreshold() throws Exception {
+        FileObjectDatabase db = new FileObjectDatabase(envHome);
+        db.create();
+        db.setPackThreshold(10);
+        List<ObjectId> ids = putObjects(db, 25);
+        db.close();
+
+        File packDir = new File(envHome, "pack");
+        assertTrue(new File(packDir, "pack-1.pack").exists());
+        assertTrue(new File(packDir, "pack-2.pack").exists());
+        assertFalse(new File(packDir, "pack-3.pack").exists());
+
+        db = new FileObjectDatabase(envHome);
+        db.create();
+        assertObjects(db, ids);
+        // the last five are still loose
+        assertEquals(5, db.packLooseObjects());
+        db.close();
+    }
+
+    public void testLooseObjectsWithoutOpenPacks() throws Exception {
+        // neither created nor closed databases have their packs open
+        FileObjectDatabase db = new FileObjectDatabase(envHome);
+        List<ObjectId> ids = putObjects(db, 10);
+        assertObjects(db, ids);
+        assertLookUp(db, ids);
+        db.create();
+        db.close();
+        assertObjects(db, ids);
+        assertEquals(ids.get(3), db.put(writer("object 3")));
+        assertFalse(db.exists(ObjectId.forString("not there")));
+
+        FileObjectDatabase packed = new FileObjectDatabase(envHome, true);
+        try {
+            packed.put(writer("not open"));
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage().contains("not open"));
+        }
+    }
+
+    public void testGetAll() throws Exception {
+        FileObjectDatabase loose = new FileObjectDatabase(envHome);
+        loose.create();
+        List<ObjectId> ids = putObjects(loose, 20);
+        loose.close();
+
+        FileObjectDatabase db = new FileObjectDatabase(envHome, true);
+        db.create();
+        db.packLooseObjects();
+        db.close();
+        loose = new FileObjectDatabase(envHome);
+        loose.create();
+        ObjectId looseId = loose.put(writer("loose object"));
+        loose.close();
+
+        // sealed pack, loose objects, and objects in the pack being written
+        db = new FileObjectDatabase(envHome, true);
+        db.create();
+        for (int i = 20; i < AbstractObjectDatabase.GET_ALL_BATCH_SIZE + 100; i++) {
+            ids.add(db.put(writer("object " + i)));
+        }
+        final int count = ids.size();
+        ObjectId delta = db.putDelta(ids.get(0), writer("object 0, modified"));
+
+        List<ObjectId> request = new ArrayList<ObjectId>(ids);
+        Collections.reverse(request);
+        request.add(delta);
+        request.add(looseId);
+        request.add(ids.get(5));
+        Iterator<String> contents = db.getAll(request, new ObjectReader<String>() {
+            @Override
+            public String read(ObjectId id, InputStream rawData) throws IOException {
+                return new String(ByteStreams.toByteArray(rawData), "UTF-8");
+            }
+        });
+        for (int i = count - 1; i >= 0; i--) {
+            assertEquals("object " + i, contents.next());
+        }
+        assertEquals("object 0, modified", contents.next());
+        assertEquals("loose object", contents.next());
+        assertEquals("object 5", contents.next());
+        assertFalse(contents.hasNext());
+
+        Iterator<InputStream> raws = db.getAllRaw(Arrays.asList(ids.get(3), ids.get(1)));
+        for (String expected : new String[] { "object 3", "object 1" }) {
+            InputStream raw = raws.next();
+            try {
+                assertEquals(expected, new String(ByteStreams.toByteArray(raw), "UTF-8"));
+            } finally {
+                raw.close();
+            }
+        }
+        assertFalse(raws.hasNext());
+
+        try {
+            db.getAll(Arrays.asList(ids.get(0), ObjectId.forString("missing")),
+                    new BlobReader()).next();
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("does not exist"));
+        }
+        db.close();
+    }
+
+    public void testLookUpLooseObjects() throws Exception {
+        FileObjectDatabase db = new FileObjectDatabase(envHome);
+        db.create();
+        assertLookUp(db, putObjects(db, 200));
+
+        ObjectId deleted = db.put(writer("to be deleted"));
+        assertEquals(1, db.lookUp(deleted.toString().substring(0, 20)).size());
+        assertTrue(db.delete(deleted));
+        assertFalse(db.exists(deleted));
+        assertTrue(db.lookUp(deleted.toString().substring(0, 20)).isEmpty());
+        db.close();
+    }
+
+    public void testLookUpPackedObjects() throws Exception {
+        FileObjectDatabase db = new FileObjectDatabase(envHome, true);
+        db.create();
+        List<ObjectId> ids = putObjects(db, 200);
+        // looked up in the pack being written
+        assertLookUp(db, ids);
+        db.close();
+
+        db = new FileObjectDatabase(envHome, true);
+        db.create();
+        // looked up in the mapped pack index
+        assertLookUp(db, ids);
+        db.close();
+    }
+
+    public void testPutDelta() throws Exception {
+        FileObjectDatabase db = new FileObjectDatabase(envHome);
+        db.create();
+        db.setMaxDeltaDepth(3);
+
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            contents.append("attribute").append(i).append('=').append(i * 31).append(';');
+        }
+        List<String> versions = new ArrayList<String>();
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        versions.add(contents.toString());
+        ids.add(db.put(writer(contents.toString())));
+        for (int v = 1; v <= 5; v++) {
+            contents.replace(100 * v, 100 * v + 4, "v" + v + "==");
+            versions.add(contents.toString());
+            ids.add(db.putDelta(ids.get(v - 1), writer(contents.toString())));
+        }
+
+        // deltas chain up to the max depth, then a full copy starts a new chain
+        int[] expectedDepths = { 0, 1, 2, 3, 0, 1 };
+        for (int v = 0; v < versions.size(); v++) {
+            assertEquals(ids.get(v), db.put(writer(versions.get(v))));
+            assertEquals(versions.get(v), read(db, ids.get(v)));
+            assertEquals(expectedDepths[v], deltaDepth(db, ids.get(v)));
+        }
+        db.close();
+
+        // readable with a cold delta base cache and once packed
+        db = new FileObjectDatabase(envHome);
+        db.create();
+        db.packLooseObjects();
+        for (int v = versions.size() - 1; v >= 0; v--) {
+            assertEquals(versions.get(v), read(db, ids.get(v)));
+        }
+        db.close();
+    }
+
+    public void testPutDeltaFallsBackToFullObject() throws Exception {
+        FileObjectDatabase db = new FileObjectDatabase(envHome);
+        db.create();
+        ObjectId base = db.put(writer("unrelated"));
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            contents.append(i).append(',');
+        }
+        // base too different, and missing base
+        ObjectId id = db.putDelta(base, writer(contents.toString()));
+        assertEquals(0, deltaDepth(db, id));
+        id = db.putDelta(ObjectId.forString("not there"), writer(contents + "more"));
+        assertEquals(0, deltaDepth(db, id));
+        assertEquals(contents + "more", read(db, id));
+        db.close();
+    }
+
+    public void testDeltaKeepsType() throws Exception {
+        FileObjectDatabase db = new FileObjectDatabase(envHome);
+        db.create();
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            contents.append("attribute").append(i).append(';');
+        }
+        ObjectId base = db.put(writer(contents.toString()));
+        ObjectId id = db.putDelta(base, writer(contents.append("more").toString()));
+        assertEquals(1, deltaDepth(db, id));
+        assertEquals(TYPE.BLOB, db.getType(id));
+        assertTrue(db.exists(id, TYPE.BLOB));
+        assertFalse(db.exists(id, TYPE.COMMIT));
+        db.close();
+    }
+
+    private int deltaDepth(FileObjectDatabase db, ObjectId id) throws IOException {
+        InputStream record = db.getRawInternal(id);
+        try {
+            if (record.read() != 3) {
+                return 0;
+            }
+            // skip the type byte and the base id
+            record.skip(21);
+            return record.read();
+        } finally {
+            record.close();
+        }
+    }
+
+    private void assertLookUp(FileObjectDatabase db, List<ObjectId> ids) {
+        for (ObjectId id : ids) {
+            List<ObjectId> found = db.lookUp(id.toString().substring(0, 8));
+            assertTrue(found.contains(id));
+            for (ObjectId match : found) {
+                assertTrue(match.toString().startsWith(id.toString().substring(0, 8)));
+            }
+            assertEquals(ids.size(), db.lookUp("").size());
+        }
+        String prefix = ids.get(0).toString().substring(0, 2);
+        int expected = 0;
+        for (ObjectId id : ids) {
+            if (id.toString().startsWith(prefix)) {
+                expected++;
+            }
+        }
+        assertEquals(expected, db.lookUp(prefix).size());
+        assertTrue(db.lookUp("0000000000000000").isEmpty());
+    }
+
+    private List<ObjectId> putObjects(FileObjectDatabase db, int count) throws Exception {
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        for (int i = 0; i < count; i++) {
+            ids.add(db.put(writer("object " + i)));
+        }
+        return ids;
+    }
+
+    private void assertObjects(FileObjectDatabase db, List<ObjectId> ids) throws IOException {
+        for (int i = 0; i < ids.size(); i++) {
+            assertTrue(db.exists(ids.get(i)));
+            assertEquals("object " + i, read(db, ids.get(i)));
+        }
+    }
+
+    private String read(FileObjectDatabase db, ObjectId id) throws IOException {
+        InputStream raw = db.getRaw(id);
+        try {
+            return new String(ByteStreams.toByteArray(raw), "UTF-8");
+        } finally {
+            raw.close();
+        }
+    }
+
+    private ObjectWriter<String> writer(final String contents) {
+        return new ObjectWriter<String>() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write(contents.getBytes("UTF-8"));
+            }
+
+            @Override
+            public TYPE getType() {
+                return TYPE.BLOB;
+            }
+        };
+    }
+}
@@ -0,0 +1,232 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.lsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.ObjectInserter;
+import org.geogit.storage.ObjectWriter;
+import org.geogit.storage.bdbje.EntityStoreConfig;
+import org.geogit.storage.bdbje.EnvironmentBuilder;
+import org.geogit.storage.bdbje.JEObjectDatabase;
+
+import com.sleepycat.je.Environment;
+
+/**
+ * Compares bulk writes and random reads of the {@link JEObjectDatabase} against the
+ * {@link LsmObjectDatabase}.
+ * <p>
+ * Each database gets the same objects inserted through its batch inserter, and is then reopened
+ * and read in the same random order, both for objects it holds and for objects it doesn't. Run
+ * with {@code [objects] [objectSize] [reads]}; the default of ten million objects needs a few GB
+ * of disk space under {@code target/}.
+ * </p>
+ */
+public class LsmObjectDatabaseBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        final int objectSize = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        final int reads = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+
+        final int[] readOrder = new int[reads];
+        Random random = new Random(1);
+        for (int i = 0; i < reads; i++) {
+            readOrder[i] = random.nextInt(count);
+        }
+        final ObjectId[] missing = new ObjectId[reads];
+        for (int i = 0; i < reads; i++) {
+            missing[i] = ObjectId.forString("missing " + i);
+        }
+
+        File home = new File(new File("target"), "LsmObjectDatabaseBenchmark");
+        FileUtils.deleteDirectory(home);
+        try {
+            System.out.printf("%-10s %12s %12s %12s %12s%n", "database", "writes/s", "reads/s",
+                    "misses/s", "disk MB");
+            run(new JEBackend(new File(home, "bdbje")), count, objectSize, readOrder, missing);
+            run(new LsmBackend(new File(home, "lsm")), count, objectSize, readOrder, missing);
+        } finally {
+            FileUtils.deleteDirectory(home);
+        }
+    }
+
+    private static void run(final Backend backend, final int count, final int objectSize,
+            final int[] readOrder, final ObjectId[] missing) throws Exception {
+        // only the ids that are going to be read are kept, ten million of them don't fit the heap
+        final Map<Integer, ObjectId> ids = new HashMap<Integer, ObjectId>();
+        for (int index : readOrder) {
+            ids.put(Integer.valueOf(index), null);
+        }
+
+        ObjectDatabase db = backend.open();
+        final long writeStart = System.nanoTime();
+        try {
+            ObjectInserter inserter = db.newBatchObjectInserter();
+            for (int i = 0; i < count; i++) {
+                ObjectId id = inserter.insert(new RecordWriter(i, objectSize));
+                if (ids.containsKey(Integer.valueOf(i))) {
+                    ids.put(Integer.valueOf(i), id);
+                }
+            }
+            inserter.flush();
+        } finally {
+            backend.close();
+        }
+        final long writeNanos = System.nanoTime() - writeStart;
+
+        db = backend.open();
+        try {
+            final byte[] buff = new byte[8192];
+            final long readStart = System.nanoTime();
+            long total = 0;
+            for (int index : readOrder) {
+                InputStream in = db.getRaw(ids.get(Integer.valueOf(index)));
+                try {
+                    for (int n; (n = in.read(buff)) != -1;) {
+                        total += n;
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            final long readNanos = System.nanoTime() - readStart;
+            if (total == 0) {
+                throw new IllegalStateException("nothing read");
+            }
+
+            final long missStart = System.nanoTime();
+            for (ObjectId id : missing) {
+                if (db.exists(id)) {
+                    throw new IllegalStateException(id + " should not exist");
+                }
+            }
+            final long missNanos = System.nanoTime() - missStart;
+
+            System.out.printf("%-10s %12.0f %12.0f %12.0f %12d%n", backend.name(), count * 1e9
+                    / writeNanos, readOrder.length * 1e9 / readNanos, missing.length * 1e9
+                    / missNanos, FileUtils.sizeOfDirectory(backend.home()) / 1024 / 1024);
+        } finally {
+            backend.close();
+        }
+    }
+
+    private static abstract class Backend {
+
+        private final File home;
+
+        Backend(final File home) {
+            this.home = home;
+        }
+
+        File home() {
+            return home;
+        }
+
+        abstract String name();
+
+        abstract ObjectDatabase open() throws Exception;
+
+        abstract void close() throws Exception;
+    }
+
+    private static class JEBackend extends Backend {
+
+        private Environment env;
+
+        private JEObjectDatabase db;
+
+        JEBackend(final File home) {
+            super(home);
+        }
+
+        @Override
+        String name() {
+            return "bdbje";
+        }
+
+        @Override
+        ObjectDatabase open() {
+            home().mkdirs();
+            env = new EnvironmentBuilder(new EntityStoreConfig()).buildEnvironment(home(), null);
+            db = new JEObjectDatabase(env);
+            db.create();
+            return db;
+        }
+
+        @Override
+        void close() {
+            db.close();
+            env.close();
+        }
+    }
+
+    private static class LsmBackend extends Backend {
+
+        private LsmObjectDatabase db;
+
+        LsmBackend(final File home) {
+            super(home);
+        }
+
+        @Override
+        String name() {
+            return "lsm";
+        }
+
+        @Override
+        ObjectDatabase open() {
+            db = new LsmObjectDatabase(home());
+            db.create();
+            return db;
+        }
+
+        @Override
+        void close() {
+            db.close();
+        }
+    }
+
+    /**
+     * Writes a distinct object per index, made of runs of repeated bytes so it compresses about
+     * as well as a feature
+     */
+    private static class RecordWriter implements ObjectWriter<Object> {
+
+        private final byte[] contents;
+
+        RecordWriter(final int index, final int size) {
+            Random random = new Random(index);
+            contents = new byte[Math.max(4, size)];
+            contents[0] = (byte) (index >>> 24);
+            contents[1] = (byte) (index >>> 16);
+            contents[2] = (byte) (index >>> 8);
+            contents[3] = (byte) index;
+            for (int i = 4; i < contents.length; i++) {
+                contents[i] = (byte) (i % 4 == 0 ? random.nextInt() : contents[i - 1]);
+            }
+        }
+
+        @Override
+        public void write(final OutputStream out) throws IOException {
+            out.write(contents);
+        }
+
+        @Override
+        public TYPE getType() {
+            return TYPE.BLOB;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.lsm;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevBlob;
+import org.geogit.storage.BlobReader;
+import org.geogit.storage.BlobWriter;
+import org.geogit.storage.ObjectWriter;
+
+import com.google.common.io.ByteStreams;
+
+public class LsmObjectDatabaseTest extends TestCase {
+
+    private static final int MEMTABLE_SIZE = 16 * 1024;
+
+    private File envHome;
+
+    private LsmObjectDatabase db;
+
+    @Override
+    protected void setUp() throws Exception {
+        envHome = new File(new File("target"), "LsmObjectDatabaseTest");
+        FileUtils.deleteDirectory(envHome);
+        db = open(envHome);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        FileUtils.deleteDirectory(envHome);
+    }
+
+    private static LsmObjectDatabase open(final File envHome) {
+        LsmObjectDatabase db = new LsmObjectDatabase(envHome);
+        db.setMemtableSize(MEMTABLE_SIZE);
+        db.setCompactionThreshold(2);
+        db.create();
+        return db;
+    }
+
+    public void testPutGetDelete() throws Exception {
+        List<ObjectId> ids = putBlobs(500);
+        assertTrue(db.getSegmentCount() > 0);
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals("blob " + i, read(ids.get(i)));
+        }
+        assertFalse(db.exists(ObjectId.forString("missing")));
+
+        for (int i = 0; i < ids.size(); i += 2) {
+            assertTrue(db.delete(ids.get(i)));
+        }
+        assertFalse(db.delete(ids.get(0)));
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(i % 2 == 1, db.exists(ids.get(i)));
+        }
+        assertEquals(250, db.lookUp("").size());
+
+        db.close();
+        db = open(envHome);
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(i % 2 == 1, db.exists(ids.get(i)));
+        }
+        assertEquals(new HashSet<ObjectId>(db.lookUp(ids.get(1).toString().substring(0, 6))),
+                new HashSet<ObjectId>(ids.subList(1, 2)));
+    }
+
+    public void testCompaction() throws Exception {
+        List<ObjectId> ids = putBlobs(1000);
+        for (int i = 0; i < 100; i++) {
+            db.delete(ids.get(i));
+        }
+        ObjectId overridden = ids.get(500);
+        db.put(overridden, new BlobWriter("overridden".getBytes()));
+
+        db.compact();
+        assertEquals(1, db.getSegmentCount());
+        assertEquals(900, db.lookUp("").size());
+        assertFalse(db.exists(ids.get(0)));
+        assertEquals("blob 999", read(ids.get(999)));
+        assertEquals("overridden", read(overridden));
+
+        Iterator<RevBlob> blobs = db.getAll(ids.subList(100, 200), new BlobReader());
+        for (int i = 100; i < 200; i++) {
+            assertEquals("blob " + i, new String((byte[]) blobs.next().getParsed()));
+        }
+    }
+
+    public void testCompactSingleSegmentWithTombstones() throws Exception {
+        List<ObjectId> ids = putBlobs(10);
+        db.delete(ids.get(0));
+        // flushed into a single segment holding a tombstone, merged on its own
+        db.compact();
+        assertEquals(1, db.getSegmentCount());
+        assertEquals("blob 9", read(ids.get(9)));
+        db.close();
+
+        db = open(envHome);
+        assertEquals(1, db.getSegmentCount());
+        assertFalse(db.exists(ids.get(0)));
+        for (int i = 1; i < ids.size(); i++) {
+            assertEquals("blob " + i, read(ids.get(i)));
+        }
+
+        // and once more, over the merged generation
+        db.delete(ids.get(1));
+        db.compact();
+        db.close();
+        db = open(envHome);
+        assertEquals(1, db.getSegmentCount());
+        assertFalse(db.exists(ids.get(1)));
+        assertEquals("blob 9", read(ids.get(9)));
+    }
+
+    public void testBackgroundCompactionKeepsSegmentsBounded() throws Exception {
+        List<ObjectId> ids = putBlobs(5000);
+        // close() waits for the compactions scheduled by the memtable flushes
+        db.close();
+        db = open(envHome);
+        // size tiered with a threshold of 2, so at most one segment per tier
+        assertTrue(String.valueOf(db.getSegmentCount()), db.getSegmentCount() <= 6);
+        for (int i = 0; i < ids.size(); i += 7) {
+            assertEquals("blob " + i, read(ids.get(i)));
+        }
+    }
+
+    public void testRecoversWriteLog() throws Exception {
+        ObjectId id = db.put(new BlobWriter("not flushed".getBytes()));
+        ObjectId deleted = db.put(new BlobWriter("deleted".getBytes()));
+        db.delete(deleted);
+        assertEquals(0, db.getSegmentCount());
+
+        // as if the process died, the write log was never turned into a segment
+        LsmObjectDatabase recovered = open(envHome);
+        try {
+            assertEquals(1, recovered.getSegmentCount());
+            assertEquals("not flushed", new String(ByteStreams.toByteArray(recovered.getRaw(id))));
+            assertFalse(recovered.exists(deleted));
+        } finally {
+            recovered.close();
+        }
+    }
+
+    private List<ObjectId> putBlobs(final int count) throws Exception {
+        List<ObjectWriter<?>> writers = new ArrayList<ObjectWriter<?>>();
+        for (int i = 0; i < count; i++) {
+            writers.add(new BlobWriter(("blob " + i).getBytes()));
+        }
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        for (int i = 0; i < count; i += 100) {
+            ids.addAll(db.newBatchObjectInserter().insertAll(
+                    writers.subList(i, Math.min(count, i + 100)).iterator()));
+        }
+        return ids;
+    }
+
+    private String read(final ObjectId id) throws Exception {
+        InputStream in = db.getRaw(id);
+        try {
+            return new String(ByteStreams.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+}
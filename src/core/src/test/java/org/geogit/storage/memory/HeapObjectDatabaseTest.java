@@ -0,0 +1,134 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.1 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.geogit.api.DiffEntry;
+import org.geogit.api.MutableTree;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevBlob;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.RevTree;
+import org.geogit.storage.BlobReader;
+import org.geogit.storage.BlobWriter;
+import org.geogit.storage.ObjectWriter;
+import org.geogit.storage.RefDatabase;
+import org.geogit.storage.StagingDatabase;
+import org.geogit.storage.WrappedSerialisingFactory;
+
+public class HeapObjectDatabaseTest extends TestCase {
+
+    private HeapObjectDatabase db;
+
+    @Override
+    protected void setUp() throws Exception {
+        db = new HeapObjectDatabase();
+        db.create();
+    }
+
+    public void testPutGetDelete() throws Exception {
+        ObjectId id = db.put(new BlobWriter("contents".getBytes()));
+        assertTrue(db.exists(id));
+        assertEquals(TYPE.BLOB, db.getType(id));
+        assertEquals("contents", new String((byte[]) db.getBlob(id).getParsed()));
+        assertFalse(db.put(id, new BlobWriter("contents".getBytes())));
+        assertEquals(1, db.size());
+
+        assertEquals(Collections.singletonList(id), db.lookUp(id.toString().substring(0, 8)));
+        final String prefix = id.toString().substring(0, 2);
+        assertTrue(db.lookUp("00".equals(prefix) ? "11" : "00").isEmpty());
+
+        assertTrue(db.delete(id));
+        assertFalse(db.exists(id));
+        assertFalse(db.delete(id));
+        try {
+            db.getRaw(id);
+            fail("expected IAE");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(true);
+        }
+    }
+
+    public void testBatchWrites() throws Exception {
+        List<ObjectWriter<?>> writers = new ArrayList<ObjectWriter<?>>();
+        for (int i = 0; i < 100; i++) {
+            writers.add(new BlobWriter(("blob " + i).getBytes()));
+        }
+        List<ObjectId> ids = db.newBatchObjectInserter().insertAll(writers.iterator());
+        assertEquals(100, db.size());
+
+        Iterator<RevBlob> blobs = db.getAll(ids, new BlobReader());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("blob " + i, new String((byte[]) blobs.next().getParsed()));
+        }
+        assertFalse(blobs.hasNext());
+    }
+
+    public void testRepositoryDatabase() throws Exception {
+        HeapRepositoryDatabase repoDb = new HeapRepositoryDatabase();
+        repoDb.create();
+        StagingDatabase index = repoDb.getStagingDatabase();
+        RefDatabase refs = repoDb.getReferenceDatabase();
+
+        ObjectId committed = repoDb.getObjectDatabase().put(
+                new BlobWriter("committed".getBytes()));
+        ObjectId staged = index.put(new BlobWriter("staged".getBytes()));
+        assertFalse(repoDb.getObjectDatabase().exists(staged));
+        assertTrue(index.exists(committed));
+        assertTrue(index.exists(staged));
+
+        MutableTree tree = repoDb.getObjectDatabase().newTree();
+        tree.put(new Ref("a", committed, TYPE.BLOB));
+        ObjectId treeId = repoDb.getObjectDatabase().put(
+                WrappedSerialisingFactory.getInstance().createRevTreeWriter(tree));
+        RevTree stored = index.getTree(treeId);
+        assertEquals(committed, stored.get("a").getObjectId());
+
+        assertTrue(refs.getRef(Ref.MASTER).getObjectId().isNull());
+        refs.put(new Ref(Ref.MASTER, treeId, TYPE.COMMIT));
+        assertEquals(treeId, refs.getRef(Ref.MASTER).getObjectId());
+        repoDb.close();
+    }
+
+    public void testStagedEntriesInMemory() throws Exception {
+        StagingDatabase index = new StagingDatabase(db, new HeapObjectDatabase());
+        index.create();
+        ObjectId id = index.put(new BlobWriter("feature".getBytes()));
+        for (List<String> path : Arrays.asList(Arrays.asList("b", "2"), Arrays.asList("a"),
+                Arrays.asList("b", "1"), Arrays.asList("a", "1"))) {
+            index.putUnstaged(DiffEntry.newInstance(null, new Ref(path.get(path.size() - 1),
+                    id, TYPE.BLOB), path));
+        }
+        assertEquals(4, index.countUnstaged(null));
+        assertEquals(1, index.countUnstaged(Arrays.asList("b", "1")));
+
+        // same order as the JE databases: shorter paths first
+        List<List<String>> paths = new ArrayList<List<String>>();
+        for (Iterator<DiffEntry> it = index.getUnstaged(null); it.hasNext();) {
+            paths.add(it.next().getPath());
+        }
+        assertEquals(Arrays.asList(Arrays.asList("a"), Arrays.asList("a", "1"),
+                Arrays.asList("b", "1"), Arrays.asList("b", "2")), paths);
+
+        index.stage(index.findUnstaged("b", "1"));
+        assertEquals(3, index.countUnstaged(null));
+        assertEquals(1, index.countStaged(null));
+        assertNotNull(index.findStaged("b", "1"));
+
+        assertEquals(1, index.removeUnStaged(Arrays.asList("a")));
+        assertNull(index.findUnstaged("a"));
+        assertEquals(2, index.removeUnStaged(null));
+        assertEquals(1, index.removeStaged(null));
+        index.close();
+    }
+}
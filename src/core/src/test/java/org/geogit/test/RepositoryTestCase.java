@@ -27,6 +27,7 @@ import org.geogit.storage.WrappedSerialisingFactory;
 import org.geogit.storage.bdbje.EntityStoreConfig;
 import org.geogit.storage.bdbje.EnvironmentBuilder;
 import org.geogit.storage.bdbje.JERepositoryDatabase;
+import org.geogit.storage.memory.HeapRepositoryDatabase;
 import org.geotools.data.DataUtilities;
 import org.geotools.feature.NameImpl;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
@@ -50,6 +51,12 @@ import com.vividsolutions.jts.io.ParseException;
 
 public abstract class RepositoryTestCase extends TestCase {
 
+    /**
+     * System property selecting the storage the test repositories use, either {@code bdbje}, the
+     * default, or {@code memory}
+     */
+    public static final String STORAGE_PROPERTY = "geogit.test.storage";
+
     protected static final String idL1 = "Lines.1";
 
     protected static final String idL2 = "Lines.2";
@@ -116,17 +123,21 @@ public abstract class RepositoryTestCase extends TestCase {
         repositoryHome.mkdirs();
         indexHome.mkdirs();
 
-        EntityStoreConfig config = new EntityStoreConfig();
-        config.setCacheMemoryPercentAllowed(50);
-        EnvironmentBuilder esb = new EnvironmentBuilder(config);
-        Properties bdbEnvProperties = null;
-        Environment environment;
-        environment = esb.buildEnvironment(repositoryHome, bdbEnvProperties);
+        if ("memory".equals(System.getProperty(STORAGE_PROPERTY))) {
+            repositoryDatabase = new HeapRepositoryDatabase();
+        } else {
+            EntityStoreConfig config = new EntityStoreConfig();
+            config.setCacheMemoryPercentAllowed(50);
+            EnvironmentBuilder esb = new EnvironmentBuilder(config);
+            Properties bdbEnvProperties = null;
+            Environment environment;
+            environment = esb.buildEnvironment(repositoryHome, bdbEnvProperties);
 
-        Environment stagingEnvironment;
-        stagingEnvironment = esb.buildEnvironment(indexHome, bdbEnvProperties);
+            Environment stagingEnvironment;
+            stagingEnvironment = esb.buildEnvironment(indexHome, bdbEnvProperties);
 
-        repositoryDatabase = new JERepositoryDatabase(environment, stagingEnvironment);
+            repositoryDatabase = new JERepositoryDatabase(environment, stagingEnvironment);
+        }
 
         // repositoryDatabase = new FileSystemRepositoryDatabase(envHome);
 
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
 
+import org.geogit.api.RevObject.TYPE;
 import org.geogit.storage.ObjectWriter;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.wkt.Formattable;
@@ -48,6 +49,11 @@ public class HessianSimpleFeatureTypeWriter implements
         }
     }
 
+    @Override
+    public TYPE getType() {
+        return TYPE.BLOB;
+    }
+
     /**
      * The format will be written as follows:
      * <ol>
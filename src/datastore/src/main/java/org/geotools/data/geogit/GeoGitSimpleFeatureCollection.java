@@ -17,6 +17,7 @@
 package org.geotools.data.geogit;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -28,6 +29,7 @@ import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevTree;
 import org.geogit.api.SpatialRef;
+import org.geogit.storage.AbstractObjectDatabase;
 import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.ObjectReader;
 import org.geogit.storage.WrappedSerialisingFactory;
@@ -423,6 +425,10 @@ public class GeoGitSimpleFeatureCollection implements SimpleFeatureCollection {
 
         final WrappedSerialisingFactory serialisingFactory;
 
+        private Iterator<Ref> batch = Iterators.emptyIterator();
+
+        private Iterator<InputStream> batchContents;
+
         public GeoGitFeatureIterator(final Iterator<Ref> featureRefs,
                 final SimpleFeatureType type, final Filter filter,
                 final ObjectDatabase odb) {
@@ -440,8 +446,8 @@ public class GeoGitSimpleFeatureCollection implements SimpleFeatureCollection {
                 hints.put(Hints.GEOMETRY_FACTORY, geometryFactory);
             }
             try {
-                while (featureRefs.hasNext()) {
-                    Ref featureRef = featureRefs.next();
+                while (batch.hasNext() || nextBatch()) {
+                    Ref featureRef = batch.next();
                     String featureId = featureRef.getName();
                     ObjectId contentId = featureRef.getObjectId();
 
@@ -449,7 +455,12 @@ public class GeoGitSimpleFeatureCollection implements SimpleFeatureCollection {
                     ObjectReader<Feature> featureReader = serialisingFactory
                             .createFeatureReader(type, featureId, hints);
 
-                    feature = (SimpleFeature) odb.get(contentId, featureReader);
+                    InputStream raw = batchContents.next();
+                    try {
+                        feature = (SimpleFeature) featureReader.read(contentId, raw);
+                    } finally {
+                        raw.close();
+                    }
                     feature = reprojector.reproject(feature);
                     if (filter.evaluate(feature)) {
                         return feature;
@@ -461,6 +472,25 @@ public class GeoGitSimpleFeatureCollection implements SimpleFeatureCollection {
             return endOfData();
         }
 
+        /**
+         * Fetches the contents of the next batch of features at once
+         * 
+         * @return {@code false} if there are no more features
+         */
+        private boolean nextBatch() {
+            final int batchSize = AbstractObjectDatabase.GET_ALL_BATCH_SIZE;
+            List<Ref> refs = new ArrayList<Ref>(batchSize);
+            List<ObjectId> ids = new ArrayList<ObjectId>(batchSize);
+            while (featureRefs.hasNext() && refs.size() < batchSize) {
+                Ref ref = featureRefs.next();
+                refs.add(ref);
+                ids.add(ref.getObjectId());
+            }
+            batch = refs.iterator();
+            batchContents = odb.getAllRaw(ids);
+            return !refs.isEmpty();
+        }
+
     }
 
     @Override
@@ -138,7 +138,7 @@ public class VersioningTransactionState implements Transaction.State {
             try {
                 // geoGit.add().call();
                 CommitOp commitOp = geoGit.commit();
-                commit = commitOp.call();
+                commit = commitOp.timedCall();
                 LOGGER.info("New commit: " + commit);
             } catch (NothingToCommitException emptyCommit) {
                 LOGGER.warning("GeoGit threw NothingToCommitException, this may be due to the transaction having not changed the repository contents");
@@ -179,7 +179,7 @@ public class VersioningTransactionState implements Transaction.State {
         WorkingTree workingTree = geoGit.getRepository().getWorkingTree();
         List<FeatureId> inserted = workingTree.insert(affectedFeatures,
                 forceUseProvidedFIDs, NULL_PROGRESS_LISTENER);
-        geoGit.add().call();
+        geoGit.add().timedCall();
         return inserted;
     }
 
@@ -190,7 +190,7 @@ public class VersioningTransactionState implements Transaction.State {
 
         WorkingTree workingTree = geoGit.getRepository().getWorkingTree();
         workingTree.update(newValues, NULL_PROGRESS_LISTENER);
-        geoGit.add().call();
+        geoGit.add().timedCall();
     }
 
     public void stageDelete(final Name typeName, final Filter filter,
@@ -201,7 +201,7 @@ public class VersioningTransactionState implements Transaction.State {
         WorkingTree workingTree = geoGit.getRepository().getWorkingTree();
         workingTree.delete(typeName, filter, affectedFeatures);
 
-        geoGit.add().call();
+        geoGit.add().timedCall();
 
     }
 
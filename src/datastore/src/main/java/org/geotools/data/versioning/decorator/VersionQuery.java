@@ -29,6 +29,7 @@ import org.geogit.api.DiffOp;
 import org.geogit.api.GeoGIT;
 import org.geogit.api.LogOp;
 import org.geogit.api.ObjectId;
+import org.geogit.api.ObjectIdMap;
 import org.geogit.api.Ref;
 import org.geogit.api.RevCommit;
 import org.geogit.api.RevObject.TYPE;
@@ -237,17 +238,41 @@ public class VersionQuery {
         return treeRefs;
     }
 
+    /**
+     * Keeps the refs that are in {@code refList}.
+     * <p>
+     * The list is indexed by object id, each id mapped to the last position it's at, and each
+     * position chained to the previous one with the same id, so features sharing contents are
+     * still told apart by name.
+     * </p>
+     */
     private List<Ref> filterIteratorByList(List<Ref> refList, Iterator<Ref> refs) {
         Preconditions.checkNotNull(refs);
         Preconditions.checkNotNull(refList);
-        List<Ref> newRefs = new ArrayList<Ref>();
-        while (refs.hasNext()) {
-            Ref ref = refs.next();
-            if (refList.contains(ref)) {
-                newRefs.add(ref);
+        final Ref[] candidates = refList.toArray(new Ref[refList.size()]);
+        final int[] previous = new int[candidates.length];
+        final ObjectIdMap lastIndex = new ObjectIdMap(candidates.length);
+        try {
+            for (int i = 0; i < candidates.length; i++) {
+                ObjectId id = candidates[i].getObjectId();
+                previous[i] = (int) lastIndex.get(id, -1);
+                lastIndex.put(id, i);
             }
+            List<Ref> newRefs = new ArrayList<Ref>();
+            while (refs.hasNext()) {
+                Ref ref = refs.next();
+                int i = (int) lastIndex.get(ref.getObjectId(), -1);
+                while (i != -1 && !candidates[i].equals(ref)) {
+                    i = previous[i];
+                }
+                if (i != -1) {
+                    newRefs.add(ref);
+                }
+            }
+            return newRefs;
+        } finally {
+            lastIndex.close();
         }
-        return newRefs;
     }
 
     /**